@@ -15,23 +15,76 @@
  */
 package dorkbox.util;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.math.BigInteger;
 import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import dorkbox.os.OS;
 
+/**
+ * A file cache, saved in a directory in the system temp location.
+ * <p>
+ * The cache keeps an in-memory index of the files that are saved, which is loaded (once) from a journal file in the cache directory. A cache
+ * hit is answered from the index, without touching the filesystem. A cache miss probes the disk once, so that files created via
+ * {@link #create(String)} (or saved by a previous version of this class) are added to the index.
+ * <p>
+ * The cache can be limited by the total size (in bytes) and the number of files that it holds. When a limit is exceeded, files are evicted
+ * (deleted from disk) according to the {@link Eviction} policy. Files that were returned by the cache can be evicted while they are still
+ * being used by the caller, so the limits should be large enough for the working set. By default the cache is not limited, and never evicts.
+ * <p>
+ * The index is only shared by the methods of a single instance, so a cache directory should only be used by a single instance at a time.
+ */
 public
 class CacheUtil {
 
+    /**
+     * How files are chosen to be evicted, when the cache is over its limits
+     */
+    public
+    enum Eviction {
+        /**
+         * The least recently used file is evicted
+         */
+        LRU,
+
+        /**
+         * New files enter a small LRU "window", and when they leave the window they are only kept if they have been used more often
+         * than the file that would be evicted in their place (W-TinyLFU, with a single LRU main region). This keeps frequently used files
+         * in the cache when there are bursts of files that are only used once.
+         */
+        TINY_LFU
+    }
+
+    private static final String JOURNAL_NAME = "cache.journal";
+    private static final String TEMP_EXTENSION = ".tmp";
+
+    // the percentage of the cache (in entries and bytes) that is used for the admission window, for TINY_LFU
+    private static final int WINDOW_PERCENT = 1;
+
     private static final ThreadLocal<MessageDigest> digestLocal = ThreadLocal.withInitial(()->{
         try {
             return MessageDigest.getInstance("SHA1");
@@ -40,7 +93,48 @@ class CacheUtil {
         }
     });
 
+    /**
+     * The information about a file in the cache
+     */
+    private static final
+    class Entry {
+        private final String name;
+        private final long size;
+        private boolean inWindow;
+
+        Entry(final String name, final long size) {
+            this.name = name;
+            this.size = size;
+        }
+    }
+
     private final String tempDir;
+    private final File saveDir;
+    private final File journalFile;
+
+    private final long maxBytes;
+    private final int maxEntries;
+    private final Eviction eviction;
+
+    // all access to the index (and the journal) is protected by this lock
+    private final Object lock = new Object();
+
+    // both are in access order. The window is only used for TINY_LFU
+    private final LinkedHashMap<String, Entry> window = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final LinkedHashMap<String, Entry> main = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final FrequencySketch sketch;
+
+    private boolean loaded = false;
+    private long windowBytes = 0L;
+    private long totalBytes = 0L;
+    private int journalRecords = 0;
+
+    // saves to the same cache file will wait for the save that is already in progress
+    private final ConcurrentHashMap<String, CompletableFuture<File>> inFlight = new ConcurrentHashMap<String, CompletableFuture<File>>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
 
     public static
     void clear(String tempDir) {
@@ -52,7 +146,40 @@ class CacheUtil {
     }
 
     public CacheUtil(String tempDir) {
+        this(tempDir, Long.MAX_VALUE, Integer.MAX_VALUE, Eviction.LRU);
+    }
+
+    /**
+     * @param tempDir the name of the directory (in the system temp location) to save the cached files in
+     * @param maxBytes the maximum total size of the files in the cache
+     * @param maxEntries the maximum number of files in the cache
+     * @param eviction how files are chosen to be evicted, when the cache is over its limits
+     */
+    public CacheUtil(String tempDir, long maxBytes, int maxEntries, Eviction eviction) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be > 0");
+        }
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be > 0");
+        }
+        if (eviction == null) {
+            throw new NullPointerException("eviction");
+        }
+
         this.tempDir = tempDir;
+        this.saveDir = new File(OS.TEMP_DIR, tempDir).getAbsoluteFile();
+        this.journalFile = new File(saveDir, JOURNAL_NAME);
+
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+        this.eviction = eviction;
+
+        if (eviction == Eviction.TINY_LFU) {
+            sketch = new FrequencySketch(maxEntries == Integer.MAX_VALUE ? 1024 : maxEntries);
+        }
+        else {
+            sketch = null;
+        }
     }
 
     /**
@@ -60,16 +187,71 @@ class CacheUtil {
      */
     public
     void clear() {
-        // deletes all of the files (recursively) in the specified location. If the directory is empty (no locked files), then the
-        // directory is also deleted.
-        FileUtil.delete(new File(OS.TEMP_DIR, tempDir));
+        synchronized (lock) {
+            // deletes all of the files (recursively) in the specified location. If the directory is empty (no locked files), then the
+            // directory is also deleted.
+            FileUtil.delete(new File(OS.TEMP_DIR, tempDir));
+
+            window.clear();
+            main.clear();
+            windowBytes = 0L;
+            totalBytes = 0L;
+            journalRecords = 0;
+
+            // there is nothing left to load
+            loaded = true;
+        }
+    }
+
+    /**
+     * @return the number of lookups that found the file in the cache
+     */
+    public
+    long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * @return the number of lookups that did not find the file in the cache
+     */
+    public
+    long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return the number of files that were evicted from the cache, because it was over its limits
+     */
+    public
+    long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * @return the total size (in bytes) of the files in the cache
+     */
+    public
+    long getSize() {
+        synchronized (lock) {
+            load();
+            return totalBytes;
+        }
+    }
+
+    /**
+     * @return the number of files in the cache
+     */
+    public
+    int getEntryCount() {
+        synchronized (lock) {
+            load();
+            return window.size() + main.size();
+        }
     }
 
 
     /**
      * Checks to see if the specified file is in the cache. NULL if it is not, otherwise specifies a location on disk.
-     * <p>
-     * This cache is not persisted across runs.
      */
     public
     File check(final File file) {
@@ -91,14 +273,7 @@ class CacheUtil {
         }
 
         // if we already have this fileName, reuse it
-        File newFile = makeCacheFile(fileName);
-
-        // if this file already exists (via HASH), we just reuse what is saved on disk.
-        if (newFile.canRead() && newFile.isFile()) {
-            return newFile;
-        }
-
-        return null;
+        return lookup(makeCacheName(fileName));
     }
 
     /**
@@ -141,28 +316,10 @@ class CacheUtil {
         }
 
         // if we already have this fileName, reuse it
-        File newFile = makeCacheFile(cacheName);
-
-        // if this file already exists (via HASH), we just reuse what is saved on disk.
-        if (newFile.canRead() && newFile.isFile()) {
-            return newFile;
-        }
-
-        return null;
+        return lookup(makeCacheName(cacheName));
     }
 
 
-
-
-
-
-
-
-
-
-
-
-
     /**
      * Saves the name of the file in a cache, based on the file's name.
      */
@@ -202,38 +359,55 @@ class CacheUtil {
         }
 
         // if we already have this fileName, reuse it
-        File newFile = makeCacheFile(cacheName);
-
-        // if this file already exists (via HASH), we just reuse what is saved on disk.
-        if (newFile.canRead() && newFile.isFile()) {
+        final String name = makeCacheName(cacheName);
+        File newFile = lookup(name);
+        if (newFile != null) {
             return newFile;
         }
 
+        final CompletableFuture<File> future = new CompletableFuture<File>();
+        final CompletableFuture<File> existing = inFlight.putIfAbsent(name, future);
+        if (existing != null) {
+            // the same file is already being saved
+            return await(existing);
+        }
 
-        // is file sitting on drive
-        File iconTest = new File(fileName);
-        if (iconTest.isFile()) {
-            if (!iconTest.canRead()) {
-                throw new IOException("File exists but unable to read source file " + fileName);
-            }
-
-            // have to copy the resource to the cache
-            FileUtil.copyFile(iconTest, newFile);
+        try {
+            // is file sitting on drive
+            File iconTest = new File(fileName);
+            InputStream inStream;
 
-            return newFile;
-        }
-        else {
-            // suck it out of a URL/Resource (with debugging if necessary)
-            final URL systemResource = LocationResolver.getResource(fileName);
+            if (iconTest.isFile()) {
+                if (!iconTest.canRead()) {
+                    throw new IOException("File exists but unable to read source file " + fileName);
+                }
 
-            if (systemResource == null) {
-                throw new IOException("Unable to load URL resource " + fileName);
+                // have to copy the resource to the cache
+                inStream = new FileInputStream(iconTest);
             }
+            else {
+                // suck it out of a URL/Resource (with debugging if necessary)
+                final URL systemResource = LocationResolver.getResource(fileName);
 
-            InputStream inStream = systemResource.openStream();
+                if (systemResource == null) {
+                    throw new IOException("Unable to load URL resource " + fileName);
+                }
+
+                inStream = systemResource.openStream();
+            }
 
             // saves the file into our temp location, uses HASH of cacheName
-            return makeFileViaStream(cacheName, inStream);
+            newFile = makeFileViaStream(cacheName, name, inStream);
+            future.complete(newFile);
+            return newFile;
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(name, future);
         }
     }
 
@@ -255,17 +429,35 @@ class CacheUtil {
         }
 
         // if we already have this fileName, reuse it
-        File newFile = makeCacheFile(cacheName);
-
-        // if this file already exists (via HASH), we just reuse what is saved on disk.
-        if (newFile.canRead() && newFile.isFile()) {
+        final String name = makeCacheName(cacheName);
+        File newFile = lookup(name);
+        if (newFile != null) {
             return newFile;
         }
 
-        InputStream inStream = fileResource.openStream();
+        final CompletableFuture<File> future = new CompletableFuture<File>();
+        final CompletableFuture<File> existing = inFlight.putIfAbsent(name, future);
+        if (existing != null) {
+            // the same URL is already being saved
+            return await(existing);
+        }
+
+        try {
+            InputStream inStream = fileResource.openStream();
 
-        // saves the file into our temp location, uses HASH of cacheName
-        return makeFileViaStream(cacheName, inStream);
+            // saves the file into our temp location, uses HASH of cacheName
+            newFile = makeFileViaStream(cacheName, name, inStream);
+            future.complete(newFile);
+            return newFile;
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(name, future);
+        }
     }
 
     /**
@@ -283,46 +475,132 @@ class CacheUtil {
     /**
      * Saves the name of the file in a cache, based on the cacheName. If the cacheName is NULL, it will use a HASH of the fileStream
      * as the name.
+     * <p>
+     * When hashing the fileStream, it is hashed while it is saved to disk (it is only read once, and it is not copied into memory).
      */
     public
     File save(String cacheName, final InputStream fileStream) throws IOException {
+        if (fileStream == null) {
+            throw new NullPointerException("fileStream");
+        }
+
         if (cacheName == null) {
-            cacheName = createNameAsHash(fileStream);
+            return saveAsHash(fileStream);
         }
 
         // if we already have this fileName, reuse it
-        File newFile = makeCacheFile(cacheName);
-
-        // if this file already exists (via HASH), we just reuse what is saved on disk.
-        if (newFile.canRead() && newFile.isFile()) {
+        final String name = makeCacheName(cacheName);
+        File newFile = lookup(name);
+        if (newFile != null) {
+            closeQuietly(fileStream);
             return newFile;
         }
 
-        return makeFileViaStream(cacheName, fileStream);
-    }
-
+        final CompletableFuture<File> future = new CompletableFuture<File>();
+        final CompletableFuture<File> existing = inFlight.putIfAbsent(name, future);
+        if (existing != null) {
+            // the same name is already being saved
+            closeQuietly(fileStream);
+            return await(existing);
+        }
 
+        try {
+            newFile = makeFileViaStream(cacheName, name, fileStream);
+            future.complete(newFile);
+            return newFile;
+        } catch (IOException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(name, future);
+        }
+    }
 
+    /**
+     * Saves the stream to a temp file while it is hashed, then moves it into the cache (under the name of the hash). If the same data is
+     * already in the cache (or is being saved), the temp file is discarded.
+     */
+    private
+    File saveAsHash(final InputStream fileStream) throws IOException {
+        final MessageDigest digest = digestLocal.get();
+        digest.reset();
 
+        final File tempFile = writeTempFile("hash", fileStream, digest);
 
+        try {
+            final String name = makeCacheName(toName(digest.digest()) + ".cache");
 
+            File newFile = lookup(name);
+            if (newFile != null) {
+                return newFile;
+            }
 
+            final CompletableFuture<File> future = new CompletableFuture<File>();
+            final CompletableFuture<File> existing = inFlight.putIfAbsent(name, future);
+            if (existing != null) {
+                // identical data is already being saved
+                return await(existing);
+            }
 
+            try {
+                newFile = commit(tempFile, name);
+                future.complete(newFile);
+                return newFile;
+            } catch (IOException e) {
+                future.completeExceptionally(e);
+                throw e;
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(name, future);
+            }
+        } finally {
+            // only exists if it was not moved into the cache
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+        }
+    }
 
+    private static
+    File await(final CompletableFuture<File> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the file to be saved", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw new IOException(cause.getMessage(), cause);
+            }
+            throw new IOException("Unable to save the file", cause);
+        }
+    }
 
+    private static
+    void closeQuietly(final InputStream inputStream) {
+        try {
+            inputStream.close();
+        } catch (Exception ignored) {
+        }
+    }
 
 
     /**
-     * must be called from synchronized block!
+     * must only be called by the thread that is saving this cache name!
      *
      * @param cacheName needs name+extension for the resource
+     * @param name the name of the file in the cache
      * @param resourceStream the resource to copy to a file on disk
      *
      * @return the full path of the resource copied to disk, or NULL if invalid
      */
-    @SuppressWarnings("ResultOfMethodCallIgnored")
     private
-    File makeFileViaStream(final String cacheName, final InputStream resourceStream) throws IOException {
+    File makeFileViaStream(final String cacheName, final String name, final InputStream resourceStream) throws IOException {
         if (resourceStream == null) {
             throw new NullPointerException("resourceStream");
         }
@@ -331,41 +609,91 @@ class CacheUtil {
             throw new NullPointerException("cacheName");
         }
 
-        File newFile = makeCacheFile(cacheName);
-
-        // if this file already exists (via HASH), we just reuse what is saved on disk.
-        if (newFile.canRead() && newFile.isFile()) {
-            return newFile.getAbsoluteFile();
+        // if this file was saved while we were waiting, we just reuse what is saved on disk.
+        File newFile = lookup(name);
+        if (newFile != null) {
+            closeQuietly(resourceStream);
+            return newFile;
         }
 
-        OutputStream outStream = null;
+        File tempFile;
         try {
-            int read;
-            byte[] buffer = new byte[2048];
-            outStream = new FileOutputStream(newFile);
-
-            while ((read = resourceStream.read(buffer)) > 0) {
-                outStream.write(buffer, 0, read);
-            }
+            tempFile = writeTempFile("save", resourceStream, null);
         } catch (IOException e) {
             // Send up exception
-            String message = "Unable to copy '" + cacheName + "' to temporary location: '" + newFile.getAbsolutePath() + "'";
+            String message = "Unable to copy '" + cacheName + "' to temporary location: '" + new File(saveDir, name).getAbsolutePath() + "'";
             throw new IOException(message, e);
+        }
+
+        try {
+            return commit(tempFile, name);
         } finally {
+            // only exists if it was not moved into the cache
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Copies the stream to a new temp file in the cache directory, optionally hashing it at the same time. The stream is always closed.
+     */
+    private
+    File writeTempFile(final String prefix, final InputStream resourceStream, final MessageDigest digest) throws IOException {
+        OutputStream outStream = null;
+        File tempFile = null;
+        boolean success = false;
+
+        try {
+            //noinspection ResultOfMethodCallIgnored
+            saveDir.mkdirs();
+            tempFile = File.createTempFile(prefix, TEMP_EXTENSION, saveDir);
+            outStream = new FileOutputStream(tempFile);
+
+            int read;
+            byte[] buffer = IO.acquireBuffer(IO.BUFFER_SIZE);
             try {
-                resourceStream.close();
-            } catch (Exception ignored) {
+                while ((read = resourceStream.read(buffer)) > 0) {
+                    if (digest != null) {
+                        digest.update(buffer, 0, read);
+                    }
+                    outStream.write(buffer, 0, read);
+                }
+            } finally {
+                IO.releaseBuffer(buffer);
             }
+
+            success = true;
+            return tempFile;
+        } finally {
+            closeQuietly(resourceStream);
             try {
                 if (outStream != null) {
                     outStream.close();
                 }
             } catch (Exception ignored) {
             }
+
+            if (!success && tempFile != null) {
+                //noinspection ResultOfMethodCallIgnored
+                tempFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Moves the (fully written) temp file into the cache, and adds it to the index. This might evict other files from the cache.
+     */
+    private
+    File commit(final File tempFile, final String name) throws IOException {
+        final File newFile = new File(saveDir, name);
+        Files.move(tempFile.toPath(), newFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        synchronized (lock) {
+            load();
+            add(name, newFile.length(), true);
         }
 
-        //get the name of the new file
-        return newFile.getAbsoluteFile();
+        return newFile;
     }
 
     /**
@@ -375,20 +703,19 @@ class CacheUtil {
      */
     public
     File create(final String cacheName) {
-        return makeCacheFile(cacheName);
+        //noinspection ResultOfMethodCallIgnored
+        saveDir.mkdirs();
+        return new File(saveDir, makeCacheName(cacheName));
     }
 
-    // creates the file that will be cached. It may, or may not already exist
-    // must be called from synchronized block!
+    // the name of the file in the cache. It may, or may not already exist
     // never returns null
-    private
-    File makeCacheFile(final String cacheName) {
+    private static
+    String makeCacheName(final String cacheName) {
         if (cacheName == null) {
             throw new NullPointerException("cacheName");
         }
 
-        File saveDir = new File(OS.TEMP_DIR, tempDir);
-
         // can be wimpy, only one at a time
         String hash = hashName(cacheName);
         String extension = FileUtil.getExtension(cacheName);
@@ -396,12 +723,7 @@ class CacheUtil {
             extension = "cache";
         }
 
-        File newFile = new File(saveDir, hash + '.' + extension).getAbsoluteFile();
-        // make whatever dirs we need to.
-        //noinspection ResultOfMethodCallIgnored
-        newFile.getParentFile().mkdirs();
-
-        return newFile;
+        return hash + '.' + extension;
     }
 
     // hashed name to prevent invalid file names from being used
@@ -414,8 +736,13 @@ class CacheUtil {
         digest.reset();
         digest.update(bytes);
 
+        return toName(digest.digest());
+    }
+
+    private static
+    String toName(final byte[] hash) {
         // convert to alpha-numeric. see https://stackoverflow.com/questions/29183818/why-use-tostring32-and-not-tostring36
-        return new BigInteger(1, digest.digest()).toString(32).toUpperCase(Locale.US);
+        return new BigInteger(1, hash).toString(32).toUpperCase(Locale.US);
     }
 
     // this is if we DO NOT have a file name. We hash the resourceStream bytes to base the name on that. The extension will be ".cache"
@@ -427,26 +754,391 @@ class CacheUtil {
 
         try {
             // we have to set the cache name based on the hash of the input stream ONLY...
-            final ByteArrayOutputStream outStream = new ByteArrayOutputStream(4096); // will resize if necessary
-
             int read;
-            byte[] buffer = new byte[2048];
-
-            while ((read = resourceStream.read(buffer)) > 0) {
-                digest.update(buffer, 0, read);
-                outStream.write(buffer, 0, read);
+            byte[] buffer = IO.acquireBuffer(IO.BUFFER_SIZE);
+            try {
+                while ((read = resourceStream.read(buffer)) > 0) {
+                    digest.update(buffer, 0, read);
+                }
+            } finally {
+                IO.releaseBuffer(buffer);
             }
 
-            // convert to alpha-numeric. see https://stackoverflow.com/questions/29183818/why-use-tostring32-and-not-tostring36
-            return new BigInteger(1, digest.digest()).toString(32).toUpperCase(Locale.US) + ".cache";
+            return toName(digest.digest()) + ".cache";
         } catch (IOException e) {
             // Send up exception
-            String message = "Unable to copy InputStream to memory.";
+            String message = "Unable to hash InputStream.";
             throw new IOException(message, e);
         } finally {
+            closeQuietly(resourceStream);
+        }
+    }
+
+
+    /**
+     * @return the file in the cache, or null if it is not in the cache
+     */
+    private
+    File lookup(final String name) {
+        synchronized (lock) {
+            load();
+
+            if (sketch != null) {
+                sketch.increment(name.hashCode());
+            }
+
+            // get() also marks the entry as recently used
+            Entry entry = window.get(name);
+            if (entry == null) {
+                entry = main.get(name);
+            }
+
+            if (entry == null) {
+                // a file that was created outside of the cache (via create(), or by an older version) is added the first time it is used
+                final File file = new File(saveDir, name);
+                if (!file.isFile()) {
+                    missCount.incrementAndGet();
+                    return null;
+                }
+
+                add(name, file.length(), true);
+            }
+
+            hitCount.incrementAndGet();
+            return new File(saveDir, name);
+        }
+    }
+
+    /**
+     * Loads the index from the journal, if it has not been loaded yet. If there is no journal, the index is created from the files that
+     * are already in the cache directory.
+     * <p>
+     * must be called from synchronized block!
+     */
+    private
+    void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+
+        if (journalFile.isFile()) {
+            // replay the journal. The order of the records is the order that the files are used (for eviction)
+            final Map<String, Long> entries = new LinkedHashMap<String, Long>();
+
             try {
-                resourceStream.close();
-            } catch (Exception ignored) {
+                final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), OS.UTF_8));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        journalRecords++;
+
+                        if (line.startsWith("A ")) {
+                            final int index = line.indexOf(' ', 2);
+                            if (index > 0) {
+                                final String name = line.substring(index + 1);
+                                entries.remove(name);
+                                entries.put(name, Long.parseLong(line.substring(2, index)));
+                            }
+                        }
+                        else if (line.startsWith("D ")) {
+                            entries.remove(line.substring(2));
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+            } catch (Exception e) {
+                // a broken journal (ie: from a crash) only loses what has not been read yet. Anything in the directory is added when used.
+                e.printStackTrace();
+            }
+
+            for (Map.Entry<String, Long> entry : entries.entrySet()) {
+                // files can be deleted from the temp location by the system
+                if (new File(saveDir, entry.getKey()).isFile()) {
+                    add(entry.getKey(), entry.getValue(), false);
+                }
+            }
+
+            // removes the records for the missing files
+            compactJournal();
+        }
+        else {
+            final File[] files = saveDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    final String name = file.getName();
+                    if (file.isFile() && !name.equals(JOURNAL_NAME) && !name.endsWith(TEMP_EXTENSION)) {
+                        add(name, file.length(), false);
+                    }
+                }
+
+                if (!isEmpty()) {
+                    compactJournal();
+                }
+            }
+        }
+
+        // the journal might have less, since files can be evicted after they are loaded
+        evict(null);
+    }
+
+    private
+    boolean isEmpty() {
+        return window.isEmpty() && main.isEmpty();
+    }
+
+    /**
+     * Adds a file to the index, then evicts files (if the cache is over its limits)
+     * <p>
+     * must be called from synchronized block!
+     */
+    private
+    void add(final String name, final long size, final boolean writeJournal) {
+        Entry entry = window.remove(name);
+        if (entry != null) {
+            windowBytes -= entry.size;
+        }
+        else {
+            entry = main.remove(name);
+        }
+
+        if (entry != null) {
+            totalBytes -= entry.size;
+        }
+
+        entry = new Entry(name, size);
+        totalBytes += size;
+
+        if (eviction == Eviction.TINY_LFU) {
+            entry.inWindow = true;
+            window.put(name, entry);
+            windowBytes += size;
+        }
+        else {
+            main.put(name, entry);
+        }
+
+        if (writeJournal) {
+            appendJournal("A " + size + " " + name);
+
+            // the file that was just added is returned to the caller, so it is never evicted here (even if it is larger than the cache)
+            evict(name);
+        }
+    }
+
+    /**
+     * Evicts files until the cache is within its limits.
+     * <p>
+     * must be called from synchronized block!
+     *
+     * @param keep the name of the file that must not be evicted, or null
+     */
+    private
+    void evict(final String keep) {
+        if (eviction == Eviction.TINY_LFU) {
+            final long windowMaxBytes = Math.max(1L, maxBytes / 100 * WINDOW_PERCENT);
+            final int windowMaxEntries = Math.max(1, maxEntries / 100 * WINDOW_PERCENT);
+
+            // files that leave the window have to compete with the file that would be evicted from the main region
+            while (window.size() > 1 && (window.size() > windowMaxEntries || windowBytes > windowMaxBytes)) {
+                final Entry candidate = removeEldest(window);
+                windowBytes -= candidate.size;
+                candidate.inWindow = false;
+                main.put(candidate.name, candidate);
+
+                while (isOverLimit() && main.size() > 1) {
+                    final Entry victim = main.values().iterator().next();
+                    if (sketch.frequency(candidate.name.hashCode()) > sketch.frequency(victim.name.hashCode())) {
+                        remove(victim);
+                    }
+                    else {
+                        remove(candidate);
+                        break;
+                    }
+                }
+            }
+        }
+
+        while (isOverLimit()) {
+            Entry victim = eldest(main, keep);
+            if (victim == null) {
+                victim = eldest(window, keep);
+            }
+            if (victim == null) {
+                break;
+            }
+            remove(victim);
+        }
+    }
+
+    /**
+     * @return the eldest entry that is not the file to keep, or null if there is none
+     */
+    private static
+    Entry eldest(final LinkedHashMap<String, Entry> map, final String keep) {
+        for (Entry entry : map.values()) {
+            if (!entry.name.equals(keep)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    private
+    boolean isOverLimit() {
+        return totalBytes > maxBytes || window.size() + main.size() > maxEntries;
+    }
+
+    private static
+    Entry removeEldest(final LinkedHashMap<String, Entry> map) {
+        final Iterator<Entry> iterator = map.values().iterator();
+        final Entry entry = iterator.next();
+        iterator.remove();
+        return entry;
+    }
+
+    /**
+     * Evicts a file from the cache.
+     * <p>
+     * must be called from synchronized block!
+     */
+    private
+    void remove(final Entry entry) {
+        if (entry.inWindow) {
+            window.remove(entry.name);
+            windowBytes -= entry.size;
+        }
+        else {
+            main.remove(entry.name);
+        }
+        totalBytes -= entry.size;
+
+        //noinspection ResultOfMethodCallIgnored
+        new File(saveDir, entry.name).delete();
+        evictionCount.incrementAndGet();
+
+        appendJournal("D " + entry.name);
+    }
+
+    /**
+     * must be called from synchronized block!
+     */
+    private
+    void appendJournal(final String record) {
+        // the journal is rewritten when most of it is records for files that are no longer in the cache
+        if (journalRecords > 2 * (window.size() + main.size()) + 64) {
+            compactJournal();
+            return;
+        }
+
+        try {
+            //noinspection ResultOfMethodCallIgnored
+            saveDir.mkdirs();
+
+            final Writer writer = new OutputStreamWriter(new FileOutputStream(journalFile, true), OS.UTF_8);
+            try {
+                writer.write(record);
+                writer.write('\n');
+            } finally {
+                writer.close();
+            }
+            journalRecords++;
+        } catch (IOException e) {
+            // the index (in memory) is still correct, only the next run will not know about this record
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Rewrites the journal with only the files that are in the cache, from least to most recently used.
+     * <p>
+     * must be called from synchronized block!
+     */
+    private
+    void compactJournal() {
+        final List<Entry> entries = new ArrayList<Entry>(main.values());
+        entries.addAll(window.values());
+
+        try {
+            //noinspection ResultOfMethodCallIgnored
+            saveDir.mkdirs();
+
+            // write to a temp file first, so a failure will not leave a broken journal
+            final File tempFile = new File(saveDir, JOURNAL_NAME + TEMP_EXTENSION);
+            final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tempFile), OS.UTF_8));
+            try {
+                for (Entry entry : entries) {
+                    writer.write("A " + entry.size + " " + entry.name + "\n");
+                }
+            } finally {
+                writer.close();
+            }
+
+            Files.move(tempFile.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            journalRecords = entries.size();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     * A count-min sketch of 4-bit counters, which estimates how often a file has been used (for TINY_LFU). The counters are halved after
+     * a number of uses, so that files which were popular a long time ago will eventually be evicted.
+     */
+    private static final
+    class FrequencySketch {
+        private static final long RESET_MASK = 0x7777777777777777L;
+        private static final int[] SEEDS = new int[] {0x97CB3127, 0xB3F1D6A5, 0x3C6EF372, 0x5B4F2E1D};
+
+        private final long[] table;
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(final int capacity) {
+            // each long has 16 counters
+            int size = Integer.highestOneBit(Math.max(64, Math.min(capacity, 1 << 24)) - 1) << 1;
+            table = new long[size];
+            mask = size - 1;
+            sampleSize = 10 * size;
+        }
+
+        private static
+        int spread(int hash, final int seed) {
+            hash = (hash ^ seed) * 0x9E3779B9;
+            return hash ^ (hash >>> 16);
+        }
+
+        int frequency(final int hash) {
+            int frequency = 15;
+            for (int i = 0; i < SEEDS.length; i++) {
+                final int h = spread(hash, SEEDS[i]);
+                final int shift = (h & 15) << 2;
+                frequency = Math.min(frequency, (int) ((table[(h >>> 4) & mask] >>> shift) & 15L));
+            }
+            return frequency;
+        }
+
+        void increment(final int hash) {
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                final int h = spread(hash, SEEDS[i]);
+                final int index = (h >>> 4) & mask;
+                final int shift = (h & 15) << 2;
+
+                if (((table[index] >>> shift) & 15L) != 15L) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+
+            if (added && ++additions == sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                }
+                additions /= 2;
             }
         }
     }
@@ -15,15 +15,16 @@
  */
 package dorkbox.util;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
+/**
+ * A (re)schedulable delay, for example to debounce events. Calling {@link #delay(long)} again before the delay has expired restarts it.
+ * <p>
+ * The delays are run by a shared {@link TimingWheel}, so no thread is created per delay.
+ */
 public
 class DelayTimer {
-    private final String name;
-    private final boolean isDaemon;
     private final Runnable listener;
-    private volatile Timer timer;
+    private final TimingWheel timingWheel;
+    private TimingWheel.Timeout timeout;
     private long delay;
 
     public
@@ -34,15 +35,23 @@ class DelayTimer {
     /**
      * Sometimes you want to make sure that this timer will complete, even if the calling thread has terminated.
      *
-     * @param name     the name of the thread (if you want to specify one)
+     * @param name     no longer used, because all delay timers share the threads of the {@link TimingWheel}
      * @param isDaemon true if you want this timer to be run on a daemon thread
      * @param listener the callback listener to execute
      */
     public
     DelayTimer(String name, boolean isDaemon, Runnable listener) {
-        this.name = name;
+        this(TimingWheel.getDefault(isDaemon), listener);
+    }
+
+    /**
+     * @param timingWheel the timing wheel that runs the delay
+     * @param listener the callback listener to execute
+     */
+    public
+    DelayTimer(TimingWheel timingWheel, Runnable listener) {
+        this.timingWheel = timingWheel;
         this.listener = listener;
-        this.isDaemon = isDaemon;
     }
 
     /**
@@ -50,7 +59,7 @@ class DelayTimer {
      */
     public synchronized
     boolean isWaiting() {
-        return this.timer != null;
+        return this.timeout != null;
     }
 
     /**
@@ -58,10 +67,9 @@ class DelayTimer {
      */
     public synchronized
     void cancel() {
-        if (this.timer != null) {
-            this.timer.cancel();
-            this.timer.purge();
-            this.timer = null;
+        if (this.timeout != null) {
+            this.timeout.cancel();
+            this.timeout = null;
         }
     }
 
@@ -74,37 +82,28 @@ class DelayTimer {
         cancel();
 
         if (delay > 0) {
-            if (this.name != null) {
-                this.timer = new Timer(this.name, this.isDaemon);
-            }
-            else {
-                this.timer = new Timer(this.isDaemon);
-            }
-
-            TimerTask t = new TimerTask() {
+            Runnable task = new Runnable() {
                 @Override
                 public
                 void run() {
-                    // timer can change if the callback calls delay() or cancel()
-                    Timer origTimer = DelayTimer.this.timer;
-
-                    DelayTimer.this.listener.run();
-
-                    if (origTimer != null) {
-                        origTimer.cancel();
-                        origTimer.purge();
-
-                        if (origTimer == DelayTimer.this.timer) {
-                            DelayTimer.this.timer = null;
+                    try {
+                        DelayTimer.this.listener.run();
+                    } finally {
+                        // the timeout can change if the callback calls delay() or cancel()
+                        synchronized (DelayTimer.this) {
+                            TimingWheel.Timeout timeout = DelayTimer.this.timeout;
+                            if (timeout != null && timeout.getTask() == this) {
+                                DelayTimer.this.timeout = null;
+                            }
                         }
                     }
                 }
             };
-            this.timer.schedule(t, delay);
+            this.timeout = this.timingWheel.schedule(task, delay);
         }
         else {
             this.listener.run();
-            this.timer = null;
+            this.timeout = null;
         }
     }
 
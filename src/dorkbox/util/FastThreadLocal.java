@@ -28,7 +28,9 @@
  */
 package dorkbox.util;
 
-import java.util.Arrays;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Fast {@code ThreadLocal} implementation, adapted from the
@@ -37,10 +39,14 @@ import java.util.Arrays;
  * <p>This implementation replaces the {@code ThreadLocalMap} lookup in {@link ThreadLocal} with a simple array access. The big advantage of this method is
  * that thread-local accesses are identified as invariant by the JVM, which enables significant code-motion optimizations.</p>
  *
- * <p>The underlying array contains a slot for each thread that uses the {@link FastThreadLocal} instance. The slot is indexed by {@link Thread#getId()}. The
- * array grows if necessary when the {@link #set} method is called.</p>
+ * <p>The underlying array contains a slot for each live thread that uses the {@link FastThreadLocal} instance. Slots are found by (open-addressing)
+ * hashing {@link Thread#getId()}, so the array is sized by the number of threads that are alive -- and NOT by the largest thread id ever seen. Slots
+ * belonging to threads that have died are reused by the next thread that claims a slot along the same probe sequence, and are reclaimed (and their
+ * values released) whenever the array would otherwise have to grow, which keeps the array bounded for thread pools that recycle their threads, as
+ * well as for large numbers of short-lived threads.</p>
  *
- * <p>It is assumed that usages of this class will be read heavy, so any contention/false-sharing issues caused by the {@link #set} method are ignored.</p>
+ * <p>There are no locks. The first time a thread uses the {@link FastThreadLocal} instance, it claims its slot with a compare-and-set. A thread that
+ * claims a slot while the array is being rebuilt waits for the (single) rebuilding thread to publish the new array.</p>
  *
  * @param <T> the thread-local value type
  *
@@ -49,8 +55,51 @@ import java.util.Arrays;
  */
 public class FastThreadLocal<T> {
 
-	@SuppressWarnings("unchecked")
-    private T[] threadIDMap = (T[])new Object[1];
+	/**
+	 * A slot for a single thread. The thread is only weakly referenced, so that this never prevents a thread from being collected. Only the owner
+	 * thread ever reads or writes the value.
+	 */
+	private static class Slot<T> extends WeakReference<Thread> {
+		private final long threadId;
+		private T value;
+
+		Slot(Thread thread) {
+			super(thread);
+			this.threadId = thread.getId();
+		}
+
+		// for MOVED, thread ids are always positive
+		private Slot() {
+			super(null);
+			this.threadId = -1L;
+		}
+
+		boolean isDead() {
+			Thread thread = get();
+			return thread == null || !thread.isAlive();
+		}
+	}
+
+	// replaces every slot of an array that is being rebuilt, so that no thread can claim a slot in it. A lookup that reaches it falls back to
+	// claimSlot, which waits for the new array.
+	private static final Slot<?> MOVED = new Slot<Object>();
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	// power of 2 (linear probing). Slots are only ever replaced (never removed), so a probe sequence is never broken. The array is never shrunk in
+	// place, it is rebuilt and replaced. It's OK if a reader sees an old array, it will still contain that reader's slot (or fall back to claimSlot).
+	private volatile AtomicReferenceArray<Slot<T>> slots = new AtomicReferenceArray<Slot<T>>(INITIAL_CAPACITY);
+
+	// the number of slots (including the slots of dead threads) in the current array
+	private volatile int slotCount = 0;
+	private volatile int rebuilding = 0;
+
+	@SuppressWarnings("rawtypes")
+	private static final AtomicIntegerFieldUpdater<FastThreadLocal> slotCountREF = AtomicIntegerFieldUpdater.newUpdater(FastThreadLocal.class,
+																										  "slotCount");
+	@SuppressWarnings("rawtypes")
+	private static final AtomicIntegerFieldUpdater<FastThreadLocal> rebuildingREF = AtomicIntegerFieldUpdater.newUpdater(FastThreadLocal.class,
+																										   "rebuilding");
 
 	/** Creates a thread local variable. */
 	public FastThreadLocal() {
@@ -71,16 +120,14 @@ public class FastThreadLocal<T> {
 	 * @see ThreadLocal#set(T)
 	 */
 	public void set(T value) {
-		int id = (int)Thread.currentThread().getId();
+		Thread thread = Thread.currentThread();
 
-		synchronized ( this ) {
-			int len = threadIDMap.length;
-            if (len <= id) {
-                threadIDMap = Arrays.copyOf(threadIDMap, id + 1);
-            }
-
-			threadIDMap[id] = value;
+		Slot<T> slot = find(this.slots, thread.getId());
+		if (slot == null) {
+			slot = claimSlot(thread);
 		}
+
+		slot.value = value;
 	}
 
 	/**
@@ -89,15 +136,18 @@ public class FastThreadLocal<T> {
 	 * @see ThreadLocal#get()
 	 */
 	public final T get() {
-		int id = (int)Thread.currentThread().getId();
+		Thread thread = Thread.currentThread();
 
-		T[] threadIDMap = this.threadIDMap; // It's OK if the array is resized after this access, will just use the old array.
-
-		T value = threadIDMap.length <= id ? null : threadIDMap[id];
+		Slot<T> slot = find(this.slots, thread.getId());
+		if (slot == null) {
+			// find() misses every slot while the array is being rebuilt, so this might return the slot (and value) we already have
+			slot = claimSlot(thread);
+		}
 
+		T value = slot.value;
 		if ( value == null ) {
 			value = initialValue();
-			set(value);
+			slot.value = value;
 		}
 
 		return value;
@@ -109,7 +159,170 @@ public class FastThreadLocal<T> {
 	 * @see ThreadLocal#remove()
 	 */
 	public void remove() {
-		set(null);
+		long threadId = Thread.currentThread().getId();
+
+		Slot<T> slot = find(this.slots, threadId);
+		if (slot == null) {
+			slot = findStable(threadId);
+		}
+		if (slot != null) {
+			// the slot is released once the thread dies
+			slot.value = null;
+		}
+	}
+
+	private static int index(long threadId, int mask) {
+		// thread ids are sequential, so spread them across the array
+		return (int) ((threadId * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+	}
+
+	private static <T> Slot<T> find(AtomicReferenceArray<Slot<T>> slots, long threadId) {
+		int mask = slots.length() - 1;
+		int index = index(threadId, mask);
+
+		while (true) {
+			Slot<T> slot = slots.get(index);
+			if (slot == null || slot == MOVED) {
+				return null;
+			}
+			if (slot.threadId == threadId) {
+				return slot;
+			}
+			index = (index + 1) & mask;
+		}
 	}
 
+	/**
+	 * Finds the slot without claiming one. If the array was being rebuilt while it was searched, the search is repeated on the new array.
+	 */
+	private Slot<T> findStable(long threadId) {
+		while (true) {
+			AtomicReferenceArray<Slot<T>> slots = this.slots;
+
+			Slot<T> slot = find(slots, threadId);
+			// the new array is published before rebuilding is cleared
+			if (slot != null || (rebuilding == 0 && slots == this.slots)) {
+				return slot;
+			}
+			Thread.yield();
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private Slot<T> claimSlot(Thread thread) {
+		long threadId = thread.getId();
+		Slot<T> slot = null;
+
+		while (true) {
+			AtomicReferenceArray<Slot<T>> slots = this.slots;
+
+			// another array might have been published since we last looked
+			Slot<T> existing = find(slots, threadId);
+			if (existing != null) {
+				return existing;
+			}
+
+			// keep the load factor under 0.5. Dead threads are purged first, so we only grow if there are that many live threads
+			if ((slotCount + 1) * 2 > slots.length()) {
+				if (rebuildingREF.compareAndSet(this, 0, 1)) {
+					try {
+						if (slots == this.slots) {
+							this.slots = rebuild(slots);
+						}
+					} finally {
+						rebuilding = 0;
+					}
+				}
+				else {
+					Thread.yield();
+				}
+				continue;
+			}
+
+			if (slot == null) {
+				slot = new Slot<T>(thread);
+			}
+
+			int mask = slots.length() - 1;
+			int index = index(threadId, mask);
+
+			while (true) {
+				Slot<T> current = slots.get(index);
+
+				if (current == MOVED) {
+					// the array is being rebuilt, wait for the new one
+					Thread.yield();
+					break;
+				}
+
+				if (current == null) {
+					if (slots.compareAndSet(index, null, slot)) {
+						slotCountREF.incrementAndGet(this);
+						return slot;
+					}
+					// lost the race, check what was claimed
+					continue;
+				}
+
+				// the slot of a dead thread is reused, which releases its value
+				if (current.isDead() && slots.compareAndSet(index, current, slot)) {
+					return slot;
+				}
+
+				index = (index + 1) & mask;
+			}
+		}
+	}
+
+	/**
+	 * Creates a new array that contains only the slots of threads that are still alive. Every slot of the old array is replaced with MOVED as it is
+	 * copied, so a slot that is claimed in the old array at the same time is either copied, or the claim fails (and is retried in the new array).
+	 */
+	@SuppressWarnings("unchecked")
+	private AtomicReferenceArray<Slot<T>> rebuild(AtomicReferenceArray<Slot<T>> slots) {
+		Slot<T> moved = (Slot<T>) MOVED;
+		int length = slots.length();
+
+		int live = 0;
+		for (int i = 0; i < length; i++) {
+			Slot<T> slot = slots.get(i);
+			if (slot != null && !slot.isDead()) {
+				live++;
+			}
+		}
+
+		int capacity = INITIAL_CAPACITY;
+		// a few slots might be claimed while copying, so leave room to grow (so that we don't immediately rebuild again)
+		while ((live + 1) * 2 > capacity / 2 && capacity < (1 << 30)) {
+			capacity <<= 1;
+		}
+
+		Slot<T>[] newSlots = (Slot<T>[]) new Slot<?>[capacity];
+		int count = 0;
+
+		for (int i = 0; i < length; i++) {
+			Slot<T> slot;
+			do {
+				slot = slots.get(i);
+			} while (!slots.compareAndSet(i, slot, moved));
+
+			if (slot != null && !slot.isDead()) {
+				insert(newSlots, slot);
+				count++;
+			}
+		}
+
+		slotCount = count;
+		return new AtomicReferenceArray<Slot<T>>(newSlots);
+	}
+	private static <T> void insert(Slot<T>[] slots, Slot<T> slot) {
+		int mask = slots.length - 1;
+		int index = index(slot.threadId, mask);
+
+		while (slots[index] != null) {
+			index = (index + 1) & mask;
+		}
+
+		slots[index] = slot;
+	}
 }
@@ -0,0 +1,575 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Finds the files in a directory (and all of its sub-directories) without collecting them first.
+ * <p>
+ * The files are either streamed (lazily, one directory at a time is open), or visited by a callback which can stop the scan early. The
+ * sub-directories can also be scanned in parallel on a fork-join pool. Every file is returned with the attributes that were read while
+ * scanning, so the file does not have to be checked again.
+ * <p>
+ * The extensions (or glob patterns) are compiled once, and are matched against the name of the file instead of its absolute path.
+ * <p>
+ * Links are followed, but every directory is only scanned once (so a link to a parent directory does not loop forever). A link that
+ * points to nothing is found as a file, files that are deleted while scanning are skipped, and so are the sub-directories that cannot be
+ * read.
+ */
+@SuppressWarnings("WeakerAccess")
+public final
+class FileScanner {
+    /**
+     * A file that was found, and its attributes (read when it was found)
+     */
+    public static final
+    class Entry {
+        private final Path path;
+        private final BasicFileAttributes attributes;
+
+        Entry(final Path path, final BasicFileAttributes attributes) {
+            this.path = path;
+            this.attributes = attributes;
+        }
+
+        public
+        Path path() {
+            return path;
+        }
+
+        public
+        File toFile() {
+            return path.toFile();
+        }
+
+        public
+        String name() {
+            return path.getFileName().toString();
+        }
+
+        public
+        BasicFileAttributes attributes() {
+            return attributes;
+        }
+
+        public
+        long size() {
+            return attributes.size();
+        }
+
+        public
+        long lastModified() {
+            return attributes.lastModifiedTime().toMillis();
+        }
+
+        @Override
+        public
+        String toString() {
+            return path.toString();
+        }
+    }
+
+    /**
+     * Visits the files found by a scan.
+     */
+    public
+    interface Visitor {
+        /**
+         * @return true to continue the scan, false to stop it
+         */
+        boolean visit(Entry entry);
+    }
+
+
+    private final String[] extensions;
+    private final PathMatcher[] globs;
+
+    /**
+     * Creates a scanner that finds every file.
+     */
+    public
+    FileScanner() {
+        this(null, null);
+    }
+
+    /**
+     * Creates a scanner that finds the files that end in one of the extensions. An extension that contains a separator is matched against
+     * the (absolute) path of the file instead of the name.
+     */
+    public
+    FileScanner(final String... extensionsToMatch) {
+        this(extensionsToMatch, null);
+    }
+
+    private
+    FileScanner(final String[] extensions, final PathMatcher[] globs) {
+        if (extensions == null || extensions.length == 0 || extensions[0] == null) {
+            this.extensions = null;
+        }
+        else {
+            this.extensions = extensions.clone();
+        }
+
+        this.globs = globs;
+    }
+
+    /**
+     * Creates a scanner that finds the files with a name that matches one of the glob patterns, for example "*.{jar,zip}".
+     *
+     * @see java.nio.file.FileSystem#getPathMatcher(String)
+     */
+    public static
+    FileScanner glob(final String... patterns) {
+        PathMatcher[] globs = new PathMatcher[patterns.length];
+        for (int i = 0; i < patterns.length; i++) {
+            globs[i] = FileSystems.getDefault().getPathMatcher("glob:" + patterns[i]);
+        }
+
+        return new FileScanner(null, globs);
+    }
+
+    boolean matches(final Path path) {
+        if (globs != null) {
+            Path fileName = path.getFileName();
+            for (PathMatcher glob : globs) {
+                if (glob.matches(fileName)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        if (extensions == null) {
+            return true;
+        }
+
+        String name = path.getFileName().toString();
+        for (String extension : extensions) {
+            if (extension.indexOf(File.separatorChar) >= 0 ? path.toString().endsWith(extension) : name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static
+    Path root(final File rootDirectory) throws IOException {
+        File root = FileUtil.normalize(rootDirectory);
+
+        if (root == null || !root.exists()) {
+            throw new IOException("Location does not exist: " + rootDirectory.getAbsolutePath());
+        }
+
+        if (!root.isDirectory()) {
+            throw new IOException("Cannot search directory children if the dir is a file name: " + root.getAbsolutePath());
+        }
+
+        return root.getAbsoluteFile().toPath();
+    }
+
+    /**
+     * @return the attributes of the path (of the link itself, if it points to nothing), or null if the path no longer exists
+     */
+    private static
+    BasicFileAttributes attributes(final Path path) {
+        try {
+            return Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (IOException e) {
+            try {
+                return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (IOException ignored) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * @return true if the directory has not been scanned yet. A directory can be found more than once through links.
+     */
+    private static
+    boolean firstVisit(final Set<Object> visited, final Path directory, final BasicFileAttributes attributes) {
+        Object key = attributes.fileKey();
+        if (key == null) {
+            try {
+                key = directory.toRealPath();
+            } catch (IOException e) {
+                return false;
+            }
+        }
+        return visited.add(key);
+    }
+
+    /**
+     * @return the contents of the directory, or null if it cannot be read (or no longer exists) and it is not the root directory
+     */
+    private static
+    DirectoryStream<Path> open(final Path directory, final boolean root) throws IOException {
+        try {
+            return Files.newDirectoryStream(directory);
+        } catch (AccessDeniedException e) {
+            if (root) {
+                throw e;
+            }
+            return null;
+        } catch (NoSuchFileException e) {
+            if (root) {
+                throw e;
+            }
+            return null;
+        }
+    }
+
+
+    /**
+     * Visits the matching files in the root directory and all of its sub-directories (depth first).
+     *
+     * @return false if the scan was stopped by the visitor
+     */
+    public
+    boolean scan(final File rootDirectory, final Visitor visitor) throws IOException {
+        Path root = root(rootDirectory);
+
+        Set<Object> visited = new HashSet<Object>();
+        firstVisit(visited, root, Files.readAttributes(root, BasicFileAttributes.class));
+
+        return scan(root, true, visited, visitor);
+    }
+
+    private
+    boolean scan(final Path directory, final boolean root, final Set<Object> visited, final Visitor visitor) throws IOException {
+        List<Path> directories = null;
+
+        DirectoryStream<Path> stream = open(directory, root);
+        if (stream == null) {
+            return true;
+        }
+
+        try {
+            for (Path path : stream) {
+                BasicFileAttributes attributes = attributes(path);
+
+                if (attributes == null) {
+                    continue;
+                }
+
+                if (attributes.isDirectory()) {
+                    if (!firstVisit(visited, path, attributes)) {
+                        continue;
+                    }
+
+                    // the sub-directories are scanned after this directory is closed, so only one directory is open at a time
+                    if (directories == null) {
+                        directories = new ArrayList<Path>();
+                    }
+                    directories.add(path);
+                }
+                else if (matches(path) && !visitor.visit(new Entry(path, attributes))) {
+                    return false;
+                }
+            }
+        } catch (DirectoryIteratorException e) {
+            throw e.getCause();
+        } finally {
+            stream.close();
+        }
+
+        if (directories != null) {
+            for (Path path : directories) {
+                if (!scan(path, false, visited, visitor)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Visits the matching files in the root directory and all of its sub-directories. Every directory is scanned by its own task on the
+     * pool, so the visitor is called by many threads at the same time (and in no specific order).
+     *
+     * @param pool the pool to scan the directories on, or null to use the common pool
+     *
+     * @return false if the scan was stopped by the visitor
+     */
+    public
+    boolean scan(final File rootDirectory, final ForkJoinPool pool, final Visitor visitor) throws IOException {
+        final Path root = root(rootDirectory);
+        final ForkJoinPool forkJoinPool = pool != null ? pool : ForkJoinPool.commonPool();
+
+        final ParallelScan scan = new ParallelScan(visitor);
+        firstVisit(scan.visited, root, Files.readAttributes(root, BasicFileAttributes.class));
+        forkJoinPool.invoke(new DirectoryTask(scan, root, true));
+
+        IOException failure = scan.failure.get();
+        if (failure != null) {
+            throw failure;
+        }
+        return !scan.stopped.get();
+    }
+
+    private static final
+    class ParallelScan {
+        final Visitor visitor;
+        final AtomicBoolean stopped = new AtomicBoolean();
+        final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        final Set<Object> visited = ConcurrentHashMap.newKeySet();
+
+        ParallelScan(final Visitor visitor) {
+            this.visitor = visitor;
+        }
+
+        void fail(final IOException e) {
+            failure.compareAndSet(null, e);
+            stopped.set(true);
+        }
+    }
+
+    private final
+    class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final ParallelScan scan;
+        private final Path directory;
+        private final boolean root;
+
+        DirectoryTask(final ParallelScan scan, final Path directory, final boolean root) {
+            this.scan = scan;
+            this.directory = directory;
+            this.root = root;
+        }
+
+        @Override
+        protected
+        void compute() {
+            if (scan.stopped.get()) {
+                return;
+            }
+
+            List<DirectoryTask> tasks = null;
+
+            try {
+                DirectoryStream<Path> stream = open(directory, root);
+                if (stream == null) {
+                    return;
+                }
+
+                try {
+                    for (Path path : stream) {
+                        if (scan.stopped.get()) {
+                            return;
+                        }
+
+                        BasicFileAttributes attributes = attributes(path);
+
+                        if (attributes == null) {
+                            continue;
+                        }
+
+                        if (attributes.isDirectory()) {
+                            if (!firstVisit(scan.visited, path, attributes)) {
+                                continue;
+                            }
+
+                            DirectoryTask task = new DirectoryTask(scan, path, false);
+                            task.fork();
+
+                            if (tasks == null) {
+                                tasks = new ArrayList<DirectoryTask>();
+                            }
+                            tasks.add(task);
+                        }
+                        else if (matches(path) && !scan.visitor.visit(new Entry(path, attributes))) {
+                            scan.stopped.set(true);
+                            return;
+                        }
+                    }
+                } finally {
+                    stream.close();
+                }
+            } catch (DirectoryIteratorException e) {
+                scan.fail(e.getCause());
+            } catch (IOException e) {
+                scan.fail(e);
+            } finally {
+                if (tasks != null) {
+                    for (int i = tasks.size() - 1; i >= 0; i--) {
+                        tasks.get(i).join();
+                    }
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Streams the matching files in the root directory and all of its sub-directories (depth first). The files are found lazily as the
+     * stream is consumed, and the stream must be closed (to close the directory that is being read).
+     * <p>
+     * Errors while reading the directories are thrown as {@link UncheckedIOException}.
+     */
+    public
+    Stream<Entry> stream(final File rootDirectory) throws IOException {
+        final Path root = root(rootDirectory);
+        final EntryIterator iterator = new EntryIterator(root, Files.readAttributes(root, BasicFileAttributes.class));
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator, Spliterator.NONNULL | Spliterator.DISTINCT), false)
+                            .onClose(new Runnable() {
+                                @Override
+                                public
+                                void run() {
+                                    iterator.close();
+                                }
+                            });
+    }
+
+    /**
+     * Reads one directory at a time. The sub-directories are read after the directory they are in has been closed.
+     */
+    private final
+    class EntryIterator implements Iterator<Entry>, Closeable {
+        private final ArrayDeque<Path> directories = new ArrayDeque<Path>();
+        private final Set<Object> visited = new HashSet<Object>();
+        private final Path root;
+
+        private DirectoryStream<Path> stream;
+        private Iterator<Path> paths;
+        private Entry next;
+        private boolean closed;
+
+        EntryIterator(final Path root, final BasicFileAttributes attributes) {
+            this.root = root;
+            firstVisit(visited, root, attributes);
+            directories.push(root);
+        }
+
+        @Override
+        public
+        boolean hasNext() {
+            if (next != null) {
+                return true;
+            }
+            if (closed) {
+                return false;
+            }
+
+            try {
+                while (true) {
+                    if (paths == null) {
+                        Path directory = directories.poll();
+                        if (directory == null) {
+                            return false;
+                        }
+
+                        stream = open(directory, directory == root);
+                        if (stream == null) {
+                            continue;
+                        }
+                        paths = stream.iterator();
+                    }
+
+                    while (paths.hasNext()) {
+                        Path path = paths.next();
+                        BasicFileAttributes attributes = attributes(path);
+
+                        if (attributes == null) {
+                            continue;
+                        }
+
+                        if (attributes.isDirectory()) {
+                            if (firstVisit(visited, path, attributes)) {
+                                directories.push(path);
+                            }
+                        }
+                        else if (matches(path)) {
+                            next = new Entry(path, attributes);
+                            return true;
+                        }
+                    }
+
+                    closeDirectory();
+                }
+            } catch (DirectoryIteratorException e) {
+                close();
+                throw new UncheckedIOException(e.getCause());
+            } catch (IOException e) {
+                close();
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public
+        Entry next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            Entry entry = next;
+            next = null;
+            return entry;
+        }
+
+        @Override
+        public
+        void close() {
+            closed = true;
+            directories.clear();
+            closeDirectory();
+        }
+
+        private
+        void closeDirectory() {
+            paths = null;
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException ignored) {
+                }
+                stream = null;
+            }
+        }
+    }
+}
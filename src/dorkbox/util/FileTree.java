@@ -0,0 +1,760 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import dorkbox.os.OS;
+
+/**
+ * Copies, moves and deletes directory trees in parallel.
+ * <p>
+ * Every directory is listed (once, via a {@link DirectoryStream}) by its own task on a fork-join pool. The files in a directory are then
+ * handled in batches of small files, and every large file is copied by its own task (as a loop of {@link FileChannel#transferTo}, which
+ * the OS can do without copying the data through the JVM). The names to ignore are compiled into hash sets once per operation, and the
+ * paths of the files are only built when there is a full path to ignore.
+ * <p>
+ * The progress of an operation (files, directories and bytes) is counted in a {@link Progress}, which can be read by other threads while
+ * the operation is running.
+ */
+@SuppressWarnings("WeakerAccess")
+public final
+class FileTree {
+    /**
+     * Files smaller than this are copied together (in batches) by a single task
+     */
+    public static final int DEFAULT_SMALL_FILE_SIZE = 256 * 1024;
+
+    // the (maximum) number of small files handled by a single task
+    private static final int BATCH_SIZE = 64;
+
+    // the maximum number of bytes in a single call to transferTo
+    private static final long TRANSFER_SIZE = 8L * 1024L * 1024L;
+
+    private static final class DefaultHolder {
+        static final FileTree INSTANCE = new FileTree(OS.getOptimumNumberOfThreads(), DEFAULT_SMALL_FILE_SIZE);
+    }
+
+    /**
+     * @return the file tree used by {@link FileUtil#copyDirectory(File, File, String...)},
+     *         {@link FileUtil#moveDirectory(File, File, String...)} and {@link FileUtil#delete(File, String...)}
+     */
+    public static
+    FileTree getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+
+    /**
+     * The number of files, directories and bytes that were handled by an operation. This can be read while the operation is running.
+     */
+    public static final
+    class Progress {
+        final LongAdder files = new LongAdder();
+        final LongAdder directories = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder ignored = new LongAdder();
+
+        private final long startTime = System.nanoTime();
+        private volatile long endTime = 0L;
+
+        /**
+         * @return the number of files copied, moved or deleted
+         */
+        public
+        long files() {
+            return files.sum();
+        }
+
+        /**
+         * @return the number of directories created (or deleted)
+         */
+        public
+        long directories() {
+            return directories.sum();
+        }
+
+        /**
+         * @return the number of bytes copied, moved or deleted
+         */
+        public
+        long bytes() {
+            return bytes.sum();
+        }
+
+        /**
+         * @return the number of files and directories that were ignored (which does not include the contents of the ignored directories)
+         */
+        public
+        long ignored() {
+            return ignored.sum();
+        }
+
+        /**
+         * @return true if the operation has finished (successfully or not)
+         */
+        public
+        boolean isDone() {
+            return endTime != 0L;
+        }
+
+        /**
+         * @return the time since the operation started, or the duration of the operation if it has finished
+         */
+        public
+        long elapsedNanos() {
+            long end = endTime;
+            if (end == 0L) {
+                end = System.nanoTime();
+            }
+            return end - startTime;
+        }
+
+        public
+        double bytesPerSecond() {
+            return perSecond(bytes());
+        }
+
+        public
+        double filesPerSecond() {
+            return perSecond(files());
+        }
+
+        private
+        double perSecond(final long count) {
+            long nanos = elapsedNanos();
+            if (nanos <= 0L) {
+                return 0.0D;
+            }
+            return count * 1000000000.0D / nanos;
+        }
+
+        void done() {
+            endTime = System.nanoTime();
+        }
+
+        @Override
+        public
+        String toString() {
+            return files() + " files, " + directories() + " directories, " + bytes() + " bytes (" + ignored() + " ignored) in " +
+                   (elapsedNanos() / 1000000L) + " ms";
+        }
+    }
+
+
+    /**
+     * The names to ignore, compiled once per operation.
+     */
+    static final
+    class Ignore {
+        static final Ignore NONE = new Ignore(Collections.<String>emptySet(), Collections.<String>emptySet(), Collections.<String>emptySet());
+
+        final Set<String> fileNames;
+        final Set<String> directoryNames;
+        final Set<String> paths;
+        final boolean isEmpty;
+
+        private
+        Ignore(final Set<String> fileNames, final Set<String> directoryNames, final Set<String> paths) {
+            this.fileNames = fileNames;
+            this.directoryNames = directoryNames;
+            this.paths = paths;
+            this.isEmpty = fileNames.isEmpty() && directoryNames.isEmpty() && paths.isEmpty();
+        }
+
+        /**
+         * Files and directories are ignored if their name matches
+         */
+        static
+        Ignore names(final String[] names) {
+            if (names == null || names.length == 0) {
+                return NONE;
+            }
+
+            Set<String> set = new HashSet<String>();
+            Collections.addAll(set, names);
+            return new Ignore(set, set, Collections.<String>emptySet());
+        }
+
+        /**
+         * Names prefaced with a '/' only ignore directories, and the other names only ignore files. Every name will also ignore the file or
+         * directory with that (normalized) absolute path.
+         */
+        static
+        Ignore namesOrPaths(final String[] names) {
+            if (names == null || names.length == 0) {
+                return NONE;
+            }
+
+            Set<String> fileNames = new HashSet<String>();
+            Set<String> directoryNames = new HashSet<String>();
+            Set<String> paths = new HashSet<String>();
+
+            for (String name : names) {
+                if (name.isEmpty()) {
+                    continue;
+                }
+
+                if (name.charAt(0) == '/') {
+                    directoryNames.add(name.substring(1));
+                }
+                else {
+                    fileNames.add(name);
+                }
+                paths.add(name);
+            }
+
+            return new Ignore(fileNames, directoryNames, paths);
+        }
+
+        boolean ignore(final Path path, final String name, final boolean isDirectory) {
+            if (isEmpty) {
+                return false;
+            }
+
+            if (isDirectory ? directoryNames.contains(name) : fileNames.contains(name)) {
+                return true;
+            }
+
+            return !paths.isEmpty() && paths.contains(path.toString());
+        }
+    }
+
+
+    private enum Mode {
+        COPY, MOVE, DELETE
+    }
+
+    /**
+     * The state shared by all of the tasks of a single operation.
+     */
+    private static final
+    class Operation {
+        final Mode mode;
+        final Ignore ignore;
+        final Progress progress;
+
+        // the first error stops the rest of the operation (except for delete, which does as much as it can)
+        final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+
+        Operation(final Mode mode, final Ignore ignore, final Progress progress) {
+            this.mode = mode;
+            this.ignore = ignore;
+            this.progress = progress;
+        }
+
+        boolean isFailed() {
+            return failure.get() != null;
+        }
+
+        void fail(final IOException e) {
+            failure.compareAndSet(null, e);
+        }
+
+        void file(final Path source, final Path dest, final BasicFileAttributes attributes) throws IOException {
+            switch (mode) {
+                case COPY:
+                    copy(source, dest, attributes);
+                    break;
+                case MOVE:
+                    if (!FileUtil.renameTo(source.toFile(), dest.toFile())) {
+                        throw new IOException("Unable to move file: '" + source + "' -> '" + dest + "'");
+                    }
+                    break;
+                default:
+                    if (!source.toFile().delete()) {
+                        return;
+                    }
+                    break;
+            }
+
+            progress.files.increment();
+            progress.bytes.add(attributes.size());
+        }
+    }
+
+
+    /**
+     * Lists a directory, and handles everything in it.
+     */
+    private final
+    class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Operation operation;
+        private final Path source;
+        private final Path dest;
+
+        DirectoryTask(final Operation operation, final Path source, final Path dest) {
+            this.operation = operation;
+            this.source = source;
+            this.dest = dest;
+        }
+
+        @Override
+        protected
+        void compute() {
+            if (operation.isFailed()) {
+                return;
+            }
+
+            final Mode mode = operation.mode;
+            final Ignore ignore = operation.ignore;
+            final Progress progress = operation.progress;
+
+            try {
+                if (mode != Mode.DELETE) {
+                    File destDir = dest.toFile();
+                    if (!destDir.isDirectory() && !destDir.mkdir() && !destDir.isDirectory()) {
+                        throw new IOException("Unable to create directory: '" + dest + "'");
+                    }
+                    progress.directories.increment();
+                }
+
+                List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+                BatchTask batch = null;
+
+                DirectoryStream<Path> stream = Files.newDirectoryStream(source);
+                try {
+                    for (Path path : stream) {
+                        BasicFileAttributes attributes;
+                        try {
+                            attributes = readAttributes(path, mode);
+                        } catch (IOException e) {
+                            if (mode == Mode.DELETE) {
+                                // it was already deleted
+                                continue;
+                            }
+                            throw e;
+                        }
+
+                        String name = path.getFileName().toString();
+                        boolean isDirectory = attributes.isDirectory();
+
+                        if (ignore.ignore(path, name, isDirectory)) {
+                            progress.ignored.increment();
+                            continue;
+                        }
+
+                        Path destPath = dest == null ? null : dest.resolve(name);
+
+                        if (isDirectory) {
+                            tasks.add(new DirectoryTask(operation, path, destPath));
+                        }
+                        else if (mode == Mode.COPY && attributes.size() >= smallFileSize) {
+                            tasks.add(new LargeFileTask(operation, path, destPath, attributes));
+                        }
+                        else {
+                            if (batch == null) {
+                                batch = new BatchTask(operation);
+                            }
+
+                            batch.add(path, destPath, attributes);
+                            if (batch.count == BATCH_SIZE) {
+                                tasks.add(batch);
+                                batch = null;
+                            }
+                        }
+                    }
+                } finally {
+                    stream.close();
+                }
+
+                // the last (partial) batch is handled by this thread, while the other tasks are stolen by the rest of the pool
+                for (ForkJoinTask<?> task : tasks) {
+                    task.fork();
+                }
+                if (batch != null) {
+                    batch.compute();
+                }
+                for (int i = tasks.size() - 1; i >= 0; i--) {
+                    tasks.get(i).join();
+                }
+
+                if (mode == Mode.DELETE && source.toFile().delete()) {
+                    // this fails if anything in this directory was ignored (or could not be deleted)
+                    progress.directories.increment();
+                }
+            } catch (DirectoryIteratorException e) {
+                if (mode != Mode.DELETE) {
+                    operation.fail(e.getCause());
+                }
+            } catch (IOException e) {
+                if (mode != Mode.DELETE) {
+                    operation.fail(e);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Handles a batch of small files
+     */
+    private static final
+    class BatchTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Operation operation;
+        private final Path[] sources = new Path[BATCH_SIZE];
+        private final Path[] dests = new Path[BATCH_SIZE];
+        private final BasicFileAttributes[] attributes = new BasicFileAttributes[BATCH_SIZE];
+        private int count = 0;
+
+        BatchTask(final Operation operation) {
+            this.operation = operation;
+        }
+
+        void add(final Path source, final Path dest, final BasicFileAttributes attributes) {
+            this.sources[count] = source;
+            this.dests[count] = dest;
+            this.attributes[count] = attributes;
+            count++;
+        }
+
+        @Override
+        protected
+        void compute() {
+            for (int i = 0; i < count; i++) {
+                if (operation.isFailed()) {
+                    return;
+                }
+
+                try {
+                    operation.file(sources[i], dests[i], attributes[i]);
+                } catch (IOException e) {
+                    operation.fail(e);
+                    return;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Copies a single large file
+     */
+    private static final
+    class LargeFileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Operation operation;
+        private final Path source;
+        private final Path dest;
+        private final BasicFileAttributes attributes;
+
+        LargeFileTask(final Operation operation, final Path source, final Path dest, final BasicFileAttributes attributes) {
+            this.operation = operation;
+            this.source = source;
+            this.dest = dest;
+            this.attributes = attributes;
+        }
+
+        @Override
+        protected
+        void compute() {
+            if (operation.isFailed()) {
+                return;
+            }
+
+            try {
+                operation.file(source, dest, attributes);
+            } catch (IOException e) {
+                operation.fail(e);
+            }
+        }
+    }
+
+
+    // symlinks are only followed when copying or moving, so a delete never leaves the tree
+    static
+    BasicFileAttributes readAttributes(final Path path, final Mode mode) throws IOException {
+        if (mode == Mode.DELETE) {
+            return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        }
+        return Files.readAttributes(path, BasicFileAttributes.class);
+    }
+
+    /**
+     * Copies the file contents (via the OS, without copying the data through the JVM) and the last modified time.
+     */
+    static
+    void copy(final Path source, final Path dest, final BasicFileAttributes attributes) throws IOException {
+        FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+        try {
+            FileChannel out = FileChannel.open(dest, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                               StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                // the size can change while copying, so we copy until the end of the file
+                long position = 0L;
+                long size = in.size();
+                while (position < size) {
+                    long count = in.transferTo(position, Math.min(TRANSFER_SIZE, size - position), out);
+                    if (count <= 0L) {
+                        size = in.size();
+                        if (position >= size) {
+                            break;
+                        }
+                        if (count < 0L) {
+                            throw new IOException("Unable to copy file: '" + source + "' -> '" + dest + "'");
+                        }
+                    }
+                    position += count;
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+
+        FileTime lastModified = attributes.lastModifiedTime();
+        if (lastModified != null) {
+            Files.setLastModifiedTime(dest, lastModified);
+        }
+    }
+
+
+    private final ForkJoinPool pool;
+    private final long smallFileSize;
+
+    /**
+     * Creates a file tree that runs on the specified pool.
+     *
+     * @param pool the pool to run the operations on. This is never shutdown by the file tree.
+     * @param smallFileSize files smaller than this (in bytes) are copied together in batches, and larger files are copied by their own task
+     */
+    public
+    FileTree(final ForkJoinPool pool, final long smallFileSize) {
+        if (pool == null) {
+            throw new NullPointerException("pool");
+        }
+        if (smallFileSize < 0L) {
+            throw new IllegalArgumentException("Small file size must be >= 0");
+        }
+
+        this.pool = pool;
+        this.smallFileSize = smallFileSize;
+    }
+
+    /**
+     * Creates a file tree with its own pool of daemon threads.
+     *
+     * @param numberOfThreads the maximum number of directories and files that are handled at the same time
+     * @param smallFileSize files smaller than this (in bytes) are copied together in batches, and larger files are copied by their own task
+     */
+    public
+    FileTree(final int numberOfThreads, final long smallFileSize) {
+        this(newPool(numberOfThreads), smallFileSize);
+    }
+
+    private static
+    ForkJoinPool newPool(final int numberOfThreads) {
+        if (numberOfThreads < 1) {
+            throw new IllegalArgumentException("Number of threads must be > 0");
+        }
+
+        final AtomicInteger threadId = new AtomicInteger();
+        return new ForkJoinPool(numberOfThreads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public
+            ForkJoinWorkerThread newThread(final ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("FileTree-" + threadId.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, null, false);
+    }
+
+    /**
+     * Copies a file or directory from one location to another, overwriting any existing files at the destination.
+     *
+     * @param namesToIgnore the names of the files and directories to skip
+     */
+    public
+    Progress copy(final File source, final File dest, final String... namesToIgnore) throws IOException {
+        return copy(source, dest, new Progress(), namesToIgnore);
+    }
+
+    /**
+     * Copies a file or directory from one location to another, overwriting any existing files at the destination.
+     *
+     * @param progress counts the progress, and can be read by other threads during the copy
+     * @param namesToIgnore the names of the files and directories to skip
+     */
+    public
+    Progress copy(final File source, final File dest, final Progress progress, final String... namesToIgnore) throws IOException {
+        return run(Mode.COPY, source, dest, progress, Ignore.names(namesToIgnore));
+    }
+
+    /**
+     * Moves the files of a directory from one location to another, overwriting any existing files at the destination. The directory is
+     * renamed if possible, otherwise every file is moved to the (new) destination directories.
+     *
+     * @param namesToIgnore the names of the files and directories to skip (these stay in the source directory)
+     */
+    public
+    Progress move(final File source, final File dest, final String... namesToIgnore) throws IOException {
+        return move(source, dest, new Progress(), namesToIgnore);
+    }
+
+    /**
+     * Moves the files of a directory from one location to another, overwriting any existing files at the destination. The directory is
+     * renamed if possible, otherwise every file is moved to the (new) destination directories.
+     *
+     * @param progress counts the progress, and can be read by other threads during the move
+     * @param namesToIgnore the names of the files and directories to skip (these stay in the source directory)
+     */
+    public
+    Progress move(final File source, final File dest, final Progress progress, final String... namesToIgnore) throws IOException {
+        return run(Mode.MOVE, source, dest, progress, Ignore.names(namesToIgnore));
+    }
+
+    /**
+     * Deletes a file, or a directory and all of the files and sub-directories under it.
+     *
+     * @param namesToIgnore if prefaced with a '/', it will treat the name to ignore as a directory instead of file. A (normalized) absolute
+     *         path will ignore that file or directory.
+     *
+     * @return true if the file/dir was deleted or didn't exist at first
+     */
+    public
+    boolean delete(final File file, final String... namesToIgnore) {
+        return delete(file, new Progress(), namesToIgnore);
+    }
+
+    /**
+     * Deletes a file, or a directory and all of the files and sub-directories under it.
+     *
+     * @param progress counts the progress, and can be read by other threads during the delete
+     * @param namesToIgnore if prefaced with a '/', it will treat the name to ignore as a directory instead of file. A (normalized) absolute
+     *         path will ignore that file or directory.
+     *
+     * @return true if the file/dir was deleted or didn't exist at first
+     */
+    public
+    boolean delete(final File file, final Progress progress, final String... namesToIgnore) {
+        try {
+            run(Mode.DELETE, file, null, progress, Ignore.namesOrPaths(namesToIgnore));
+        } catch (IOException ignored) {
+            // delete never fails, it only deletes what it can
+        }
+
+        return !Files.exists(file.toPath(), LinkOption.NOFOLLOW_LINKS);
+    }
+
+    private
+    Progress run(final Mode mode, final File source_, final File dest_, final Progress progress, final Ignore ignore) throws IOException {
+        try {
+            File source = FileUtil.normalize(source_);
+            if (source == null) {
+                throw new IOException("Invalid file: '" + source_ + "'");
+            }
+
+            File dest = null;
+            if (dest_ != null) {
+                dest = FileUtil.normalize(dest_);
+                if (dest == null) {
+                    throw new IOException("Invalid file: '" + dest_ + "'");
+                }
+            }
+
+            Path sourcePath = source.getAbsoluteFile().toPath();
+            Path destPath = dest == null ? null : dest.getAbsoluteFile().toPath();
+
+            BasicFileAttributes attributes;
+            try {
+                attributes = readAttributes(sourcePath, mode);
+            } catch (IOException e) {
+                if (mode == Mode.DELETE) {
+                    // nothing to delete
+                    return progress;
+                }
+                throw e;
+            }
+
+            if (mode != Mode.DELETE) {
+                Path fileName = sourcePath.getFileName();
+                if (fileName != null && ignore.ignore(sourcePath, fileName.toString(), attributes.isDirectory())) {
+                    progress.ignored.increment();
+                    return progress;
+                }
+
+                if (sourcePath.equals(destPath)) {
+                    return progress;
+                }
+            }
+
+            Operation operation = new Operation(mode, ignore, progress);
+
+            if (!attributes.isDirectory()) {
+                if (destPath != null && destPath.getParent() != null) {
+                    Files.createDirectories(destPath.getParent());
+                }
+                operation.file(sourcePath, destPath, attributes);
+                return progress;
+            }
+
+            if (mode == Mode.MOVE && ignore.isEmpty && !Files.exists(destPath)) {
+                // the entire tree can (usually) be moved at once
+                if (destPath.getParent() != null) {
+                    Files.createDirectories(destPath.getParent());
+                }
+                if (source.renameTo(dest)) {
+                    progress.directories.increment();
+                    return progress;
+                }
+            }
+
+            if (destPath != null && destPath.getParent() != null) {
+                Files.createDirectories(destPath.getParent());
+            }
+
+            pool.invoke(new DirectoryTask(operation, sourcePath, destPath));
+
+            IOException failure = operation.failure.get();
+            if (failure != null) {
+                throw failure;
+            }
+            return progress;
+        } finally {
+            progress.done();
+        }
+    }
+}
@@ -17,7 +17,6 @@ package dorkbox.util;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -28,9 +27,11 @@ import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.io.Reader;
 import java.nio.channels.FileChannel;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
@@ -495,51 +496,11 @@ class FileUtil {
 
 
     /**
-     * Copies a directory from one location to another
+     * Copies a directory from one location to another. The files are copied in parallel, see {@link FileTree}.
      */
     public static
-    void copyDirectory(File src_, File dest_, String... namesToIgnore) throws IOException {
-        File src = FileUtil.normalize(src_);
-        File dest = FileUtil.normalize(dest_);
-
-        if (namesToIgnore.length > 0) {
-            String name = src.getName();
-            for (String ignore : namesToIgnore) {
-                if (name.equals(ignore)) {
-                    return;
-                }
-            }
-        }
-
-
-        if (src.isDirectory()) {
-            // if directory not exists, create it
-            if (!dest.exists()) {
-                //noinspection ResultOfMethodCallIgnored
-                dest.mkdir();
-                if (DEBUG) {
-                    System.err.println("Directory copied from  '" + src + "'  -->  '" + dest + "'");
-                }
-            }
-
-            // list all the directory contents
-            String files[] = src.list();
-
-            if (files != null) {
-                for (String file : files) {
-                    // construct the src and dest file structure
-                    File srcFile = new File(src, file);
-                    File destFile = new File(dest, file);
-
-                    // recursive copy
-                    copyDirectory(srcFile, destFile, namesToIgnore);
-                }
-            }
-        }
-        else {
-            // if file, then copy it
-            copyFile(src, dest);
-        }
+    void copyDirectory(File src, File dest, String... namesToIgnore) throws IOException {
+        FileTree.getDefault().copy(src, dest, namesToIgnore);
     }
 
     /**
@@ -551,48 +512,12 @@ class FileUtil {
     }
 
     /**
-     * Safely moves a directory from one location to another (by copying it first, then deleting the original).
+     * Safely moves a directory from one location to another. The directory is renamed if possible, otherwise the files are moved in
+     * parallel, see {@link FileTree}.
      */
     public static
     void moveDirectory(File src, File dest, String... fileNamesToIgnore) throws IOException {
-        if (fileNamesToIgnore.length > 0) {
-            String name = src.getName();
-            for (String ignore : fileNamesToIgnore) {
-                if (name.equals(ignore)) {
-                    return;
-                }
-            }
-        }
-
-
-        if (src.isDirectory()) {
-            // if directory not exists, create it
-            if (!dest.exists()) {
-                //noinspection ResultOfMethodCallIgnored
-                dest.mkdir();
-                if (DEBUG) {
-                    System.err.println("Directory copied from  '" + src + "'  -->  '" + dest + "'");
-                }
-            }
-
-            // list all the directory contents
-            String files[] = src.list();
-
-            if (files != null) {
-                for (String file : files) {
-                    // construct the src and dest file structure
-                    File srcFile = new File(src, file);
-                    File destFile = new File(dest, file);
-
-                    // recursive copy
-                    moveDirectory(srcFile, destFile, fileNamesToIgnore);
-                }
-            }
-        }
-        else {
-            // if file, then copy it
-            moveFile(src, dest);
-        }
+        FileTree.getDefault().move(src, dest, fileNamesToIgnore);
     }
 
     /**
@@ -612,7 +537,7 @@ class FileUtil {
 
     /**
      * Deletes a file, directory + all files and sub-directories under it. The directory is ALSO deleted if it because empty as a result
-     * of this operation
+     * of this operation. The files are deleted in parallel, see {@link FileTree}.
      *
      * @param namesToIgnore if prefaced with a '/', it will treat the name to ignore as a directory instead of file
      *
@@ -620,99 +545,7 @@ class FileUtil {
      */
     public static
     boolean delete(File file, String... namesToIgnore) {
-        if (!file.exists()) {
-            return true;
-        }
-
-        boolean thingsDeleted = false;
-        boolean ignored = false;
-
-        if (file.isDirectory()) {
-            File[] files = file.listFiles();
-            if (files != null) {
-                for (int i = 0, n = files.length; i < n; i++) {
-
-                    boolean delete = true;
-                    final File file2 = files[i];
-                    String name2 = file2.getName();
-                    String name2Full = normalize(file2).getAbsolutePath();
-
-                    if (file2.isDirectory()) {
-                        for (String name : namesToIgnore) {
-                            if (name.charAt(0) == UNIX_SEPARATOR && name.equals(name2)) {
-                                // only name match if our name To Ignore starts with a / or \
-                                if (DEBUG) {
-                                    System.err.println("Skipping delete dir: " + file2);
-                                }
-                                ignored = true;
-                                delete = false;
-                                break;
-                            }
-                            else if (name.equals(name2Full)) {
-                                // full path match
-                                if (DEBUG) {
-                                    System.err.println("Skipping delete dir: " + file2);
-                                }
-                                ignored = true;
-                                delete = false;
-                                break;
-                            }
-                        }
-
-                        if (delete) {
-                            if (DEBUG) {
-                                System.err.println("Deleting dir: " + file2);
-                            }
-                            delete(file2, namesToIgnore);
-                        }
-                    }
-                    else {
-                        for (String name : namesToIgnore) {
-                            if (name.charAt(0) != UNIX_SEPARATOR && name.equals(name2)) {
-                                // only name match
-                                if (DEBUG) {
-                                    System.err.println("Skipping delete file: " + file2);
-                                }
-                                ignored = true;
-                                delete = false;
-                                break;
-                            }
-                            else if (name.equals(name2Full)) {
-                                // full path match
-                                if (DEBUG) {
-                                    System.err.println("Skipping delete file: " + file2);
-                                }
-                                ignored = true;
-                                delete = false;
-                                break;
-                            }
-                        }
-
-                        if (delete) {
-                            if (DEBUG) {
-                                System.err.println("Deleting file: " + file2);
-                            }
-                            thingsDeleted |= file2.delete();
-                        }
-                    }
-                }
-            }
-        }
-
-        // don't try to delete the dir if there was an ignored file in it
-        if (ignored) {
-            if (DEBUG) {
-                System.err.println("Skipping deleting file: " + file);
-            }
-            return false;
-        }
-
-        if (DEBUG) {
-            System.err.println("Deleting file: " + file);
-        }
-
-        thingsDeleted |= file.delete();
-        return thingsDeleted;
+        return FileTree.getDefault().delete(file, namesToIgnore);
     }
 
     /**
@@ -723,8 +556,7 @@ class FileUtil {
         FileInputStream fileInputStream = null;
         try {
             fileInputStream = new FileInputStream(file.getAbsolutePath());
-            ByteArrayOutputStream byteArrayOutputStream = IO.copyStream(fileInputStream);
-            return byteArrayOutputStream.toByteArray();
+            return IO.toBytes(fileInputStream);
         } catch (IOException ignored) {
         } finally {
             if (fileInputStream != null) {
@@ -956,7 +788,7 @@ class FileUtil {
     }
 
     /**
-     * Unzips a ZIP or JAR file (and handles the manifest if requested)
+     * Unzips a ZIP or JAR file (and handles the manifest if requested). The entries are extracted in parallel, see {@link ZipExtractor}.
      */
     private static
     void unjarzip0(File zipFile, File outputDir, boolean extractManifest) throws IOException {
@@ -967,14 +799,7 @@ class FileUtil {
             throw new IllegalArgumentException("outputDir cannot be null.");
         }
 
-        long fileLength = zipFile.length();
-        if (fileLength > Integer.MAX_VALUE - 1) {
-            throw new RuntimeException("Source filesize is too large!");
-        }
-
-        ZipInputStream inputStream = new ZipInputStream(new FileInputStream(zipFile));
-
-        unjarzip1(inputStream, outputDir, extractManifest);
+        ZipExtractor.getDefault().extract(zipFile, outputDir, extractManifest);
     }
 
     /**
@@ -982,6 +807,10 @@ class FileUtil {
      */
     private static
     void unjarzip1(ZipInputStream inputStream, File outputDir, boolean extractManifest) throws IOException {
+        // the directories that were already created, so they are only created once
+        Set<String> directories = new HashSet<String>();
+        Path outputPath = outputDir.getAbsoluteFile().toPath().normalize();
+
         try {
             ZipEntry entry;
             while ((entry = inputStream.getNextEntry()) != null) {
@@ -991,12 +820,21 @@ class FileUtil {
                     continue;
                 }
 
-                File file = new File(outputDir, name);
+                Path path = outputPath.resolve(name).normalize();
+                if (!path.startsWith(outputPath)) {
+                    throw new IOException("Zip entry is outside of the output directory: " + name);
+                }
+
+                File file = path.toFile();
                 if (entry.isDirectory()) {
-                    mkdir(file.getPath());
+                    if (directories.add(file.getPath())) {
+                        mkdir(file.getPath());
+                    }
                     continue;
                 }
-                mkdir(file.getParent());
+                if (directories.add(file.getParent())) {
+                    mkdir(file.getParent());
+                }
 
 
                 FileOutputStream output = new FileOutputStream(file);
@@ -1041,53 +879,25 @@ class FileUtil {
 
     /**
      * Parses the specified root directory for files that end in the extension to match. All of the sub-directories are searched as well.
+     * <p/>
+     * For large directory trees, use a {@link FileScanner} instead, which does not collect all of the files first.
      *
      * @return the list of all files in the root+sub-dirs that match the given extension.
      */
     public static
     List<File> parseDir(File rootDirectory, String... extensionsToMatch) throws IOException {
-        List<File> jarList = new LinkedList<File>();
-        LinkedList<File> directories = new LinkedList<File>();
-
-        rootDirectory = FileUtil.normalize(rootDirectory);
-
-        if (!rootDirectory.exists()) {
-            throw new IOException("Location does not exist: " + rootDirectory.getAbsolutePath());
-        }
-
-        if (rootDirectory.isDirectory()) {
-            directories.add(rootDirectory);
-
-            while (directories.peek() != null) {
-                File dir = directories.poll();
-                File[] listFiles = dir.listFiles();
-                if (listFiles != null) {
-                    for (File file : listFiles) {
-                        if (file.isDirectory()) {
-                            directories.add(file);
-                        }
-                        else {
-                            if (extensionsToMatch == null || extensionsToMatch.length == 0 || extensionsToMatch[0] == null) {
-                                jarList.add(file);
-                            }
-                            else {
-                                for (String e : extensionsToMatch) {
-                                    if (file.getAbsolutePath().endsWith(e)) {
-                                        jarList.add(file);
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
+        final List<File> files = new ArrayList<File>();
+
+        new FileScanner(extensionsToMatch).scan(rootDirectory, new FileScanner.Visitor() {
+            @Override
+            public
+            boolean visit(final FileScanner.Entry entry) {
+                files.add(entry.toFile());
+                return true;
             }
-        }
-        else {
-            throw new IOException("Cannot search directory children if the dir is a file name: " + rootDirectory.getAbsolutePath());
-        }
-
+        });
 
-        return jarList;
+        return files;
     }
 
     /**
@@ -17,15 +17,141 @@ package dorkbox.util;
 
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
 
 import javax.imageio.stream.ImageInputStream;
 
+/**
+ * Stream and channel utilities.
+ * <p>
+ * The copy buffers are pooled per thread (in a few size classes), so copying does not allocate. File streams and file channels are copied
+ * with {@link FileChannel#transferTo}/{@link FileChannel#transferFrom}, so the OS can copy the data without it passing through the JVM.
+ * The number of bytes copied (and how they were copied) is counted, see {@link #getBytesCopied()}.
+ */
 @SuppressWarnings({"unused", "Duplicates"})
 public
 class IO {
+    /**
+     * The default size of a copy buffer
+     */
+    public static final int BUFFER_SIZE = 16 * 1024;
+
+    // the size classes of the pooled buffers: 4k, 16k, 64k, 256k. Larger buffers are never pooled
+    private static final int MIN_BUFFER_SHIFT = 12;
+    private static final int SIZE_CLASSES = 4;
+    // every size class is 4x larger than the previous one
+    private static final int MAX_POOLED_SIZE = 1 << (MIN_BUFFER_SHIFT + 2 * (SIZE_CLASSES - 1));
+
+    // the maximum number of bytes in a single call to transferTo/transferFrom
+    private static final long TRANSFER_SIZE = 8L * 1024L * 1024L;
+
+    // one (free) buffer per size class, per thread
+    private static final FastThreadLocal<byte[][]> buffers = new FastThreadLocal<byte[][]>() {
+        @Override
+        public
+        byte[][] initialValue() {
+            return new byte[SIZE_CLASSES][];
+        }
+    };
+
+    private static final LongAdder bytesCopied = new LongAdder();
+    private static final LongAdder bytesTransferred = new LongAdder();
+    private static final LongAdder bufferAllocations = new LongAdder();
+
+    /**
+     * @return the number of bytes copied (by all of the copy methods) since the counters were last reset
+     */
+    public static
+    long getBytesCopied() {
+        return bytesCopied.sum();
+    }
+
+    /**
+     * @return the number of (the copied) bytes that were transferred directly between channels, without a buffer
+     */
+    public static
+    long getBytesTransferred() {
+        return bytesTransferred.sum();
+    }
+
+    /**
+     * @return the number of copy buffers that had to be allocated (because there was no free buffer in the pool)
+     */
+    public static
+    long getBufferAllocations() {
+        return bufferAllocations.sum();
+    }
+
+    public static
+    void resetCounters() {
+        bytesCopied.reset();
+        bytesTransferred.reset();
+        bufferAllocations.reset();
+    }
+
+    private static
+    int sizeClass(final int size) {
+        if (size <= (1 << MIN_BUFFER_SHIFT)) {
+            return 0;
+        }
+
+        // round up to the next power of 4
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return (shift - MIN_BUFFER_SHIFT + 1) >>> 1;
+    }
+
+    /**
+     * Gets a buffer (of at least the minimum size) from the pool of this thread. The buffer should be given back with
+     * {@link #releaseBuffer(byte[])} once it is no longer used.
+     */
+    public static
+    byte[] acquireBuffer(final int minimumSize) {
+        if (minimumSize > MAX_POOLED_SIZE) {
+            bufferAllocations.increment();
+            return new byte[minimumSize];
+        }
+
+        int sizeClass = sizeClass(minimumSize);
+        byte[][] pool = buffers.get();
+
+        byte[] buffer = pool[sizeClass];
+        if (buffer != null) {
+            // taken out of the pool, so a nested copy on this thread gets a different buffer
+            pool[sizeClass] = null;
+            return buffer;
+        }
+
+        bufferAllocations.increment();
+        return new byte[1 << (MIN_BUFFER_SHIFT + sizeClass * 2)];
+    }
+
+    /**
+     * Gives a buffer from {@link #acquireBuffer(int)} back to the pool of this thread. The buffer must not be used afterwards.
+     */
+    public static
+    void releaseBuffer(final byte[] buffer) {
+        int length = buffer.length;
+        if (length > MAX_POOLED_SIZE || Integer.bitCount(length) != 1) {
+            return;
+        }
+
+        int sizeClass = sizeClass(length);
+        if ((1 << (MIN_BUFFER_SHIFT + sizeClass * 2)) == length) {
+            buffers.get()[sizeClass] = buffer;
+        }
+    }
+
     /**
      * Convenient close for a Closeable.
      */
@@ -57,23 +183,47 @@ class IO {
     }
 
     /**
-     * Copy the contents of the input stream to the output stream.
+     * Copy the contents of the input stream to the output stream. File streams are copied directly between their channels.
      * <p>
      * DOES NOT CLOSE THE STEAMS!
      */
     public static
     <T extends OutputStream> T copyStream(final InputStream inputStream, final T outputStream) throws IOException {
-        byte[] buffer = new byte[4096];
-        int read;
+        // subclasses might change what is read or written, so only the file streams themselves are copied via their channels
+        if (inputStream.getClass() == FileInputStream.class && outputStream.getClass() == FileOutputStream.class) {
+            FileChannel input = ((FileInputStream) inputStream).getChannel();
+            long count = transfer(input, input.position(), ((FileOutputStream) outputStream).getChannel());
+            input.position(input.position() + count);
+            return outputStream;
+        }
 
-        while ((read = inputStream.read(buffer)) > 0) {
-            outputStream.write(buffer, 0, read);
+        byte[] buffer = acquireBuffer(BUFFER_SIZE);
+        try {
+            long count = 0L;
+            int read;
+
+            while ((read = inputStream.read(buffer)) > 0) {
+                outputStream.write(buffer, 0, read);
+                count += read;
+            }
+            bytesCopied.add(count);
+        } finally {
+            releaseBuffer(buffer);
         }
-        outputStream.flush();
 
+        flush(outputStream);
         return outputStream;
     }
 
+    // file and byte array streams do not buffer anything
+    private static
+    void flush(final OutputStream outputStream) throws IOException {
+        Class<? extends OutputStream> type = outputStream.getClass();
+        if (type != FileOutputStream.class && type != ByteArrayOutputStream.class) {
+            outputStream.flush();
+        }
+    }
+
     /**
      * Copy the contents of the input stream to the output stream.
      * <p>
@@ -81,7 +231,7 @@ class IO {
      */
     public static
     <T extends OutputStream> T copyStream(final ImageInputStream inputStream, final T outputStream) throws IOException {
-        return copyStream(4096, inputStream, outputStream);
+        return copyStream(BUFFER_SIZE, inputStream, outputStream);
     }
 
     /**
@@ -91,34 +241,35 @@ class IO {
      */
     public static
     <T extends OutputStream> T copyStream(final int bufferSize, final ImageInputStream inputStream, final T outputStream) throws IOException {
-        byte[] buffer = new byte[bufferSize];
-        int read;
+        byte[] buffer = acquireBuffer(bufferSize);
+        try {
+            long count = 0L;
+            int read;
 
-        while ((read = inputStream.read(buffer)) > 0) {
-            outputStream.write(buffer, 0, read);
+            // a pooled buffer can be larger than requested
+            while ((read = inputStream.read(buffer, 0, bufferSize)) > 0) {
+                outputStream.write(buffer, 0, read);
+                count += read;
+            }
+            bytesCopied.add(count);
+        } finally {
+            releaseBuffer(buffer);
         }
-        outputStream.flush();
 
+        flush(outputStream);
         return outputStream;
     }
 
     /**
-     * Copy the contents of the input stream to a new output stream.
+     * Copy the contents of the input stream to a new output stream. The output stream is sized by the number of bytes available from the
+     * input stream (which is the remaining size of a file).
      * <p>
      * DOES NOT CLOSE THE STEAMS!
      */
     public static
     ByteArrayOutputStream copyStream(final InputStream inputStream) throws IOException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(4096);
-        byte[] buffer = new byte[4096];
-        int read;
-
-        while ((read = inputStream.read(buffer)) > 0) {
-            outputStream.write(buffer, 0, read);
-        }
-        outputStream.flush();
-
-        return outputStream;
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(Math.max(4096, inputStream.available()));
+        return copyStream(inputStream, outputStream);
     }
 
     /**
@@ -128,15 +279,197 @@ class IO {
      */
     public static
     ByteArrayOutputStream copyStream(final ImageInputStream inputStream) throws IOException {
-        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(4096);
-        byte[] buffer = new byte[4096];
-        int read;
+        long length = inputStream.length();
+        int size = length > 0L && length < Integer.MAX_VALUE - 8 ? (int) length : 4096;
 
-        while ((read = inputStream.read(buffer)) > 0) {
-            outputStream.write(buffer, 0, read);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(size);
+        return copyStream(BUFFER_SIZE, inputStream, outputStream);
+    }
+
+    /**
+     * Reads the contents of the input stream into a byte array. A file is read (in one read) into an array of the exact size, everything
+     * else is read into an array that grows as needed.
+     * <p>
+     * DOES NOT CLOSE THE STEAM!
+     */
+    public static
+    byte[] toBytes(final InputStream inputStream) throws IOException {
+        if (inputStream.getClass() == FileInputStream.class) {
+            FileChannel channel = ((FileInputStream) inputStream).getChannel();
+            long remaining = channel.size() - channel.position();
+
+            if (remaining >= 0L && remaining < Integer.MAX_VALUE - 8) {
+                return toBytes(inputStream, (int) remaining);
+            }
         }
-        outputStream.flush();
 
-        return outputStream;
+        return toBytes(inputStream, inputStream.available());
+    }
+
+    /**
+     * Reads the contents of the input stream into a byte array. If the size hint is correct, the contents are read into an array of the
+     * exact size (without copying).
+     * <p>
+     * DOES NOT CLOSE THE STEAM!
+     *
+     * @param sizeHint the expected number of bytes in the input stream
+     */
+    public static
+    byte[] toBytes(final InputStream inputStream, final int sizeHint) throws IOException {
+        byte[] bytes = new byte[Math.max(0, sizeHint)];
+        int length = 0;
+
+        while (true) {
+            if (length == bytes.length) {
+                // the hint was too small (or there was no hint), so check if there is more before growing the array
+                int next = inputStream.read();
+                if (next == -1) {
+                    break;
+                }
+
+                bytes = Arrays.copyOf(bytes, Math.max(4096, bytes.length << 1));
+                bytes[length++] = (byte) next;
+            }
+
+            int read = inputStream.read(bytes, length, bytes.length - length);
+            if (read == -1) {
+                break;
+            }
+            length += read;
+        }
+
+        bytesCopied.add(length);
+
+        if (length == bytes.length) {
+            return bytes;
+        }
+        return Arrays.copyOf(bytes, length);
+    }
+
+    /**
+     * Reads exactly the length (of bytes) from the input stream.
+     *
+     * @throws EOFException if the stream ended first
+     */
+    public static
+    void readFully(final InputStream inputStream, final byte[] bytes, int offset, int length) throws IOException {
+        bytesCopied.add(length);
+
+        while (length > 0) {
+            int read = inputStream.read(bytes, offset, length);
+            if (read == -1) {
+                throw new EOFException("Stream ended with " + length + " bytes left to read");
+            }
+
+            offset += read;
+            length -= read;
+        }
+    }
+
+    /**
+     * Copy the contents of the input channel to the output channel. File channels are copied directly (with {@link FileChannel#transferTo}
+     * or {@link FileChannel#transferFrom}), and everything else is copied via a pooled buffer.
+     * <p>
+     * DOES NOT CLOSE THE CHANNELS!
+     *
+     * @return the number of bytes copied
+     */
+    public static
+    long copy(final ReadableByteChannel input, final WritableByteChannel output) throws IOException {
+        if (input instanceof FileChannel) {
+            FileChannel fileChannel = (FileChannel) input;
+            long count = transfer(fileChannel, fileChannel.position(), output);
+            fileChannel.position(fileChannel.position() + count);
+            return count;
+        }
+
+        if (output instanceof FileChannel) {
+            // transferFrom reads until the input has nothing more (or the count is reached), so we loop until the input is finished
+            FileChannel fileChannel = (FileChannel) output;
+            long position = fileChannel.position();
+            long total = 0L;
+
+            byte[] buffer = null;
+            try {
+                while (true) {
+                    long count = fileChannel.transferFrom(input, position + total, TRANSFER_SIZE);
+                    if (count > 0L) {
+                        total += count;
+                        continue;
+                    }
+
+                    // 0 is either the end of the input, or a non-blocking input with nothing to read. A single read tells them apart
+                    if (buffer == null) {
+                        buffer = acquireBuffer(BUFFER_SIZE);
+                    }
+                    ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+                    int read = input.read(byteBuffer);
+                    if (read == -1) {
+                        break;
+                    }
+
+                    byteBuffer.flip();
+                    while (byteBuffer.hasRemaining()) {
+                        total += fileChannel.write(byteBuffer, position + total);
+                    }
+                }
+            } finally {
+                if (buffer != null) {
+                    releaseBuffer(buffer);
+                }
+            }
+
+            fileChannel.position(position + total);
+            bytesCopied.add(total);
+            bytesTransferred.add(total);
+            return total;
+        }
+
+        byte[] buffer = acquireBuffer(BUFFER_SIZE);
+        try {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            long total = 0L;
+
+            while (input.read(byteBuffer) != -1) {
+                byteBuffer.flip();
+                while (byteBuffer.hasRemaining()) {
+                    total += output.write(byteBuffer);
+                }
+                byteBuffer.clear();
+            }
+
+            bytesCopied.add(total);
+            return total;
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * Copies from the position until the end of the file, without changing the position of the file channel.
+     *
+     * @return the number of bytes copied
+     */
+    private static
+    long transfer(final FileChannel input, final long position, final WritableByteChannel output) throws IOException {
+        long size = input.size();
+        long total = 0L;
+
+        while (position + total < size) {
+            long count = input.transferTo(position + total, Math.min(TRANSFER_SIZE, size - position - total), output);
+            if (count <= 0L) {
+                // the file was truncated while copying (or the output can't take more right now)
+                size = input.size();
+                if (count < 0L) {
+                    break;
+                }
+                continue;
+            }
+            total += count;
+        }
+
+        bytesCopied.add(total);
+        bytesTransferred.add(total);
+        return total;
     }
 }
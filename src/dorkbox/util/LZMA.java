@@ -16,22 +16,85 @@
 package dorkbox.util;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
 
+import org.tukaani.xz.BasicArrayCache;
 import org.tukaani.xz.LZMA2Options;
 import org.tukaani.xz.LZMAInputStream;
 import org.tukaani.xz.LZMAOutputStream;
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+import org.tukaani.xz.UnsupportedOptionsException;
+import org.tukaani.xz.XZ;
+import org.tukaani.xz.XZInputStream;
+import org.tukaani.xz.XZOutputStream;
 
+/**
+ * LZMA (.lzma) and XZ (.xz) compression.
+ * <p>
+ * The XZ compression is block-parallel: the input is split into blocks, and every block is compressed (as its own single-block XZ
+ * stream) on a thread pool. The streams are written in order, which is a standard (multi-stream) .xz file, so it can be decompressed by
+ * any XZ decoder. Because the blocks are independent, an .xz file can also be decompressed in parallel (see
+ * {@link #decodeXZ(File, File, ExecutorService)}), or read from any position via {@link SeekableXZInputStream}.
+ */
 public class LZMA {
     // https://tukaani.org/xz/java.html
 
+    /**
+     * The preset used when none is specified
+     */
+    public static final int DEFAULT_PRESET = 3;
+
+    // the decode buffer size
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * @param preset the compression preset, 0 (fastest) to 9 (best compression)
+     * @param dictSize the dictionary size in bytes, or 0 to use the dictionary size of the preset. A larger dictionary compresses better,
+     *                 but uses more memory (to compress AND to decompress).
+     */
+    public static final LZMA2Options options(int preset, int dictSize) throws UnsupportedOptionsException {
+        LZMA2Options options = new LZMA2Options(preset);
+        if (dictSize > 0) {
+            options.setDictSize(dictSize);
+        }
+        return options;
+    }
+
     public static final void encode(InputStream input, OutputStream output) throws IOException  {
-        try (OutputStream compressionStream = new LZMAOutputStream(output, new LZMA2Options(3), true)) {
-            IO.copyStream(input, compressionStream);
+        encode(input, output, new LZMA2Options(DEFAULT_PRESET));
+    }
+
+    /**
+     * @param preset the compression preset, 0 (fastest) to 9 (best compression)
+     */
+    public static final void encode(InputStream input, OutputStream output, int preset) throws IOException  {
+        encode(input, output, new LZMA2Options(preset));
+    }
+
+    public static final void encode(InputStream input, OutputStream output, LZMA2Options options) throws IOException  {
+        try (OutputStream compressionStream = new LZMAOutputStream(output, options, -1L)) {
+            // LZMAOutputStream cannot be flushed, so this must not use IO.copyStream()
+            write(input, Channels.newChannel(compressionStream));
         }
     }
 
@@ -51,6 +114,312 @@ public class LZMA {
         }
     }
 
+    /**
+     * Decodes the input directly into the channel, without collecting the output first.
+     *
+     * @return the number of bytes written to the channel
+     */
+    public static final long decode(InputStream input, WritableByteChannel output) throws IOException {
+        try (LZMAInputStream compressedStream = new LZMAInputStream(input)) {
+            return write(compressedStream, output);
+        }
+    }
+
+    /**
+     * Compresses the input into the .xz format, using the preset on all of the (common pool) threads.
+     */
+    public static final void encodeXZ(InputStream input, OutputStream output, int preset) throws IOException {
+        encodeXZ(input, output, new LZMA2Options(preset), 0, null);
+    }
+
+    /**
+     * Compresses the input into the .xz format, by compressing blocks of the input in parallel. The output is the same for any number of
+     * threads.
+     * <p>
+     * Every block that is being compressed (or waiting to be written) is kept in memory, and there are at most 2 of them per thread.
+     *
+     * @param options the compression options. The dictionary is never larger than the block size, because a block can't refer to the data
+     *                of a different block.
+     * @param blockSize the (uncompressed) size of the blocks, or 0 to use 3x the dictionary size. Smaller blocks compress worse, but can be
+     *                  decompressed (or seeked into) in smaller pieces.
+     * @param executor the executor to compress the blocks on, or null to use the common pool. A single thread executor compresses the
+     *                 blocks one at a time.
+     */
+    public static final void encodeXZ(InputStream input, OutputStream output, LZMA2Options options, int blockSize, ExecutorService executor)
+                    throws IOException {
+        final LZMA2Options blockOptions = (LZMA2Options) options.clone();
+        if (blockSize <= 0) {
+            blockSize = (int) Math.min(Integer.MAX_VALUE - 8, blockOptions.getDictSize() * 3L);
+        }
+        if (blockOptions.getDictSize() > blockSize) {
+            blockOptions.setDictSize(Math.max(LZMA2Options.DICT_SIZE_MIN, blockSize));
+        }
+
+        if (executor == null) {
+            executor = ForkJoinPool.commonPool();
+        }
+
+        int inFlight = 2 * threads(executor);
+
+        // the blocks are written in the order they were read
+        ArrayDeque<Future<ByteArrayOutputStream>> compressing = new ArrayDeque<Future<ByteArrayOutputStream>>();
+        ArrayDeque<byte[]> blocks = new ArrayDeque<byte[]>();
+        final ArrayDeque<byte[]> freeBlocks = new ArrayDeque<byte[]>();
+        boolean empty = true;
+
+        try {
+            while (true) {
+                byte[] block = freeBlocks.isEmpty() ? new byte[blockSize] : freeBlocks.pop();
+                final int length = readBlock(input, block);
+                if (length == 0) {
+                    break;
+                }
+                empty = false;
+
+                final byte[] data = block;
+                compressing.add(executor.submit(new Callable<ByteArrayOutputStream>() {
+                    @Override
+                    public
+                    ByteArrayOutputStream call() throws IOException {
+                        return compressBlock(data, length, blockOptions);
+                    }
+                }));
+                blocks.add(block);
+
+                if (compressing.size() >= inFlight) {
+                    writeBlock(compressing.poll(), output);
+                    freeBlocks.push(blocks.poll());
+                }
+
+                if (length < block.length) {
+                    break;
+                }
+            }
+
+            while (!compressing.isEmpty()) {
+                writeBlock(compressing.poll(), output);
+            }
+        } finally {
+            // something failed, so the rest of the blocks are not needed
+            for (Future<ByteArrayOutputStream> future : compressing) {
+                future.cancel(false);
+            }
+        }
+
+        if (empty) {
+            // an empty .xz file still has a (single) stream
+            compressBlock(new byte[0], 0, blockOptions).writeTo(output);
+        }
+        output.flush();
+    }
+
+    /**
+     * @return the number of blocks the executor can work on at once. This is never more than the number of processors, because an
+     *         unbounded pool (for example, a cached thread pool) reports Integer.MAX_VALUE threads.
+     */
+    private static
+    int threads(final ExecutorService executor) {
+        int processors = Runtime.getRuntime().availableProcessors();
+
+        if (executor instanceof ForkJoinPool) {
+            return Math.min(((ForkJoinPool) executor).getParallelism(), processors);
+        }
+        if (executor instanceof ThreadPoolExecutor) {
+            return Math.min(((ThreadPoolExecutor) executor).getMaximumPoolSize(), processors);
+        }
+        return processors;
+    }
+
+    /**
+     * @return the number of bytes read, which is only less than the length of the block at the end of the input
+     */
+    private static
+    int readBlock(final InputStream input, final byte[] block) throws IOException {
+        int length = 0;
+        while (length < block.length) {
+            int read = input.read(block, length, block.length - length);
+            if (read == -1) {
+                break;
+            }
+            length += read;
+        }
+        return length;
+    }
+
+    private static
+    ByteArrayOutputStream compressBlock(final byte[] block, final int length, final LZMA2Options options) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(64, length / 2));
+
+        // the array cache re-uses the (large) encoder arrays between the blocks that are compressed by the same thread
+        XZOutputStream compressionStream = new XZOutputStream(output, options, XZ.CHECK_CRC64, BasicArrayCache.getInstance());
+        try {
+            compressionStream.write(block, 0, length);
+        } finally {
+            compressionStream.close();
+        }
+
+        return output;
+    }
+
+    private static
+    void writeBlock(final Future<ByteArrayOutputStream> future, final OutputStream output) throws IOException {
+        try {
+            future.get().writeTo(output);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Unable to compress", cause);
+        }
+    }
+
+    /**
+     * Decodes the .xz input (which may contain many streams and blocks) directly into the channel, without collecting the output first.
+     *
+     * @return the number of bytes written to the channel
+     */
+    public static final long decodeXZ(InputStream input, WritableByteChannel output) throws IOException {
+        try (XZInputStream compressedStream = new XZInputStream(input, BasicArrayCache.getInstance())) {
+            return write(compressedStream, output);
+        }
+    }
+
+    public static final void decodeXZ(InputStream input, OutputStream output) throws IOException {
+        try (XZInputStream compressedStream = new XZInputStream(input, BasicArrayCache.getInstance())) {
+            IO.copyStream(compressedStream, output);
+        }
+    }
+
+    /**
+     * Decodes an .xz file by decompressing its blocks in parallel (which only helps if the file has many blocks, see
+     * {@link #encodeXZ(InputStream, OutputStream, LZMA2Options, int, ExecutorService)}). Every block is written directly to its position in
+     * the output file.
+     *
+     * @param executor the executor to decompress the blocks on, or null to use the common pool
+     *
+     * @return the size of the output file
+     */
+    public static final long decodeXZ(final File input, final File output, ExecutorService executor) throws IOException {
+        if (executor == null) {
+            executor = ForkJoinPool.commonPool();
+        }
+
+        final int blockCount;
+        final long length;
+
+        SeekableXZInputStream index = new SeekableXZInputStream(new SeekableFileInputStream(input));
+        try {
+            blockCount = index.getBlockCount();
+            length = index.length();
+        } finally {
+            index.close();
+        }
+
+        RandomAccessFile outputFile = new RandomAccessFile(output, "rw");
+        try {
+            outputFile.setLength(length);
+            final FileChannel channel = outputFile.getChannel();
+
+            // every thread decompresses a range of blocks, so that the index is only read once per thread
+            int ranges = Math.max(1, Math.min(blockCount, threads(executor)));
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(ranges);
+
+            for (int i = 0; i < ranges; i++) {
+                final int start = (int) ((long) blockCount * i / ranges);
+                final int end = (int) ((long) blockCount * (i + 1) / ranges);
+
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public
+                    Void call() throws IOException {
+                        decodeBlocks(input, start, end, channel);
+                        return null;
+                    }
+                }));
+            }
+
+            try {
+                for (Future<Void> future : futures) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while decompressing", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                throw new IOException("Unable to decompress", cause);
+            } finally {
+                for (Future<Void> future : futures) {
+                    future.cancel(false);
+                }
+            }
+        } finally {
+            outputFile.close();
+        }
+
+        return length;
+    }
+
+    private static
+    void decodeBlocks(final File input, final int start, final int end, final FileChannel output) throws IOException {
+        if (start >= end) {
+            return;
+        }
+
+        SeekableXZInputStream compressedStream = new SeekableXZInputStream(new SeekableFileInputStream(input),
+                                                                           BasicArrayCache.getInstance());
+        byte[] buffer = IO.acquireBuffer(BUFFER_SIZE);
+        try {
+            compressedStream.seekToBlock(start);
+
+            long position = compressedStream.getBlockPos(start);
+            long endPosition = compressedStream.getBlockPos(end - 1) + compressedStream.getBlockSize(end - 1);
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+
+            while (position < endPosition) {
+                int read = compressedStream.read(buffer, 0, (int) Math.min(buffer.length, endPosition - position));
+                if (read == -1) {
+                    throw new IOException("Unexpected end of the compressed blocks");
+                }
+
+                byteBuffer.clear().limit(read);
+                while (byteBuffer.hasRemaining()) {
+                    position += output.write(byteBuffer, position);
+                }
+            }
+        } finally {
+            IO.releaseBuffer(buffer);
+            compressedStream.close();
+        }
+    }
+
+    private static
+    long write(final InputStream input, final WritableByteChannel output) throws IOException {
+        byte[] buffer = IO.acquireBuffer(BUFFER_SIZE);
+        try {
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+            long total = 0L;
+
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                byteBuffer.clear().limit(read);
+                while (byteBuffer.hasRemaining()) {
+                    total += output.write(byteBuffer);
+                }
+            }
+            return total;
+        } finally {
+            IO.releaseBuffer(buffer);
+        }
+    }
+
     @Override
     public final Object clone() throws java.lang.CloneNotSupportedException {
         throw new java.lang.CloneNotSupportedException();
@@ -30,7 +30,8 @@ import dorkbox.os.OS;
  * <p>
  * Remember that the JMM requires that empty 'synchronize' will not be optimized out by the compiler or JIT!
  * <p>
- * This is NOT the FASTEST implementation, but it is relatively easy and solid.
+ * This is NOT the FASTEST implementation, but it is relatively easy and solid. For a large number of small tasks, see the (batched)
+ * {@link WorkStealingProcessor}.
  */
 @SuppressWarnings({"unused", "WeakerAccess"})
 public abstract
@@ -163,12 +164,12 @@ class ParallelProcessor<Task> {
                                 t.printStackTrace();
                             }
                         } finally {
-                            // record how much work was done
-                            currentProgress.getAndIncrement();
-
-                            // notify all threads that are waiting for processing to finish
-                            synchronized (currentProgress) {
-                                currentProgress.notifyAll();
+                            // record how much work was done. Only the LAST task has to notify the threads that are waiting for
+                            // processing to finish, otherwise every task would cause a monitor storm.
+                            if (currentProgress.incrementAndGet() == totalWorkload) {
+                                synchronized (currentProgress) {
+                                    currentProgress.notifyAll();
+                                }
                             }
                         }
                     }
@@ -222,8 +223,9 @@ class ParallelProcessor<Task> {
     public
     void waitUntilDone() throws InterruptedException {
         if (totalWorkload > 0) {
-            while (currentProgress.get() - totalWorkload != 0) {
-                synchronized (currentProgress) {
+            // the progress is checked while holding the lock, so the (single) notification from the last task cannot be missed
+            synchronized (currentProgress) {
+                while (currentProgress.get() < totalWorkload) {
                     currentProgress.wait(10000L); // waits 10 seconds
                 }
             }
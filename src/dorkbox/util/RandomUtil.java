@@ -18,6 +18,8 @@ package dorkbox.util;
 
 /**
  * This class uses the MersenneTwisterFast, which is MOSTLY random.
+ *
+ * The MersenneTwisterFast is not thread safe, so there is one per thread (via a {@link FastThreadLocal}, which releases it when the thread dies)
  */
 public
 class RandomUtil {
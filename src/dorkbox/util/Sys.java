@@ -15,7 +15,6 @@
  */
 package dorkbox.util;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Field;
@@ -248,17 +247,11 @@ class Sys {
      */
     public static
     byte[] getBytesFromStream(InputStream inputStream) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(8192);
-
-        byte[] buffer = new byte[4096];
-        int read;
-        while ((read = inputStream.read(buffer)) > 0) {
-            baos.write(buffer, 0, read);
+        try {
+            return IO.toBytes(inputStream);
+        } finally {
+            inputStream.close();
         }
-        baos.flush();
-        inputStream.close();
-
-        return baos.toByteArray();
     }
 
     public static
@@ -0,0 +1,557 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A hashed timing-wheel scheduler, for a large number of (mostly cancelled or rescheduled) timeouts, such as debounce timers.
+ * <p>
+ * Scheduling and cancelling are O(1), and do not create threads. Timeouts are placed into the bucket of the wheel that their deadline falls
+ * into (with the number of full rotations remaining), and a single tick thread expires each bucket in turn. Expired tasks are run by a small
+ * pool of worker threads, so a slow task does not delay the other timeouts.
+ * <p>
+ * Timeouts are accurate to the tick duration (they are never run early, but can be run up to one tick late). The tick thread and the
+ * worker threads are only running while there are timeouts pending (they exit after being idle for about a second), so a non-daemon wheel
+ * only keeps the JVM alive while it has work.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final
+class TimingWheel {
+    public static final long DEFAULT_TICK_MILLIS = 10L;
+    public static final int DEFAULT_WHEEL_SIZE = 512;
+
+    private static final long IDLE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // longer delays are clamped (to about 73 years), so that the deadline (and the differences between deadlines) cannot overflow
+    private static final long MAX_DELAY_NANOS = Long.MAX_VALUE / 4;
+
+    private static final class DaemonHolder {
+        static final TimingWheel INSTANCE = new TimingWheel("TimingWheel", DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE,
+                                                            defaultWorkerCount(), true);
+    }
+
+    private static final class NonDaemonHolder {
+        static final TimingWheel INSTANCE = new TimingWheel("TimingWheel", DEFAULT_TICK_MILLIS, TimeUnit.MILLISECONDS, DEFAULT_WHEEL_SIZE,
+                                                            defaultWorkerCount(), false);
+    }
+
+    private static
+    int defaultWorkerCount() {
+        return Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    }
+
+    /**
+     * @return the shared (daemon) timing wheel
+     */
+    public static
+    TimingWheel getDefault() {
+        return DaemonHolder.INSTANCE;
+    }
+
+    /**
+     * @param isDaemon true to get the shared wheel that runs on daemon threads, false to get the shared wheel that will keep the JVM alive
+     *                 until its pending timeouts have run.
+     *
+     * @return the shared timing wheel
+     */
+    public static
+    TimingWheel getDefault(final boolean isDaemon) {
+        return isDaemon ? DaemonHolder.INSTANCE : NonDaemonHolder.INSTANCE;
+    }
+
+
+    /**
+     * A handle to a scheduled task, which can be used to cancel it.
+     */
+    public static final
+    class Timeout {
+        private static final int WAITING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private static final AtomicIntegerFieldUpdater<Timeout> stateREF = AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final TimingWheel wheel;
+        private final Runnable task;
+        private final long deadline;
+
+        private volatile int state = WAITING;
+
+        // only accessed by the tick thread
+        private long remainingRounds;
+        private Timeout next;
+        private Timeout prev;
+        private Bucket bucket;
+
+        private
+        Timeout(final TimingWheel wheel, final Runnable task, final long deadline) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return the task that was scheduled
+         */
+        public
+        Runnable getTask() {
+            return task;
+        }
+
+        /**
+         * Cancels this timeout, if it is still waiting. A task that has already started to run cannot be cancelled.
+         *
+         * @return true if the timeout was cancelled
+         */
+        public
+        boolean cancel() {
+            if (!stateREF.compareAndSet(this, WAITING, CANCELLED)) {
+                return false;
+            }
+
+            wheel.pending.decrementAndGet();
+            // the tick thread removes it from the wheel (so the bucket lists are only modified by a single thread)
+            wheel.cancelledTimeouts.add(this);
+            return true;
+        }
+
+        /**
+         * @return true if this timeout was cancelled before it expired
+         */
+        public
+        boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        /**
+         * @return true if this timeout has expired (and the task was run or is running)
+         */
+        public
+        boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        /**
+         * @return the delay remaining (in nanoseconds) until this timeout expires. Negative if the deadline has passed.
+         */
+        public
+        long getDelayNanos() {
+            return deadline - System.nanoTime();
+        }
+
+        // only called by the tick thread
+        private
+        void expire() {
+            if (!stateREF.compareAndSet(this, WAITING, EXPIRED)) {
+                return;
+            }
+
+            wheel.pending.decrementAndGet();
+            wheel.dispatch(this);
+        }
+    }
+
+    /**
+     * A doubly linked list of timeouts. Only accessed by the tick thread
+     */
+    private static final
+    class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(final Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            }
+            else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        Timeout remove(final Timeout timeout) {
+            final Timeout next = timeout.next;
+
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+
+            if (timeout == head) {
+                if (timeout == tail) {
+                    tail = null;
+                    head = null;
+                }
+                else {
+                    head = next;
+                }
+            }
+            else if (timeout == tail) {
+                tail = timeout.prev;
+            }
+
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+            return next;
+        }
+
+        void expire(final long now) {
+            Timeout timeout = head;
+
+            while (timeout != null) {
+                if (timeout.remainingRounds <= 0 && timeout.deadline - now <= 0) {
+                    Timeout next = remove(timeout);
+                    timeout.expire();
+                    timeout = next;
+                }
+                else {
+                    if (timeout.remainingRounds > 0) {
+                        timeout.remainingRounds--;
+                    }
+                    timeout = timeout.next;
+                }
+            }
+        }
+
+        void clear() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                timeout = remove(timeout);
+            }
+        }
+    }
+
+
+    private final String name;
+    private final boolean isDaemon;
+    private final long tickDuration;
+    private final Bucket[] wheel;
+    private final int mask;
+
+    private final ThreadPoolExecutor workers;
+
+    private final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<Timeout>();
+    private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+
+    private final AtomicLong pending = new AtomicLong();
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong lastLag = new AtomicLong();
+    private final AtomicLong maxLag = new AtomicLong();
+    private final AtomicLong totalLag = new AtomicLong();
+
+    private final Object tickLock = new Object();
+    private volatile boolean isRunning = false;
+    private volatile boolean isShutdown = false;
+
+    /**
+     * Creates a new timing wheel.
+     *
+     * @param name the prefix for the names of the threads
+     * @param tickDuration the resolution of the timeouts
+     * @param unit the unit of the tick duration
+     * @param wheelSize the number of buckets in the wheel (rounded up to a power of 2). Timeouts longer than tickDuration * wheelSize
+     *                  take more than one rotation of the wheel.
+     * @param workerThreads the maximum number of threads that run the expired tasks. 0 to run the tasks on the tick thread (only for tasks
+     *                      that are very short!)
+     * @param isDaemon true if the threads are daemon threads
+     */
+    public
+    TimingWheel(final String name, final long tickDuration, final TimeUnit unit, final int wheelSize, final int workerThreads,
+                final boolean isDaemon) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("Tick duration must be > 0");
+        }
+        if (wheelSize <= 0 || wheelSize > (1 << 30)) {
+            throw new IllegalArgumentException("Wheel size must be > 0 and <= 2^30");
+        }
+        if (workerThreads < 0) {
+            throw new IllegalArgumentException("Number of worker threads must be >= 0");
+        }
+
+        this.name = name;
+        this.isDaemon = isDaemon;
+        this.tickDuration = Math.max(1, unit.toNanos(tickDuration));
+
+        int size = 1;
+        while (size < wheelSize) {
+            size <<= 1;
+        }
+
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            this.wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+
+        if (workerThreads > 0) {
+            this.workers = new ThreadPoolExecutor(workerThreads, workerThreads,
+                                                  IDLE_TIMEOUT_NANOS, TimeUnit.NANOSECONDS,
+                                                  new LinkedBlockingQueue<Runnable>(),
+                                                  new NamedThreadFactory(name + "-Worker", isDaemon));
+            // the workers are only alive while there is work to do
+            this.workers.allowCoreThreadTimeOut(true);
+        }
+        else {
+            this.workers = null;
+        }
+    }
+
+    /**
+     * Schedules the task to run after the delay.
+     *
+     * @param task the task to run
+     * @param delay the delay in milliseconds
+     *
+     * @return the timeout, which can be used to cancel the task
+     */
+    public
+    Timeout schedule(final Runnable task, final long delay) {
+        return schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Schedules the task to run after the delay.
+     *
+     * @param task the task to run
+     * @param delay the delay
+     * @param unit the unit of the delay
+     *
+     * @return the timeout, which can be used to cancel the task
+     */
+    public
+    Timeout schedule(final Runnable task, final long delay, final TimeUnit unit) {
+        if (task == null) {
+            throw new NullPointerException("task");
+        }
+        if (isShutdown) {
+            throw new RejectedExecutionException("Timing wheel '" + name + "' has been shutdown");
+        }
+
+        final long delayNanos = Math.min(unit.toNanos(Math.max(0, delay)), MAX_DELAY_NANOS);
+        final Timeout timeout = new Timeout(this, task, System.nanoTime() + delayNanos);
+
+        // the pending count must be incremented BEFORE checking if the tick thread is running. See run()
+        pending.incrementAndGet();
+        newTimeouts.add(timeout);
+
+        if (!isRunning) {
+            synchronized (tickLock) {
+                if (!isRunning) {
+                    isRunning = true;
+                    new NamedThreadFactory(name, isDaemon).newThread(new Runnable() {
+                        @Override
+                        public
+                        void run() {
+                            tick();
+                        }
+                    }).start();
+                }
+            }
+        }
+
+        return timeout;
+    }
+
+    /**
+     * @return the number of timeouts that are waiting to expire (not including cancelled timeouts)
+     */
+    public
+    long getPendingCount() {
+        return pending.get();
+    }
+
+    /**
+     * @return the number of tasks that have been run (or are running)
+     */
+    public
+    long getExecutedCount() {
+        return executed.get();
+    }
+
+    /**
+     * @return how late (in nanoseconds) the most recent task started, compared to its deadline
+     */
+    public
+    long getLastLagNanos() {
+        return lastLag.get();
+    }
+
+    /**
+     * @return the maximum amount of time (in nanoseconds) that any task started after its deadline
+     */
+    public
+    long getMaxLagNanos() {
+        return maxLag.get();
+    }
+
+    /**
+     * @return the average amount of time (in nanoseconds) that tasks started after their deadline
+     */
+    public
+    long getAverageLagNanos() {
+        long count = executed.get();
+        if (count == 0) {
+            return 0;
+        }
+        return totalLag.get() / count;
+    }
+
+    /**
+     * @return the duration (in nanoseconds) of a single tick
+     */
+    public
+    long getTickDurationNanos() {
+        return tickDuration;
+    }
+
+    /**
+     * Stops accepting new timeouts. Pending timeouts still expire (and run), after which the threads exit.
+     */
+    public
+    void shutdown() {
+        isShutdown = true;
+        if (workers != null && pending.get() == 0) {
+            workers.shutdown();
+        }
+    }
+
+    private
+    void dispatch(final Timeout timeout) {
+        final Runnable runnable = new Runnable() {
+            @Override
+            public
+            void run() {
+                final long lag = Math.max(0, System.nanoTime() - timeout.deadline);
+                lastLag.set(lag);
+                totalLag.addAndGet(lag);
+                executed.incrementAndGet();
+
+                long max;
+                do {
+                    max = maxLag.get();
+                } while (lag > max && !maxLag.compareAndSet(max, lag));
+
+                try {
+                    timeout.task.run();
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+            }
+        };
+
+        if (workers == null) {
+            runnable.run();
+            return;
+        }
+
+        try {
+            workers.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            // only happens if we were shutdown
+            runnable.run();
+        }
+    }
+
+    // runs on the tick thread
+    private
+    void tick() {
+        final Bucket[] wheel = this.wheel;
+        final long tickDuration = this.tickDuration;
+
+        final long startTime = System.nanoTime();
+        long tick = 0;
+        long idleSince = startTime;
+
+        while (true) {
+            // wait for the end of the current tick
+            final long deadline = startTime + tickDuration * (tick + 1);
+            long now = System.nanoTime();
+            while (deadline - now > 0) {
+                long sleepMillis = TimeUnit.NANOSECONDS.toMillis(deadline - now + 999999L);
+                try {
+                    Thread.sleep(Math.max(1, sleepMillis));
+                } catch (InterruptedException ignored) {
+                }
+                now = System.nanoTime();
+            }
+
+            // remove the cancelled timeouts from their buckets
+            Timeout timeout;
+            while ((timeout = cancelledTimeouts.poll()) != null) {
+                if (timeout.bucket != null) {
+                    timeout.bucket.remove(timeout);
+                }
+            }
+
+            // place the new timeouts into their buckets
+            while ((timeout = newTimeouts.poll()) != null) {
+                if (timeout.state != Timeout.WAITING) {
+                    continue;
+                }
+
+                final long calculated = (timeout.deadline - startTime) / tickDuration;
+                timeout.remainingRounds = (calculated - tick) / wheel.length;
+
+                // if the deadline has already passed, it goes into the current bucket
+                final long ticks = Math.max(calculated, tick);
+                wheel[(int) (ticks & mask)].add(timeout);
+            }
+
+            wheel[(int) (tick & mask)].expire(now);
+            tick++;
+
+            if (pending.get() != 0) {
+                idleSince = now;
+            }
+            else if (now - idleSince >= IDLE_TIMEOUT_NANOS || isShutdown) {
+                synchronized (tickLock) {
+                    isRunning = false;
+
+                    // a new timeout might have been scheduled while we were deciding to stop. See schedule()
+                    if (pending.get() != 0) {
+                        isRunning = true;
+                        continue;
+                    }
+
+                    // everything left in the wheel was cancelled. This must happen while holding the lock, because a new tick thread
+                    // cannot be started until we release it
+                    for (Bucket bucket : wheel) {
+                        bucket.clear();
+                    }
+                    cancelledTimeouts.clear();
+                }
+
+                if (isShutdown && workers != null) {
+                    workers.shutdown();
+                }
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,516 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dorkbox.os.OS;
+
+/**
+ * A batched, work-stealing alternative to the {@link ParallelProcessor}, for processing a large number of (small) tasks on multiple threads.
+ * <p>
+ * Work is submitted in batches (instead of one task at a time) and is split into chunks, which are run on a {@link ForkJoinPool} -- so every
+ * worker thread has its own deque, and idle workers steal chunks from busy ones. There is no per-task hand-off or notification, completion of a
+ * batch is signaled once (when the last chunk finishes).
+ * <p>
+ * Results and failures are available via the {@link Batch} (which is a {@link Future}) returned for each batch, and batches can be cancelled.
+ * <p>
+ * For I/O bound work, any {@link Executor} can be used instead of the work-stealing pool (for example, on Java 21+, a virtual-thread-per-task
+ * executor). In that case, each chunk is submitted to the executor as a separate task.
+ */
+@SuppressWarnings({"unused", "WeakerAccess"})
+public final
+class WorkStealingProcessor {
+    public static final int DEFAULT_BATCH_SIZE = 256;
+
+    public
+    interface Worker<Task, Result> {
+        /**
+         * Runs the work.
+         *
+         * @return the result of the work (can be null)
+         */
+        Result process(Task task) throws Exception;
+    }
+
+    public
+    interface RangeWorker {
+        /**
+         * Runs the work for the specified range of indices
+         *
+         * @param start the first index (inclusive)
+         * @param end the last index (exclusive)
+         */
+        void process(int start, int end) throws Exception;
+    }
+
+    /**
+     * The (future) results of a batch of work. The results are in the same order as the tasks were submitted.
+     * <p>
+     * If any task fails, the rest of the batch is skipped, and the failure (with any other failures added as suppressed exceptions) is thrown
+     * as the cause of an {@link ExecutionException} by {@link #get()}.
+     */
+    public static final
+    class Batch<Result> implements Future<List<Result>> {
+        private static final int RUNNING = 0;
+        private static final int DONE = 1;
+        private static final int CANCELLED = 2;
+
+        private final AtomicInteger state = new AtomicInteger(RUNNING);
+
+        // the number of tasks that have not finished (or been skipped) yet. This also includes a "hold" while tasks are still being submitted
+        private final AtomicInteger remaining = new AtomicInteger(1);
+        private final AtomicInteger completed = new AtomicInteger(0);
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        // only used for iterables, because the size is not known in advance
+        private final List<Object[]> chunks;
+        private final Object[] results;
+        private volatile int total;
+
+        private volatile Throwable failure;
+
+        private
+        Batch(final int total, final boolean hasResults) {
+            this.total = total;
+            this.results = hasResults ? new Object[total] : null;
+            this.chunks = null;
+        }
+
+        private
+        Batch() {
+            this.total = 0;
+            this.results = null;
+            this.chunks = Collections.synchronizedList(new ArrayList<Object[]>());
+        }
+
+        // the tasks are skipped once the batch is cancelled or failed
+        boolean isStopped() {
+            return state.get() != RUNNING || failure != null;
+        }
+
+        void add(final int count) {
+            remaining.addAndGet(count);
+        }
+
+        void finished(final int count, final int skipped) {
+            if (count - skipped > 0) {
+                completed.addAndGet(count - skipped);
+            }
+
+            if (remaining.addAndGet(-count) == 0 && state.compareAndSet(RUNNING, DONE)) {
+                done.countDown();
+            }
+        }
+
+        void fail(final Throwable throwable) {
+            synchronized (this) {
+                if (failure == null) {
+                    failure = throwable;
+                }
+                else if (failure != throwable) {
+                    failure.addSuppressed(throwable);
+                }
+            }
+        }
+
+        /**
+         * Cancels this batch. Tasks that have not started yet will be skipped, tasks that are running will finish (they are never interrupted).
+         */
+        @Override
+        public
+        boolean cancel(final boolean mayInterruptIfRunning) {
+            if (state.compareAndSet(RUNNING, CANCELLED)) {
+                done.countDown();
+                return true;
+            }
+            return false;
+        }
+
+        @Override
+        public
+        boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        @Override
+        public
+        boolean isDone() {
+            return state.get() != RUNNING;
+        }
+
+        /**
+         * @return the number of tasks that have finished processing
+         */
+        public
+        int getCompletedCount() {
+            return completed.get();
+        }
+
+        /**
+         * @return the progress made, between 0-1. The total is only known once all the tasks are submitted.
+         */
+        public
+        float getProgress() {
+            int total = this.total;
+            if (total == 0) {
+                return isDone() ? 1.0f : 0.0f;
+            }
+            return (float) completed.get() / (float) total;
+        }
+
+        @Override
+        public
+        List<Result> get() throws InterruptedException, ExecutionException {
+            done.await();
+            return getResults();
+        }
+
+        @Override
+        public
+        List<Result> get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (!done.await(timeout, unit)) {
+                throw new TimeoutException();
+            }
+            return getResults();
+        }
+
+        @SuppressWarnings("unchecked")
+        private
+        List<Result> getResults() throws ExecutionException {
+            if (state.get() == CANCELLED) {
+                throw new CancellationException();
+            }
+
+            final Throwable failure = this.failure;
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+
+            if (chunks != null) {
+                // the chunks were added in order, but might not have been run in order
+                final Object[] results = new Object[total];
+                synchronized (chunks) {
+                    int index = 0;
+                    for (Object[] chunk : chunks) {
+                        System.arraycopy(chunk, 0, results, index, chunk.length);
+                        index += chunk.length;
+                    }
+                }
+                return (List<Result>) Arrays.asList(results);
+            }
+
+            if (results == null) {
+                return Collections.emptyList();
+            }
+
+            return (List<Result>) Arrays.asList(results);
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final Executor executor;
+    private final int batchSize;
+
+    /**
+     * Creates a work-stealing processor using the OS optimum number of threads (based on the CPU core count)
+     */
+    public
+    WorkStealingProcessor() {
+        this(OS.getOptimumNumberOfThreads(), DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Creates a work-stealing processor.
+     *
+     * @param numberOfThreads this is the number of threads requested to do the work
+     * @param batchSize the (maximum) number of tasks that are processed together as a single chunk
+     */
+    public
+    WorkStealingProcessor(final int numberOfThreads, final int batchSize) {
+        if (numberOfThreads < 1) {
+            throw new IllegalArgumentException("Number of threads must be > 0");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be > 0");
+        }
+
+        final AtomicInteger threadId = new AtomicInteger();
+        this.pool = new ForkJoinPool(numberOfThreads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public
+            ForkJoinWorkerThread newThread(final ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("Processor-" + threadId.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, null, false);
+
+        this.executor = null;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Creates a processor that runs each chunk of work as a separate task on the specified executor, which is useful for I/O bound work (for
+     * example, with a virtual-thread-per-task executor). There is no work stealing in this mode.
+     *
+     * @param executor the executor to run the chunks of work on. This is never shutdown by this processor.
+     * @param batchSize the (maximum) number of tasks that are processed together as a single chunk
+     */
+    public
+    WorkStealingProcessor(final Executor executor, final int batchSize) {
+        if (executor == null) {
+            throw new NullPointerException("executor");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be > 0");
+        }
+
+        this.pool = null;
+        this.executor = executor;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Processes all of the tasks.
+     *
+     * @param tasks the tasks to process. Lists that support random access are split directly, everything else is read (and chunked) as
+     *         it is submitted.
+     * @param worker the worker that processes each task. This is called concurrently by multiple threads!
+     *
+     * @return the batch, which contains the results once processing has finished
+     */
+    public
+    <Task, Result> Batch<Result> processAll(final Iterable<Task> tasks, final Worker<Task, Result> worker) {
+        if (tasks instanceof List && tasks instanceof RandomAccess) {
+            return processList((List<Task>) tasks, worker);
+        }
+
+        final Batch<Result> batch = new Batch<Result>();
+
+        int total = 0;
+        Iterator<Task> iterator = tasks.iterator();
+        while (iterator.hasNext() && !batch.isStopped()) {
+            final Object[] chunk = new Object[batchSize];
+
+            int count = 0;
+            while (count < batchSize && iterator.hasNext()) {
+                chunk[count++] = iterator.next();
+            }
+
+            final Object[] chunkTasks = count == batchSize ? chunk : Arrays.copyOf(chunk, count);
+            final Object[] chunkResults = new Object[count];
+            batch.chunks.add(chunkResults);
+
+            total += count;
+            batch.add(count);
+
+            run(batch, new Runnable() {
+                @SuppressWarnings("unchecked")
+                @Override
+                public
+                void run() {
+                    int skipped = 0;
+                    for (int i = 0; i < chunkTasks.length; i++) {
+                        if (batch.isStopped()) {
+                            skipped = chunkTasks.length - i;
+                            break;
+                        }
+
+                        try {
+                            chunkResults[i] = worker.process((Task) chunkTasks[i]);
+                        } catch (Throwable t) {
+                            batch.fail(t);
+                        }
+                    }
+                    batch.finished(chunkTasks.length, skipped);
+                }
+            }, count);
+        }
+
+        batch.total = total;
+
+        // release the hold, now that everything is submitted
+        batch.finished(1, 1);
+        return batch;
+    }
+
+    private
+    <Task, Result> Batch<Result> processList(final List<Task> tasks, final Worker<Task, Result> worker) {
+        final int size = tasks.size();
+        final Batch<Result> batch = new Batch<Result>(size, true);
+        final Object[] results = batch.results;
+
+        return processRange(batch, 0, size, new RangeWorker() {
+            @Override
+            public
+            void process(final int start, final int end) throws Exception {
+                for (int i = start; i < end; i++) {
+                    if (batch.isStopped()) {
+                        return;
+                    }
+                    results[i] = worker.process(tasks.get(i));
+                }
+            }
+        });
+    }
+
+    /**
+     * Processes the range of indices, by splitting it into chunks (of at most the batch size).
+     *
+     * @param start the first index (inclusive)
+     * @param end the last index (exclusive)
+     * @param worker the worker that processes each chunk. This is called concurrently by multiple threads!
+     *
+     * @return the batch, which finishes once the entire range has been processed. There are no results.
+     */
+    public
+    Batch<Void> processRange(final int start, final int end, final RangeWorker worker) {
+        if (end < start) {
+            throw new IllegalArgumentException("End index must be >= start index");
+        }
+
+        return processRange(new Batch<Void>(end - start, false), start, end, worker);
+    }
+
+    private
+    <Result> Batch<Result> processRange(final Batch<Result> batch, final int start, final int end, final RangeWorker worker) {
+        final int size = end - start;
+        batch.add(size);
+
+        if (pool != null) {
+            // the range is recursively split by the workers (so the chunks are spread out via work stealing)
+            try {
+                pool.execute(new RangeTask(batch, start, end, batchSize, worker));
+            } catch (RejectedExecutionException e) {
+                batch.fail(e);
+                batch.finished(size, size);
+            }
+        }
+        else {
+            for (int chunkStart = start; chunkStart < end; chunkStart += batchSize) {
+                final int chunkEnd = Math.min(end, chunkStart + batchSize);
+                final RangeTask chunk = new RangeTask(batch, chunkStart, chunkEnd, batchSize, worker);
+
+                run(batch, new Runnable() {
+                    @Override
+                    public
+                    void run() {
+                        chunk.processChunk(chunk.start, chunk.end);
+                    }
+                }, chunkEnd - chunkStart);
+            }
+        }
+
+        // release the hold, now that everything is submitted
+        batch.finished(1, 1);
+        return batch;
+    }
+
+    private
+    void run(final Batch<?> batch, final Runnable chunk, final int count) {
+        try {
+            if (pool != null) {
+                pool.execute(chunk);
+            }
+            else {
+                executor.execute(chunk);
+            }
+        } catch (RejectedExecutionException e) {
+            batch.fail(e);
+            batch.finished(count, count);
+        }
+    }
+
+    /**
+     * Shuts down the work-stealing pool (once all submitted work is finished). An executor passed into the constructor is never shutdown.
+     */
+    public
+    void shutdown() {
+        if (pool != null) {
+            pool.shutdown();
+        }
+    }
+
+    private static final
+    class RangeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Batch<?> batch;
+        private final int start;
+        private final int end;
+        private final int batchSize;
+        private final RangeWorker worker;
+
+        RangeTask(final Batch<?> batch, final int start, final int end, final int batchSize, final RangeWorker worker) {
+            this.batch = batch;
+            this.start = start;
+            this.end = end;
+            this.batchSize = batchSize;
+            this.worker = worker;
+        }
+
+        @Override
+        protected
+        void compute() {
+            final int start = this.start;
+            int end = this.end;
+
+            // split off the upper halves for other workers to steal, and keep the lower part
+            while (end - start > batchSize && !batch.isStopped()) {
+                final int mid = (start + end) >>> 1;
+                new RangeTask(batch, mid, end, batchSize, worker).fork();
+                end = mid;
+            }
+
+            processChunk(start, end);
+        }
+
+        void processChunk(final int start, final int end) {
+            final int count = end - start;
+            if (batch.isStopped()) {
+                batch.finished(count, count);
+                return;
+            }
+
+            try {
+                worker.process(start, end);
+                batch.finished(count, 0);
+            } catch (Throwable t) {
+                batch.fail(t);
+                batch.finished(count, count);
+            }
+        }
+    }
+}
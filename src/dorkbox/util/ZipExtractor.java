@@ -0,0 +1,390 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import dorkbox.os.OS;
+
+/**
+ * Extracts a zip (or jar) file in parallel.
+ * <p>
+ * The entries are read from the central directory of the zip file, and all of the output directories are created once before anything is
+ * extracted. The entries are then split into chunks of (about) the same uncompressed size, and every chunk is inflated by its own task on
+ * a fork-join pool (with its own {@link ZipFile}, so the entries are inflated without contention). Every file is preallocated to its final
+ * size and written through a {@link FileChannel}.
+ * <p>
+ * An incremental extraction skips the entries that already exist on disk with the same size and CRC, and counts them as
+ * {@link FileTree.Progress#ignored()}.
+ */
+@SuppressWarnings("WeakerAccess")
+public final
+class ZipExtractor {
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private static final class DefaultHolder {
+        static final ZipExtractor INSTANCE = new ZipExtractor(OS.getOptimumNumberOfThreads());
+    }
+
+    /**
+     * @return the extractor used by {@link FileUtil#unzip(File, File)} and {@link FileUtil#unzipJar(File, File, boolean)}
+     */
+    public static
+    ZipExtractor getDefault() {
+        return DefaultHolder.INSTANCE;
+    }
+
+
+    /**
+     * An entry to extract, and where to extract it to
+     */
+    private static final
+    class Entry {
+        final String name;
+        final long size;
+        final long crc;
+        final Path file;
+
+        Entry(final ZipEntry zipEntry, final Path file) {
+            this.name = zipEntry.getName();
+            this.size = zipEntry.getSize();
+            this.crc = zipEntry.getCrc();
+            this.file = file;
+        }
+    }
+
+    /**
+     * Extracts a chunk of the entries
+     */
+    private static final
+    class ChunkTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final File zipFile;
+        private final List<Entry> entries;
+        private final int start;
+        private final int end;
+        private final boolean incremental;
+        private final FileTree.Progress progress;
+        private final AtomicReference<IOException> failure;
+
+        ChunkTask(final File zipFile, final List<Entry> entries, final int start, final int end, final boolean incremental,
+                  final FileTree.Progress progress, final AtomicReference<IOException> failure) {
+            this.zipFile = zipFile;
+            this.entries = entries;
+            this.start = start;
+            this.end = end;
+            this.incremental = incremental;
+            this.progress = progress;
+            this.failure = failure;
+        }
+
+        @Override
+        protected
+        void compute() {
+            if (failure.get() != null) {
+                return;
+            }
+
+            ZipFile zip = null;
+            try {
+                zip = new ZipFile(zipFile);
+
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+
+                for (int i = start; i < end; i++) {
+                    if (failure.get() != null) {
+                        return;
+                    }
+
+                    final Entry entry = entries.get(i);
+                    if (incremental && isUnchanged(entry, buffer)) {
+                        progress.ignored.increment();
+                        continue;
+                    }
+
+                    final ZipEntry zipEntry = zip.getEntry(entry.name);
+                    if (zipEntry == null) {
+                        throw new IOException("Zip entry " + entry.name + " no longer exists");
+                    }
+
+                    progress.bytes.add(extract(zip, zipEntry, entry, byteBuffer));
+                    progress.files.increment();
+                }
+            } catch (IOException e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                if (zip != null) {
+                    try {
+                        zip.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if the file already exists with the same size and CRC as the entry
+     */
+    static
+    boolean isUnchanged(final Entry entry, final byte[] buffer) throws IOException {
+        if (entry.size < 0L || entry.crc < 0L) {
+            return false;
+        }
+
+        final File file = entry.file.toFile();
+        if (!file.isFile() || file.length() != entry.size) {
+            return false;
+        }
+
+        final CRC32 crc = new CRC32();
+        final InputStream input = Files.newInputStream(entry.file);
+        try {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        } finally {
+            input.close();
+        }
+
+        return crc.getValue() == entry.crc;
+    }
+
+    /**
+     * Writes the (inflated) entry to its file.
+     *
+     * @return the number of bytes written
+     */
+    static
+    long extract(final ZipFile zip, final ZipEntry zipEntry, final Entry entry, final ByteBuffer buffer) throws IOException {
+        final byte[] bytes = buffer.array();
+        final InputStream input = zip.getInputStream(zipEntry);
+        try {
+            final RandomAccessFile output = new RandomAccessFile(entry.file.toFile(), "rw");
+            try {
+                // preallocate the file, so that the file system doesn't have to grow it for every write
+                if (entry.size >= 0L) {
+                    output.setLength(entry.size);
+                }
+
+                final FileChannel channel = output.getChannel();
+                long written = 0L;
+
+                int read;
+                while ((read = input.read(bytes)) != -1) {
+                    buffer.clear().limit(read);
+                    while (buffer.hasRemaining()) {
+                        written += channel.write(buffer);
+                    }
+                }
+
+                if (written != entry.size) {
+                    // the size in the central directory was wrong (or unknown)
+                    output.setLength(written);
+                }
+                return written;
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+
+    private final ForkJoinPool pool;
+
+    /**
+     * Creates an extractor that runs on the specified pool.
+     *
+     * @param pool the pool to run the extractions on. This is never shutdown by the extractor.
+     */
+    public
+    ZipExtractor(final ForkJoinPool pool) {
+        if (pool == null) {
+            throw new NullPointerException("pool");
+        }
+
+        this.pool = pool;
+    }
+
+    /**
+     * Creates an extractor with its own pool of daemon threads.
+     *
+     * @param numberOfThreads the maximum number of entries that are inflated at the same time
+     */
+    public
+    ZipExtractor(final int numberOfThreads) {
+        this(newPool(numberOfThreads));
+    }
+
+    private static
+    ForkJoinPool newPool(final int numberOfThreads) {
+        if (numberOfThreads < 1) {
+            throw new IllegalArgumentException("Number of threads must be > 0");
+        }
+
+        final AtomicInteger threadId = new AtomicInteger();
+        return new ForkJoinPool(numberOfThreads, new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public
+            ForkJoinWorkerThread newThread(final ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("ZipExtractor-" + threadId.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        }, null, false);
+    }
+
+    /**
+     * Extracts every entry of a zip (or jar) file, overwriting any existing files.
+     *
+     * @param extractManifest false to skip the entries in "META-INF/"
+     */
+    public
+    FileTree.Progress extract(final File zipFile, final File outputDir, final boolean extractManifest) throws IOException {
+        return extract(zipFile, outputDir, extractManifest, false, new FileTree.Progress());
+    }
+
+    /**
+     * Extracts every entry of a zip (or jar) file.
+     *
+     * @param extractManifest false to skip the entries in "META-INF/"
+     * @param incremental true to skip the entries that already exist on disk with the same size and CRC
+     * @param progress counts the progress, and can be read by other threads during the extraction
+     */
+    public
+    FileTree.Progress extract(final File zipFile, final File outputDir, final boolean extractManifest, final boolean incremental,
+                              final FileTree.Progress progress) throws IOException {
+        try {
+            final Path outputPath = outputDir.getAbsoluteFile().toPath().normalize();
+            final List<Entry> entries = new ArrayList<Entry>();
+            final Set<Path> directories = new HashSet<Path>();
+            long totalSize = 0L;
+
+            final ZipFile zip = new ZipFile(zipFile);
+            try {
+                final Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+                while (zipEntries.hasMoreElements()) {
+                    final ZipEntry zipEntry = zipEntries.nextElement();
+                    final String name = zipEntry.getName();
+
+                    if (!extractManifest && name.startsWith("META-INF/")) {
+                        continue;
+                    }
+
+                    final Path file = outputPath.resolve(name).normalize();
+                    if (!file.startsWith(outputPath)) {
+                        throw new IOException("Zip entry is outside of the output directory: " + name);
+                    }
+
+                    if (zipEntry.isDirectory()) {
+                        directories.add(file);
+                        continue;
+                    }
+
+                    if (file.getParent() != null) {
+                        directories.add(file.getParent());
+                    }
+
+                    entries.add(new Entry(zipEntry, file));
+                    totalSize += Math.max(0L, zipEntry.getSize());
+                }
+            } finally {
+                zip.close();
+            }
+
+            // every directory is only created once, instead of once per entry
+            for (Path directory : directories) {
+                if (!Files.isDirectory(directory)) {
+                    Files.createDirectories(directory);
+                    progress.directories.increment();
+                }
+            }
+
+            if (entries.isEmpty()) {
+                return progress;
+            }
+
+            // the chunks have (about) the same uncompressed size, so a few large entries don't end up on a single thread
+            final long chunkSize = Math.max(1L, totalSize / ((long) pool.getParallelism() * CHUNKS_PER_THREAD));
+            final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+            final List<ChunkTask> tasks = new ArrayList<ChunkTask>();
+
+            int start = 0;
+            long size = 0L;
+            for (int i = 0, n = entries.size(); i < n; i++) {
+                size += Math.max(0L, entries.get(i).size);
+
+                if (size >= chunkSize || i == n - 1) {
+                    tasks.add(new ChunkTask(zipFile, entries, start, i + 1, incremental, progress, failure));
+                    start = i + 1;
+                    size = 0L;
+                }
+            }
+
+            if (tasks.size() == 1) {
+                tasks.get(0).compute();
+            }
+            else {
+                pool.invoke(new RecursiveAction() {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected
+                    void compute() {
+                        ForkJoinTask.invokeAll(tasks);
+                    }
+                });
+            }
+
+            final IOException e = failure.get();
+            if (e != null) {
+                throw e;
+            }
+            return progress;
+        } finally {
+            progress.done();
+        }
+    }
+}
@@ -17,106 +17,314 @@ package dorkbox.util.classes;
 
 import java.lang.reflect.Array;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
-import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import dorkbox.util.collections.IdentityMap;
 
 /**
+ * Caches the class hierarchy (super classes, interfaces and array types) of classes.
+ * <p>
+ * The caches are {@link ClassValue} based, so they are safe for any number of concurrent readers/writers, lookups are lock-free, and the
+ * cached information is stored with the class itself (so it does not prevent classes, or their classloader, from being unloaded).
+ *
  * @author dorkbox
  *         Date: 4/1/15
  */
 public final
 class ClassHierarchy {
 
-    private volatile IdentityMap<Class<?>, Class<?>> arrayCache;
-    private volatile IdentityMap<Class<?>, Class<?>[]> superClassesCache;
-
-    // Recommended for best performance while adhering to the "single writer principle". Must be static-final
-    private static final AtomicReferenceFieldUpdater<ClassHierarchy, IdentityMap> arrayREF =
-                    AtomicReferenceFieldUpdater.newUpdater(ClassHierarchy.class,
-                                                           IdentityMap.class,
-                                                           "arrayCache");
+    private static final AtomicInteger nextTypeId = new AtomicInteger(0);
+    private static final int[] EMPTY_IDS = new int[0];
 
-    private static final AtomicReferenceFieldUpdater<ClassHierarchy, IdentityMap> superClassesREF =
-                    AtomicReferenceFieldUpdater.newUpdater(ClassHierarchy.class,
-                                                           IdentityMap.class,
-                                                           "superClassesCache");
-
-    /**
-     * These data structures are never reset because the class hierarchy doesn't change at runtime. This class uses the "single writer
-     * principle" for storing data, EVEN THOUGH it's not accessed by a single writer. This DOES NOT MATTER because duplicates DO NOT matter
-     */
-    public
-    ClassHierarchy(float loadFactor) {
-        this.arrayCache = new IdentityMap<Class<?>, Class<?>>(32, loadFactor);
-        this.superClassesCache = new IdentityMap<Class<?>, Class<?>[]>(32, loadFactor);
-    }
+    private static final ClassValue<TypeInfo> typeInfoCache = new ClassValue<TypeInfo>() {
+        @Override
+        protected
+        TypeInfo computeValue(final Class<?> type) {
+            return new TypeInfo(type);
+        }
+    };
 
     /**
-     * will return the class + parent classes as an array.
-     * if parameter clazz is of type array, then the super classes are of array type as well
+     * The flattened (precomputed) type hierarchy of a class. Type matching via this is allocation free, and is intended for hot-paths
+     * (ie: event dispatch).
      * <p>
-     * race conditions will result in DUPLICATE answers, which we don't care if happens
-     * never returns null
-     * never reset (class hierarchy never changes during runtime)
+     * Every type is assigned a unique id. The type ids of ALL the super types (classes and interfaces, and this type itself) are kept in a
+     * sorted array, so checking if a type is a subtype of another is a binary search over (only) the types in this hierarchy. The ids are
+     * never reused, but the arrays are sized by the number of super types, and not by the largest id.
      */
-    public
-    Class<?>[] getClassAndSuperClasses(final Class<?> clazz) {
-        // access a snapshot of the subscriptions (single-writer-principle)
-        final IdentityMap<Class<?>, Class<?>[]> cache = cast(superClassesREF.get(this));
+    public static final
+    class TypeInfo {
+        private final Class<?> type;
+        private final int id;
+
+        // does not include this type. Do not modify!
+        private final Class<?>[] superTypes;
 
-        Class<?>[] classes = cache.get(clazz);
+        // sorted. Do not modify!
+        private final int[] typeIds;
+        private final int[] interfaceIds;
 
-        // duplicates DO NOT MATTER
-        if (classes == null) {
-            // publish all super types of class
-            final Iterator<Class<?>> superTypesIterator = getSuperTypes(clazz);
-            final ArrayList<Class<?>> newList = new ArrayList<Class<?>>(16);
+        private
+        TypeInfo(final Class<?> type) {
+            this.type = type;
+            this.id = nextTypeId.getAndIncrement();
 
-            Class<?> c;
-            final boolean isArray = clazz.isArray();
+            // This must be a 'set' because there can be duplicates, depending on the object hierarchy
+            final IdentityMap<Class<?>, Boolean> seen = new IdentityMap<Class<?>, Boolean>();
+            final ArrayList<Class<?>> superTypes = new ArrayList<Class<?>>();
 
-            if (isArray) {
-                // have to add the original class to the front of the list
-                c = getArrayClass(clazz);
-                newList.add(c);
+            final ArrayList<TypeInfo> parents = new ArrayList<TypeInfo>();
 
-                while (superTypesIterator.hasNext()) {
-                    c = superTypesIterator.next();
-                    c = getArrayClass(c);
+            // the super types of the parents are already flattened, so we can use them directly
+            for (Class<?> intface : type.getInterfaces()) {
+                parents.add(typeInfoCache.get(intface));
+            }
 
-                    if (c != clazz) {
-                        newList.add(c);
+            // interfaces do not have Object as a super type (this matches getSuperTypes())
+            final Class<?> superclass = type.getSuperclass();
+            if (superclass != null && !type.isInterface()) {
+                parents.add(typeInfoCache.get(superclass));
+            }
+
+            int[] typeIds = new int[] {id};
+            int[] interfaceIds = type.isInterface() ? new int[] {id} : EMPTY_IDS;
+
+            for (TypeInfo parent : parents) {
+                if (seen.put(parent.type, Boolean.TRUE) == null) {
+                    superTypes.add(parent.type);
+                }
+                for (Class<?> superType : parent.superTypes) {
+                    if (seen.put(superType, Boolean.TRUE) == null) {
+                        superTypes.add(superType);
                     }
                 }
+
+                typeIds = union(typeIds, parent.typeIds);
+                interfaceIds = union(interfaceIds, parent.interfaceIds);
             }
-            else {
-                // have to add the original class to the front of the list
-                newList.add(clazz);
 
-                while (superTypesIterator.hasNext()) {
-                    c = superTypesIterator.next();
+            this.superTypes = superTypes.toArray(new Class<?>[0]);
+            this.typeIds = typeIds;
+            this.interfaceIds = interfaceIds;
+        }
 
-                    if (c != clazz) {
-                        newList.add(c);
-                    }
+        /**
+         * @return the (sorted) union of two sorted arrays
+         */
+        private static
+        int[] union(final int[] a, final int[] b) {
+            final int[] union = new int[a.length + b.length];
+            int i = 0;
+            int j = 0;
+            int count = 0;
+
+            while (i < a.length && j < b.length) {
+                final int x = a[i];
+                final int y = b[j];
+
+                if (x < y) {
+                    union[count++] = x;
+                    i++;
+                }
+                else if (x > y) {
+                    union[count++] = y;
+                    j++;
                 }
+                else {
+                    union[count++] = x;
+                    i++;
+                    j++;
+                }
+            }
+            while (i < a.length) {
+                union[count++] = a[i++];
             }
+            while (j < b.length) {
+                union[count++] = b[j++];
+            }
+
+            return count == union.length ? union : Arrays.copyOf(union, count);
+        }
+
+        /**
+         * @return the type this is for
+         */
+        public
+        Class<?> getType() {
+            return type;
+        }
 
-            classes = new Class<?>[newList.size()];
-            newList.toArray(classes);
-            cache.put(clazz, classes);
+        /**
+         * @return the unique id of this type. This can be used with {@link #isSubtypeOf(int)} and {@link #implementsAny(int[])}
+         */
+        public
+        int getId() {
+            return id;
+        }
+
+        /**
+         * @return all directly and indirectly related super types (classes and interfaces), not including this type. DO NOT MODIFY!
+         */
+        public
+        Class<?>[] getSuperTypes() {
+            return superTypes;
+        }
+
+        /**
+         * @return the (sorted) ids of this type and all of its super types (classes and interfaces). DO NOT MODIFY!
+         */
+        public
+        int[] getTypeIds() {
+            return typeIds;
+        }
+
+        /**
+         * @return the (sorted) ids of all interfaces implemented by this type (and this type, if it is an interface). DO NOT MODIFY!
+         */
+        public
+        int[] getInterfaceIds() {
+            return interfaceIds;
+        }
 
-            // save this snapshot back to the original (single writer principle)
-            superClassesREF.lazySet(this, cache);
+        /**
+         * @return true if this type is the same as, or a subtype of, the type with the specified id
+         */
+        public
+        boolean isSubtypeOf(final int typeId) {
+            return Arrays.binarySearch(typeIds, typeId) >= 0;
         }
 
-        return classes;
+        /**
+         * @return true if this type is the same as, or a subtype of, the specified type
+         */
+        public
+        boolean isSubtypeOf(final TypeInfo type) {
+            return isSubtypeOf(type.id);
+        }
+
+        /**
+         * @return true if this type is the same as, or a subtype of, the specified type
+         */
+        public
+        boolean isSubtypeOf(final Class<?> type) {
+            return isSubtypeOf(typeInfoCache.get(type).id);
+        }
+
+        /**
+         * @param interfaceIds the sorted ids of interface types (for example, every interface that has a listener)
+         *
+         * @return true if this type implements ANY of the interfaces
+         */
+        public
+        boolean implementsAny(final int[] interfaceIds) {
+            final int[] ids = this.interfaceIds;
+            int i = 0;
+            int j = 0;
+
+            while (i < ids.length && j < interfaceIds.length) {
+                final int x = ids[i];
+                final int y = interfaceIds[j];
+
+                if (x == y) {
+                    return true;
+                }
+                if (x < y) {
+                    i++;
+                }
+                else {
+                    j++;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public
+        String toString() {
+            return "TypeInfo{" + type.getName() + " (" + id + ")}";
+        }
+    }
+
+
+    private volatile ClassValue<Class<?>> arrayCache = newArrayCache();
+    private volatile ClassValue<Class<?>[]> superClassesCache = newSuperClassesCache();
+
+    /**
+     * These data structures are never reset because the class hierarchy doesn't change at runtime.
+     *
+     * @param loadFactor no longer used, the caches are stored with each class (via {@link ClassValue})
+     */
+    public
+    ClassHierarchy(float loadFactor) {
+    }
+
+    private
+    ClassValue<Class<?>> newArrayCache() {
+        return new ClassValue<Class<?>>() {
+            @Override
+            protected
+            Class<?> computeValue(final Class<?> c) {
+                // messy, but the ONLY way to do it. Array super types are also arrays
+                final Object[] newInstance = (Object[]) Array.newInstance(c, 0);
+                return newInstance.getClass();
+            }
+        };
+    }
+
+    private
+    ClassValue<Class<?>[]> newSuperClassesCache() {
+        return new ClassValue<Class<?>[]>() {
+            @Override
+            protected
+            Class<?>[] computeValue(final Class<?> clazz) {
+                final Class<?>[] superTypes = typeInfoCache.get(clazz).superTypes;
+                final ArrayList<Class<?>> newList = new ArrayList<Class<?>>(superTypes.length + 1);
+
+                final boolean isArray = clazz.isArray();
+
+                if (isArray) {
+                    // have to add the original class to the front of the list
+                    newList.add(getArrayClass(clazz));
+
+                    for (Class<?> c : superTypes) {
+                        c = getArrayClass(c);
+
+                        if (c != clazz) {
+                            newList.add(c);
+                        }
+                    }
+                }
+                else {
+                    // have to add the original class to the front of the list
+                    newList.add(clazz);
+
+                    for (Class<?> c : superTypes) {
+                        if (c != clazz) {
+                            newList.add(c);
+                        }
+                    }
+                }
+
+                return newList.toArray(new Class<?>[0]);
+            }
+        };
+    }
+
+    /**
+     * will return the class + parent classes as an array.
+     * if parameter clazz is of type array, then the super classes are of array type as well
+     * <p>
+     * never returns null
+     * never reset (class hierarchy never changes during runtime)
+     */
+    public
+    Class<?>[] getClassAndSuperClasses(final Class<?> clazz) {
+        return superClassesCache.get(clazz);
     }
 
     /**
-     * race conditions will result in DUPLICATE answers, which we don't care if happens
      * never returns null
      * never resets (class hierarchy never changes during runtime)
      *
@@ -125,22 +333,18 @@ class ClassHierarchy {
      */
     public
     Class<?> getArrayClass(final Class<?> c) {
-        // access a snapshot of the subscriptions (single-writer-principle)
-        final IdentityMap<Class<?>, Class<?>> cache = cast(arrayREF.get(this));
-
-        Class<?> clazz = cache.get(c);
-
-        if (clazz == null) {
-            // messy, but the ONLY way to do it. Array super types are also arrays
-            final Object[] newInstance = (Object[]) Array.newInstance(c, 0);
-            clazz = newInstance.getClass();
-            cache.put(c, clazz);
-
-            // save this snapshot back to the original (single writer principle)
-            arrayREF.lazySet(this, cache);
-        }
+        return arrayCache.get(c);
+    }
 
-        return clazz;
+    /**
+     * Gets the flattened (precomputed) type hierarchy of a class, for allocation-free type matching.
+     *
+     * @param type the class to get the type information for
+     * @return the type information, never null
+     */
+    public static
+    TypeInfo getTypeInfo(final Class<?> type) {
+        return typeInfoCache.get(type);
     }
 
     /**
@@ -151,40 +355,16 @@ class ClassHierarchy {
      */
     public static
     Iterator<Class<?>> getSuperTypes(Class<?> from) {
-        // This must be a 'set' because there can be duplicates, depending on the object hierarchy
-        final IdentityMap<Class<?>, Boolean> superclasses = new IdentityMap<Class<?>, Boolean>();
-        collectInterfaces(from, superclasses);
-
-        while (!from.equals(Object.class) && !from.isInterface()) {
-            superclasses.put(from.getSuperclass(), Boolean.TRUE);
-            from = from.getSuperclass();
-            collectInterfaces(from, superclasses);
-        }
-
-        return superclasses.keys();
+        return Arrays.asList(typeInfoCache.get(from).superTypes).iterator();
     }
 
-    private static
-    void collectInterfaces(Class<?> from, IdentityMap<Class<?>, Boolean> accumulator) {
-        for (Class<?> intface : from.getInterfaces()) {
-            accumulator.put(intface, Boolean.TRUE);
-            collectInterfaces(intface, accumulator);
-        }
-    }
-
-
     /**
      * Clears the caches, should only be called on shutdown
      */
     public
     void shutdown() {
-        this.arrayCache.clear();
-        this.superClassesCache.clear();
-    }
-
-    @SuppressWarnings("unchecked")
-    private static
-    <T> T cast(Object obj) {
-        return (T) obj;
+        // values of a ClassValue cannot be cleared for all classes, so we replace them (and the old values are then collected)
+        this.arrayCache = newArrayCache();
+        this.superClassesCache = newSuperClassesCache();
     }
 }
@@ -20,6 +20,7 @@ package dorkbox.util.collections;
 
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.function.BiConsumer;
 
 import dorkbox.util.RandomUtil;
 import dorkbox.util.collections.ObjectMap.Entry;
@@ -523,6 +524,21 @@ public class ArrayMap<K, V> implements Iterable<ObjectMap.Entry<K, V>> {
 		return keysIter2;
 	}
 
+	/** Calls the consumer for each entry in order, without allocating. Unlike {@link #entries()}, this can be nested and used by
+	 * multiple threads at once, as long as the map is not modified. */
+	public void forEach (BiConsumer<? super K, ? super V> consumer) {
+		K[] keys = this.keys;
+		V[] values = this.values;
+		for (int i = 0, n = size; i < n; i++)
+			consumer.accept(keys[i], values[i]);
+	}
+
+	/** Returns a new cursor over the entries. A cursor has no shared state, so unlike {@link #entries()} it can be nested and used by
+	 * multiple threads at once, as long as the map is not modified. It can be reused with {@link Cursor#reset()}. */
+	public Cursor<K, V> cursor () {
+		return new Cursor<K, V>(this);
+	}
+
 	static public class Entries<K, V> implements Iterable<Entry<K, V>>, Iterator<Entry<K, V>> {
 		private final ArrayMap<K, V> map;
 		Entry<K, V> entry = new ObjectMap.Entry();
@@ -658,4 +674,41 @@ public class ArrayMap<K, V> implements Iterable<ObjectMap.Entry<K, V>> {
 			return array;
 		}
 	}
+
+	/** Iterates over the entries without allocating, by moving to the next entry with {@link #advance()}:
+	 * <pre>
+	 * for (Cursor cursor = map.cursor(); cursor.advance();)
+	 *    use(cursor.key(), cursor.value());
+	 * </pre>
+	 * The key and value are read from the map, so they are only valid until the map is modified. */
+	static public class Cursor<K, V> {
+		final ArrayMap<K, V> map;
+		int index;
+
+		public Cursor (ArrayMap<K, V> map) {
+			this.map = map;
+			index = -1;
+		}
+
+		/** Moves the cursor back to before the first entry. */
+		public void reset () {
+			index = -1;
+		}
+
+		/** Moves to the next entry.
+		 * @return false if there are no more entries */
+		public boolean advance () {
+			if (index + 1 >= map.size) return false;
+			index++;
+			return true;
+		}
+
+		public K key () {
+			return map.keys[index];
+		}
+
+		public V value () {
+			return map.values[index];
+		}
+	}
 }
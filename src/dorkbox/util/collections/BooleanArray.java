@@ -26,11 +26,19 @@ import dorkbox.util.RandomUtil;
  * efficient than {@link BitSet}, except for very small sizes. It more CPU efficient than {@link BitSet}, except for very large
  * sizes or if BitSet functionality such as and, or, xor, etc are needed. If unordered, this class avoids a memory copy when
  * removing elements (the last element is moved to the removed element's position).
+ * <p>
+ * A {@link #packed} array stores 64 items in each long of {@link #bits} instead of one item per byte in {@link #items}, which uses
+ * 1/8 of the memory.
  * @author Nathan Sweet */
 public class BooleanArray {
+	/** The items, or null if the array is {@link #packed}. */
 	public boolean[] items;
+	/** The items as bits (item i is bit i % 64 of bits[i / 64]), or null if the array is not {@link #packed}. */
+	public long[] bits;
 	public int size;
 	public boolean ordered;
+	/** If true, the items are stored in {@link #bits} instead of {@link #items}. */
+	public final boolean packed;
 
 	/** Creates an ordered array with a capacity of 16. */
 	public BooleanArray () {
@@ -46,18 +54,32 @@ public class BooleanArray {
 	 *           memory copy.
 	 * @param capacity Any elements added beyond this will cause the backing array to be grown. */
 	public BooleanArray (boolean ordered, int capacity) {
+		this(ordered, capacity, false);
+	}
+
+	/** @param ordered If false, methods that remove elements may change the order of other elements in the array, which avoids a
+	 *           memory copy.
+	 * @param capacity Any elements added beyond this will cause the backing array to be grown.
+	 * @param packed If true, the items are stored as bits, which uses 1/8 of the memory. */
+	public BooleanArray (boolean ordered, int capacity, boolean packed) {
 		this.ordered = ordered;
-		items = new boolean[capacity];
+		this.packed = packed;
+		if (packed)
+			bits = new long[words(capacity)];
+		else
+			items = new boolean[capacity];
 	}
 
-	/** Creates a new array containing the elements in the specific array. The new array will be ordered if the specific array is
-	 * ordered. The capacity is set to the number of elements, so any subsequent elements added will cause the backing array to be
+	/** Creates a new array containing the elements in the specific array. The new array will be ordered and packed if the specific
+	 * array is. The capacity is set to the number of elements, so any subsequent elements added will cause the backing array to be
 	 * grown. */
 	public BooleanArray (BooleanArray array) {
-		this.ordered = array.ordered;
+		this(array.ordered, array.size, array.packed);
 		size = array.size;
-		items = new boolean[size];
-		System.arraycopy(array.items, 0, items, 0, size);
+		if (packed)
+			System.arraycopy(array.bits, 0, bits, 0, bits.length);
+		else
+			System.arraycopy(array.items, 0, items, 0, size);
 	}
 
 	/** Creates a new ordered array containing the elements in the specified array. The capacity is set to the number of elements,
@@ -77,12 +99,22 @@ public class BooleanArray {
 	}
 
 	public void add (boolean value) {
+		if (packed) {
+			if (size == capacity()) resize(Math.max(8, (int)(size * 1.75f)));
+			setBit(bits, size++, value);
+			return;
+		}
 		boolean[] items = this.items;
 		if (size == items.length) items = resize(Math.max(8, (int)(size * 1.75f)));
 		items[size++] = value;
 	}
 
 	public void add (boolean value1, boolean value2) {
+		if (packed) {
+			add(value1);
+			add(value2);
+			return;
+		}
 		boolean[] items = this.items;
 		if (size + 1 >= items.length) items = resize(Math.max(8, (int)(size * 1.75f)));
 		items[size] = value1;
@@ -91,6 +123,12 @@ public class BooleanArray {
 	}
 
 	public void add (boolean value1, boolean value2, boolean value3) {
+		if (packed) {
+			add(value1);
+			add(value2);
+			add(value3);
+			return;
+		}
 		boolean[] items = this.items;
 		if (size + 2 >= items.length) items = resize(Math.max(8, (int)(size * 1.75f)));
 		items[size] = value1;
@@ -100,6 +138,13 @@ public class BooleanArray {
 	}
 
 	public void add (boolean value1, boolean value2, boolean value3, boolean value4) {
+		if (packed) {
+			add(value1);
+			add(value2);
+			add(value3);
+			add(value4);
+			return;
+		}
 		boolean[] items = this.items;
 		if (size + 3 >= items.length) items = resize(Math.max(8, (int)(size * 1.8f))); // 1.75 isn't enough when size=5.
 		items[size] = value1;
@@ -110,13 +155,27 @@ public class BooleanArray {
 	}
 
 	public void addAll (BooleanArray array) {
-		addAll(array.items, 0, array.size);
+		addAll(array, 0, array.size);
 	}
 
 	public void addAll (BooleanArray array, int offset, int length) {
 		if (offset + length > array.size)
 			throw new IllegalArgumentException("offset + length must be <= size: " + offset + " + " + length + " <= " + array.size);
-		addAll(array.items, offset, length);
+		if (!array.packed) {
+			addAll(array.items, offset, length);
+			return;
+		}
+		int sizeNeeded = size + length;
+		if (sizeNeeded > capacity()) resize(Math.max(8, (int)(sizeNeeded * 1.75f)));
+		if (packed)
+			copyBits(array.bits, offset, bits, size, length);
+		else {
+			boolean[] items = this.items;
+			long[] bits = array.bits;
+			for (int i = 0; i < length; i++)
+				items[size + i] = getBit(bits, offset + i);
+		}
+		size += length;
 	}
 
 	public void addAll (boolean... array) {
@@ -124,25 +183,43 @@ public class BooleanArray {
 	}
 
 	public void addAll (boolean[] array, int offset, int length) {
-		boolean[] items = this.items;
 		int sizeNeeded = size + length;
-		if (sizeNeeded > items.length) items = resize(Math.max(8, (int)(sizeNeeded * 1.75f)));
-		System.arraycopy(array, offset, items, size, length);
+		if (sizeNeeded > capacity()) resize(Math.max(8, (int)(sizeNeeded * 1.75f)));
+		if (packed) {
+			long[] bits = this.bits;
+			for (int i = 0; i < length; i++)
+				setBit(bits, size + i, array[offset + i]);
+		} else
+			System.arraycopy(array, offset, items, size, length);
 		size += length;
 	}
 
 	public boolean get (int index) {
 		if (index >= size) throw new IndexOutOfBoundsException("index can't be >= size: " + index + " >= " + size);
-		return items[index];
+		return packed ? getBit(bits, index) : items[index];
 	}
 
 	public void set (int index, boolean value) {
 		if (index >= size) throw new IndexOutOfBoundsException("index can't be >= size: " + index + " >= " + size);
-		items[index] = value;
+		if (packed)
+			setBit(bits, index, value);
+		else
+			items[index] = value;
 	}
 
 	public void insert (int index, boolean value) {
 		if (index > size) throw new IndexOutOfBoundsException("index can't be > size: " + index + " > " + size);
+		if (packed) {
+			if (size == capacity()) resize(Math.max(8, (int)(size * 1.75f)));
+			long[] bits = this.bits;
+			if (ordered)
+				copyBits(bits, index, bits, index + 1, size - index);
+			else
+				setBit(bits, size, getBit(bits, index));
+			size++;
+			setBit(bits, index, value);
+			return;
+		}
 		boolean[] items = this.items;
 		if (size == items.length) items = resize(Math.max(8, (int)(size * 1.75f)));
 		if (ordered)
@@ -156,6 +233,13 @@ public class BooleanArray {
 	public void swap (int first, int second) {
 		if (first >= size) throw new IndexOutOfBoundsException("first can't be >= size: " + first + " >= " + size);
 		if (second >= size) throw new IndexOutOfBoundsException("second can't be >= size: " + second + " >= " + size);
+		if (packed) {
+			long[] bits = this.bits;
+			boolean firstValue = getBit(bits, first);
+			setBit(bits, first, getBit(bits, second));
+			setBit(bits, second, firstValue);
+			return;
+		}
 		boolean[] items = this.items;
 		boolean firstValue = items[first];
 		items[first] = items[second];
@@ -165,6 +249,16 @@ public class BooleanArray {
 	/** Removes and returns the item at the specified index. */
 	public boolean removeIndex (int index) {
 		if (index >= size) throw new IndexOutOfBoundsException("index can't be >= size: " + index + " >= " + size);
+		if (packed) {
+			long[] bits = this.bits;
+			boolean value = getBit(bits, index);
+			size--;
+			if (ordered)
+				copyBits(bits, index + 1, bits, index, size - index);
+			else
+				setBit(bits, index, getBit(bits, size));
+			return value;
+		}
 		boolean[] items = this.items;
 		boolean value = items[index];
 		size--;
@@ -179,8 +273,20 @@ public class BooleanArray {
 	public void removeRange (int start, int end) {
 		if (end >= size) throw new IndexOutOfBoundsException("end can't be >= size: " + end + " >= " + size);
 		if (start > end) throw new IndexOutOfBoundsException("start can't be > end: " + start + " > " + end);
-		boolean[] items = this.items;
 		int count = end - start + 1;
+		if (packed) {
+			long[] bits = this.bits;
+			if (ordered)
+				copyBits(bits, start + count, bits, start, size - (start + count));
+			else {
+				int lastIndex = this.size - 1;
+				for (int i = 0; i < count; i++)
+					setBit(bits, start + i, getBit(bits, lastIndex - i));
+			}
+			size -= count;
+			return;
+		}
+		boolean[] items = this.items;
 		if (ordered)
 			System.arraycopy(items, start + count, items, start, size - (start + count));
 		else {
@@ -191,38 +297,64 @@ public class BooleanArray {
 		size -= count;
 	}
 
-	/** Removes from this array all of elements contained in the specified array.
+	/** Removes from this array all of elements contained in the specified array. For each item in the specified array, one
+	 * matching item is removed from this array. The items are counted first, so this is O(n + m) instead of O(n * m).
 	 * @return true if this array was modified. */
 	public boolean removeAll (BooleanArray array) {
-		int size = this.size;
-		int startSize = size;
-		boolean[] items = this.items;
-		for (int i = 0, n = array.size; i < n; i++) {
-			boolean item = array.get(i);
-			for (int ii = 0; ii < size; ii++) {
-				if (item == items[ii]) {
-					removeIndex(ii);
-					size--;
-					break;
-				}
+		int trues = array.count(true);
+		int falses = array.size - trues;
+		int size = this.size, kept = 0;
+		for (int i = 0; i < size; i++) {
+			boolean item = packed ? getBit(bits, i) : items[i];
+			if (item && trues > 0)
+				trues--;
+			else if (!item && falses > 0)
+				falses--;
+			else {
+				if (packed)
+					setBit(bits, kept++, item);
+				else
+					items[kept++] = item;
 			}
 		}
-		return size != startSize;
+		this.size = kept;
+		return kept != size;
+	}
+
+	/** Returns the number of items that are equal to the value. */
+	public int count (boolean value) {
+		int count = 0;
+		if (packed) {
+			long[] bits = this.bits;
+			int words = size >>> 6;
+			for (int i = 0; i < words; i++)
+				count += Long.bitCount(bits[i]);
+			int remaining = size & 63;
+			if (remaining != 0) count += Long.bitCount(bits[words] & ((1L << remaining) - 1));
+		} else {
+			boolean[] items = this.items;
+			for (int i = 0, n = size; i < n; i++)
+				count += items[i] ? 1 : 0;
+		}
+		return value ? count : size - count;
 	}
 
 	/** Removes and returns the last item. */
 	public boolean pop () {
+		if (packed) return getBit(bits, --size);
 		return items[--size];
 	}
 
 	/** Returns the last item. */
 	public boolean peek () {
+		if (packed) return getBit(bits, size - 1);
 		return items[size - 1];
 	}
 
 	/** Returns the first item. */
 	public boolean first () {
 		if (size == 0) throw new IllegalStateException("Array is empty.");
+		if (packed) return getBit(bits, 0);
 		return items[0];
 	}
 
@@ -237,32 +369,42 @@ public class BooleanArray {
 
 	/** Reduces the size of the backing array to the size of the actual items. This is useful to release memory when many items
 	 * have been removed, or if it is known that more items will not be added.
-	 * @return {@link #items} */
+	 * @return {@link #items} (null if packed) */
 	public boolean[] shrink () {
-		if (items.length != size) resize(size);
+		if (packed) {
+			if (bits.length != words(size)) resize(size);
+		} else if (items.length != size) resize(size);
 		return items;
 	}
 
 	/** Increases the size of the backing array to accommodate the specified number of additional items. Useful before adding many
 	 * items to avoid multiple backing array resizes.
-	 * @return {@link #items} */
+	 * @return {@link #items} (null if packed) */
 	public boolean[] ensureCapacity (int additionalCapacity) {
 		if (additionalCapacity < 0) throw new IllegalArgumentException("additionalCapacity must be >= 0: " + additionalCapacity);
 		int sizeNeeded = size + additionalCapacity;
-		if (sizeNeeded > items.length) resize(Math.max(8, sizeNeeded));
+		if (sizeNeeded > capacity()) resize(Math.max(8, sizeNeeded));
 		return items;
 	}
 
 	/** Sets the array size, leaving any values beyond the current size undefined.
-	 * @return {@link #items} */
+	 * @return {@link #items} (null if packed) */
 	public boolean[] setSize (int newSize) {
 		if (newSize < 0) throw new IllegalArgumentException("newSize must be >= 0: " + newSize);
-		if (newSize > items.length) resize(Math.max(8, newSize));
+		if (newSize > capacity()) resize(Math.max(8, newSize));
 		size = newSize;
 		return items;
 	}
 
+	/** @return {@link #items} (null if packed) */
 	protected boolean[] resize (int newSize) {
+		if (packed) {
+			long[] newBits = new long[words(newSize)];
+			long[] bits = this.bits;
+			System.arraycopy(bits, 0, newBits, 0, Math.min(bits.length, newBits.length));
+			this.bits = newBits;
+			return null;
+		}
 		boolean[] newItems = new boolean[newSize];
 		boolean[] items = this.items;
 		System.arraycopy(items, 0, newItems, 0, Math.min(size, newItems.length));
@@ -271,22 +413,26 @@ public class BooleanArray {
 	}
 
 	public void reverse () {
-		boolean[] items = this.items;
-		for (int i = 0, lastIndex = size - 1, n = size / 2; i < n; i++) {
-			int ii = lastIndex - i;
-			boolean temp = items[i];
-			items[i] = items[ii];
-			items[ii] = temp;
-		}
+		for (int i = 0, lastIndex = size - 1, n = size / 2; i < n; i++)
+			swapUnchecked(i, lastIndex - i);
 	}
 
 	public void shuffle () {
-		boolean[] items = this.items;
-		for (int i = size - 1; i >= 0; i--) {
-			int ii = RandomUtil.int_(i);
-			boolean temp = items[i];
-			items[i] = items[ii];
-			items[ii] = temp;
+		for (int i = size - 1; i >= 0; i--)
+			swapUnchecked(i, RandomUtil.int_(i));
+	}
+
+	private void swapUnchecked (int first, int second) {
+		if (packed) {
+			long[] bits = this.bits;
+			boolean temp = getBit(bits, first);
+			setBit(bits, first, getBit(bits, second));
+			setBit(bits, second, temp);
+		} else {
+			boolean[] items = this.items;
+			boolean temp = items[first];
+			items[first] = items[second];
+			items[second] = temp;
 		}
 	}
 
@@ -299,21 +445,26 @@ public class BooleanArray {
 	/** Returns a random item from the array, or false if the array is empty. */
 	public boolean random () {
 		if (size == 0) return false;
-		return items[RandomUtil.int_(0, size - 1)];
+		int index = RandomUtil.int_(0, size - 1);
+		return packed ? getBit(bits, index) : items[index];
 	}
 
 	public boolean[] toArray () {
 		boolean[] array = new boolean[size];
-		System.arraycopy(items, 0, array, 0, size);
+		if (packed) {
+			long[] bits = this.bits;
+			for (int i = 0; i < size; i++)
+				array[i] = getBit(bits, i);
+		} else
+			System.arraycopy(items, 0, array, 0, size);
 		return array;
 	}
 
 	public int hashCode () {
 		if (!ordered) return super.hashCode();
-		boolean[] items = this.items;
 		int h = 1;
 		for (int i = 0, n = size; i < n; i++)
-			h = h * 31 + (items[i] ? 1231 : 1237);
+			h = h * 31 + (getUnchecked(i) ? 1231 : 1237);
 		return h;
 	}
 
@@ -325,22 +476,26 @@ public class BooleanArray {
 		if (!array.ordered) return false;
 		int n = size;
 		if (n != array.size) return false;
-		boolean[] items1 = this.items;
-		boolean[] items2 = array.items;
+		if (!packed && !array.packed) {
+			boolean[] items1 = this.items;
+			boolean[] items2 = array.items;
+			for (int i = 0; i < n; i++)
+				if (items1[i] != items2[i]) return false;
+			return true;
+		}
 		for (int i = 0; i < n; i++)
-			if (items1[i] != items2[i]) return false;
+			if (getUnchecked(i) != array.getUnchecked(i)) return false;
 		return true;
 	}
 
 	public String toString () {
 		if (size == 0) return "[]";
-		boolean[] items = this.items;
 		StringBuilder buffer = new StringBuilder(32);
 		buffer.append('[');
-		buffer.append(items[0]);
+		buffer.append(getUnchecked(0));
 		for (int i = 1; i < size; i++) {
 			buffer.append(", ");
-			buffer.append(items[i]);
+			buffer.append(getUnchecked(i));
 		}
 		buffer.append(']');
 		return buffer.toString();
@@ -348,18 +503,87 @@ public class BooleanArray {
 
 	public String toString (String separator) {
 		if (size == 0) return "";
-		boolean[] items = this.items;
 		StringBuilder buffer = new StringBuilder(32);
-		buffer.append(items[0]);
+		buffer.append(getUnchecked(0));
 		for (int i = 1; i < size; i++) {
 			buffer.append(separator);
-			buffer.append(items[i]);
+			buffer.append(getUnchecked(i));
 		}
 		return buffer.toString();
 	}
 
+	private boolean getUnchecked (int index) {
+		return packed ? getBit(bits, index) : items[index];
+	}
+
+	private int capacity () {
+		return packed ? bits.length << 6 : items.length;
+	}
+
+	static private int words (int capacity) {
+		return (capacity + 63) >>> 6;
+	}
+
+	static private boolean getBit (long[] bits, int index) {
+		// the shift only uses the low 6 bits of the index
+		return (bits[index >>> 6] & (1L << index)) != 0;
+	}
+
+	static private void setBit (long[] bits, int index, boolean value) {
+		if (value)
+			bits[index >>> 6] |= 1L << index;
+		else
+			bits[index >>> 6] &= ~(1L << index);
+	}
+
+	/** Reads up to 64 bits, starting at the index. */
+	static private long readBits (long[] bits, int index, int length) {
+		int word = index >>> 6, shift = index & 63;
+		long value = bits[word] >>> shift;
+		if (shift + length > 64) value |= bits[word + 1] << (64 - shift);
+		return length == 64 ? value : value & ((1L << length) - 1);
+	}
+
+	/** Writes up to 64 bits, starting at the index. */
+	static private void writeBits (long[] bits, int index, int length, long value) {
+		long mask = length == 64 ? -1L : (1L << length) - 1;
+		value &= mask;
+		int word = index >>> 6, shift = index & 63;
+		bits[word] = bits[word] & ~(mask << shift) | value << shift;
+		if (shift + length > 64) {
+			int high = 64 - shift;
+			bits[word + 1] = bits[word + 1] & ~(mask >>> high) | value >>> high;
+		}
+	}
+
+	/** Copies the bits 64 at a time. Like System.arraycopy, the source and destination can overlap. */
+	static private void copyBits (long[] src, int srcIndex, long[] dest, int destIndex, int length) {
+		if (src == dest && destIndex > srcIndex) {
+			// copy from the end, so the source isn't overwritten before it is read
+			int remaining = length;
+			while (remaining > 0) {
+				int chunk = Math.min(64, remaining);
+				remaining -= chunk;
+				writeBits(dest, destIndex + remaining, chunk, readBits(src, srcIndex + remaining, chunk));
+			}
+		} else {
+			for (int done = 0; done < length;) {
+				int chunk = Math.min(64, length - done);
+				writeBits(dest, destIndex + done, chunk, readBits(src, srcIndex + done, chunk));
+				done += chunk;
+			}
+		}
+	}
+
 	/** @see #BooleanArray(boolean[]) */
 	static public BooleanArray with (boolean... array) {
 		return new BooleanArray(array);
 	}
+
+	/** Creates a new ordered, packed array containing the elements in the specified array. */
+	static public BooleanArray packedWith (boolean... array) {
+		BooleanArray result = new BooleanArray(true, array.length, true);
+		result.addAll(array, 0, array.length);
+		return result;
+	}
 }
@@ -19,6 +19,8 @@
 package dorkbox.util.collections;
 
 import java.util.Arrays;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
 
 import dorkbox.util.RandomUtil;
 
@@ -232,23 +234,45 @@ public class CharArray {
 		size -= count;
 	}
 
-	/** Removes from this array all of elements contained in the specified array.
+	/** Removes from this array all of elements contained in the specified array. For each item in the specified array, one
+	 * matching item is removed from this array. Large arrays are counted with a hash map, so this is O(n + m) instead of O(n * m).
 	 * @return true if this array was modified. */
 	public boolean removeAll (CharArray array) {
-		int size = this.size;
-		int startSize = size;
-		char[] items = this.items;
-		for (int i = 0, n = array.size; i < n; i++) {
-			char item = array.get(i);
-			for (int ii = 0; ii < size; ii++) {
-				if (item == items[ii]) {
-					removeIndex(ii);
-					size--;
-					break;
+		int n = array.size;
+		if (n < 16) {
+			int size = this.size;
+			int startSize = size;
+			char[] items = this.items;
+			for (int i = 0; i < n; i++) {
+				char item = array.get(i);
+				for (int ii = 0; ii < size; ii++) {
+					if (item == items[ii]) {
+						removeIndex(ii);
+						size--;
+						break;
+					}
 				}
 			}
+			return size != startSize;
 		}
-		return size != startSize;
+
+		IntIntMap counts = new IntIntMap(n);
+		char[] removed = array.items;
+		for (int i = 0; i < n; i++)
+			counts.getAndIncrement(removed[i], 0, 1);
+
+		char[] items = this.items;
+		int size = this.size, kept = 0;
+		for (int i = 0; i < size; i++) {
+			char item = items[i];
+			int count = counts.get(item, 0);
+			if (count > 0)
+				counts.put(item, count - 1);
+			else
+				items[kept++] = item;
+		}
+		this.size = kept;
+		return kept != size;
 	}
 
 	/** Removes and returns the last item. */
@@ -403,6 +427,136 @@ public class CharArray {
 		return buffer.toString();
 	}
 
+	/** Returns the sum of the items (as a long, so it does not overflow). */
+	public long sum () {
+		char[] items = this.items;
+		long sum = 0;
+		for (int i = 0, n = size; i < n; i++)
+			sum += items[i];
+		return sum;
+	}
+
+	/** Returns the smallest item.
+	 * @throws IllegalStateException if the array is empty */
+	public char min () {
+		if (size == 0) throw new IllegalStateException("Array is empty.");
+		char[] items = this.items;
+		char min = items[0];
+		for (int i = 1, n = size; i < n; i++)
+			min = (char)Math.min(min, items[i]);
+		return min;
+	}
+
+	/** Returns the largest item.
+	 * @throws IllegalStateException if the array is empty */
+	public char max () {
+		if (size == 0) throw new IllegalStateException("Array is empty.");
+		char[] items = this.items;
+		char max = items[0];
+		for (int i = 1, n = size; i < n; i++)
+			max = (char)Math.max(max, items[i]);
+		return max;
+	}
+
+	/** Replaces every item with the result of the operator. */
+	public void mapInPlace (IntUnaryOperator operator) {
+		char[] items = this.items;
+		for (int i = 0, n = size; i < n; i++)
+			items[i] = (char)operator.applyAsInt(items[i]);
+	}
+
+	/** Removes the items that don't match the predicate, keeping the order of the remaining items.
+	 * @return true if this array was modified. */
+	public boolean filterInPlace (IntPredicate predicate) {
+		char[] items = this.items;
+		int n = size, kept = 0;
+		for (int i = 0; i < n; i++) {
+			char item = items[i];
+			// always write the item, so there is no branch on the result
+			items[kept] = item;
+			kept += predicate.test(item) ? 1 : 0;
+		}
+		size = kept;
+		return kept != n;
+	}
+
+	/** Returns a new ordered array with the items that are in this array or the specified array, without duplicates. Both arrays
+	 * must be sorted. */
+	public CharArray union (CharArray array) {
+		char[] items1 = this.items, items2 = array.items;
+		int n1 = size, n2 = array.size;
+		CharArray result = new CharArray(true, n1 + n2);
+		char[] out = result.items;
+		int i = 0, j = 0, count = 0;
+		while (i < n1 && j < n2) {
+			char item1 = items1[i], item2 = items2[j];
+			if (item1 < item2) {
+				count = appendUnique(out, count, item1);
+				i++;
+			} else if (item2 < item1) {
+				count = appendUnique(out, count, item2);
+				j++;
+			} else {
+				count = appendUnique(out, count, item1);
+				i++;
+				j++;
+			}
+		}
+		for (; i < n1; i++)
+			count = appendUnique(out, count, items1[i]);
+		for (; j < n2; j++)
+			count = appendUnique(out, count, items2[j]);
+		result.size = count;
+		return result;
+	}
+
+	/** Returns a new ordered array with the items that are in both this array and the specified array, without duplicates. Both
+	 * arrays must be sorted. */
+	public CharArray intersect (CharArray array) {
+		char[] items1 = this.items, items2 = array.items;
+		int n1 = size, n2 = array.size;
+		CharArray result = new CharArray(true, Math.min(n1, n2));
+		char[] out = result.items;
+		int i = 0, j = 0, count = 0;
+		while (i < n1 && j < n2) {
+			char item1 = items1[i], item2 = items2[j];
+			if (item1 < item2)
+				i++;
+			else if (item2 < item1)
+				j++;
+			else {
+				count = appendUnique(out, count, item1);
+				i++;
+				j++;
+			}
+		}
+		result.size = count;
+		return result;
+	}
+
+	/** Returns a new ordered array with the items that are in this array but not in the specified array, without duplicates. Both
+	 * arrays must be sorted. */
+	public CharArray difference (CharArray array) {
+		char[] items1 = this.items, items2 = array.items;
+		int n1 = size, n2 = array.size;
+		CharArray result = new CharArray(true, n1);
+		char[] out = result.items;
+		int j = 0, count = 0;
+		for (int i = 0; i < n1; i++) {
+			char item = items1[i];
+			while (j < n2 && items2[j] < item)
+				j++;
+			if (j == n2 || item != items2[j]) count = appendUnique(out, count, item);
+		}
+		result.size = count;
+		return result;
+	}
+
+	static private int appendUnique (char[] out, int count, char item) {
+		if (count == 0 || out[count - 1] != item) out[count++] = item;
+		return count;
+	}
+
 	/** @see #CharArray(char[]) */
 	static public CharArray with (char... array) {
 		return new CharArray(array);
@@ -15,62 +15,105 @@
  */
 package dorkbox.util.collections;
 
-//
-// not thread-safe!!!
-//
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
+ * A node in the (lock-free) list of a {@link ConcurrentIterator}.
+ * <p>
+ * A node is removed by clearing its value, which releases the value immediately (even if a running iterator is still sitting on this
+ * node). The node is unlinked from the list later, by the next add/remove that walks past it. Because nodes are only ever appended at the
+ * end of the list, unlinking a node only moves a link further along the list, so an iterator on a removed node always finds its way back.
+ *
  * @author bennidi
  * @author dorkbox, llc Date: 2/3/16
  */
 public
 class ConcurrentEntry<T> {
-    private final T value;
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<ConcurrentEntry, Object> valueREF = AtomicReferenceFieldUpdater.newUpdater(
+                    ConcurrentEntry.class,
+                    Object.class,
+                    "value");
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<ConcurrentEntry, ConcurrentEntry> nextREF = AtomicReferenceFieldUpdater.newUpdater(
+                    ConcurrentEntry.class,
+                    ConcurrentEntry.class,
+                    "next");
 
+    private volatile T value;
     private volatile ConcurrentEntry<T> next;
-    private volatile ConcurrentEntry<T> prev;
 
+    ConcurrentEntry(T value) {
+        this.value = value;
+    }
+
+    /**
+     * @deprecated entries are created by {@link ConcurrentIterator}, which appends them to the end of its list.
+     */
+    @Deprecated
     public
     ConcurrentEntry(T value, ConcurrentEntry<T> next) {
-        if (next != null) {
-            this.next = next;
-            next.prev = this;
-        }
-
         this.value = value;
+        this.next = next;
     }
 
+    /**
+     * @return the next entry, or null if this is the last entry
+     */
     public
-    void remove() {
-        if (this.prev != null) {
-            this.prev.next = this.next;
-            if (this.next != null) {
-                this.next.prev = this.prev;
-            }
-        }
-        else if (this.next != null) {
-            this.next.prev = null;
-        }
+    ConcurrentEntry<T> next() {
+        return this.next;
+    }
 
-        // can not nullify references to help GC since running iterators might not see the entire set
-        // if this element is their current element
-        //next = null;
-        //prev = null;
+    /**
+     * @return the value of this entry, or null if this entry has been removed
+     */
+    public
+    T getValue() {
+        return value;
     }
 
+    /**
+     * @return true if this entry has been removed
+     */
     public
-    ConcurrentEntry<T> next() {
-        return this.next;
+    boolean isRemoved() {
+        return value == null;
     }
 
+    /**
+     * Removes this entry, by clearing its value. The entry stays linked until the owning list unlinks it.
+     *
+     * @deprecated use {@link ConcurrentIterator#remove(Object)}, because removing the entry directly does not update the size of the list.
+     */
+    @Deprecated
+    public
+    void remove() {
+        this.value = null;
+    }
+
+    /**
+     * Clears the link to the next entry.
+     *
+     * @deprecated this must only be called on an entry that is no longer in a list, otherwise the rest of the list is lost.
+     */
+    @Deprecated
     public
     void clear() {
         this.next = null;
     }
 
+    /**
+     * Removes this entry (if it still has the expected value).
+     */
+    final
+    boolean remove(final T expected) {
+        return valueREF.compareAndSet(this, expected, null);
+    }
 
-    public
-    T getValue() {
-        return value;
+    final
+    boolean casNext(final ConcurrentEntry<T> expected, final ConcurrentEntry<T> next) {
+        return nextREF.compareAndSet(this, expected, next);
     }
 }
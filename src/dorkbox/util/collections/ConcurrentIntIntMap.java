@@ -0,0 +1,571 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntUnaryOperator;
+
+import dorkbox.util.MathUtil;
+
+/**
+ * A concurrent, unordered map where the keys and values are ints (there is no boxing).
+ * <p>
+ * The map is split into segments (lock striping), and every segment is a linear-probing hash table with its own lock. Writers to different
+ * segments never contend with each other, and readers are lock-free (an optimistic read that is only retried if a writer modified the
+ * same segment at the same time).
+ * <p>
+ * The atomic updates ({@link #addAndGet(int, int)}, {@link #getAndAdd(int, int)}, {@link #computeIfAbsent(int, IntUnaryOperator)} and
+ * {@link #merge(int, int, IntBinaryOperator)}) make this useful for counters that are updated by many threads. The functions passed to them
+ * are run while the segment is locked, so they must be short and MUST NOT modify this map.
+ *
+ * @author dorkbox, llc
+ */
+public final
+class ConcurrentIntIntMap {
+    public
+    interface Visitor {
+        void visit(int key, int value);
+    }
+
+    private final Segment[] segments;
+    private final int segmentShift;
+
+    /**
+     * One part of the map, which is a linear-probing hash table. Only modified while the write lock is held.
+     */
+    @SuppressWarnings("serial")
+    private static final
+    class Segment extends StampedLock {
+        // the index of the zero key, which is stored outside of the table (because 0 marks an empty slot)
+        static final int ZERO_INDEX = Integer.MAX_VALUE;
+
+        private final float loadFactor;
+
+        // the keys are at the even indices, and their values at the odd indices. They are in the same array, so that an optimistic read
+        // always sees a key and value from the same table
+        int[] table;
+        int threshold;
+        volatile int size;
+
+        boolean hasZeroValue;
+        int zeroValue;
+
+        Segment(final int capacity, final float loadFactor) {
+            this.loadFactor = loadFactor;
+            setTable(capacity);
+        }
+
+        private
+        void setTable(final int capacity) {
+            table = new int[capacity << 1];
+            threshold = Math.min((int) (capacity * loadFactor), capacity - 1);
+        }
+
+        /**
+         * Safe to call without a lock (the result must be validated), because the probing is bounded by the table size.
+         */
+        int get(final int key, final long hash, final int defaultValue) {
+            if (key == 0) {
+                return hasZeroValue ? zeroValue : defaultValue;
+            }
+
+            final int[] table = this.table;
+            final int mask = (table.length >> 1) - 1;
+            int index = (int) (hash >>> 32) & mask;
+
+            for (int i = 0; i <= mask; i++) {
+                final int other = table[index << 1];
+                if (other == key) {
+                    return table[(index << 1) + 1];
+                }
+                if (other == 0) {
+                    break;
+                }
+                index = index + 1 & mask;
+            }
+            return defaultValue;
+        }
+
+        /**
+         * @return the index of the key, or -(index + 1) of the empty slot where the key belongs
+         */
+        int indexOf(final int key, final long hash) {
+            if (key == 0) {
+                return hasZeroValue ? ZERO_INDEX : -ZERO_INDEX - 1;
+            }
+
+            final int[] table = this.table;
+            final int mask = (table.length >> 1) - 1;
+            int index = (int) (hash >>> 32) & mask;
+
+            while (true) {
+                final int other = table[index << 1];
+                if (other == key) {
+                    return index;
+                }
+                if (other == 0) {
+                    return -(index + 1);
+                }
+                index = index + 1 & mask;
+            }
+        }
+
+        int valueAt(final int index) {
+            return index == ZERO_INDEX ? zeroValue : table[(index << 1) + 1];
+        }
+
+        void setValueAt(final int index, final int value) {
+            if (index == ZERO_INDEX) {
+                zeroValue = value;
+            }
+            else {
+                table[(index << 1) + 1] = value;
+            }
+        }
+
+        /**
+         * @param index the empty slot returned by {@link #indexOf(int, long)}
+         */
+        void insert(final int index, final int key, final int value) {
+            if (index == ZERO_INDEX) {
+                hasZeroValue = true;
+                zeroValue = value;
+                size++;
+                return;
+            }
+
+            table[index << 1] = key;
+            table[(index << 1) + 1] = value;
+            if (++size >= threshold) {
+                resize();
+            }
+        }
+
+        void removeAt(int empty) {
+            size--;
+
+            if (empty == ZERO_INDEX) {
+                hasZeroValue = false;
+                zeroValue = 0;
+                return;
+            }
+
+            // backward-shift the entries in the cluster, so there are no tombstones
+            final int[] table = this.table;
+            final int mask = (table.length >> 1) - 1;
+
+            int next = empty + 1 & mask;
+            int key;
+            while ((key = table[next << 1]) != 0) {
+                final int placement = (int) (hash(key) >>> 32) & mask;
+                if (HashEngine.canShift(empty, next, placement, mask)) {
+                    table[empty << 1] = key;
+                    table[(empty << 1) + 1] = table[(next << 1) + 1];
+                    empty = next;
+                }
+                next = next + 1 & mask;
+            }
+
+            table[empty << 1] = 0;
+            table[(empty << 1) + 1] = 0;
+        }
+
+        private
+        void resize() {
+            final int[] oldTable = this.table;
+            setTable(oldTable.length);
+
+            final int[] table = this.table;
+            final int mask = (table.length >> 1) - 1;
+
+            for (int i = 0; i < oldTable.length; i += 2) {
+                final int key = oldTable[i];
+                if (key != 0) {
+                    int index = (int) (hash(key) >>> 32) & mask;
+                    while (table[index << 1] != 0) {
+                        index = index + 1 & mask;
+                    }
+                    table[index << 1] = key;
+                    table[(index << 1) + 1] = oldTable[i + 1];
+                }
+            }
+        }
+
+        void clear(final int capacity) {
+            setTable(capacity);
+            hasZeroValue = false;
+            zeroValue = 0;
+            size = 0;
+        }
+
+        void visit(final Visitor visitor) {
+            if (hasZeroValue) {
+                visitor.visit(0, zeroValue);
+            }
+
+            final int[] table = this.table;
+            for (int i = 0; i < table.length; i += 2) {
+                final int key = table[i];
+                if (key != 0) {
+                    visitor.visit(key, table[i + 1]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a new map with an initial capacity of 64 and a load factor of 0.75, with enough segments for the number of processors.
+     */
+    public
+    ConcurrentIntIntMap() {
+        this(64, 0.75f, 0);
+    }
+
+    /**
+     * Creates a new map with a load factor of 0.75, with enough segments for the number of processors.
+     */
+    public
+    ConcurrentIntIntMap(int initialCapacity) {
+        this(initialCapacity, 0.75f, 0);
+    }
+
+    /**
+     * @param initialCapacity the number of entries that fit in the map before any segment has to grow (if the keys are evenly spread)
+     * @param loadFactor must be less than 1
+     * @param concurrencyLevel the (estimated) number of threads that write at the same time. If 0, four times the number of processors
+     *         is used.
+     */
+    public
+    ConcurrentIntIntMap(int initialCapacity, float loadFactor, int concurrencyLevel) {
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("initialCapacity must be >= 0: " + initialCapacity);
+        }
+        if (loadFactor <= 0 || loadFactor >= 1.0f) {
+            throw new IllegalArgumentException("loadFactor must be > 0 and < 1: " + loadFactor);
+        }
+        if (concurrencyLevel < 0) {
+            throw new IllegalArgumentException("concurrencyLevel must be >= 0: " + concurrencyLevel);
+        }
+
+        int segmentCount = segmentCount(concurrencyLevel);
+        segments = new Segment[segmentCount];
+        segmentShift = 64 - Integer.numberOfTrailingZeros(segmentCount);
+
+        int segmentCapacity = segmentCapacity(initialCapacity, loadFactor, segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(segmentCapacity, loadFactor);
+        }
+    }
+
+    /**
+     * @return the number of segments (a power of two, and at least 2) for the concurrency level
+     */
+    static
+    int segmentCount(int concurrencyLevel) {
+        if (concurrencyLevel == 0) {
+            concurrencyLevel = Runtime.getRuntime().availableProcessors() << 2;
+        }
+        return MathUtil.nextPowerOfTwo(Math.max(2, Math.min(concurrencyLevel, 1 << 16)));
+    }
+
+    static
+    int segmentCapacity(final int initialCapacity, final float loadFactor, final int segmentCount) {
+        int perSegment = (int) Math.ceil((initialCapacity / (double) segmentCount) / loadFactor) + 1;
+        return Math.max(8, MathUtil.nextPowerOfTwo(Math.min(perSegment, 1 << 29)));
+    }
+
+    /**
+     * Spreads the key with fibonacci hashing. The top bits choose the segment, and bits 32+ choose the slot in the segment.
+     */
+    static
+    long hash(final int key) {
+        return key * 0x9E3779B97F4A7C15L;
+    }
+
+    private
+    Segment segmentFor(final long hash) {
+        return segments[(int) (hash >>> segmentShift)];
+    }
+
+    /**
+     * @param defaultValue Returned if the key was not associated with a value.
+     */
+    public
+    int get(final int key, final int defaultValue) {
+        final long hash = hash(key);
+        final Segment segment = segmentFor(hash);
+
+        long stamp = segment.tryOptimisticRead();
+        if (stamp != 0L) {
+            final int value = segment.get(key, hash, defaultValue);
+            if (segment.validate(stamp)) {
+                return value;
+            }
+        }
+
+        // a writer changed the segment while reading it
+        stamp = segment.readLock();
+        try {
+            return segment.get(key, hash, defaultValue);
+        } finally {
+            segment.unlockRead(stamp);
+        }
+    }
+
+    public
+    boolean containsKey(final int key) {
+        final long hash = hash(key);
+        final Segment segment = segmentFor(hash);
+
+        long stamp = segment.readLock();
+        try {
+            return segment.indexOf(key, hash) >= 0;
+        } finally {
+            segment.unlockRead(stamp);
+        }
+    }
+
+    public
+    void put(final int key, final int value) {
+        final long hash = hash(key);
+        final Segment segment = segmentFor(hash);
+
+        long stamp = segment.writeLock();
+        try {
+            final int index = segment.indexOf(key, hash);
+            if (index >= 0) {
+                segment.setValueAt(index, value);
+            }
+            else {
+                segment.insert(-(index + 1), key, value);
+            }
+        } finally {
+            segment.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Puts the value only if the key is not already in the map.
+     *
+     * @return the current value of the key, or the specified value if it was put
+     */
+    public
+    int putIfAbsent(final int key, final int value) {
+        final long hash = hash(key);
+        final Segment segment = segmentFor(hash);
+
+        long stamp = segment.writeLock();
+        try {
+            final int index = segment.indexOf(key, hash);
+            if (index >= 0) {
+                return segment.valueAt(index);
+            }
+
+            segment.insert(-(index + 1), key, value);
+            return value;
+        } finally {
+            segment.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @param defaultValue Returned if the key was not associated with a value.
+     *
+     * @return the value that was removed
+     */
+    public
+    int remove(final int key, final int defaultValue) {
+        final long hash = hash(key);
+        final Segment segment = segmentFor(hash);
+
+        long stamp = segment.writeLock();
+        try {
+            final int index = segment.indexOf(key, hash);
+            if (index < 0) {
+                return defaultValue;
+            }
+
+            final int value = segment.valueAt(index);
+            segment.removeAt(index);
+            return value;
+        } finally {
+            segment.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Atomically adds the delta to the value of the key (which is 0 if the key is not in the map).
+     *
+     * @return the new value
+     */
+    public
+    int addAndGet(final int key, final int delta) {
+        final long hash = hash(key);
+        final Segment segment = segmentFor(hash);
+
+        long stamp = segment.writeLock();
+        try {
+            final int index = segment.indexOf(key, hash);
+            if (index >= 0) {
+                final int value = segment.valueAt(index) + delta;
+                segment.setValueAt(index, value);
+                return value;
+            }
+
+            segment.insert(-(index + 1), key, delta);
+            return delta;
+        } finally {
+            segment.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Atomically adds the delta to the value of the key (which is 0 if the key is not in the map).
+     *
+     * @return the previous value
+     */
+    public
+    int getAndAdd(final int key, final int delta) {
+        return addAndGet(key, delta) - delta;
+    }
+
+    /**
+     * If the key is not in the map, atomically puts the value computed by the function.
+     *
+     * @return the current (existing or computed) value
+     */
+    public
+    int computeIfAbsent(final int key, final IntUnaryOperator mappingFunction) {
+        final long hash = hash(key);
+        final Segment segment = segmentFor(hash);
+
+        long stamp = segment.writeLock();
+        try {
+            final int index = segment.indexOf(key, hash);
+            if (index >= 0) {
+                return segment.valueAt(index);
+            }
+
+            final int value = mappingFunction.applyAsInt(key);
+            segment.insert(-(index + 1), key, value);
+            return value;
+        } finally {
+            segment.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * If the key is not in the map, atomically puts the value. Otherwise, atomically replaces the current value with the result of the
+     * function (which is called with the current value and the specified value).
+     *
+     * @return the new value
+     */
+    public
+    int merge(final int key, final int value, final IntBinaryOperator remappingFunction) {
+        final long hash = hash(key);
+        final Segment segment = segmentFor(hash);
+
+        long stamp = segment.writeLock();
+        try {
+            final int index = segment.indexOf(key, hash);
+            if (index >= 0) {
+                final int newValue = remappingFunction.applyAsInt(segment.valueAt(index), value);
+                segment.setValueAt(index, newValue);
+                return newValue;
+            }
+
+            segment.insert(-(index + 1), key, value);
+            return value;
+        } finally {
+            segment.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return the number of entries in the map. This is only an estimate while the map is being modified.
+     */
+    public
+    int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    public
+    boolean isEmpty() {
+        for (Segment segment : segments) {
+            if (segment.size != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes every entry. This is not atomic: entries that are put into a segment which was already cleared are kept.
+     */
+    public
+    void clear() {
+        for (Segment segment : segments) {
+            long stamp = segment.writeLock();
+            try {
+                segment.clear(8);
+            } finally {
+                segment.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Runs the visitor for every entry in the map, without allocating. Each segment is visited while it is (read) locked, so the visitor
+     * MUST NOT modify this map.
+     */
+    public
+    void forEach(final Visitor visitor) {
+        for (Segment segment : segments) {
+            long stamp = segment.readLock();
+            try {
+                segment.visit(visitor);
+            } finally {
+                segment.unlockRead(stamp);
+            }
+        }
+    }
+
+    @Override
+    public
+    String toString() {
+        final StringBuilder buffer = new StringBuilder(32);
+        buffer.append('{');
+        forEach(new Visitor() {
+            @Override
+            public
+            void visit(final int key, final int value) {
+                if (buffer.length() > 1) {
+                    buffer.append(", ");
+                }
+                buffer.append(key);
+                buffer.append('=');
+                buffer.append(value);
+            }
+        });
+        buffer.append('}');
+        return buffer.toString();
+    }
+}
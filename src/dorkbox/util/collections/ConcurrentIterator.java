@@ -16,108 +16,404 @@
 package dorkbox.util.collections;
 
 
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Consumer;
 
 import dorkbox.propertyLoader.Property;
 
 /**
+ * A lock-free set of listeners (compared by identity), which is optimized for iteration.
+ * <p>
+ * Any number of threads can add and remove listeners concurrently (there are no locks), while any number of threads iterate. Iteration
+ * is weakly consistent (in the order that the listeners were added): a listener that is added or removed during iteration may or may not
+ * be seen. Adding, removing and checking for a listener are O(1), because the entries are also indexed by the identity of their listener.
+ * <p>
+ * Removed listeners are released immediately, even if a running iterator is still sitting on the removed entry. The entries themselves
+ * are unlinked in batches once enough of them have been removed (and are then collected once no iterator references them), so there is
+ * no need to reclaim them explicitly.
+ * <p>
+ * There are two ways to iterate without allocating: {@link #forEach(Consumer)}, and {@link #snapshot()}, which returns an array of the
+ * listeners that is cached until the next add/remove.
+ *
  * @author dorkbox, llc
  */
 @SuppressWarnings("unchecked")
 public
-class ConcurrentIterator<T> {
+class ConcurrentIterator<T> implements Iterable<T> {
     /**
-     * Specifies the load-factor for the IdentityMap used
+     * Specifies the load-factor for the identity index of the listeners
      */
     @Property
     public static final float LOAD_FACTOR = 0.8F;
 
+    // removed entries are only unlinked once there are at least this many of them, so that unlinking is amortized O(1) per remove
+    private static final int MIN_REMOVED_TO_UNLINK = 16;
+
+    private static final Object[] EMPTY = new Object[0];
+
     private static final AtomicInteger ID_COUNTER = new AtomicInteger();
     private final int ID = ID_COUNTER.getAndIncrement();
 
-    // This is only touched by a single thread, maintains a map of entries for FAST lookup during remove.
-    private final IdentityMap<T, ConcurrentEntry> entries = new IdentityMap<T, ConcurrentEntry>(32, LOAD_FACTOR);
+    // the head never has a value, and is never changed or removed. Listeners are appended to the end of the list.
+    private volatile ConcurrentEntry<T> head = new ConcurrentEntry<T>(null);
 
-    // this is still inside the single-writer, and can use the same techniques as subscription manager (for thread safe publication)
-    @SuppressWarnings("FieldCanBeLocal")
-    private volatile ConcurrentEntry<T> head = null; // reference to the first element
+    // a hint for where the end of the list is. It can lag behind (or point to an unlinked entry), because the end is always reachable from it
+    private volatile ConcurrentEntry<T> tail = head;
 
-    // Recommended for best performance while adhering to the "single writer principle". Must be static-final
+    /**
+     * The head of the list is a sentinel entry (without a value) that never changes, the first listener is at {@code head.next()}.
+     *
+     * @deprecated the list is lock-free, and the head must not be changed. Use {@link #head()} to walk the listeners.
+     */
+    @Deprecated
     public static final AtomicReferenceFieldUpdater<ConcurrentIterator, ConcurrentEntry> headREF = AtomicReferenceFieldUpdater.newUpdater(
                     ConcurrentIterator.class,
                     ConcurrentEntry.class,
                     "head");
 
+    // maintains a map of entries for FAST lookup during add/remove.
+    private final ConcurrentHashMap<Identity, ConcurrentEntry<T>> entries = new ConcurrentHashMap<Identity, ConcurrentEntry<T>>(32, LOAD_FACTOR);
+
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger removedEntries = new AtomicInteger();
+
+    // changes on every add/remove, so that a cached snapshot can be validated
+    private volatile int version = 0;
+    private static final AtomicIntegerFieldUpdater<ConcurrentIterator> versionREF = AtomicIntegerFieldUpdater.newUpdater(
+                    ConcurrentIterator.class,
+                    "version");
+
+    private volatile Snapshot snapshot = new Snapshot(0, EMPTY);
+
+    private static final
+    class Snapshot {
+        private final int version;
+        private final Object[] values;
+
+        Snapshot(final int version, final Object[] values) {
+            this.version = version;
+            this.values = values;
+        }
+    }
+
+    // listeners are compared by identity, not by equals()
+    private static final
+    class Identity {
+        private final Object value;
+
+        Identity(final Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public
+        int hashCode() {
+            return System.identityHashCode(value);
+        }
+
+        @Override
+        public
+        boolean equals(final Object obj) {
+            return obj instanceof Identity && ((Identity) obj).value == value;
+        }
+    }
+
     public
     ConcurrentIterator() {
     }
 
     /**
-     * single writer principle!
-     * called from within SYNCHRONIZE
+     * Removes all of the listeners.
      */
     public final
     void clear() {
-        this.entries.clear();
-        this.head = null;
+        ConcurrentEntry<T> current = head.next();
+
+        while (current != null) {
+            T value = current.getValue();
+            if (value != null) {
+                remove(value, current);
+            }
+            current = current.next();
+        }
+
+        removedEntries.set(0);
+        unlinkRemoved();
     }
 
     /**
-     * single writer principle!
-     * called from within SYNCHRONIZE
+     * Adds the listener, if it is not already added.
      *
      * @param listener the object that will receive messages during publication
      */
-    public synchronized
+    public
     void add(final T listener) {
-        ConcurrentEntry<T> head = headREF.get(this);
+        addIfAbsent(listener);
+    }
 
-        if (!entries.containsKey(listener)) {
-            head = new ConcurrentEntry<T>(listener, head);
+    /**
+     * Adds the listener, if it is not already added.
+     *
+     * @param listener the object that will receive messages during publication
+     *
+     * @return true if the listener was added
+     */
+    public
+    boolean addIfAbsent(final T listener) {
+        if (listener == null) {
+            throw new NullPointerException("listener");
+        }
+
+        final Identity key = new Identity(listener);
+        final ConcurrentEntry<T> entry = new ConcurrentEntry<T>(listener);
+
+        final ConcurrentEntry<T> existing = entries.putIfAbsent(key, entry);
+        if (existing != null) {
+            // an entry that was removed directly (instead of via this iterator) is still counted, so it is replaced
+            if (!existing.isRemoved() || !entries.replace(key, existing, entry)) {
+                return false;
+            }
+        }
+        else {
+            size.incrementAndGet();
+        }
+
+        append(entry);
+        versionREF.incrementAndGet(this);
+        return true;
+    }
+
+    private
+    void append(final ConcurrentEntry<T> entry) {
+        ConcurrentEntry<T> last = tail;
+
+        while (true) {
+            final ConcurrentEntry<T> next = last.next();
+
+            if (next == null) {
+                // the last entry is never unlinked, so this is still in the list
+                if (last.casNext(null, entry)) {
+                    tail = entry;
+                    return;
+                }
+
+                // lost the race, continue from what was appended
+                continue;
+            }
 
-            entries.put(listener, head);
-            headREF.lazySet(this, head);
+            last = next;
         }
     }
 
     /**
-     * single writer principle!
-     * called from within SYNCHRONIZE
+     * Removes the listener.
      *
      * @param listener the object that will NO LONGER receive messages during publication
+     *
+     * @return true if the listener was removed
      */
-    public synchronized
+    public
     boolean remove(final T listener) {
-        ConcurrentEntry<T> concurrentEntry = entries.get(listener);
+        if (listener == null) {
+            return false;
+        }
 
-        if (concurrentEntry != null) {
-            ConcurrentEntry<T> head = headREF.get(this);
+        final ConcurrentEntry<T> entry = entries.get(new Identity(listener));
+        return entry != null && remove(listener, entry);
+    }
 
-            if (concurrentEntry == head) {
-                // if it was second, now it's first
-                head = head.next();
-                //oldHead.clear(); // optimize for GC not possible because of potentially running iterators
-            }
-            else {
-                concurrentEntry.remove();
+    private
+    boolean remove(final T listener, final ConcurrentEntry<T> entry) {
+        if (!entries.remove(new Identity(listener), entry)) {
+            // removed by another thread
+            return false;
+        }
+
+        size.decrementAndGet();
+
+        // false if the entry was removed directly (instead of via this iterator)
+        final boolean removed = entry.remove(listener);
+        if (removed) {
+            versionREF.incrementAndGet(this);
+        }
+
+        if (removedEntries.incrementAndGet() >= Math.max(MIN_REMOVED_TO_UNLINK, size.get())) {
+            removedEntries.set(0);
+            unlinkRemoved();
+        }
+
+        return removed;
+    }
+
+    /**
+     * Unlinks a removed entry. The last entry is never unlinked, because it is where new entries are appended.
+     *
+     * @return true if the entry was unlinked
+     */
+    private static
+    <T> boolean unlink(final ConcurrentEntry<T> previous, final ConcurrentEntry<T> removed) {
+        final ConcurrentEntry<T> next = removed.next();
+        return next != null && previous.casNext(removed, next);
+    }
+
+    private
+    void unlinkRemoved() {
+        ConcurrentEntry<T> previous = head;
+        ConcurrentEntry<T> current = head.next();
+
+        while (current != null) {
+            if (current.isRemoved() && unlink(previous, current)) {
+                current = previous.next();
+                continue;
             }
 
-            headREF.lazySet(this, head);
-            this.entries.remove(listener);
-            return true;
+            previous = current;
+            current = current.next();
+        }
+    }
+
+    /**
+     * @return true if the listener has been added (and not removed)
+     */
+    public
+    boolean contains(final T listener) {
+        if (listener == null) {
+            return false;
         }
 
-        return false;
+        final ConcurrentEntry<T> entry = entries.get(new Identity(listener));
+        return entry != null && !entry.isRemoved();
     }
 
     /**
-     * single writer principle!
-     * called from within SYNCHRONIZE
+     * @return the number of listeners
      */
-    public synchronized
+    public
     int size() {
-        return entries.size;
+        return Math.max(size.get(), 0);
+    }
+
+    /**
+     * @return the first entry, which can be used to walk the listeners without allocating. Entries that have been removed have a null value.
+     */
+    public
+    ConcurrentEntry<T> head() {
+        return head.next();
+    }
+
+    /**
+     * Runs the action for every listener, without allocating.
+     */
+    public
+    void forEach(final Consumer<? super T> action) {
+        ConcurrentEntry<T> current = head.next();
+
+        while (current != null) {
+            final T value = current.getValue();
+            if (value != null) {
+                action.accept(value);
+            }
+            current = current.next();
+        }
+    }
+
+    /**
+     * Returns an array of the listeners. The same array is returned until the next add/remove, so it MUST NOT be modified.
+     */
+    public
+    Object[] snapshot() {
+        final Snapshot snapshot = this.snapshot;
+        final int version = this.version;
+
+        if (snapshot.version == version) {
+            return snapshot.values;
+        }
+
+        final Object[] values = toArray();
+
+        // only cache it if nothing changed while it was being created. Otherwise it might be missing the change
+        if (this.version == version) {
+            this.snapshot = new Snapshot(version, values);
+        }
+
+        return values;
+    }
+
+    private
+    Object[] toArray() {
+        Object[] values = new Object[Math.max(size.get(), 0)];
+        int count = 0;
+
+        ConcurrentEntry<T> current = head.next();
+        while (current != null) {
+            final T value = current.getValue();
+            if (value != null) {
+                if (count == values.length) {
+                    values = Arrays.copyOf(values, Math.max(8, count << 1));
+                }
+                values[count++] = value;
+            }
+            current = current.next();
+        }
+
+        if (count == 0) {
+            return EMPTY;
+        }
+        if (count != values.length) {
+            values = Arrays.copyOf(values, count);
+        }
+        return values;
+    }
+
+    /**
+     * @return a (weakly consistent) iterator of the listeners. The iterator cannot remove listeners.
+     */
+    @Override
+    public
+    Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private ConcurrentEntry<T> current = head;
+
+            // the value is kept, so that hasNext() is still true if the listener is removed before next()
+            private T nextValue = advance();
+
+            private
+            T advance() {
+                while ((current = current.next()) != null) {
+                    final T value = current.getValue();
+                    if (value != null) {
+                        return value;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public
+            boolean hasNext() {
+                return nextValue != null;
+            }
+
+            @Override
+            public
+            T next() {
+                final T value = nextValue;
+                if (value == null) {
+                    throw new NoSuchElementException();
+                }
+
+                if (current != null) {
+                    nextValue = advance();
+                }
+                return value;
+            }
+        };
     }
 
     @Override
@@ -0,0 +1,543 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.BiFunction;
+import java.util.function.LongFunction;
+
+/**
+ * A concurrent, unordered map that uses (unboxed) long keys. Null values are not allowed.
+ * <p>
+ * The map is split into segments (lock striping), and every segment is a linear-probing hash table with its own lock. Writers to different
+ * segments never contend with each other, and readers are lock-free (an optimistic read that is only retried if a writer modified the
+ * same segment at the same time).
+ * <p>
+ * The functions passed to {@link #computeIfAbsent(long, LongFunction)} and {@link #merge(long, Object, BiFunction)} are run while the
+ * segment is locked, so they must be short and MUST NOT modify this map.
+ *
+ * @author dorkbox, llc
+ */
+@SuppressWarnings("unchecked")
+public final
+class ConcurrentLongMap<V> {
+    public
+    interface Visitor<V> {
+        void visit(long key, V value);
+    }
+
+    private final Segment<V>[] segments;
+    private final int segmentShift;
+
+    /**
+     * One part of the map, which is a linear-probing hash table. Only modified while the write lock is held.
+     */
+    @SuppressWarnings("serial")
+    private static final
+    class Segment<V> extends StampedLock {
+        // the index of the zero key, which is stored outside of the table (because 0 marks an empty slot)
+        static final int ZERO_INDEX = Integer.MAX_VALUE;
+
+        private final float loadFactor;
+
+        long[] keys;
+        V[] values;
+        int threshold;
+        volatile int size;
+
+        V zeroValue;
+
+        Segment(final int capacity, final float loadFactor) {
+            this.loadFactor = loadFactor;
+            setTable(capacity);
+        }
+
+        private
+        void setTable(final int capacity) {
+            keys = new long[capacity];
+            values = (V[]) new Object[capacity];
+            threshold = Math.min((int) (capacity * loadFactor), capacity - 1);
+        }
+
+        /**
+         * Safe to call without a lock (the result must be validated), because the probing is bounded by the table size.
+         */
+        V get(final long key, final long hash) {
+            if (key == 0) {
+                return zeroValue;
+            }
+
+            final long[] keys = this.keys;
+            final V[] values = this.values;
+            if (keys.length != values.length) {
+                // seen in the middle of a resize
+                return null;
+            }
+
+            final int mask = keys.length - 1;
+            int index = (int) (hash >>> 32) & mask;
+
+            for (int i = 0; i <= mask; i++) {
+                final long other = keys[index];
+                if (other == key) {
+                    return values[index];
+                }
+                if (other == 0) {
+                    break;
+                }
+                index = index + 1 & mask;
+            }
+            return null;
+        }
+
+        /**
+         * @return the index of the key, or -(index + 1) of the empty slot where the key belongs
+         */
+        int indexOf(final long key, final long hash) {
+            if (key == 0) {
+                return zeroValue != null ? ZERO_INDEX : -ZERO_INDEX - 1;
+            }
+
+            final long[] keys = this.keys;
+            final int mask = keys.length - 1;
+            int index = (int) (hash >>> 32) & mask;
+
+            while (true) {
+                final long other = keys[index];
+                if (other == key) {
+                    return index;
+                }
+                if (other == 0) {
+                    return -(index + 1);
+                }
+                index = index + 1 & mask;
+            }
+        }
+
+        V valueAt(final int index) {
+            return index == ZERO_INDEX ? zeroValue : values[index];
+        }
+
+        void setValueAt(final int index, final V value) {
+            if (index == ZERO_INDEX) {
+                zeroValue = value;
+            }
+            else {
+                values[index] = value;
+            }
+        }
+
+        /**
+         * @param index the empty slot returned by {@link #indexOf(long, long)}
+         */
+        void insert(final int index, final long key, final V value) {
+            if (index == ZERO_INDEX) {
+                zeroValue = value;
+                size++;
+                return;
+            }
+
+            // the value is set first, so that an optimistic reader never sees the key without its value
+            values[index] = value;
+            keys[index] = key;
+            if (++size >= threshold) {
+                resize();
+            }
+        }
+
+        void removeAt(int empty) {
+            size--;
+
+            if (empty == ZERO_INDEX) {
+                zeroValue = null;
+                return;
+            }
+
+            // backward-shift the entries in the cluster, so there are no tombstones
+            final long[] keys = this.keys;
+            final V[] values = this.values;
+            final int mask = keys.length - 1;
+
+            int next = empty + 1 & mask;
+            long key;
+            while ((key = keys[next]) != 0) {
+                final int placement = (int) (hash(key) >>> 32) & mask;
+                if (HashEngine.canShift(empty, next, placement, mask)) {
+                    keys[empty] = key;
+                    values[empty] = values[next];
+                    empty = next;
+                }
+                next = next + 1 & mask;
+            }
+
+            keys[empty] = 0;
+            values[empty] = null;
+        }
+
+        private
+        void resize() {
+            final long[] oldKeys = this.keys;
+            final V[] oldValues = this.values;
+            setTable(oldKeys.length << 1);
+
+            final long[] keys = this.keys;
+            final V[] values = this.values;
+            final int mask = keys.length - 1;
+
+            for (int i = 0; i < oldKeys.length; i++) {
+                final long key = oldKeys[i];
+                if (key != 0) {
+                    int index = (int) (hash(key) >>> 32) & mask;
+                    while (keys[index] != 0) {
+                        index = index + 1 & mask;
+                    }
+                    keys[index] = key;
+                    values[index] = oldValues[i];
+                }
+            }
+        }
+
+        void clear(final int capacity) {
+            setTable(capacity);
+            zeroValue = null;
+            size = 0;
+        }
+
+        void visit(final Visitor<V> visitor) {
+            if (zeroValue != null) {
+                visitor.visit(0, zeroValue);
+            }
+
+            final long[] keys = this.keys;
+            final V[] values = this.values;
+            for (int i = 0; i < keys.length; i++) {
+                final long key = keys[i];
+                if (key != 0) {
+                    visitor.visit(key, values[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates a new map with an initial capacity of 64 and a load factor of 0.75, with enough segments for the number of processors.
+     */
+    public
+    ConcurrentLongMap() {
+        this(64, 0.75f, 0);
+    }
+
+    /**
+     * Creates a new map with a load factor of 0.75, with enough segments for the number of processors.
+     */
+    public
+    ConcurrentLongMap(int initialCapacity) {
+        this(initialCapacity, 0.75f, 0);
+    }
+
+    /**
+     * @param initialCapacity the number of entries that fit in the map before any segment has to grow (if the keys are evenly spread)
+     * @param loadFactor must be less than 1
+     * @param concurrencyLevel the (estimated) number of threads that write at the same time. If 0, four times the number of processors
+     *         is used.
+     */
+    public
+    ConcurrentLongMap(int initialCapacity, float loadFactor, int concurrencyLevel) {
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("initialCapacity must be >= 0: " + initialCapacity);
+        }
+        if (loadFactor <= 0 || loadFactor >= 1.0f) {
+            throw new IllegalArgumentException("loadFactor must be > 0 and < 1: " + loadFactor);
+        }
+        if (concurrencyLevel < 0) {
+            throw new IllegalArgumentException("concurrencyLevel must be >= 0: " + concurrencyLevel);
+        }
+
+        int segmentCount = ConcurrentIntIntMap.segmentCount(concurrencyLevel);
+        segments = (Segment<V>[]) new Segment<?>[segmentCount];
+        segmentShift = 64 - Integer.numberOfTrailingZeros(segmentCount);
+
+        int segmentCapacity = ConcurrentIntIntMap.segmentCapacity(initialCapacity, loadFactor, segmentCount);
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment<V>(segmentCapacity, loadFactor);
+        }
+    }
+
+    /**
+     * Spreads the key with fibonacci hashing. The top bits choose the segment, and bits 32+ choose the slot in the segment.
+     */
+    static
+    long hash(final long key) {
+        return ConcurrentIntIntMap.hash((int) (key ^ key >>> 32));
+    }
+
+    private
+    Segment<V> segmentFor(final long hash) {
+        return segments[(int) (hash >>> segmentShift)];
+    }
+
+    /**
+     * @return the value of the key, or null if the key is not in the map
+     */
+    public
+    V get(final long key) {
+        final long hash = hash(key);
+        final Segment<V> segment = segmentFor(hash);
+
+        long stamp = segment.tryOptimisticRead();
+        if (stamp != 0L) {
+            final V value = segment.get(key, hash);
+            if (segment.validate(stamp)) {
+                return value;
+            }
+        }
+
+        // a writer changed the segment while reading it
+        stamp = segment.readLock();
+        try {
+            return segment.get(key, hash);
+        } finally {
+            segment.unlockRead(stamp);
+        }
+    }
+
+    public
+    boolean containsKey(final long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return the previous value of the key, or null if the key was not in the map
+     */
+    public
+    V put(final long key, final V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+
+        final long hash = hash(key);
+        final Segment<V> segment = segmentFor(hash);
+
+        long stamp = segment.writeLock();
+        try {
+            final int index = segment.indexOf(key, hash);
+            if (index >= 0) {
+                final V previous = segment.valueAt(index);
+                segment.setValueAt(index, value);
+                return previous;
+            }
+
+            segment.insert(-(index + 1), key, value);
+            return null;
+        } finally {
+            segment.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * Puts the value only if the key is not already in the map.
+     *
+     * @return the current value of the key, or null if the specified value was put
+     */
+    public
+    V putIfAbsent(final long key, final V value) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+
+        final long hash = hash(key);
+        final Segment<V> segment = segmentFor(hash);
+
+        long stamp = segment.writeLock();
+        try {
+            final int index = segment.indexOf(key, hash);
+            if (index >= 0) {
+                return segment.valueAt(index);
+            }
+
+            segment.insert(-(index + 1), key, value);
+            return null;
+        } finally {
+            segment.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return the value that was removed, or null if the key was not in the map
+     */
+    public
+    V remove(final long key) {
+        final long hash = hash(key);
+        final Segment<V> segment = segmentFor(hash);
+
+        long stamp = segment.writeLock();
+        try {
+            final int index = segment.indexOf(key, hash);
+            if (index < 0) {
+                return null;
+            }
+
+            final V value = segment.valueAt(index);
+            segment.removeAt(index);
+            return value;
+        } finally {
+            segment.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * If the key is not in the map, atomically puts the value computed by the function (unless it is null). The function is not called
+     * if the key is already in the map.
+     *
+     * @return the current (existing or computed) value, or null if the function returned null
+     */
+    public
+    V computeIfAbsent(final long key, final LongFunction<? extends V> mappingFunction) {
+        final V existing = get(key);
+        if (existing != null) {
+            return existing;
+        }
+
+        final long hash = hash(key);
+        final Segment<V> segment = segmentFor(hash);
+
+        long stamp = segment.writeLock();
+        try {
+            final int index = segment.indexOf(key, hash);
+            if (index >= 0) {
+                return segment.valueAt(index);
+            }
+
+            final V value = mappingFunction.apply(key);
+            if (value != null) {
+                segment.insert(-(index + 1), key, value);
+            }
+            return value;
+        } finally {
+            segment.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * If the key is not in the map, atomically puts the value. Otherwise, atomically replaces the current value with the result of the
+     * function (which is called with the current value and the specified value), or removes the key if the result is null.
+     *
+     * @return the new value, or null if the key was removed
+     */
+    public
+    V merge(final long key, final V value, final BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+
+        final long hash = hash(key);
+        final Segment<V> segment = segmentFor(hash);
+
+        long stamp = segment.writeLock();
+        try {
+            final int index = segment.indexOf(key, hash);
+            if (index < 0) {
+                segment.insert(-(index + 1), key, value);
+                return value;
+            }
+
+            final V newValue = remappingFunction.apply(segment.valueAt(index), value);
+            if (newValue == null) {
+                segment.removeAt(index);
+            }
+            else {
+                segment.setValueAt(index, newValue);
+            }
+            return newValue;
+        } finally {
+            segment.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * @return the number of entries in the map. This is only an estimate while the map is being modified.
+     */
+    public
+    int size() {
+        int size = 0;
+        for (Segment<V> segment : segments) {
+            size += segment.size;
+        }
+        return size;
+    }
+
+    public
+    boolean isEmpty() {
+        for (Segment<V> segment : segments) {
+            if (segment.size != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes every entry. This is not atomic: entries that are put into a segment which was already cleared are kept.
+     */
+    public
+    void clear() {
+        for (Segment<V> segment : segments) {
+            long stamp = segment.writeLock();
+            try {
+                segment.clear(8);
+            } finally {
+                segment.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * Runs the visitor for every entry in the map, without allocating. Each segment is visited while it is (read) locked, so the visitor
+     * MUST NOT modify this map.
+     */
+    public
+    void forEach(final Visitor<V> visitor) {
+        for (Segment<V> segment : segments) {
+            long stamp = segment.readLock();
+            try {
+                segment.visit(visitor);
+            } finally {
+                segment.unlockRead(stamp);
+            }
+        }
+    }
+
+    @Override
+    public
+    String toString() {
+        final StringBuilder buffer = new StringBuilder(32);
+        buffer.append('{');
+        forEach(new Visitor<V>() {
+            @Override
+            public
+            void visit(final long key, final V value) {
+                if (buffer.length() > 1) {
+                    buffer.append(", ");
+                }
+                buffer.append(key);
+                buffer.append('=');
+                buffer.append(value);
+            }
+        });
+        buffer.append('}');
+        return buffer.toString();
+    }
+}
@@ -19,6 +19,8 @@
 package dorkbox.util.collections;
 
 import java.util.Arrays;
+import java.util.function.DoublePredicate;
+import java.util.function.DoubleUnaryOperator;
 
 import dorkbox.util.RandomUtil;
 
@@ -232,23 +234,53 @@ public class FloatArray {
 		size -= count;
 	}
 
-	/** Removes from this array all of elements contained in the specified array.
+	/** Removes from this array all of elements contained in the specified array. For each item in the specified array, one
+	 * matching item is removed from this array. Large arrays are counted with a hash map, so this is O(n + m) instead of O(n * m).
 	 * @return true if this array was modified. */
 	public boolean removeAll (FloatArray array) {
-		int size = this.size;
-		int startSize = size;
-		float[] items = this.items;
-		for (int i = 0, n = array.size; i < n; i++) {
-			float item = array.get(i);
-			for (int ii = 0; ii < size; ii++) {
-				if (item == items[ii]) {
-					removeIndex(ii);
-					size--;
-					break;
+		int n = array.size;
+		if (n < 16) {
+			int size = this.size;
+			int startSize = size;
+			float[] items = this.items;
+			for (int i = 0; i < n; i++) {
+				float item = array.get(i);
+				for (int ii = 0; ii < size; ii++) {
+					if (item == items[ii]) {
+						removeIndex(ii);
+						size--;
+						break;
+					}
 				}
 			}
+			return size != startSize;
+		}
+
+		IntIntMap counts = new IntIntMap(n);
+		float[] removed = array.items;
+		for (int i = 0; i < n; i++) {
+			// NaN is never equal to an item, so it never removes anything
+			if (removed[i] == removed[i]) counts.getAndIncrement(bits(removed[i]), 0, 1);
 		}
-		return size != startSize;
+
+		float[] items = this.items;
+		int size = this.size, kept = 0;
+		for (int i = 0; i < size; i++) {
+			float item = items[i];
+			int bits = bits(item);
+			int count = counts.get(bits, 0);
+			if (count > 0)
+				counts.put(bits, count - 1);
+			else
+				items[kept++] = item;
+		}
+		this.size = kept;
+		return kept != size;
+	}
+
+	/** The bits of the value, where -0 and 0 are the same (because they are ==). */
+	static private int bits (float value) {
+		return Float.floatToIntBits(value == 0 ? 0 : value);
 	}
 
 	/** Removes and returns the last item. */
@@ -418,6 +450,136 @@ public class FloatArray {
 		return buffer.toString();
 	}
 
+	/** Returns the sum of the items, added as doubles. */
+	public double sum () {
+		float[] items = this.items;
+		double sum = 0;
+		for (int i = 0, n = size; i < n; i++)
+			sum += items[i];
+		return sum;
+	}
+
+	/** Returns the smallest item, using Math.min and Math.max (NaN if any item is NaN).
+	 * @throws IllegalStateException if the array is empty */
+	public float min () {
+		if (size == 0) throw new IllegalStateException("Array is empty.");
+		float[] items = this.items;
+		float min = items[0];
+		for (int i = 1, n = size; i < n; i++)
+			min = Math.min(min, items[i]);
+		return min;
+	}
+
+	/** Returns the largest item, using Math.min and Math.max (NaN if any item is NaN).
+	 * @throws IllegalStateException if the array is empty */
+	public float max () {
+		if (size == 0) throw new IllegalStateException("Array is empty.");
+		float[] items = this.items;
+		float max = items[0];
+		for (int i = 1, n = size; i < n; i++)
+			max = Math.max(max, items[i]);
+		return max;
+	}
+
+	/** Replaces every item with the result of the operator. */
+	public void mapInPlace (DoubleUnaryOperator operator) {
+		float[] items = this.items;
+		for (int i = 0, n = size; i < n; i++)
+			items[i] = (float)operator.applyAsDouble(items[i]);
+	}
+
+	/** Removes the items that don't match the predicate, keeping the order of the remaining items.
+	 * @return true if this array was modified. */
+	public boolean filterInPlace (DoublePredicate predicate) {
+		float[] items = this.items;
+		int n = size, kept = 0;
+		for (int i = 0; i < n; i++) {
+			float item = items[i];
+			// always write the item, so there is no branch on the result
+			items[kept] = item;
+			kept += predicate.test(item) ? 1 : 0;
+		}
+		size = kept;
+		return kept != n;
+	}
+
+	/** Returns a new ordered array with the items that are in this array or the specified array, without duplicates. Both arrays
+	 * must be sorted. */
+	public FloatArray union (FloatArray array) {
+		float[] items1 = this.items, items2 = array.items;
+		int n1 = size, n2 = array.size;
+		FloatArray result = new FloatArray(true, n1 + n2);
+		float[] out = result.items;
+		int i = 0, j = 0, count = 0;
+		while (i < n1 && j < n2) {
+			float item1 = items1[i], item2 = items2[j];
+			if (Float.compare(item1, item2) < 0) {
+				count = appendUnique(out, count, item1);
+				i++;
+			} else if (Float.compare(item2, item1) < 0) {
+				count = appendUnique(out, count, item2);
+				j++;
+			} else {
+				count = appendUnique(out, count, item1);
+				i++;
+				j++;
+			}
+		}
+		for (; i < n1; i++)
+			count = appendUnique(out, count, items1[i]);
+		for (; j < n2; j++)
+			count = appendUnique(out, count, items2[j]);
+		result.size = count;
+		return result;
+	}
+
+	/** Returns a new ordered array with the items that are in both this array and the specified array, without duplicates. Both
+	 * arrays must be sorted. */
+	public FloatArray intersect (FloatArray array) {
+		float[] items1 = this.items, items2 = array.items;
+		int n1 = size, n2 = array.size;
+		FloatArray result = new FloatArray(true, Math.min(n1, n2));
+		float[] out = result.items;
+		int i = 0, j = 0, count = 0;
+		while (i < n1 && j < n2) {
+			float item1 = items1[i], item2 = items2[j];
+			if (Float.compare(item1, item2) < 0)
+				i++;
+			else if (Float.compare(item2, item1) < 0)
+				j++;
+			else {
+				count = appendUnique(out, count, item1);
+				i++;
+				j++;
+			}
+		}
+		result.size = count;
+		return result;
+	}
+
+	/** Returns a new ordered array with the items that are in this array but not in the specified array, without duplicates. Both
+	 * arrays must be sorted. */
+	public FloatArray difference (FloatArray array) {
+		float[] items1 = this.items, items2 = array.items;
+		int n1 = size, n2 = array.size;
+		FloatArray result = new FloatArray(true, n1);
+		float[] out = result.items;
+		int j = 0, count = 0;
+		for (int i = 0; i < n1; i++) {
+			float item = items1[i];
+			while (j < n2 && Float.compare(items2[j], item) < 0)
+				j++;
+			if (j == n2 || Float.compare(item, items2[j]) != 0) count = appendUnique(out, count, item);
+		}
+		result.size = count;
+		return result;
+	}
+
+	static private int appendUnique (float[] out, int count, float item) {
+		if (count == 0 || Float.compare(out[count - 1], item) != 0) out[count++] = item;
+		return count;
+	}
+
 	/** @see #FloatArray(float[]) */
 	static public FloatArray with (float... array) {
 		return new FloatArray(array);
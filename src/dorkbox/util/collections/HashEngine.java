@@ -0,0 +1,76 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+/**
+ * How the hash maps (ObjectMap, IntMap, LongMap, IntIntMap, IntFloatMap, ObjectIntMap, ObjectFloatMap and IdentityMap) store their keys.
+ * <p>
+ * The engine is chosen when the map is created, and does not change the API of the map.
+ */
+public
+enum HashEngine {
+    /**
+     * A cuckoo hash table, using 3 hashes, random walking, and a small stash for problematic keys.
+     * <p>
+     * This has very fast lookups, however keys that have similar (or sequential) hash codes can cause a lot of random walking and stash
+     * overflows, which can force the table to grow before it is full.
+     */
+    CUCKOO,
+
+    /**
+     * An open-addressing hash table, using linear probing with the hash codes spread via fibonacci hashing, and backward-shift deletion
+     * (so there are no tombstones).
+     * <p>
+     * Puts never random walk, and the table only grows when it reaches its load factor, so this is better for keys with low-entropy hash
+     * codes (or when many keys are put and removed). The load factor must be less than 1.
+     */
+    LINEAR_PROBING;
+
+    // 2^64 / the golden ratio
+    private static final long GOLDEN = 0x9E3779B97F4A7C15L;
+
+    /**
+     * @return the index in the table where a key with the specified hash code belongs (before probing)
+     */
+    static
+    int place(final int hashCode, final int mask) {
+        // the middle 32 bits of the product depend on every bit of the hash code
+        return (int) (hashCode * GOLDEN >>> 32) & mask;
+    }
+
+    /**
+     * @return the index in the table where a key with the specified hash code belongs (before probing)
+     */
+    static
+    int place(final long key, final int mask) {
+        return place((int) (key ^ key >>> 32), mask);
+    }
+
+    /**
+     * @return true if the key at index 'next' (which belongs at 'placement') can be moved back to the empty index, when deleting
+     */
+    static
+    boolean canShift(final int empty, final int next, final int placement, final int mask) {
+        return (next - placement & mask) > (empty - placement & mask);
+    }
+
+    static
+    void validateLoadFactor(final HashEngine engine, final float loadFactor) {
+        if (engine == LINEAR_PROBING && loadFactor >= 1.0f) {
+            throw new IllegalArgumentException("loadFactor must be < 1 for linear probing: " + loadFactor);
+        }
+    }
+}
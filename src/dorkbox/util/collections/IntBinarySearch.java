@@ -0,0 +1,254 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+/**
+ * A binary search over a sorted int[], without boxing or interface calls. This is the primitive version of {@link BinarySearch}.
+ * <p>
+ * The values are copied into an Eytzinger (breadth-first) layout, where the children of the element at position k are at 2k and 2k+1.
+ * The first levels of the search tree are then packed together at the start of the array (and stay in the cache), the search has no
+ * unpredictable branches, and the next positions of the search are adjacent in memory, so the CPU can fetch them ahead of time.
+ * {@link #searchAll(int[], Bias, int[])} searches many values at the same time, which overlaps their cache misses.
+ * <p>
+ * The search returns the index in the sorted array (not the Eytzinger layout), according to the {@link Bias}:
+ * <ul>
+ *  <li>{@link Bias#FORWARD} the first element that is >= the value (the ceiling)</li>
+ *  <li>{@link Bias#BACKWARD} the last element that is <= the value (the floor)</li>
+ *  <li>{@link Bias#NEAREST} the element with the minimum distance to the value. If both neighbours have the same distance, the next
+ *  element is used (the same as BinarySearch)</li>
+ *  <li>{@link Bias#NONE} the first element that is equal to the value</li>
+ * </ul>
+ * If there is no such element (for example, the floor of a value that is less than every element), -1 is returned.
+ * <p>
+ * This class is thread-safe, and the sorted array must not be modified after this is created.
+ *
+ * @author dorkbox, llc
+ */
+public final
+class IntBinarySearch {
+    // the number of searches that are interleaved by searchAll()
+    private static final int BATCH = 8;
+
+    private final int[] sorted;
+    private final int size;
+
+    // the values in Eytzinger order (starting at 1), and the index in the sorted array of each of them
+    private final int[] tree;
+    private final int[] rank;
+
+    /**
+     * @param sorted the values, which must be sorted from low to high
+     *
+     * @throws IllegalArgumentException if the values are not sorted
+     */
+    public
+    IntBinarySearch(final int[] sorted) {
+        for (int i = 1; i < sorted.length; i++) {
+            if (sorted[i] < sorted[i - 1]) {
+                throw new IllegalArgumentException("Values are not sorted at " + i);
+            }
+        }
+
+        this.sorted = sorted;
+        this.size = sorted.length;
+        this.tree = new int[size + 1];
+        this.rank = new int[size + 1];
+
+        // an in-order walk of the implicit tree visits the positions in sorted order
+        int index = 0;
+        int k = 1;
+        while (true) {
+            // go down to the left-most position
+            while (k <= size) {
+                k <<= 1;
+            }
+            // go back up, past every position where we came from the right
+            k >>>= Integer.numberOfTrailingZeros(~k) + 1;
+            if (k == 0) {
+                break;
+            }
+
+            tree[k] = sorted[index];
+            rank[k] = index;
+            index++;
+
+            // then to the right child
+            k = (k << 1) + 1;
+        }
+    }
+
+    /**
+     * @return the number of values
+     */
+    public
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return the value at the index (in the sorted array)
+     */
+    public
+    int get(final int index) {
+        return sorted[index];
+    }
+
+    /**
+     * @return the index (in the sorted array) of the first value that is >= the value, or size() if there is none
+     */
+    public
+    int lowerBound(final int value) {
+        final int[] tree = this.tree;
+        final int size = this.size;
+
+        int k = 1;
+        while (k <= size) {
+            k = (k << 1) + (tree[k] < value ? 1 : 0);
+        }
+
+        // undo the right turns (and the last left turn) to find the last position where the search went left
+        k >>>= Integer.numberOfTrailingZeros(~k) + 1;
+        return k == 0 ? size : rank[k];
+    }
+
+    /**
+     * @return the index (in the sorted array) of the first value that is > the value, or size() if there is none
+     */
+    public
+    int upperBound(final int value) {
+        final int[] tree = this.tree;
+        final int size = this.size;
+
+        int k = 1;
+        while (k <= size) {
+            k = (k << 1) + (tree[k] <= value ? 1 : 0);
+        }
+
+        // undo the right turns (and the last left turn) to find the last position where the search went left
+        k >>>= Integer.numberOfTrailingZeros(~k) + 1;
+        return k == 0 ? size : rank[k];
+    }
+
+    /**
+     * @return the index (in the sorted array) of the value chosen by the bias, or -1 if there is none
+     */
+    public
+    int search(final int value, final Bias bias) {
+        switch (bias) {
+            case FORWARD:
+                return forward(lowerBound(value));
+            case BACKWARD:
+                return upperBound(value) - 1;
+            case NEAREST:
+                return nearest(lowerBound(value), value);
+            case NONE:
+                return exact(lowerBound(value), value);
+            default:
+                throw new AssertionError(bias);
+        }
+    }
+
+    private
+    int forward(final int lowerBound) {
+        return lowerBound == size ? -1 : lowerBound;
+    }
+
+    private
+    int exact(final int lowerBound, final int value) {
+        return lowerBound < size && sorted[lowerBound] == value ? lowerBound : -1;
+    }
+
+    private
+    int nearest(final int lowerBound, final int value) {
+        if (lowerBound == size) {
+            return size - 1;
+        }
+        if (lowerBound == 0 || sorted[lowerBound] == value) {
+            return lowerBound;
+        }
+
+        // the previous value is < the value, and the next value is > the value. Compare the distances without overflowing
+        final long before = (long) value - sorted[lowerBound - 1];
+        final long after = (long) sorted[lowerBound] - value;
+        return before < after ? lowerBound - 1 : lowerBound;
+    }
+
+    /**
+     * Searches for every value, and puts the index (in the sorted array) chosen by the bias into the results (or -1 if there is none).
+     * Several values are searched at the same time, so that the memory access of one search overlaps with the others.
+     *
+     * @param results must be at least as long as the values
+     */
+    public
+    void searchAll(final int[] values, final Bias bias, final int[] results) {
+        if (results.length < values.length) {
+            throw new IllegalArgumentException("results is too small: " + results.length + " < " + values.length);
+        }
+
+        final int[] tree = this.tree;
+        final int[] rank = this.rank;
+        final int size = this.size;
+        // the floor is found with the upper bound, everything else with the lower bound
+        final boolean upper = bias == Bias.BACKWARD;
+
+        final int[] k = new int[BATCH];
+
+        for (int start = 0; start < values.length; start += BATCH) {
+            final int count = Math.min(BATCH, values.length - start);
+            for (int j = 0; j < count; j++) {
+                k[j] = 1;
+            }
+
+            // every search moves down one level at a time, so the searches are interleaved
+            boolean searching = size > 0;
+            while (searching) {
+                searching = false;
+                for (int j = 0; j < count; j++) {
+                    final int position = k[j];
+                    if (position <= size) {
+                        final int element = tree[position];
+                        final int value = values[start + j];
+                        k[j] = (position << 1) + (upper ? (element <= value ? 1 : 0) : (element < value ? 1 : 0));
+                        searching = true;
+                    }
+                }
+            }
+
+            for (int j = 0; j < count; j++) {
+                int position = k[j];
+                position >>>= Integer.numberOfTrailingZeros(~position) + 1;
+                final int bound = position == 0 ? size : rank[position];
+
+                switch (bias) {
+                    case FORWARD:
+                        results[start + j] = forward(bound);
+                        break;
+                    case BACKWARD:
+                        results[start + j] = bound - 1;
+                        break;
+                    case NEAREST:
+                        results[start + j] = nearest(bound, values[start + j]);
+                        break;
+                    case NONE:
+                        results[start + j] = exact(bound, values[start + j]);
+                        break;
+                    default:
+                        throw new AssertionError(bias);
+                }
+            }
+        }
+    }
+}
@@ -19,6 +19,7 @@
 package dorkbox.util.collections;
 
 import java.util.NoSuchElementException;
+import java.util.function.IntConsumer;
 
 import dorkbox.util.MathUtil;
 import dorkbox.util.RandomUtil;
@@ -496,6 +497,23 @@ public class IntSet {
 		return iterator2;
 	}
 
+	/** Calls the consumer for each key, without allocating. Unlike {@link #iterator()}, this can be nested and used by multiple
+	 * threads at once, as long as the set is not modified. */
+	public void forEach (IntConsumer consumer) {
+		if (hasZeroValue) consumer.accept(0);
+		int[] keyTable = this.keyTable;
+		for (int i = 0, n = capacity + stashSize; i < n; i++) {
+			int key = keyTable[i];
+			if (key != EMPTY) consumer.accept(key);
+		}
+	}
+
+	/** Returns a new cursor over the keys. A cursor has no shared state, so unlike {@link #iterator()} it can be nested and used by
+	 * multiple threads at once, as long as the set is not modified. It can be reused with {@link Cursor#reset()}. */
+	public Cursor cursor () {
+		return new Cursor(this);
+	}
+
 	static public IntSet with (int... array) {
 		IntSet set = new IntSet();
 		set.addAll(array);
@@ -570,4 +588,45 @@ public class IntSet {
 			return array;
 		}
 	}
+
+	/** Iterates over the keys without allocating, by moving to the next key with {@link #advance()}:
+	 * <pre>
+	 * for (Cursor cursor = set.cursor(); cursor.advance();)
+	 *    use(cursor.key());
+	 * </pre>
+	 * The key is read from the set, so it is only valid until the set is modified. */
+	static public class Cursor {
+		static private final int INDEX_START = -2;
+		static private final int INDEX_ZERO = -1;
+
+		final IntSet set;
+		int index;
+
+		public Cursor (IntSet set) {
+			this.set = set;
+			index = INDEX_START;
+		}
+
+		/** Moves the cursor back to before the first key. */
+		public void reset () {
+			index = INDEX_START;
+		}
+
+		/** Moves to the next key.
+		 * @return false if there are no more keys */
+		public boolean advance () {
+			if (index == INDEX_START) {
+				index = INDEX_ZERO;
+				if (set.hasZeroValue) return true;
+			}
+			int[] keyTable = set.keyTable;
+			for (int n = set.capacity + set.stashSize; index + 1 < n;)
+				if (keyTable[++index] != EMPTY) return true;
+			return false;
+		}
+
+		public int key () {
+			return index == INDEX_ZERO ? 0 : set.keyTable[index];
+		}
+	}
 }
@@ -19,6 +19,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BiConsumer;
 
 /**
  * A bimap (or "bidirectional map") is a map that preserves the uniqueness of its values as well as that of its keys. This constraint
@@ -27,59 +28,159 @@ import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
  * This class uses the "single-writer-principle" for lock-free publication.
  *
  * Since there are only 2 methods to guarantee that modifications can only be called one-at-a-time (either it is only called by
- * one thread, or only one thread can access it at a time) -- we chose the 2nd option -- and use 'synchronized' to make sure that only
+ * one thread, or only one thread can access it at a time) -- we chose the 2nd option -- and use a lock to make sure that only
  * one thread can access this modification methods at a time. Getting or checking the presence of values can then happen in a lock-free
  * manner.
  *
+ * Both directions are stored as immutable {@link PersistentHashMap}s, and are published together as a single snapshot (which is shared
+ * with the inverse view). A reader will never see a forward mapping without its reverse mapping.
+ *
+ * For many writers, {@link #LockFreeBiMap(int)} stripes the writer lock by the hash of the key and the value. Writers of different
+ * mappings then build their snapshots at the same time, and publish them with a compare-and-set (so every modification is still atomic,
+ * and is based on the latest snapshot). A writer retries if a writer of other stripes published first, which only copies the paths to
+ * its key and value again.
+ *
  * According to my benchmarks, this is approximately 25% faster than ConcurrentHashMap for (all types of) reads, and a lot slower for
  * contended writes.
  *
  * This data structure is for many-read/few-write scenarios
  */
-@SuppressWarnings("WeakerAccess")
+@SuppressWarnings({"WeakerAccess", "unchecked"})
 public final
 class LockFreeBiMap<K, V> {
     // Recommended for best performance while adhering to the "single writer principle". Must be static-final
-    private static final AtomicReferenceFieldUpdater<LockFreeBiMap, HashMap> forwardREF =
+    private static final AtomicReferenceFieldUpdater<LockFreeBiMap, Snapshot> snapshotREF =
                     AtomicReferenceFieldUpdater.newUpdater(LockFreeBiMap.class,
-                                                           HashMap.class,
-                                                           "forwardHashMap");
+                                                           Snapshot.class,
+                                                           "snapshot");
 
-    private static final AtomicReferenceFieldUpdater<LockFreeBiMap, HashMap> reverseREF =
-                    AtomicReferenceFieldUpdater.newUpdater(LockFreeBiMap.class,
-                                                           HashMap.class,
-                                                           "reverseHashMap");
-    
-    private volatile HashMap<K, V> forwardHashMap;
-    private volatile HashMap<V, K> reverseHashMap;
+    /**
+     * Both directions of the bimap. The inverse is created at the same time, so the inverse view can read it without allocating.
+     */
+    private static final
+    class Snapshot<K, V> {
+        static final Snapshot<?, ?> EMPTY = new Snapshot<Object, Object>(PersistentHashMap.empty(), PersistentHashMap.empty());
+
+        final PersistentHashMap<K, V> forward;
+        final PersistentHashMap<V, K> reverse;
+        final Snapshot<V, K> inverse;
+
+        Snapshot(final PersistentHashMap<K, V> forward, final PersistentHashMap<V, K> reverse) {
+            this.forward = forward;
+            this.reverse = reverse;
+            this.inverse = new Snapshot<V, K>(reverse, forward, this);
+        }
+
+        private
+        Snapshot(final PersistentHashMap<K, V> forward, final PersistentHashMap<V, K> reverse, final Snapshot<V, K> inverse) {
+            this.forward = forward;
+            this.reverse = reverse;
+            this.inverse = inverse;
+        }
+    }
+
+    // only the "primary" bimap (not the inverse view) uses this field.
+    private volatile Snapshot<K, V> snapshot;
+
+    // the "primary" bimap, which holds the snapshot for both this and the inverse view
+    private final LockFreeBiMap<?, ?> primary;
+    private final boolean isInverse;
     private final LockFreeBiMap<V, K> inverse;
 
-    // synchronized is used here to ensure the "single writer principle", and make sure that ONLY one thread at a time can enter this
-    // section. Because of this, we can have unlimited reader threads all going at the same time, without contention (which is our
-    // use-case 99% of the time)
+    // shared with the inverse view, so that both views are written with the same locks
+    private final WriteStripes stripes;
 
+    /**
+     * Creates a bimap that has a single writer at a time (the "single writer principle"). Because of this, we can have unlimited reader
+     * threads all going at the same time, without contention (which is our use-case 99% of the time)
+     */
     public
     LockFreeBiMap() {
-        forwardHashMap = new HashMap<K, V>();
-        reverseHashMap = new HashMap<V, K>();
-        this.inverse = new LockFreeBiMap<V, K>(reverseHashMap, forwardHashMap, this);
+        this(1);
+    }
+
+    /**
+     * Creates a bimap that allows multiple writers at the same time, as long as they write different keys and values.
+     *
+     * @param writeStripes the number of locks used by writers (which is rounded up to a power of two). A writer locks the stripes of
+     *         its key and its value, and 1 stripe is the same as the "single writer principle".
+     */
+    public
+    LockFreeBiMap(final int writeStripes) {
+        this.snapshot = (Snapshot<K, V>) Snapshot.EMPTY;
+        this.primary = this;
+        this.isInverse = false;
+        this.stripes = new WriteStripes(writeStripes);
+        this.inverse = new LockFreeBiMap<V, K>(this);
     }
 
     private
-    LockFreeBiMap(final HashMap<K, V> forwardHashMap, final HashMap<V, K> reverseHashMap, final LockFreeBiMap<V, K> inverse) {
-        this.forwardHashMap = forwardHashMap;
-        this.reverseHashMap = reverseHashMap;
-        this.inverse = inverse;
+    LockFreeBiMap(final LockFreeBiMap<V, K> primary) {
+        this.primary = primary;
+        this.isInverse = true;
+        this.stripes = primary.stripes;
+        this.inverse = primary;
+    }
+
+    /**
+     * use the SWP to get a lock-free get of the value
+     */
+    private
+    Snapshot<K, V> snapshot() {
+        // the primary map has the keys and values swapped, if this is the inverse view
+        Snapshot<?, ?> snapshot = snapshotREF.get(primary);
+        if (isInverse) {
+            snapshot = snapshot.inverse;
+        }
+        return (Snapshot<K, V>) snapshot;
+    }
+
+    /**
+     * Publishes both directions at once, if the snapshot has not changed since it was read. Must be called while holding the stripes of
+     * the modified key and value.
+     *
+     * @return false if another writer published first, and the modification must be made again
+     */
+    private
+    boolean publish(final Snapshot<K, V> current, final PersistentHashMap<K, V> forward, final PersistentHashMap<V, K> reverse) {
+        Snapshot<K, V> snapshot = new Snapshot<K, V>(forward, reverse);
+        if (isInverse) {
+            return snapshotREF.compareAndSet(primary, current.inverse, snapshot.inverse);
+        }
+        return snapshotREF.compareAndSet(primary, current, snapshot);
+    }
+
+    /**
+     * Publishes both directions at once. Must be called while holding all of the stripes.
+     */
+    private
+    void publishAll(final PersistentHashMap<K, V> forward, final PersistentHashMap<V, K> reverse) {
+        Snapshot<K, V> snapshot = new Snapshot<K, V>(forward, reverse);
+        if (isInverse) {
+            snapshotREF.set(primary, snapshot.inverse);
+        }
+        else {
+            snapshotREF.set(primary, snapshot);
+        }
+    }
+
+    private static
+    int hash(final Object object) {
+        return object == null ? 0 : object.hashCode();
     }
 
     /**
      * Removes all of the mappings from this bimap.
      * The bimap will be empty after this call returns.
      */
-    public synchronized
+    public
     void clear() {
-        forwardHashMap.clear();
-        reverseHashMap.clear();
+        stripes.lockAll();
+        try {
+            snapshotREF.set(primary, Snapshot.EMPTY);
+        } finally {
+            stripes.unlockAll();
+        }
     }
 
     /**
@@ -102,27 +203,34 @@ class LockFreeBiMap<K, V> {
      * @throws IllegalArgumentException if a given value in the map is already bound to a different key in this bimap. The bimap will remain
      *         unmodified in this event. To avoid this exception, call {@link #replaceAllForce(Map)} replaceAllForce(map) instead.
      */
-    public synchronized
+    public
     void replaceAll(final Map<K, V> hashMap) throws IllegalArgumentException {
         if (hashMap == null) {
             throw new NullPointerException("hashMap");
         }
 
-        LockFreeBiMap<K, V> biMap = new LockFreeBiMap<K, V>();
+        PersistentHashMap.Builder<K, V> forward = PersistentHashMap.builder();
+        PersistentHashMap.Builder<V, K> reverse = PersistentHashMap.builder();
 
-        try {
-            biMap.putAll(hashMap);
-        } catch (IllegalArgumentException e) {
-            // do nothing if there is an exception
-            throw e;
+        for (Map.Entry<K, V> entry : hashMap.entrySet()) {
+            K key = entry.getKey();
+            V value = entry.getValue();
+
+            if (reverse.containsKey(value)) {
+                throw new IllegalArgumentException("Value already exists. Keys and values must both be unique!");
+            }
+
+            forward.put(key, value);
+            reverse.put(value, key);
         }
 
         // only if there are no problems with the creation of the new bimap.
-        this.forwardHashMap.clear();
-        this.reverseHashMap.clear();
-
-        this.forwardHashMap.putAll(biMap.forwardHashMap);
-        this.reverseHashMap.putAll(biMap.reverseHashMap);
+        stripes.lockAll();
+        try {
+            publishAll(forward.build(), reverse.build());
+        } finally {
+            stripes.unlockAll();
+        }
     }
 
     /**
@@ -136,17 +244,25 @@ class LockFreeBiMap<K, V> {
      *
      * @throws NullPointerException if the specified map is null
      */
-    public synchronized
+    public
     void replaceAllForce(final Map<K, V> hashMap) {
         if (hashMap == null) {
             throw new NullPointerException("hashMap");
         }
 
-        // only if there are no problems with the creation of the new bimap.
-        this.forwardHashMap.clear();
-        this.reverseHashMap.clear();
+        PersistentHashMap.Builder<K, V> forward = PersistentHashMap.builder();
+        PersistentHashMap.Builder<V, K> reverse = PersistentHashMap.builder();
 
-        putAllForce(hashMap);
+        for (Map.Entry<K, V> entry : hashMap.entrySet()) {
+            putForce(forward, reverse, entry.getKey(), entry.getValue());
+        }
+
+        stripes.lockAll();
+        try {
+            publishAll(forward.build(), reverse.build());
+        } finally {
+            stripes.unlockAll();
+        }
     }
 
     /**
@@ -167,28 +283,35 @@ class LockFreeBiMap<K, V> {
      * @throws IllegalArgumentException if the given value is already bound to a different key in this bimap. The bimap will remain
      * unmodified in this event. To avoid this exception, call {@link #putForce(Object, Object)}  putForce(K, V) instead.
      */
-    public synchronized
+    public
     V put(final K key, final V value) throws IllegalArgumentException {
-        V prevForwardValue = this.forwardHashMap.put(key, value);
-        if (prevForwardValue != null) {
-            reverseHashMap.remove(prevForwardValue);
-        }
+        stripes.lock(hash(key), hash(value));
+        try {
+            while (true) {
+                Snapshot<K, V> snapshot = snapshot();
+                PersistentHashMap<K, V> forward = snapshot.forward;
+                PersistentHashMap<V, K> reverse = snapshot.reverse;
+
+                if (reverse.containsKey(value)) {
+                    K prevKey = reverse.get(value);
+                    if (prevKey == null ? key != null : !prevKey.equals(key)) {
+                        throw new IllegalArgumentException("Value already exists. Keys and values must both be unique!");
+                    }
+                }
 
-        K prevReverseValue = this.reverseHashMap.put(value, key);
-        if (prevReverseValue != null) {
-            // put the old value back
-            if (prevForwardValue != null) {
-                this.forwardHashMap.put(key, prevForwardValue);
-            }
-            else {
-                this.forwardHashMap.remove(key);
-            }
-            this.reverseHashMap.put(value, prevReverseValue);
+                boolean hadKey = forward.containsKey(key);
+                V prevForwardValue = forward.get(key);
+                if (hadKey) {
+                    reverse = reverse.without(prevForwardValue);
+                }
 
-            throw new IllegalArgumentException("Value already exists. Keys and values must both be unique!");
+                if (publish(snapshot, forward.with(key, value), reverse.with(value, key))) {
+                    return prevForwardValue;
+                }
+            }
+        } finally {
+            stripes.unlock(hash(key), hash(value));
         }
-
-        return prevForwardValue;
     }
 
     /**
@@ -205,16 +328,38 @@ class LockFreeBiMap<K, V> {
      *         (A <tt>null</tt> return can also indicate that the map
      *         previously associated <tt>null</tt> with <tt>key</tt>.)
      */
-    public synchronized
+    public
     V putForce(final K key, final V value) {
-        V prevForwardValue = this.forwardHashMap.put(key, value);
-        if (prevForwardValue != null) {
-            reverseHashMap.remove(prevForwardValue);
+        stripes.lock(hash(key), hash(value));
+        try {
+            while (true) {
+                Snapshot<K, V> snapshot = snapshot();
+                PersistentHashMap.Builder<K, V> forward = snapshot.forward.toBuilder();
+                PersistentHashMap.Builder<V, K> reverse = snapshot.reverse.toBuilder();
+
+                V prevForwardValue = putForce(forward, reverse, key, value);
+
+                if (publish(snapshot, forward.build(), reverse.build())) {
+                    return prevForwardValue;
+                }
+            }
+        } finally {
+            stripes.unlock(hash(key), hash(value));
+        }
+    }
+
+    private static
+    <K, V> V putForce(final PersistentHashMap.Builder<K, V> forward, final PersistentHashMap.Builder<V, K> reverse, final K key, final V value) {
+        boolean hadKey = forward.containsKey(key);
+        V prevForwardValue = forward.put(key, value);
+        if (hadKey) {
+            reverse.remove(prevForwardValue);
         }
 
-        K prevReverseValue = this.reverseHashMap.put(value, key);
-        if (prevReverseValue != null) {
-            forwardHashMap.remove(prevReverseValue);
+        boolean hadValue = reverse.containsKey(value);
+        K prevReverseValue = reverse.put(value, key);
+        if (hadValue && (prevReverseValue == null ? key != null : !prevReverseValue.equals(key))) {
+            forward.remove(prevReverseValue);
         }
 
         return prevForwardValue;
@@ -232,34 +377,36 @@ class LockFreeBiMap<K, V> {
      * @throws IllegalArgumentException if the given value is already bound to a different key in this bimap. The bimap will remain
      * unmodified in this event. To avoid this exception, call {@link #putAllForce(Map)} putAllForce(K, V) instead.
      */
-    public synchronized
+    public
     void putAll(final Map<K, V> hashMap) throws IllegalArgumentException {
-        LockFreeBiMap<K, V> biMap = new LockFreeBiMap<K, V>();
-
+        stripes.lockAll();
         try {
+            Snapshot<K, V> snapshot = snapshot();
+            PersistentHashMap.Builder<K, V> forward = snapshot.forward.toBuilder();
+            PersistentHashMap.Builder<V, K> reverse = snapshot.reverse.toBuilder();
+
             for (Map.Entry<K, V> entry : hashMap.entrySet()) {
                 K key = entry.getKey();
                 V value = entry.getValue();
 
-                biMap.put(key, value);
-
                 // we have to verify that the keys/values between the bimaps are unique
-                if (this.forwardHashMap.containsKey(key)) {
+                if (forward.containsKey(key)) {
                     throw new IllegalArgumentException("Key already exists. Keys and values must both be unique!");
                 }
 
-                if (this.reverseHashMap.containsKey(value)) {
+                if (reverse.containsKey(value)) {
                     throw new IllegalArgumentException("Value already exists. Keys and values must both be unique!");
                 }
+
+                forward.put(key, value);
+                reverse.put(value, key);
             }
-        } catch (IllegalArgumentException e) {
-            // do nothing if there is an exception
-            throw e;
-        }
 
-        // only if there are no problems with the creation of the new bimap AND the uniqueness constrain is guaranteed
-        this.forwardHashMap.putAll(biMap.forwardHashMap);
-        this.reverseHashMap.putAll(biMap.reverseHashMap);
+            // only if there are no problems with the creation of the new bimap AND the uniqueness constrain is guaranteed
+            publishAll(forward.build(), reverse.build());
+        } finally {
+            stripes.unlockAll();
+        }
     }
 
     /**
@@ -273,13 +420,21 @@ class LockFreeBiMap<K, V> {
      *
      * @throws NullPointerException if the specified map is null
      */
-    public synchronized
+    public
     void putAllForce(final Map<K, V> hashMap) {
-        for (Map.Entry<K, V> entry : hashMap.entrySet()) {
-            K key = entry.getKey();
-            V value = entry.getValue();
+        stripes.lockAll();
+        try {
+            Snapshot<K, V> snapshot = snapshot();
+            PersistentHashMap.Builder<K, V> forward = snapshot.forward.toBuilder();
+            PersistentHashMap.Builder<V, K> reverse = snapshot.reverse.toBuilder();
 
-            putForce(key, value);
+            for (Map.Entry<K, V> entry : hashMap.entrySet()) {
+                putForce(forward, reverse, entry.getKey(), entry.getValue());
+            }
+
+            publishAll(forward.build(), reverse.build());
+        } finally {
+            stripes.unlockAll();
         }
     }
 
@@ -293,11 +448,26 @@ class LockFreeBiMap<K, V> {
      *         (A <tt>null</tt> return can also indicate that the map
      *         previously associated <tt>null</tt> with <tt>key</tt>.)
      */
-    public synchronized
+    public
     V remove(final K key) {
-        V value = forwardHashMap.remove(key);
-        reverseHashMap.remove(value);
-        return value;
+        // the value isn't known until the snapshot is read, so only the stripe of the key is locked (the compare-and-set still makes
+        // sure that the value hasn't changed)
+        stripes.lock(hash(key), hash(key));
+        try {
+            while (true) {
+                Snapshot<K, V> snapshot = snapshot();
+                if (!snapshot.forward.containsKey(key)) {
+                    return null;
+                }
+
+                V value = snapshot.forward.get(key);
+                if (publish(snapshot, snapshot.forward.without(key), snapshot.reverse.without(value))) {
+                    return value;
+                }
+            }
+        } finally {
+            stripes.unlock(hash(key), hash(key));
+        }
     }
 
     /**
@@ -317,11 +487,10 @@ class LockFreeBiMap<K, V> {
      *
      * @see #put(Object, Object)
      */
-    @SuppressWarnings("unchecked")
     public
     V get(final K key) {
         // use the SWP to get a lock-free get of the value
-        return (V) forwardREF.get(this).get(key);
+        return snapshot().forward.get(key);
     }
 
     /**
@@ -341,33 +510,42 @@ class LockFreeBiMap<K, V> {
      *
      * @see #put(Object, Object)
      */
-    @SuppressWarnings("unchecked")
     public
     K getReverse(final V key) {
         // use the SWP to get a lock-free get of the value
-        return (K) reverseREF.get(this).get(key);
+        return snapshot().reverse.get(key);
+    }
+
+    /**
+     * Calls the consumer for each entry of the current snapshot, without allocating. The snapshot is never modified, so this can be
+     * nested and used by any number of threads at once, and modifications made while iterating are not seen.
+     */
+    public
+    void forEach(final BiConsumer<? super K, ? super V> consumer) {
+        // use the SWP to get a lock-free get of the value
+        snapshot().forward.forEach(consumer);
     }
 
     /**
-     * Returns a {@link Collection} view of the values contained in this map.
-     * The collection is backed by the map, so changes to the map are
-     * reflected in the collection, and vice-versa.  If the map is
-     * modified while an iteration over the collection is in progress
-     * (except through the iterator's own <tt>remove</tt> operation),
-     * the results of the iteration are undefined.  The collection
-     * supports element removal, which removes the corresponding
-     * mapping from the map, via the <tt>Iterator.remove</tt>,
-     * <tt>Collection.remove</tt>, <tt>removeAll</tt>,
-     * <tt>retainAll</tt> and <tt>clear</tt> operations.  It does not
-     * support the <tt>add</tt> or <tt>addAll</tt> operations.
+     * Returns a new cursor over the entries of the current snapshot. The snapshot is never modified, so the cursor can be nested
+     * and used by any number of threads at once, and modifications made while iterating are not seen.
+     */
+    public
+    PersistentHashMap.Cursor<K, V> cursor() {
+        // use the SWP to get a lock-free get of the value
+        return snapshot().forward.cursor();
+    }
+
+    /**
+     * Returns a {@link Collection} view of the values contained in this map. The collection is an immutable snapshot, so changes to the
+     * map are NOT reflected in the collection.
      *
      * @return a view of the values contained in this map
      */
-    @SuppressWarnings("unchecked")
     public
     Collection<V> values() {
         // use the SWP to get a lock-free get of the value
-        return forwardREF.get(this).values();
+        return snapshot().forward.values();
     }
 
     /**
@@ -378,30 +556,19 @@ class LockFreeBiMap<K, V> {
     public
     boolean isEmpty() {
         // use the SWP to get a lock-free get of the value
-        return forwardREF.get(this)
-                         .isEmpty();
+        return snapshot().forward.isEmpty();
     }
 
 
     /**
-     * Returns a {@link Collection} view of the values contained in this map.
-     * The collection is backed by the map, so changes to the map are
-     * reflected in the collection, and vice-versa.  If the map is
-     * modified while an iteration over the collection is in progress
-     * (except through the iterator's own <tt>remove</tt> operation),
-     * the results of the iteration are undefined.  The collection
-     * supports element removal, which removes the corresponding
-     * mapping from the map, via the <tt>Iterator.remove</tt>,
-     * <tt>Collection.remove</tt>, <tt>removeAll</tt>,
-     * <tt>retainAll</tt> and <tt>clear</tt> operations.  It does not
-     * support the <tt>add</tt> or <tt>addAll</tt> operations.
+     * Returns a {@link Collection} view of the keys contained in this map. The collection is an immutable snapshot, so changes to the
+     * map are NOT reflected in the collection.
      *
-     * @return a view of the values contained in this map
+     * @return a view of the keys contained in this map
      */
-    @SuppressWarnings("unchecked")
     public
     Collection<K> reverseValues() {
         // use the SWP to get a lock-free get of the value
-        return reverseREF.get(this).values();
+        return snapshot().reverse.values();
     }
 }
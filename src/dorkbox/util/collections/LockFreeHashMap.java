@@ -17,11 +17,10 @@ package dorkbox.util.collections;
 
 import java.io.Serializable;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BiConsumer;
 
 /**
  * This class uses the "single-writer-principle" for lock-free publication.
@@ -31,6 +30,10 @@ import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
  * one thread can access this modification methods at a time. Getting or checking the presence of values can then happen in a lock-free
  * manner.
  * <p>
+ * The map is stored as an immutable {@link PersistentHashMap}, and every modification publishes a new snapshot. Readers never see a
+ * partially modified map, and a modification only copies the path to the modified entry instead of the entire map. Bulk modifications
+ * ({@link #putAll(Map)}, {@link #removeAll(Collection)}) are applied to a builder and published once.
+ * <p>
  * According to my benchmarks, this is approximately 25% faster than ConcurrentHashMap for (all types of) reads, and a lot slower for
  * contended writes.
  * <p>
@@ -39,44 +42,39 @@ import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 public final
 class LockFreeHashMap<K, V> implements Map<K, V>, Cloneable, Serializable {
     // Recommended for best performance while adhering to the "single writer principle". Must be static-final
-    private static final AtomicReferenceFieldUpdater<LockFreeHashMap, HashMap> mapREF = AtomicReferenceFieldUpdater.newUpdater(
+    private static final AtomicReferenceFieldUpdater<LockFreeHashMap, PersistentHashMap> mapREF = AtomicReferenceFieldUpdater.newUpdater(
             LockFreeHashMap.class,
-            HashMap.class,
+            PersistentHashMap.class,
             "hashMap");
 
-    private volatile HashMap<K, V> hashMap;
+    private volatile PersistentHashMap<K, V> hashMap;
 
     // synchronized is used here to ensure the "single writer principle", and make sure that ONLY one thread at a time can enter this
     // section. Because of this, we can have unlimited reader threads all going at the same time, without contention (which is our
     // use-case 99% of the time)
 
     /**
-     * Constructs an empty <tt>HashMap</tt> with the default initial capacity
-     * (16) and the default load factor (0.75).
+     * Constructs an empty map
      */
     public
     LockFreeHashMap() {
-        hashMap = new HashMap<K, V>();
+        hashMap = PersistentHashMap.empty();
     }
 
     /**
-     * Constructs an empty <tt>HashMap</tt> with the specified initial
-     * capacity and the default load factor (0.75).
+     * Constructs an empty map.
      *
-     * @param initialCapacity the initial capacity.
+     * @param initialCapacity ignored, the map does not need to pre-allocate
      *
      * @throws IllegalArgumentException if the initial capacity is negative.
      */
     public
     LockFreeHashMap(int initialCapacity) {
-        hashMap = new HashMap<K, V>(initialCapacity);
+        this(initialCapacity, 0.75F);
     }
 
     /**
-     * Constructs a new <tt>HashMap</tt> with the same mappings as the
-     * specified <tt>Map</tt>.  The <tt>HashMap</tt> is created with
-     * default load factor (0.75) and an initial capacity sufficient to
-     * hold the mappings in the specified <tt>Map</tt>.
+     * Constructs a new map with the same mappings as the specified <tt>Map</tt>.
      *
      * @param map the map whose mappings are to be placed in this map
      *
@@ -84,29 +82,38 @@ class LockFreeHashMap<K, V> implements Map<K, V>, Cloneable, Serializable {
      */
     public
     LockFreeHashMap(Map<K, V> map) {
-        this.hashMap = new HashMap<K, V>(map);
+        this.hashMap = PersistentHashMap.of(map);
     }
 
     /**
-     * Constructs an empty <tt>HashMap</tt> with the specified initial
-     * capacity and load factor.
+     * Constructs an empty map.
      *
-     * @param initialCapacity the initial capacity
-     * @param loadFactor the load factor
+     * @param initialCapacity ignored, the map does not need to pre-allocate
+     * @param loadFactor ignored, the map does not need to pre-allocate
      *
      * @throws IllegalArgumentException if the initial capacity is negative
      *         or the load factor is nonpositive
      */
     public
     LockFreeHashMap(int initialCapacity, float loadFactor) {
-        this.hashMap = new HashMap<K, V>(initialCapacity, loadFactor);
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("Illegal initial capacity: " + initialCapacity);
+        }
+        if (loadFactor <= 0 || Float.isNaN(loadFactor)) {
+            throw new IllegalArgumentException("Illegal load factor: " + loadFactor);
+        }
+
+        this.hashMap = PersistentHashMap.empty();
     }
 
+    /**
+     * @return an immutable snapshot of this map. It's values are only valid at the moment this method is called.
+     */
     @SuppressWarnings("unchecked")
     public
-    Map<K, V> getMap() {
+    PersistentHashMap<K, V> getMap() {
         // use the SWP to get a lock-free get of the map. It's values are only valid at the moment this method is called.
-        return Collections.unmodifiableMap(mapREF.get(this));
+        return mapREF.get(this);
     }
 
     @Override
@@ -153,39 +160,93 @@ class LockFreeHashMap<K, V> implements Map<K, V>, Cloneable, Serializable {
     @Override
     public synchronized
     V put(final K key, final V value) {
-        return hashMap.put(key, value);
+        PersistentHashMap<K, V> map = this.hashMap;
+        V prev = map.get(key);
+
+        this.hashMap = map.with(key, value);
+        return prev;
     }
 
     @Override
     public synchronized
     V remove(final Object key) {
-        return hashMap.remove(key);
+        PersistentHashMap<K, V> map = this.hashMap;
+        V prev = map.get(key);
+
+        this.hashMap = map.without(key);
+        return prev;
     }
 
     @Override
     public synchronized
     void putAll(final Map<? extends K, ? extends V> map) {
-        this.hashMap.putAll(map);
+        PersistentHashMap.Builder<K, V> builder = this.hashMap.toBuilder();
+        builder.putAll(map);
+
+        this.hashMap = builder.build();
+    }
+
+    /**
+     * Removes all of the specified keys, and publishes the result once.
+     */
+    public synchronized
+    void removeAll(final Collection<?> keys) {
+        PersistentHashMap.Builder<K, V> builder = this.hashMap.toBuilder();
+        for (Object key : keys) {
+            builder.remove(key);
+        }
+
+        this.hashMap = builder.build();
     }
 
     @Override
     public synchronized
     void clear() {
-        hashMap.clear();
+        this.hashMap = PersistentHashMap.empty();
+    }
+
+    /**
+     * Calls the consumer for each entry of the current snapshot, without allocating. The snapshot is never modified, so this can be
+     * nested and used by any number of threads at once, and modifications made while iterating are not seen.
+     */
+    @Override
+    public
+    void forEach(final BiConsumer<? super K, ? super V> consumer) {
+        // use the SWP to get a lock-free get of the value
+        getMap().forEach(consumer);
+    }
+
+    /**
+     * Returns a new cursor over the entries of the current snapshot. The snapshot is never modified, so the cursor can be nested
+     * and used by any number of threads at once, and modifications made while iterating are not seen.
+     */
+    public
+    PersistentHashMap.Cursor<K, V> cursor() {
+        // use the SWP to get a lock-free get of the value
+        return getMap().cursor();
     }
 
+    /**
+     * @return the keys of the current snapshot. Modifications to this map are not reflected by the returned set.
+     */
     @Override
     public
     Set<K> keySet() {
         return getMap().keySet();
     }
 
+    /**
+     * @return the values of the current snapshot. Modifications to this map are not reflected by the returned collection.
+     */
     @Override
     public
     Collection<V> values() {
         return getMap().values();
     }
 
+    /**
+     * @return the entries of the current snapshot. Modifications to this map are not reflected by the returned set.
+     */
     @Override
     public
     Set<Entry<K, V>> entrySet() {
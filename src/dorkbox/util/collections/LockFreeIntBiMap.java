@@ -16,9 +16,8 @@
 package dorkbox.util.collections;
 
 import java.util.HashMap;
-import java.util.Iterator;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
 
 import dorkbox.util.collections.IntMap.Entries;
 import dorkbox.util.collections.IntMap.Keys;
@@ -28,13 +27,22 @@ import dorkbox.util.collections.IntMap.Values;
  * A bimap (or "bidirectional map") is a map that preserves the uniqueness of its values as well as that of its keys. This constraint
  * enables bimaps to support an "inverse view", which is another bimap containing the same entries as this bimap but with reversed keys and values.
  *
- * This class uses the "single-writer-principle" for lock-free publication.
+ * This class uses the "single-writer-principle" for lock-free publication. Both directions of the bimap are held in a single immutable
+ * snapshot (which is shared with the inverse view), so a reader always sees the forward and reverse mappings from the same write.
  *
  * Since there are only 2 methods to guarantee that modifications can only be called one-at-a-time (either it is only called by
- * one thread, or only one thread can access it at a time) -- we chose the 2nd option -- and use 'synchronized' to make sure that only
+ * one thread, or only one thread can access it at a time) -- we chose the 2nd option -- and use a lock to make sure that only
  * one thread can access this modification methods at a time. Getting or checking the presence of values can then happen in a lock-free
  * manner.
  *
+ * Both directions are stored as immutable {@link PersistentIntMap} / {@link PersistentHashMap}s, so a modification only copies the
+ * paths to the modified entries (O(log n)) instead of both maps.
+ *
+ * For many writers, {@link #LockFreeIntBiMap(int, int)} stripes the writer lock by the key and the hash of the value. Writers of
+ * different mappings then build their snapshots at the same time, and publish them with a compare-and-set (so every modification is
+ * still atomic, and is based on the latest snapshot). A writer retries if a writer of other stripes published first, which only copies
+ * the paths to its key and value again.
+ *
  * According to my benchmarks, this is approximately 25% faster than ConcurrentHashMap for (all types of) reads, and a lot slower for
  * contended writes.
  *
@@ -42,50 +50,95 @@ import dorkbox.util.collections.IntMap.Values;
  */
 public
 class LockFreeIntBiMap<V> {
-    // Recommended for best performance while adhering to the "single writer principle". Must be static-final
-    private static final AtomicReferenceFieldUpdater<LockFreeIntBiMap, IntMap> forwardREF = AtomicReferenceFieldUpdater.newUpdater(
-            LockFreeIntBiMap.class,
-            IntMap.class,
-            "forwardHashMap");
+    /**
+     * Both directions of the bimap. Both maps are immutable, and share everything that did not change with the previous snapshot
+     */
+    static final
+    class Snapshot<V> {
+        static final Snapshot<?> EMPTY = new Snapshot<Object>(PersistentIntMap.empty(), PersistentHashMap.<Object, Integer>empty());
+
+        final PersistentIntMap<V> intMap;
+        final PersistentHashMap<V, Integer> objectMap;
+
+        Snapshot(final PersistentIntMap<V> intMap, final PersistentHashMap<V, Integer> objectMap) {
+            this.intMap = intMap;
+            this.objectMap = objectMap;
+        }
+
+        @SuppressWarnings("unchecked")
+        static <V>
+        Snapshot<V> empty() {
+            return (Snapshot<V>) EMPTY;
+        }
+
+        static <V>
+        Snapshot<V> of(final IntMap<V> intMap, final ObjectIntMap<V> objectMap) {
+            PersistentHashMap.Builder<V, Integer> builder = PersistentHashMap.builder();
+            ObjectIntMap.Cursor<V> cursor = objectMap.cursor();
+            while (cursor.advance()) {
+                builder.put(cursor.key(), cursor.value());
+            }
+
+            return new Snapshot<V>(PersistentIntMap.of(intMap), builder.build());
+        }
+
+        int get(final V objectValue, final int defaultValue) {
+            Integer value = objectMap.get(objectValue);
+            return value == null ? defaultValue : value;
+        }
+
+        /**
+         * @return a snapshot where the int and object are linked to each other, and any previous link that either one had is removed
+         */
+        Snapshot<V> link(final int intValue, final V objectValue) {
+            PersistentIntMap<V> intMap = this.intMap;
+            PersistentHashMap<V, Integer> objectMap = this.objectMap;
+
+            if (intMap.containsKey(intValue)) {
+                objectMap = objectMap.without(intMap.get(intValue));
+            }
+
+            Integer prevInt = objectMap.get(objectValue);
+            if (prevInt != null && prevInt != intValue) {
+                intMap = intMap.without(prevInt);
+            }
+
+            return new Snapshot<V>(intMap.with(intValue, objectValue), objectMap.with(objectValue, intValue));
+        }
+
+        /**
+         * @return a snapshot without the int (and the object that it is linked to)
+         */
+        Snapshot<V> unlink(final int intValue) {
+            if (!intMap.containsKey(intValue)) {
+                return this;
+            }
+            return new Snapshot<V>(intMap.without(intValue), objectMap.without(intMap.get(intValue)));
+        }
+
+        /**
+         * @return a snapshot without the object (and the int that it is linked to)
+         */
+        Snapshot<V> unlink(final V objectValue) {
+            Integer intValue = objectMap.get(objectValue);
+            if (intValue == null) {
+                return this;
+            }
+            return new Snapshot<V>(intMap.without(intValue), objectMap.without(objectValue));
+        }
+    }
 
-    private static final AtomicReferenceFieldUpdater<LockFreeIntBiMap, ObjectIntMap> reverseREF = AtomicReferenceFieldUpdater.newUpdater(
-            LockFreeIntBiMap.class,
-            ObjectIntMap.class,
-            "reverseHashMap");
+    // this is shared with the inverse view
+    private final AtomicReference<Snapshot<V>> snapshot;
 
-    private volatile IntMap<V> forwardHashMap;
-    private volatile ObjectIntMap<V> reverseHashMap;
+    // the writer locks are shared with the inverse view. With a single stripe, this is the "single writer principle", and makes sure that
+    // ONLY one thread at a time can modify the bimap. Because of this, we can have unlimited reader threads all going at the same time,
+    // without contention (which is our use-case 99% of the time)
+    private final WriteStripes stripes;
 
     private final int defaultReturnValue;
     private final LockFreeObjectIntBiMap<V> inverse;
 
-    // synchronized is used here to ensure the "single writer principle", and make sure that ONLY one thread at a time can enter this
-    // section. Because of this, we can have unlimited reader threads all going at the same time, without contention (which is our
-    // use-case 99% of the time)
-
-    // public static
-    // void main(String[] args) {
-    //     LockFreeIntBiMap<String> test = new LockFreeIntBiMap<String>();
-    //     String one = "One";
-    //     String four = "Four";
-    //
-    //     test.put(1, one);
-    //     test.put(2, "Two");
-    //     test.put(3, "Three");
-    //     test.put(4, four);
-    //     // try {
-    //     //     test.put(1, four);
-    //     // } catch (IllegalArgumentException e) {
-    //     // }
-    //     test.putForce(1, four);
-    //     test.put(5, one);
-    //
-    //     System.out.println(test.toString());
-    //
-    //     System.out.println("Reverse");
-    //     System.out.println(test.inverse().toString());
-    // }
-
     /**
      * Creates a new bimap using @{link Integer#MIN_VALUE}.
      */
@@ -101,42 +154,82 @@ class LockFreeIntBiMap<V> {
      */
     public
     LockFreeIntBiMap(int defaultReturnValue) {
-        this(new IntMap<V>(), new ObjectIntMap<V>(), defaultReturnValue);
+        this(defaultReturnValue, 1);
+    }
+
+    /**
+     * The default return value is used for various get/put operations on the IntMap/ObjectIntMap.
+     *
+     * @param defaultReturnValue value used for various get/put operations on the IntMap/ObjectIntMap.
+     * @param writeStripes the number of locks used by writers (which is rounded up to a power of two). A writer locks the stripes of
+     *                     the key and of the value, so writers of unrelated mappings can modify the bimap at the same time.
+     */
+    public
+    LockFreeIntBiMap(int defaultReturnValue, int writeStripes) {
+        this(Snapshot.<V>empty(), defaultReturnValue, writeStripes);
     }
 
     /**
      * The default return value is used for various get/put operations on the IntMap/ObjectIntMap.
      *
+     * The mappings of both maps are copied.
+     *
      * @param defaultReturnValue value used for various get/put operations on the IntMap/ObjectIntMap.
      */
     public
     LockFreeIntBiMap(IntMap<V> forwardHashMap, ObjectIntMap<V> reverseHashMap, int defaultReturnValue) {
-        this.forwardHashMap = forwardHashMap;
-        this.reverseHashMap = reverseHashMap;
+        this(forwardHashMap, reverseHashMap, defaultReturnValue, 1);
+    }
+
+    /**
+     * The default return value is used for various get/put operations on the IntMap/ObjectIntMap.
+     *
+     * The mappings of both maps are copied.
+     *
+     * @param defaultReturnValue value used for various get/put operations on the IntMap/ObjectIntMap.
+     * @param writeStripes the number of locks used by writers (which is rounded up to a power of two)
+     */
+    public
+    LockFreeIntBiMap(IntMap<V> forwardHashMap, ObjectIntMap<V> reverseHashMap, int defaultReturnValue, int writeStripes) {
+        this(Snapshot.of(forwardHashMap, reverseHashMap), defaultReturnValue, writeStripes);
+    }
+
+    private
+    LockFreeIntBiMap(Snapshot<V> initial, int defaultReturnValue, int writeStripes) {
+        this.snapshot = new AtomicReference<Snapshot<V>>(initial);
+        this.stripes = new WriteStripes(writeStripes);
         this.defaultReturnValue = defaultReturnValue;
 
-        this.inverse = new LockFreeObjectIntBiMap<V>(reverseHashMap, forwardHashMap, defaultReturnValue, this);
+        this.inverse = new LockFreeObjectIntBiMap<V>(snapshot, stripes, defaultReturnValue, this);
     }
 
-    LockFreeIntBiMap(final IntMap<V> forwardHashMap,
-                     final ObjectIntMap<V> reverseHashMap,
+    LockFreeIntBiMap(final AtomicReference<Snapshot<V>> snapshot,
+                     final WriteStripes stripes,
                      final int defaultReturnValue,
                      final LockFreeObjectIntBiMap<V> inverse) {
-
-        this.forwardHashMap = forwardHashMap;
-        this.reverseHashMap = reverseHashMap;
+        this.snapshot = snapshot;
+        this.stripes = stripes;
         this.defaultReturnValue = defaultReturnValue;
         this.inverse = inverse;
     }
 
+    static
+    int hash(final Object value) {
+        return value == null ? 0 : value.hashCode();
+    }
+
     /**
      * Removes all of the mappings from this bimap.
      * The bimap will be empty after this call returns.
      */
-    public synchronized
+    public
     void clear() {
-        forwardHashMap.clear();
-        reverseHashMap.clear();
+        stripes.lockAll();
+        try {
+            snapshot.set(Snapshot.<V>empty());
+        } finally {
+            stripes.unlockAll();
+        }
     }
 
     /**
@@ -165,30 +258,26 @@ class LockFreeIntBiMap<V> {
      * @throws IllegalArgumentException if the given value is already bound to a different key in this bimap. The bimap will remain
      * unmodified in this event. To avoid this exception, call {@link #putForce(int, Object)}  putForce(K, V) instead.
      */
-    public synchronized
+    public
     V put(final int key, final V value) throws IllegalArgumentException {
-        V prevForwardValue = this.forwardHashMap.put(key, value);
-        if (prevForwardValue != null) {
-            reverseHashMap.remove(prevForwardValue, defaultReturnValue);
-        }
-
-        int prevReverseValue = this.reverseHashMap.get(value, defaultReturnValue);
-        this.reverseHashMap.put(value, key);
-        if (prevReverseValue != defaultReturnValue) {
-            // put the old value back
-            if (prevForwardValue != null) {
-                this.forwardHashMap.put(key, prevForwardValue);
-            }
-            else {
-                this.forwardHashMap.remove(key);
-            }
+        stripes.lock(key, hash(value));
+        try {
+            while (true) {
+                Snapshot<V> current = snapshot.get();
 
-            this.reverseHashMap.put(value, prevReverseValue);
+                Integer prevKey = current.objectMap.get(value);
+                if (prevKey != null && prevKey != key) {
+                    throw new IllegalArgumentException("Value already exists. Keys and values must both be unique!");
+                }
 
-            throw new IllegalArgumentException("Value already exists. Keys and values must both be unique!");
+                V prevForwardValue = current.intMap.get(key);
+                if (putForce(current, key, value)) {
+                    return prevForwardValue;
+                }
+            }
+        } finally {
+            stripes.unlock(key, hash(value));
         }
-
-        return prevForwardValue;
     }
 
     /**
@@ -205,22 +294,28 @@ class LockFreeIntBiMap<V> {
      *         (A <tt>null</tt> return can also indicate that the map
      *         previously associated <tt>null</tt> with <tt>key</tt>.)
      */
-    public synchronized
+    public
     V putForce(final int key, final V value) {
-        V prevForwardValue = this.forwardHashMap.put(key, value);
-        if (prevForwardValue != null) {
-            reverseHashMap.remove(prevForwardValue, defaultReturnValue);
-        }
-
-
-        int prevReverseValue = this.reverseHashMap.get(value, defaultReturnValue);
-        this.reverseHashMap.put(value, key);
+        stripes.lock(key, hash(value));
+        try {
+            while (true) {
+                Snapshot<V> current = snapshot.get();
 
-        if (prevReverseValue != defaultReturnValue) {
-            forwardHashMap.remove(prevReverseValue);
+                V prevForwardValue = current.intMap.get(key);
+                if (putForce(current, key, value)) {
+                    return prevForwardValue;
+                }
+            }
+        } finally {
+            stripes.unlock(key, hash(value));
         }
+    }
 
-        return prevForwardValue;
+    // must be called while holding the stripes of the key and value. Returns false if another writer published first (in which case only
+    // the O(log n) paths to the key and value are copied again)
+    private
+    boolean putForce(final Snapshot<V> current, final int key, final V value) {
+        return snapshot.compareAndSet(current, current.link(key, value));
     }
 
     /**
@@ -235,35 +330,37 @@ class LockFreeIntBiMap<V> {
      * @throws IllegalArgumentException if the given value is already bound to a different key in this bimap. The bimap will remain
      * unmodified in this event. To avoid this exception, call {@link #putAllForce(Map)} instead.
      */
-    public synchronized
+    public
     void putAll(final Map<Integer, V> hashMap) throws IllegalArgumentException {
-        LockFreeIntBiMap<V> biMap = new LockFreeIntBiMap<V>();
-
+        stripes.lockAll();
         try {
+            Snapshot<V> current = snapshot.get();
+
+            // all the changes are made to a single snapshot, which is only published if everything is unique
+            PersistentIntMap<V> intMap = current.intMap;
+            PersistentHashMap.Builder<V, Integer> objectMap = current.objectMap.toBuilder();
+
             for (Map.Entry<Integer, V> entry : hashMap.entrySet()) {
-                Integer key = entry.getKey();
+                int key = entry.getKey();
                 V value = entry.getValue();
 
-                biMap.put(key, value);
-
-                // we have to verify that the keys/values between the bimaps are unique
-                if (this.forwardHashMap.containsKey(key)) {
+                // we have to verify that the keys/values are unique (with ourselves AND within the specified map)
+                if (intMap.containsKey(key)) {
                     throw new IllegalArgumentException("Key already exists. Keys and values must both be unique!");
                 }
 
-                if (this.reverseHashMap.containsKey(value)) {
+                if (objectMap.containsKey(value)) {
                     throw new IllegalArgumentException("Value already exists. Keys and values must both be unique!");
                 }
-            }
-        } catch (IllegalArgumentException e) {
-            // do nothing if there is an exception
-            throw e;
-        }
 
+                intMap = intMap.with(key, value);
+                objectMap.put(value, key);
+            }
 
-        // we have checked to make sure that the bimap is unique, AND have checked that we don't already have any of the key/values in ourselves
-        this.forwardHashMap.putAll(biMap.forwardHashMap);
-        this.reverseHashMap.putAll(biMap.reverseHashMap);
+            snapshot.set(new Snapshot<V>(intMap, objectMap.build()));
+        } finally {
+            stripes.unlockAll();
+        }
     }
 
     /**
@@ -277,13 +374,19 @@ class LockFreeIntBiMap<V> {
      *
      * @throws NullPointerException if the specified map is null
      */
-    public synchronized
+    public
     void putAllForce(final Map<Integer, V> hashMap) {
-        for (Map.Entry<Integer, V> entry : hashMap.entrySet()) {
-            Integer key = entry.getKey();
-            V value = entry.getValue();
+        stripes.lockAll();
+        try {
+            Snapshot<V> current = snapshot.get();
 
-            putForce(key, value);
+            for (Map.Entry<Integer, V> entry : hashMap.entrySet()) {
+                current = current.link(entry.getKey(), entry.getValue());
+            }
+
+            snapshot.set(current);
+        } finally {
+            stripes.unlockAll();
         }
     }
 
@@ -297,11 +400,25 @@ class LockFreeIntBiMap<V> {
      *         (A <tt>null</tt> return can also indicate that the map
      *         previously associated <tt>null</tt> with <tt>key</tt>.)
      */
-    public synchronized
+    public
     V remove(final int key) {
-        V value = forwardHashMap.remove(key);
-        reverseHashMap.remove(value, defaultReturnValue);
-        return value;
+        // the value isn't known until the snapshot is read, so only the stripe of the key is locked
+        stripes.lock(key, key);
+        try {
+            while (true) {
+                Snapshot<V> current = snapshot.get();
+                if (!current.intMap.containsKey(key)) {
+                    return null;
+                }
+
+                V value = current.intMap.get(key);
+                if (snapshot.compareAndSet(current, current.unlink(key))) {
+                    return value;
+                }
+            }
+        } finally {
+            stripes.unlock(key, key);
+        }
     }
 
 
@@ -322,11 +439,10 @@ class LockFreeIntBiMap<V> {
      *
      * @see #put(int, Object)
      */
-    @SuppressWarnings("unchecked")
     public
     V get(final int key) {
         // use the SWP to get a lock-free get of the value
-        return (V) forwardREF.get(this).get(key);
+        return snapshot.get().intMap.get(key);
     }
 
     /**
@@ -337,8 +453,7 @@ class LockFreeIntBiMap<V> {
     public
     boolean isEmpty() {
         // use the SWP to get a lock-free get of the value
-        return forwardREF.get(this)
-                         .size == 0;
+        return snapshot.get().intMap.isEmpty();
     }
 
     /**
@@ -351,45 +466,57 @@ class LockFreeIntBiMap<V> {
     public
     int size() {
         // use the SWP to get a lock-free get of the value
-        return forwardREF.get(this)
-                         .size;
+        return snapshot.get().intMap.size();
     }
 
     /**
-     * DO NOT MODIFY THE MAP VIA THIS (unless you synchronize around it!) It will result in unknown object visibility!
-     *
-     * Returns an iterator for the keys in the map. Remove is supported. Note that the same iterator instance is returned each
-     * time this method is called. Use the {@link Entries} constructor for nested or multithreaded iteration.
+     * Calls the consumer for each entry of the current snapshot, without allocating. The snapshot is never modified, so this can be
+     * nested and used by any number of threads at once, and modifications made while iterating are not seen.
+     */
+    public
+    void forEach(final IntObjConsumer<? super V> consumer) {
+        // use the SWP to get a lock-free get of the value
+        snapshot.get().intMap.forEach(consumer);
+    }
+
+    /**
+     * Returns a new cursor over the entries of the current snapshot. The snapshot is never modified, so (unlike the iterators) the cursor
+     * can be nested and used by any number of threads at once, and modifications made while iterating are not seen.
+     */
+    public
+    PersistentIntMap.Cursor<V> cursor() {
+        // use the SWP to get a lock-free get of the value
+        return snapshot.get().intMap.cursor();
+    }
+
+    /**
+     * Returns a new iterator for the keys of the current snapshot. The iterator is over a copy of the snapshot (which is only created once,
+     * when it is first needed and is never modified), and every call returns its own iterator. Remove is not supported.
+     * Prefer {@link #forEach} or {@link #cursor()}, which never copy the map.
      */
     public
     Keys keys() {
-        return forwardREF.get(this)
-                     .keys();
+        return snapshot.get().intMap.keys();
     }
 
     /**
-     * DO NOT MODIFY THE MAP VIA THIS (unless you synchronize around it!) It will result in unknown object visibility!
-     *
-     * Returns an iterator for the values in the map. Remove is supported. Note that the same iterator instance is returned each
-     * time this method is called. Use the {@link Entries} constructor for nested or multithreaded iteration.
+     * Returns a new iterator for the values of the current snapshot. The iterator is over a copy of the snapshot (which is only created once,
+     * when it is first needed and is never modified), and every call returns its own iterator. Remove is not supported.
+     * Prefer {@link #forEach} or {@link #cursor()}, which never copy the map.
      */
-    @SuppressWarnings("unchecked")
     public
     Values<V> values() {
-        return forwardREF.get(this)
-                     .values();
+        return snapshot.get().intMap.values();
     }
 
     /**
-     * DO NOT MODIFY THE MAP VIA THIS (unless you synchronize around it!) It will result in unknown object visibility!
-     *
-     * Returns an iterator for the entries in the map. Remove is supported. Note that the same iterator instance is returned each
-     * time this method is called. Use the {@link Entries} constructor for nested or multithreaded iteration.
+     * Returns a new iterator for the entries of the current snapshot. The iterator is over a copy of the snapshot (which is only created once,
+     * when it is first needed and is never modified), and every call returns its own iterator. Remove is not supported.
+     * Prefer {@link #forEach} or {@link #cursor()}, which never copy the map.
      */
     public
-    Entries entries() {
-        return forwardREF.get(this)
-                     .entries();
+    Entries<V> entries() {
+        return snapshot.get().intMap.entries();
     }
 
     /**
@@ -404,8 +531,9 @@ class LockFreeIntBiMap<V> {
     @Override
     public
     int hashCode() {
-        int result = forwardREF.get(this).hashCode();
-        result = 31 * result + reverseREF.get(this).hashCode();
+        Snapshot<V> current = snapshot.get();
+        int result = current.intMap.hashCode();
+        result = 31 * result + current.objectMap.hashCode();
         result = 31 * result + defaultReturnValue;
         return result;
     }
@@ -415,13 +543,11 @@ class LockFreeIntBiMap<V> {
     String toString() {
         StringBuilder builder = new StringBuilder("LockFreeIntBiMap {");
 
-        Keys keys = keys();
-        Iterator<V> values = values();
-
-        while (keys.hasNext) {
-            builder.append(keys.next());
+        PersistentIntMap.Cursor<V> cursor = snapshot.get().intMap.cursor();
+        while (cursor.advance()) {
+            builder.append(cursor.key());
             builder.append(" (")
-                   .append(values.next())
+                   .append(cursor.value())
                    .append("), ");
         }
 
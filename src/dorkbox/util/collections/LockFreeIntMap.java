@@ -30,84 +30,91 @@ import dorkbox.util.collections.IntMap.Values;
  * one thread can access this modification methods at a time. Getting or checking the presence of values can then happen in a lock-free
  * manner.
  * <p>
+ * The map is stored as an immutable {@link PersistentIntMap}, and every modification publishes a new snapshot. Readers never see a
+ * partially modified map, and a modification only copies the path to the modified entry instead of the entire map.
+ * <p>
  * According to my benchmarks, this is approximately 25% faster than ConcurrentHashMap for (all types of) reads, and a lot slower for
  * contended writes.
  * <p>
  * This data structure is for many-read/few-write scenarios
- *
- * This is an unordered map that uses int keys. This implementation is a cuckoo hash map using 3 hashes, random walking, and a small stash
- * for problematic keys. Null values are allowed. No allocation is done except when growing the table size. <br>
- * <br>
- * This map performs very fast get, containsKey, and remove (typically O(1), worst case O(log(n))). Put may be a bit slower,
- * depending on hash collisions. Load factors greater than 0.91 greatly increase the chances the map will have to rehash to the
- * next higher POT size.
- * @author Nathan Sweet
  */
 @SuppressWarnings("unchecked")
 public final
 class LockFreeIntMap<V> implements Cloneable, Serializable {
     // Recommended for best performance while adhering to the "single writer principle". Must be static-final
-    private static final AtomicReferenceFieldUpdater<LockFreeIntMap, IntMap> mapREF = AtomicReferenceFieldUpdater.newUpdater(
+    private static final AtomicReferenceFieldUpdater<LockFreeIntMap, PersistentIntMap> mapREF = AtomicReferenceFieldUpdater.newUpdater(
             LockFreeIntMap.class,
-            IntMap.class,
+            PersistentIntMap.class,
             "map");
 
-    private volatile IntMap<V> map;
+    private volatile PersistentIntMap<V> map;
 
     // synchronized is used here to ensure the "single writer principle", and make sure that ONLY one thread at a time can enter this
     // section. Because of this, we can have unlimited reader threads all going at the same time, without contention (which is our
     // use-case 99% of the time)
 
     /**
-     * Constructs an empty <tt>IntMap</tt> with the default initial capacity
-     * (16) and the default load factor (0.75).
+     * Constructs an empty map
      */
     public
     LockFreeIntMap() {
-        map = new IntMap<V>();
+        map = PersistentIntMap.empty();
     }
 
     /**
-     * Constructs an empty <tt>IntMap</tt> with the specified initial
-     * capacity and the default load factor (0.75).
+     * Constructs an empty map.
      *
-     * @param initialCapacity the initial capacity.
+     * @param initialCapacity ignored, the map does not need to pre-allocate
      *
      * @throws IllegalArgumentException if the initial capacity is negative.
      */
     public
     LockFreeIntMap(int initialCapacity) {
-        map = new IntMap<V>(initialCapacity);
+        this(initialCapacity, 0.75F);
     }
 
     /**
-     * Constructs an empty <tt>IntMap</tt> with the specified initial
-     * capacity and load factor.
+     * Constructs an empty map.
      *
-     * @param initialCapacity the initial capacity
-     * @param loadFactor the load factor
+     * @param initialCapacity ignored, the map does not need to pre-allocate
+     * @param loadFactor ignored, the map does not need to pre-allocate
      *
      * @throws IllegalArgumentException if the initial capacity is negative
      *         or the load factor is nonpositive
      */
     public
     LockFreeIntMap(int initialCapacity, float loadFactor) {
-        this.map = new IntMap<V>(initialCapacity, loadFactor);
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("Illegal initial capacity: " + initialCapacity);
+        }
+        if (loadFactor <= 0 || Float.isNaN(loadFactor)) {
+            throw new IllegalArgumentException("Illegal load factor: " + loadFactor);
+        }
+
+        this.map = PersistentIntMap.empty();
     }
 
+    /**
+     * @return an immutable snapshot of this map. It's values are only valid at the moment this method is called.
+     */
+    public
+    PersistentIntMap<V> getMap() {
+        // use the SWP to get a lock-free get of the map. It's values are only valid at the moment this method is called.
+        return mapREF.get(this);
+    }
 
     public
     int size() {
         // use the SWP to get a lock-free get of the value
         return mapREF.get(this)
-                        .size;
+                     .size();
     }
 
     public
     boolean isEmpty() {
         // use the SWP to get a lock-free get of the value
         return mapREF.get(this)
-                        .size == 0;
+                     .isEmpty();
     }
 
     public
@@ -140,58 +147,93 @@ class LockFreeIntMap<V> implements Cloneable, Serializable {
 
     public synchronized
     V put(final int key, final V value) {
-        return map.put(key, value);
+        PersistentIntMap<V> map = this.map;
+        V prev = map.get(key);
+
+        this.map = map.with(key, value);
+        return prev;
     }
 
     public synchronized
     V remove(final int key) {
-        return map.remove(key);
+        PersistentIntMap<V> map = this.map;
+        V prev = map.get(key);
+
+        this.map = map.without(key);
+        return prev;
     }
 
+    /**
+     * Copies all of the mappings from the specified map, and publishes the result once.
+     */
     public synchronized
     void putAll(final IntMap<V> map) {
-        this.map.putAll(map);
+        PersistentIntMap<V> newMap = this.map;
+
+        IntMap.Cursor<V> cursor = map.cursor();
+        while (cursor.advance()) {
+            newMap = newMap.with(cursor.key(), cursor.value());
+        }
+
+        this.map = newMap;
     }
 
     /**
-     * DO NOT MODIFY THE MAP VIA THIS (unless you synchronize around it!) It will result in unknown object visibility!
-     *
-     * Returns an iterator for the keys in the map. Remove is supported. Note that the same iterator instance is returned each
-     * time this method is called. Use the {@link Entries} constructor for nested or multithreaded iteration.
+     * Calls the consumer for each entry of the current snapshot, without allocating. The snapshot is never modified, so this can be
+     * nested and used by any number of threads at once, and modifications made while iterating are not seen.
+     */
+    public
+    void forEach(final IntObjConsumer<? super V> consumer) {
+        // use the SWP to get a lock-free get of the value
+        mapREF.get(this).forEach(consumer);
+    }
+
+    /**
+     * Returns a new cursor over the entries of the current snapshot. The snapshot is never modified, so (unlike the iterators) the cursor
+     * can be nested and used by any number of threads at once, and modifications made while iterating are not seen.
+     */
+    public
+    PersistentIntMap.Cursor<V> cursor() {
+        // use the SWP to get a lock-free get of the value
+        return mapREF.get(this).cursor();
+    }
+
+    /**
+     * Returns a new iterator for the keys of the current snapshot. The iterator is over a copy of the snapshot (which is only created once,
+     * when it is first needed and is never modified), and every call returns its own iterator. Remove is not supported.
+     * Prefer {@link #forEach} or {@link #cursor()}, which never copy the map.
      */
     public
     Keys keys() {
         return mapREF.get(this)
-                         .keys();
+                     .keys();
     }
 
     /**
-     * DO NOT MODIFY THE MAP VIA THIS (unless you synchronize around it!) It will result in unknown object visibility!
-     *
-     * Returns an iterator for the values in the map. Remove is supported. Note that the same iterator instance is returned each
-     * time this method is called. Use the {@link Entries} constructor for nested or multithreaded iteration.
+     * Returns a new iterator for the values of the current snapshot. The iterator is over a copy of the snapshot (which is only created once,
+     * when it is first needed and is never modified), and every call returns its own iterator. Remove is not supported.
+     * Prefer {@link #forEach} or {@link #cursor()}, which never copy the map.
      */
     public
     Values<V> values() {
         return mapREF.get(this)
-                         .values();
+                     .values();
     }
 
     /**
-     * DO NOT MODIFY THE MAP VIA THIS (unless you synchronize around it!) It will result in unknown object visibility!
-     *
-     * Returns an iterator for the entries in the map. Remove is supported. Note that the same iterator instance is returned each
-     * time this method is called. Use the {@link Entries} constructor for nested or multithreaded iteration.
+     * Returns a new iterator for the entries of the current snapshot. The iterator is over a copy of the snapshot (which is only created once,
+     * when it is first needed and is never modified), and every call returns its own iterator. Remove is not supported.
+     * Prefer {@link #forEach} or {@link #cursor()}, which never copy the map.
      */
     public
     Entries entries() {
         return mapREF.get(this)
-                         .entries();
+                     .entries();
     }
 
     public synchronized
     void clear() {
-        map.clear();
+        this.map = PersistentIntMap.empty();
     }
 
     /**
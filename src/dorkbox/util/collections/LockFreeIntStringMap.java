@@ -13,55 +13,57 @@ import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
  * contended writes.
  * <p>
  * This data structure is for many-read/few-write scenarios
- *
- * This is an unordered map that uses int keys. This implementation is a cuckoo hash map using 3 hashes, random walking, and a small stash
- * for problematic keys. Null values are allowed. No allocation is done except when growing the table size. <br>
- * <br>
- * This map performs very fast get, containsKey, and remove (typically O(1), worst case O(log(n))). Put may be a bit slower,
- * depending on hash collisions. Load factors greater than 0.91 greatly increase the chances the map will have to rehash to the
- * next higher POT size.
+ * <p>
+ * The map is stored as an immutable {@link PersistentIntMap}, and every modification publishes a new snapshot. Readers never see a
+ * partially modified map, and a modification only copies the path to the modified entry instead of the entire map. String keys are
+ * stored by their hash code.
  */
 @SuppressWarnings("unchecked")
 public
 class LockFreeIntStringMap<V> {
-    private static final AtomicReferenceFieldUpdater<LockFreeIntStringMap, IntMap> mapREF = AtomicReferenceFieldUpdater.newUpdater(
+    private static final AtomicReferenceFieldUpdater<LockFreeIntStringMap, PersistentIntMap> mapREF = AtomicReferenceFieldUpdater.newUpdater(
             LockFreeIntStringMap.class,
-            IntMap.class,
+            PersistentIntMap.class,
             "map");
 
-    private volatile IntMap<V> map;
+    private volatile PersistentIntMap<V> map;
 
 
     public LockFreeIntStringMap() {
-        this.map = new IntMap<>();
+        this.map = PersistentIntMap.empty();
     }
 
     /**
-     * Constructs an empty <tt>IntMap</tt> with the specified initial
-     * capacity and the default load factor (0.75).
+     * Constructs an empty map.
      *
-     * @param initialCapacity the initial capacity.
+     * @param initialCapacity ignored, the map does not need to pre-allocate
      *
      * @throws IllegalArgumentException if the initial capacity is negative.
      */
     public
     LockFreeIntStringMap(int initialCapacity) {
-        map = new IntMap<>(initialCapacity);
+        this(initialCapacity, 0.75F);
     }
 
     /**
-     * Constructs an empty <tt>IntMap</tt> with the specified initial
-     * capacity and load factor.
+     * Constructs an empty map.
      *
-     * @param initialCapacity the initial capacity
-     * @param loadFactor the load factor
+     * @param initialCapacity ignored, the map does not need to pre-allocate
+     * @param loadFactor ignored, the map does not need to pre-allocate
      *
      * @throws IllegalArgumentException if the initial capacity is negative
      *         or the load factor is nonpositive
      */
     public
     LockFreeIntStringMap(int initialCapacity, float loadFactor) {
-        this.map = new IntMap(initialCapacity, loadFactor);
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("Illegal initial capacity: " + initialCapacity);
+        }
+        if (loadFactor <= 0 || Float.isNaN(loadFactor)) {
+            throw new IllegalArgumentException("Illegal load factor: " + loadFactor);
+        }
+
+        this.map = PersistentIntMap.empty();
     }
 
 
@@ -69,14 +71,14 @@ class LockFreeIntStringMap<V> {
     int size() {
         // use the SWP to get a lock-free get of the value
         return mapREF.get(this)
-                       .size;
+                     .size();
     }
 
     public
     boolean isEmpty() {
         // use the SWP to get a lock-free get of the value
         return mapREF.get(this)
-                       .size == 0;
+                     .isEmpty();
     }
 
     public
@@ -123,34 +125,71 @@ class LockFreeIntStringMap<V> {
 
     public synchronized
     V put(final int key, final V value) {
-        return map.put(key, value);
+        PersistentIntMap<V> map = this.map;
+        V prev = map.get(key);
+
+        this.map = map.with(key, value);
+        return prev;
     }
 
-    public synchronized
+    public
     V put(final String key, final V value) {
-        return map.put(key.hashCode(), value);
+        return put(key.hashCode(), value);
     }
 
     public synchronized
     V remove(final int key) {
-        return map.remove(key);
+        PersistentIntMap<V> map = this.map;
+        V prev = map.get(key);
+
+        this.map = map.without(key);
+        return prev;
     }
 
-    public synchronized
+    public
     V remove(final String key) {
-        return map.remove(key.hashCode());
+        return remove(key.hashCode());
     }
 
+    /**
+     * Copies all of the mappings from the specified map, and publishes the result once.
+     */
     public synchronized
     void putAll(final IntMap<V> map) {
-        this.map.putAll(map);
+        PersistentIntMap<V> newMap = this.map;
+
+        IntMap.Cursor<V> cursor = map.cursor();
+        while (cursor.advance()) {
+            newMap = newMap.with(cursor.key(), cursor.value());
+        }
+
+        this.map = newMap;
     }
 
     /**
-     * DO NOT MODIFY THE MAP VIA THIS (unless you synchronize around it!) It will result in unknown object visibility!
-     *
-     * Returns an iterator for the keys in the map. Remove is supported. Note that the same iterator instance is returned each
-     * time this method is called. Use the {@link IntMap.Entries} constructor for nested or multithreaded iteration.
+     * Calls the consumer for each entry of the current snapshot, without allocating. The snapshot is never modified, so this can be
+     * nested and used by any number of threads at once, and modifications made while iterating are not seen.
+     */
+    public
+    void forEach(final IntObjConsumer<? super V> consumer) {
+        // use the SWP to get a lock-free get of the value
+        mapREF.get(this).forEach(consumer);
+    }
+
+    /**
+     * Returns a new cursor over the entries of the current snapshot. The snapshot is never modified, so (unlike the iterators) the cursor
+     * can be nested and used by any number of threads at once, and modifications made while iterating are not seen.
+     */
+    public
+    PersistentIntMap.Cursor<V> cursor() {
+        // use the SWP to get a lock-free get of the value
+        return mapREF.get(this).cursor();
+    }
+
+    /**
+     * Returns a new iterator for the keys of the current snapshot. The iterator is over a copy of the snapshot (which is only created once,
+     * when it is first needed and is never modified), and every call returns its own iterator. Remove is not supported.
+     * Prefer {@link #forEach} or {@link #cursor()}, which never copy the map.
      */
     public
     IntMap.Keys keys() {
@@ -159,10 +198,9 @@ class LockFreeIntStringMap<V> {
     }
 
     /**
-     * DO NOT MODIFY THE MAP VIA THIS (unless you synchronize around it!) It will result in unknown object visibility!
-     *
-     * Returns an iterator for the values in the map. Remove is supported. Note that the same iterator instance is returned each
-     * time this method is called. Use the {@link IntMap.Entries} constructor for nested or multithreaded iteration.
+     * Returns a new iterator for the values of the current snapshot. The iterator is over a copy of the snapshot (which is only created once,
+     * when it is first needed and is never modified), and every call returns its own iterator. Remove is not supported.
+     * Prefer {@link #forEach} or {@link #cursor()}, which never copy the map.
      */
     public
     IntMap.Values<V> values() {
@@ -171,10 +209,9 @@ class LockFreeIntStringMap<V> {
     }
 
     /**
-     * DO NOT MODIFY THE MAP VIA THIS (unless you synchronize around it!) It will result in unknown object visibility!
-     *
-     * Returns an iterator for the entries in the map. Remove is supported. Note that the same iterator instance is returned each
-     * time this method is called. Use the {@link IntMap.Entries} constructor for nested or multithreaded iteration.
+     * Returns a new iterator for the entries of the current snapshot. The iterator is over a copy of the snapshot (which is only created once,
+     * when it is first needed and is never modified), and every call returns its own iterator. Remove is not supported.
+     * Prefer {@link #forEach} or {@link #cursor()}, which never copy the map.
      */
     public
     IntMap.Entries<V> entries() {
@@ -184,7 +221,7 @@ class LockFreeIntStringMap<V> {
 
     public synchronized
     void clear() {
-        map.clear();
+        this.map = PersistentIntMap.empty();
     }
 
     /**
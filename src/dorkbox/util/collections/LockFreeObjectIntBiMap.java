@@ -18,22 +18,32 @@ package dorkbox.util.collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.ObjIntConsumer;
 
-import dorkbox.util.collections.IntMap.Entries;
 import dorkbox.util.collections.IntMap.Keys;
+import dorkbox.util.collections.LockFreeIntBiMap.Snapshot;
 
 /**
  * A bimap (or "bidirectional map") is a map that preserves the uniqueness of its values as well as that of its keys. This constraint
  * enables bimaps to support an "inverse view", which is another bimap containing the same entries as this bimap but with reversed keys and values.
  *
- * This class uses the "single-writer-principle" for lock-free publication.
+ * This class uses the "single-writer-principle" for lock-free publication. Both directions of the bimap are held in a single immutable
+ * snapshot (which is shared with the inverse view), so a reader always sees the forward and reverse mappings from the same write.
  *
  * Since there are only 2 methods to guarantee that modifications can only be called one-at-a-time (either it is only called by
- * one thread, or only one thread can access it at a time) -- we chose the 2nd option -- and use 'synchronized' to make sure that only
+ * one thread, or only one thread can access it at a time) -- we chose the 2nd option -- and use a lock to make sure that only
  * one thread can access this modification methods at a time. Getting or checking the presence of values can then happen in a lock-free
  * manner.
  *
+ * Both directions are stored as immutable {@link PersistentHashMap} / {@link PersistentIntMap}s, so a modification only copies the
+ * paths to the modified entries (O(log n)) instead of both maps.
+ *
+ * For many writers, {@link #LockFreeObjectIntBiMap(int, int)} stripes the writer lock by the hash of the key and the value. Writers of
+ * different mappings then build their snapshots at the same time, and publish them with a compare-and-set (so every modification is
+ * still atomic, and is based on the latest snapshot). A writer retries if a writer of other stripes published first, which only copies
+ * the paths to its key and value again.
+ *
  * According to my benchmarks, this is approximately 25% faster than ConcurrentHashMap for (all types of) reads, and a lot slower for
  * contended writes.
  *
@@ -41,27 +51,17 @@ import dorkbox.util.collections.IntMap.Keys;
  */
 public
 class LockFreeObjectIntBiMap<V> {
-    // Recommended for best performance while adhering to the "single writer principle". Must be static-final
-    private static final AtomicReferenceFieldUpdater<LockFreeObjectIntBiMap, ObjectIntMap> forwardREF = AtomicReferenceFieldUpdater.newUpdater(
-            LockFreeObjectIntBiMap.class,
-            ObjectIntMap.class,
-            "forwardHashMap");
-
-    private static final AtomicReferenceFieldUpdater<LockFreeObjectIntBiMap, IntMap> reverseREF = AtomicReferenceFieldUpdater.newUpdater(
-            LockFreeObjectIntBiMap.class,
-            IntMap.class,
-            "reverseHashMap");
+    // this is shared with the inverse view
+    private final AtomicReference<Snapshot<V>> snapshot;
 
-    private volatile ObjectIntMap<V> forwardHashMap;
-    private volatile IntMap<V> reverseHashMap;
+    // the writer locks are shared with the inverse view. With a single stripe, this is the "single writer principle", and makes sure that
+    // ONLY one thread at a time can modify the bimap. Because of this, we can have unlimited reader threads all going at the same time,
+    // without contention (which is our use-case 99% of the time)
+    private final WriteStripes stripes;
 
     private final int defaultReturnValue;
     private final LockFreeIntBiMap<V> inverse;
 
-    // synchronized is used here to ensure the "single writer principle", and make sure that ONLY one thread at a time can enter this
-    // section. Because of this, we can have unlimited reader threads all going at the same time, without contention (which is our
-    // use-case 99% of the time)
-
     /**
      * Creates a new bimap using @{link Integer#MIN_VALUE}.
      */
@@ -77,29 +77,48 @@ class LockFreeObjectIntBiMap<V> {
      */
     public
     LockFreeObjectIntBiMap(int defaultReturnValue) {
-        this(new ObjectIntMap<V>(), new IntMap<V>(), defaultReturnValue);
+        this(defaultReturnValue, 1);
+    }
+
+    /**
+     * The default return value is used for various get/put operations on the IntMap/ObjectIntMap.
+     *
+     * @param defaultReturnValue value used for various get/put operations on the IntMap/ObjectIntMap.
+     * @param writeStripes the number of locks used by writers (which is rounded up to a power of two). A writer locks the stripes of
+     *                     the key and of the value, so writers of unrelated mappings can modify the bimap at the same time.
+     */
+    public
+    LockFreeObjectIntBiMap(int defaultReturnValue, int writeStripes) {
+        this(Snapshot.<V>empty(), defaultReturnValue, writeStripes);
     }
 
     /**
      * The default return value is used for various get/put operations on the IntMap/ObjectIntMap.
      *
+     * The mappings of both maps are copied.
+     *
      * @param defaultReturnValue value used for various get/put operations on the IntMap/ObjectIntMap.
+     * @param writeStripes the number of locks used by writers (which is rounded up to a power of two)
      */
-    LockFreeObjectIntBiMap(ObjectIntMap<V> forwardHashMap, IntMap<V> reverseHashMap, int defaultReturnValue) {
-        this.forwardHashMap = forwardHashMap;
-        this.reverseHashMap = reverseHashMap;
+    LockFreeObjectIntBiMap(ObjectIntMap<V> forwardHashMap, IntMap<V> reverseHashMap, int defaultReturnValue, int writeStripes) {
+        this(Snapshot.of(reverseHashMap, forwardHashMap), defaultReturnValue, writeStripes);
+    }
+
+    private
+    LockFreeObjectIntBiMap(Snapshot<V> initial, int defaultReturnValue, int writeStripes) {
+        this.snapshot = new AtomicReference<Snapshot<V>>(initial);
+        this.stripes = new WriteStripes(writeStripes);
         this.defaultReturnValue = defaultReturnValue;
 
-        this.inverse = new LockFreeIntBiMap<V>(reverseHashMap, forwardHashMap, defaultReturnValue, this);
+        this.inverse = new LockFreeIntBiMap<V>(snapshot, stripes, defaultReturnValue, this);
     }
 
-    LockFreeObjectIntBiMap(final ObjectIntMap<V> forwardHashMap,
-                           final IntMap<V> reverseHashMap,
+    LockFreeObjectIntBiMap(final AtomicReference<Snapshot<V>> snapshot,
+                           final WriteStripes stripes,
                            final int defaultReturnValue,
                            final LockFreeIntBiMap<V> inverse) {
-
-        this.forwardHashMap = forwardHashMap;
-        this.reverseHashMap = reverseHashMap;
+        this.snapshot = snapshot;
+        this.stripes = stripes;
         this.defaultReturnValue = defaultReturnValue;
         this.inverse = inverse;
     }
@@ -109,10 +128,14 @@ class LockFreeObjectIntBiMap<V> {
      *
      * The bimap will be empty after this call returns.
      */
-    public synchronized
+    public
     void clear() {
-        forwardHashMap.clear();
-        reverseHashMap.clear();
+        stripes.lockAll();
+        try {
+            snapshot.set(Snapshot.<V>empty());
+        } finally {
+            stripes.unlockAll();
+        }
     }
 
     /**
@@ -141,30 +164,29 @@ class LockFreeObjectIntBiMap<V> {
      * @throws IllegalArgumentException if the given value is already bound to a different key in this bimap. The bimap will remain
      * unmodified in this event. To avoid this exception, call {@link #putForce(Object, int)} instead.
      */
-    public synchronized
+    public
     int put(final V key, final int value) throws IllegalArgumentException {
-        int prevForwardValue = this.forwardHashMap.get(key, defaultReturnValue);
-        this.forwardHashMap.put(key, value);
-        if (prevForwardValue != defaultReturnValue) {
-            reverseHashMap.remove(prevForwardValue);
-        }
+        int hash = LockFreeIntBiMap.hash(key);
+        stripes.lock(hash, value);
+        try {
+            while (true) {
+                Snapshot<V> current = snapshot.get();
+
+                if (current.intMap.containsKey(value)) {
+                    V prevKey = current.intMap.get(value);
+                    if (prevKey == null ? key != null : !prevKey.equals(key)) {
+                        throw new IllegalArgumentException("Value already exists. Keys and values must both be unique!");
+                    }
+                }
 
-        V prevReverseValue = this.reverseHashMap.put(value, key);
-        if (prevReverseValue != null) {
-            // put the old value back
-            if (prevForwardValue != defaultReturnValue) {
-                this.forwardHashMap.put(key, prevForwardValue);
-            }
-            else {
-                this.forwardHashMap.remove(key, defaultReturnValue);
+                int prevForwardValue = current.get(key, defaultReturnValue);
+                if (putForce(current, key, value)) {
+                    return prevForwardValue;
+                }
             }
-
-            this.reverseHashMap.put(value, prevReverseValue);
-
-            throw new IllegalArgumentException("Value already exists. Keys and values must both be unique!");
+        } finally {
+            stripes.unlock(hash, value);
         }
-
-        return prevForwardValue;
     }
 
     /**
@@ -181,23 +203,29 @@ class LockFreeObjectIntBiMap<V> {
      *         (A <tt>null</tt> return can also indicate that the map
      *         previously associated <tt>null</tt> with <tt>key</tt>.)
      */
-    public synchronized
+    public
     int putForce(final V key, final int value) {
-        int prevForwardValue = this.forwardHashMap.get(key, defaultReturnValue);
-        this.forwardHashMap.put(key, value);
-        if (prevForwardValue != defaultReturnValue) {
-            reverseHashMap.remove(prevForwardValue);
-        }
-
-
-        V prevReverseValue = this.reverseHashMap.get(value);
-        this.reverseHashMap.put(value, key);
+        int hash = LockFreeIntBiMap.hash(key);
+        stripes.lock(hash, value);
+        try {
+            while (true) {
+                Snapshot<V> current = snapshot.get();
 
-        if (prevReverseValue != null) {
-            forwardHashMap.remove(prevReverseValue, defaultReturnValue);
+                int prevForwardValue = current.get(key, defaultReturnValue);
+                if (putForce(current, key, value)) {
+                    return prevForwardValue;
+                }
+            }
+        } finally {
+            stripes.unlock(hash, value);
         }
+    }
 
-        return prevForwardValue;
+    // must be called while holding the stripes of the key and value. Returns false if another writer published first (in which case only
+    // the O(log n) paths to the key and value are copied again)
+    private
+    boolean putForce(final Snapshot<V> current, final V key, final int value) {
+        return snapshot.compareAndSet(current, current.link(value, key));
     }
 
     /**
@@ -212,34 +240,37 @@ class LockFreeObjectIntBiMap<V> {
      * @throws IllegalArgumentException if the given value is already bound to a different key in this bimap. The bimap will remain
      * unmodified in this event. To avoid this exception, call {@link #putAllForce(Map)} instead.
      */
-    public synchronized
+    public
     void putAll(final Map<V, Integer> hashMap) throws IllegalArgumentException {
-        LockFreeObjectIntBiMap<V> biMap = new LockFreeObjectIntBiMap<V>();
-
+        stripes.lockAll();
         try {
+            Snapshot<V> current = snapshot.get();
+
+            // all the changes are made to a single snapshot, which is only published if everything is unique
+            PersistentIntMap<V> intMap = current.intMap;
+            PersistentHashMap.Builder<V, Integer> objectMap = current.objectMap.toBuilder();
+
             for (Map.Entry<V, Integer> entry : hashMap.entrySet()) {
                 V key = entry.getKey();
-                Integer value = entry.getValue();
-
-                biMap.put(key, value);
+                int value = entry.getValue();
 
-                // we have to verify that the keys/values between the bimaps are unique
-                if (this.forwardHashMap.containsKey(key)) {
+                // we have to verify that the keys/values are unique (with ourselves AND within the specified map)
+                if (objectMap.containsKey(key)) {
                     throw new IllegalArgumentException("Key already exists. Keys and values must both be unique!");
                 }
 
-                if (this.reverseHashMap.containsKey(value)) {
+                if (intMap.containsKey(value)) {
                     throw new IllegalArgumentException("Value already exists. Keys and values must both be unique!");
                 }
+
+                objectMap.put(key, value);
+                intMap = intMap.with(value, key);
             }
-        } catch (IllegalArgumentException e) {
-            // do nothing if there is an exception
-            throw e;
-        }
 
-        // we have checked to make sure that the bimap is unique, AND have checked that we don't already have any of the key/values in ourselves
-        this.forwardHashMap.putAll(biMap.forwardHashMap);
-        this.reverseHashMap.putAll(biMap.reverseHashMap);
+            snapshot.set(new Snapshot<V>(intMap, objectMap.build()));
+        } finally {
+            stripes.unlockAll();
+        }
     }
 
     /**
@@ -253,13 +284,19 @@ class LockFreeObjectIntBiMap<V> {
      *
      * @throws NullPointerException if the specified map is null
      */
-    public synchronized
+    public
     void putAllForce(final Map<V, Integer> hashMap) {
-        for (Map.Entry<V, Integer> entry : hashMap.entrySet()) {
-            V key = entry.getKey();
-            Integer value = entry.getValue();
+        stripes.lockAll();
+        try {
+            Snapshot<V> current = snapshot.get();
 
-            putForce(key, value);
+            for (Map.Entry<V, Integer> entry : hashMap.entrySet()) {
+                current = current.link(entry.getValue(), entry.getKey());
+            }
+
+            snapshot.set(current);
+        } finally {
+            stripes.unlockAll();
         }
     }
 
@@ -273,11 +310,26 @@ class LockFreeObjectIntBiMap<V> {
      *         (A <tt>defaultReturnValue</tt> return can also indicate that the map
      *         previously associated <tt>defaultReturnValue</tt> with <tt>key</tt>.)
      */
-    public synchronized
+    public
     int remove(final V key) {
-        int value = forwardHashMap.remove(key, defaultReturnValue);
-        reverseHashMap.remove(value);
-        return value;
+        // the value isn't known until the snapshot is read, so only the stripe of the key is locked
+        int hash = LockFreeIntBiMap.hash(key);
+        stripes.lock(hash, hash);
+        try {
+            while (true) {
+                Snapshot<V> current = snapshot.get();
+                Integer value = current.objectMap.get(key);
+                if (value == null) {
+                    return defaultReturnValue;
+                }
+
+                if (snapshot.compareAndSet(current, current.unlink(key))) {
+                    return value;
+                }
+            }
+        } finally {
+            stripes.unlock(hash, hash);
+        }
     }
 
 
@@ -298,16 +350,39 @@ class LockFreeObjectIntBiMap<V> {
      *
      * @see #put(Object, int)
      */
-    @SuppressWarnings("unchecked")
     public
     int get(final V key) {
         // use the SWP to get a lock-free get of the value
-        return forwardREF.get(this).get(key, defaultReturnValue);
+        return snapshot.get().get(key, defaultReturnValue);
     }
 
     /**
-     * Returns an iterator for the keys in the map. Remove is supported. Note that the same iterator instance is returned each
-     * time this method is called. Use the {@link Entries} constructor for nested or multithreaded iteration.
+     * Calls the consumer for each entry of the current snapshot, without allocating per entry. The snapshot is never modified, so this can
+     * be nested and used by any number of threads at once, and modifications made while iterating are not seen.
+     */
+    public
+    void forEach(final ObjIntConsumer<? super V> consumer) {
+        // use the SWP to get a lock-free get of the value
+        PersistentHashMap.Cursor<V, Integer> cursor = snapshot.get().objectMap.cursor();
+        while (cursor.advance()) {
+            consumer.accept(cursor.key(), cursor.value());
+        }
+    }
+
+    /**
+     * Returns a new cursor over the entries of the current snapshot. The snapshot is never modified, so (unlike the iterators) the cursor
+     * can be nested and used by any number of threads at once, and modifications made while iterating are not seen.
+     */
+    public
+    PersistentHashMap.Cursor<V, Integer> cursor() {
+        // use the SWP to get a lock-free get of the value
+        return snapshot.get().objectMap.cursor();
+    }
+
+    /**
+     * Returns an iterator for the keys of the current snapshot. The iterator is over a copy of the snapshot (which is only created once,
+     * when it is first needed), so removing through it does not change this map. Note that the same iterator instance is returned each
+     * time this method is called (for the same snapshot). Prefer {@link #forEach} or {@link #cursor()}, which never copy the map.
      */
     @SuppressWarnings("unchecked")
     public
@@ -317,8 +392,9 @@ class LockFreeObjectIntBiMap<V> {
     }
 
     /**
-     * Returns an iterator for the values in the map. Remove is supported. Note that the same iterator instance is returned each
-     * time this method is called. Use the {@link Entries} constructor for nested or multithreaded iteration.
+     * Returns an iterator for the values of the current snapshot. The iterator is over a copy of the snapshot (which is only created once,
+     * when it is first needed), so removing through it does not change this map. Note that the same iterator instance is returned each
+     * time this method is called (for the same snapshot). Prefer {@link #forEach} or {@link #cursor()}, which never copy the map.
      */
     @SuppressWarnings("unchecked")
     public
@@ -335,8 +411,7 @@ class LockFreeObjectIntBiMap<V> {
     public
     boolean isEmpty() {
         // use the SWP to get a lock-free get of the value
-        return forwardREF.get(this)
-                         .size == 0;
+        return snapshot.get().objectMap.isEmpty();
     }
 
     /**
@@ -349,8 +424,7 @@ class LockFreeObjectIntBiMap<V> {
     public
     int size() {
         // use the SWP to get a lock-free get of the value
-        return forwardREF.get(this)
-                         .size;
+        return snapshot.get().objectMap.size();
     }
 
     /**
@@ -365,8 +439,9 @@ class LockFreeObjectIntBiMap<V> {
     @Override
     public
     int hashCode() {
-        int result = forwardREF.get(this).hashCode();
-        result = 31 * result + reverseREF.get(this).hashCode();
+        Snapshot<V> current = snapshot.get();
+        int result = current.objectMap.hashCode();
+        result = 31 * result + current.intMap.hashCode();
         result = 31 * result + defaultReturnValue;
         return result;
     }
@@ -376,13 +451,11 @@ class LockFreeObjectIntBiMap<V> {
     String toString() {
         StringBuilder builder = new StringBuilder("LockFreeObjectIntBiMap {");
 
-        Iterator<V> keys = keys();
-        Keys values = values();
-
-        while (keys.hasNext()) {
-            builder.append(keys.next());
+        PersistentIntMap.Cursor<V> cursor = snapshot.get().intMap.cursor();
+        while (cursor.advance()) {
+            builder.append(cursor.value());
             builder.append(" (")
-                   .append(values.next())
+                   .append(cursor.key())
                    .append("), ");
         }
 
@@ -18,6 +18,7 @@ package dorkbox.util.collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.ObjIntConsumer;
 
 /**
  * This class uses the "single-writer-principle" for lock-free publication.
@@ -31,16 +32,19 @@ import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
  * contended writes.
  *
  * This data structure is for many-read/few-write scenarios
+ *
+ * The map is stored as an immutable {@link PersistentHashMap}, and every modification publishes a new snapshot. Readers never see a
+ * partially modified map, and a modification only copies the path to the modified entry instead of the entire map.
  */
 public
 class LockFreeObjectIntMap<V> {
     // Recommended for best performance while adhering to the "single writer principle". Must be static-final
-    private static final AtomicReferenceFieldUpdater<LockFreeObjectIntMap, ObjectIntMap> mapREF = AtomicReferenceFieldUpdater.newUpdater(
+    private static final AtomicReferenceFieldUpdater<LockFreeObjectIntMap, PersistentHashMap> mapREF = AtomicReferenceFieldUpdater.newUpdater(
             LockFreeObjectIntMap.class,
-            ObjectIntMap.class,
+            PersistentHashMap.class,
             "map");
 
-    private volatile ObjectIntMap<V> map;
+    private volatile PersistentHashMap<V, Integer> map;
 
     private final int defaultReturnValue;
 
@@ -72,7 +76,13 @@ class LockFreeObjectIntMap<V> {
      * @param defaultReturnValue value used for various get/put operations on the ObjectIntMap.
      */
     LockFreeObjectIntMap(ObjectIntMap<V> forwardHashMap, int defaultReturnValue) {
-        this.map = forwardHashMap;
+        PersistentHashMap.Builder<V, Integer> builder = PersistentHashMap.builder();
+        ObjectIntMap.Cursor<V> cursor = forwardHashMap.cursor();
+        while (cursor.advance()) {
+            builder.put(cursor.key(), cursor.value());
+        }
+
+        this.map = builder.build();
         this.defaultReturnValue = defaultReturnValue;
     }
 
@@ -83,15 +93,16 @@ class LockFreeObjectIntMap<V> {
      */
     public synchronized
     void clear() {
-        map.clear();
+        this.map = PersistentHashMap.empty();
     }
 
     public synchronized
     int put(final V key, final int value) {
-        int prevForwardValue = this.map.get(key, defaultReturnValue);
-        this.map.put(key, value);
+        PersistentHashMap<V, Integer> map = this.map;
+        Integer prevForwardValue = map.get(key);
 
-        return prevForwardValue;
+        this.map = map.with(key, value);
+        return prevForwardValue == null ? defaultReturnValue : prevForwardValue;
     }
 
     /**
@@ -105,18 +116,17 @@ class LockFreeObjectIntMap<V> {
      */
     public synchronized
     void putAll(final Map<V, Integer> hashMap) throws IllegalArgumentException {
-        try {
-            ObjectIntMap<V> map = this.map;
-            for (Map.Entry<V, Integer> entry : hashMap.entrySet()) {
-                V key = entry.getKey();
-                Integer value = entry.getValue();
-
-                map.put(key, value);
-            }
-        } catch (IllegalArgumentException e) {
-            // do nothing if there is an exception
-            throw e;
+        // the changes are published once, after all of them have been made
+        PersistentHashMap.Builder<V, Integer> builder = this.map.toBuilder();
+        for (Map.Entry<V, Integer> entry : hashMap.entrySet()) {
+            V key = entry.getKey();
+            Integer value = entry.getValue();
+
+            // unboxed first, so that a null value fails here (like it did with an ObjectIntMap)
+            builder.put(key, value.intValue());
         }
+
+        this.map = builder.build();
     }
 
     /**
@@ -131,7 +141,13 @@ class LockFreeObjectIntMap<V> {
      */
     public synchronized
     int remove(final V key) {
-        int value = map.remove(key, defaultReturnValue);
+        PersistentHashMap<V, Integer> map = this.map;
+        Integer value = map.get(key);
+        if (value == null) {
+            return defaultReturnValue;
+        }
+
+        this.map = map.without(key);
         return value;
     }
 
@@ -157,7 +173,8 @@ class LockFreeObjectIntMap<V> {
     public
     int get(final V key) {
         // use the SWP to get a lock-free get of the value
-        return mapREF.get(this).get(key, defaultReturnValue);
+        Integer value = (Integer) mapREF.get(this).get(key);
+        return value == null ? defaultReturnValue : value;
     }
 
     /**
@@ -169,7 +186,7 @@ class LockFreeObjectIntMap<V> {
     boolean isEmpty() {
         // use the SWP to get a lock-free get of the value
         return mapREF.get(this)
-                         .size == 0;
+                     .isEmpty();
     }
 
     /**
@@ -183,7 +200,32 @@ class LockFreeObjectIntMap<V> {
     int size() {
         // use the SWP to get a lock-free get of the value
         return mapREF.get(this)
-                         .size;
+                     .size();
+    }
+
+    /**
+     * Calls the consumer for each entry of the current snapshot, without allocating per entry. The snapshot is never modified, so this can
+     * be nested and used by any number of threads at once, and modifications made while iterating are not seen.
+     */
+    @SuppressWarnings("unchecked")
+    public
+    void forEach(final ObjIntConsumer<? super V> consumer) {
+        // use the SWP to get a lock-free get of the value
+        PersistentHashMap.Cursor<V, Integer> cursor = mapREF.get(this).cursor();
+        while (cursor.advance()) {
+            consumer.accept(cursor.key(), cursor.value());
+        }
+    }
+
+    /**
+     * Returns a new cursor over the entries of the current snapshot. The snapshot is never modified, so the cursor can be nested
+     * and used by any number of threads at once, and modifications made while iterating are not seen.
+     */
+    @SuppressWarnings("unchecked")
+    public
+    PersistentHashMap.Cursor<V, Integer> cursor() {
+        // use the SWP to get a lock-free get of the value
+        return mapREF.get(this).cursor();
     }
 
     /**
@@ -19,6 +19,7 @@ import static dorkbox.util.collections.ObjectMap.*;
 
 import java.io.Serializable;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.BiConsumer;
 
 /**
  * This class uses the "single-writer-principle" for lock-free publication.
@@ -32,71 +33,101 @@ import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
  * contended writes.
  * <p>
  * This data structure is for many-read/few-write scenarios
+ * <p>
+ * The map is stored as an immutable {@link PersistentHashMap}, and every modification publishes a new snapshot. Readers never see a
+ * partially modified map, and a modification only copies the path to the modified entry instead of the entire map.
  */
 @SuppressWarnings("unchecked")
 public final
 class LockFreeObjectMap<K, V> implements Cloneable, Serializable {
     // Recommended for best performance while adhering to the "single writer principle". Must be static-final
-    private static final AtomicReferenceFieldUpdater<LockFreeObjectMap, ObjectMap> mapREF = AtomicReferenceFieldUpdater.newUpdater(
+    private static final AtomicReferenceFieldUpdater<LockFreeObjectMap, PersistentHashMap> mapREF = AtomicReferenceFieldUpdater.newUpdater(
             LockFreeObjectMap.class,
-            ObjectMap.class,
+            PersistentHashMap.class,
             "hashMap");
 
-    private volatile ObjectMap<K, V> hashMap;
+    private volatile PersistentHashMap<K, V> hashMap;
+
+    // the legacy iterators need an ObjectMap. It is only created when they are used, only once per snapshot, and is never modified
+    private transient volatile IterableCopy<K, V> iterable;
+
+    private static final
+    class IterableCopy<K, V> {
+        final PersistentHashMap<K, V> snapshot;
+        final ObjectMap<K, V> map;
+
+        IterableCopy(final PersistentHashMap<K, V> snapshot, final ObjectMap<K, V> map) {
+            this.snapshot = snapshot;
+            this.map = map;
+        }
+    }
 
     // synchronized is used here to ensure the "single writer principle", and make sure that ONLY one thread at a time can enter this
     // section. Because of this, we can have unlimited reader threads all going at the same time, without contention (which is our
     // use-case 99% of the time)
 
     /**
-     * Constructs an empty <tt>HashMap</tt> with the default initial capacity
-     * (16) and the default load factor (0.75).
+     * Constructs an empty map
      */
     public
     LockFreeObjectMap() {
-        hashMap = new ObjectMap<K, V>();
+        hashMap = PersistentHashMap.empty();
     }
 
     /**
-     * Constructs an empty <tt>HashMap</tt> with the specified initial
-     * capacity and the default load factor (0.75).
+     * Constructs an empty map.
      *
-     * @param initialCapacity the initial capacity.
+     * @param initialCapacity ignored, the map does not need to pre-allocate
      *
      * @throws IllegalArgumentException if the initial capacity is negative.
      */
     public
     LockFreeObjectMap(int initialCapacity) {
-        hashMap = new ObjectMap<K, V>(initialCapacity);
+        this(initialCapacity, 0.75F);
     }
 
     /**
-     * Constructs an empty <tt>HashMap</tt> with the specified initial
-     * capacity and load factor.
+     * Constructs an empty map.
      *
-     * @param initialCapacity the initial capacity
-     * @param loadFactor the load factor
+     * @param initialCapacity ignored, the map does not need to pre-allocate
+     * @param loadFactor ignored, the map does not need to pre-allocate
      *
      * @throws IllegalArgumentException if the initial capacity is negative
      *         or the load factor is nonpositive
      */
     public
     LockFreeObjectMap(int initialCapacity, float loadFactor) {
-        this.hashMap = new ObjectMap<K, V>(initialCapacity, loadFactor);
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("Illegal initial capacity: " + initialCapacity);
+        }
+        if (loadFactor <= 0 || Float.isNaN(loadFactor)) {
+            throw new IllegalArgumentException("Illegal load factor: " + loadFactor);
+        }
+
+        this.hashMap = PersistentHashMap.empty();
+    }
+
+    /**
+     * @return an immutable snapshot of this map. It's values are only valid at the moment this method is called.
+     */
+    public
+    PersistentHashMap<K, V> getMap() {
+        // use the SWP to get a lock-free get of the map. It's values are only valid at the moment this method is called.
+        return mapREF.get(this);
     }
 
     public
     int size() {
         // use the SWP to get a lock-free get of the value
         return mapREF.get(this)
-                     .size;
+                     .size();
     }
 
     public
     boolean isEmpty() {
         // use the SWP to get a lock-free get of the value
         return mapREF.get(this)
-                     .size == 0;
+                     .isEmpty();
     }
 
     public
@@ -106,11 +137,24 @@ class LockFreeObjectMap<K, V> implements Cloneable, Serializable {
                      .containsKey(key);
     }
 
+    /**
+     * Returns true if the specified value is in the map. Note this traverses the entire map and compares every value, which may be
+     * an expensive operation.
+     *
+     * @param identity If true, uses == to compare the specified value with values in the map. If false, uses
+     *         {@link #equals(Object)}.
+     */
     public
     boolean containsValue(final V value, boolean identity) {
         // use the SWP to get a lock-free get of the value
-        return mapREF.get(this)
-                     .containsValue(value, identity);
+        PersistentHashMap.Cursor<K, V> cursor = getMap().cursor();
+        while (cursor.advance()) {
+            V other = cursor.value();
+            if (other == value || (!identity && value != null && value.equals(other))) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @SuppressWarnings("unchecked")
@@ -123,58 +167,134 @@ class LockFreeObjectMap<K, V> implements Cloneable, Serializable {
 
     public synchronized
     V put(final K key, final V value) {
-        return hashMap.put(key, value);
+        if (key == null) {
+            throw new IllegalArgumentException("key cannot be null.");
+        }
+
+        PersistentHashMap<K, V> map = this.hashMap;
+        V prev = map.get(key);
+
+        this.hashMap = map.with(key, value);
+        return prev;
     }
 
     public synchronized
     V remove(final K key) {
-        return hashMap.remove(key);
+        PersistentHashMap<K, V> map = this.hashMap;
+        V prev = map.get(key);
+
+        this.hashMap = map.without(key);
+        return prev;
     }
 
+    /**
+     * Copies all of the mappings from the specified map, and publishes the result once.
+     */
     public synchronized
     void putAll(final ObjectMap<K, V> map) {
-        this.hashMap.putAll(map);
+        PersistentHashMap.Builder<K, V> builder = this.hashMap.toBuilder();
+
+        ObjectMap.Cursor<K, V> cursor = map.cursor();
+        while (cursor.advance()) {
+            builder.put(cursor.key(), cursor.value());
+        }
+
+        this.hashMap = builder.build();
     }
 
     public synchronized
     void clear() {
-        hashMap.clear();
+        this.hashMap = PersistentHashMap.empty();
     }
 
     /**
-     * DO NOT MODIFY THE MAP VIA THIS (unless you synchronize around it!) It will result in unknown object visibility!
-     *
-     * Returns an iterator for the keys in the map. Remove is supported. Note that the same iterator instance is returned each
-     * time this method is called. Use the {@link Entries} constructor for nested or multithreaded iteration.
+     * Calls the consumer for each entry of the current snapshot, without allocating. The snapshot is never modified, so this can be
+     * nested and used by any number of threads at once, and modifications made while iterating are not seen.
+     */
+    public
+    void forEach(final BiConsumer<? super K, ? super V> consumer) {
+        // use the SWP to get a lock-free get of the value
+        mapREF.get(this).forEach(consumer);
+    }
+
+    /**
+     * Returns a new cursor over the entries of the current snapshot. The snapshot is never modified, so (unlike the iterators) the cursor
+     * can be nested and used by any number of threads at once, and modifications made while iterating are not seen.
+     */
+    public
+    PersistentHashMap.Cursor<K, V> cursor() {
+        // use the SWP to get a lock-free get of the value
+        return mapREF.get(this).cursor();
+    }
+
+    /**
+     * Returns a new iterator for the keys of the current snapshot. The iterator is over a copy of the snapshot (which is only created once,
+     * when it is first needed and is never modified), and every call returns its own iterator. Remove is not supported.
+     * Prefer {@link #forEach} or {@link #cursor()}, which never copy the map.
      */
     public
     Keys keys() {
-        return mapREF.get(this)
-                         .keys();
+        return new Keys<K>(iterable()) {
+            @Override
+            public
+            void remove() {
+                throw new UnsupportedOperationException("remove");
+            }
+        };
     }
 
     /**
-     * DO NOT MODIFY THE MAP VIA THIS (unless you synchronize around it!) It will result in unknown object visibility!
-     *
-     * Returns an iterator for the values in the map. Remove is supported. Note that the same iterator instance is returned each
-     * time this method is called. Use the {@link Entries} constructor for nested or multithreaded iteration.
+     * Returns a new iterator for the values of the current snapshot. The iterator is over a copy of the snapshot (which is only created once,
+     * when it is first needed and is never modified), and every call returns its own iterator. Remove is not supported.
+     * Prefer {@link #forEach} or {@link #cursor()}, which never copy the map.
      */
     public
     Values values() {
-        return mapREF.get(this)
-                         .values();
+        return new Values<V>(iterable()) {
+            @Override
+            public
+            void remove() {
+                throw new UnsupportedOperationException("remove");
+            }
+        };
     }
 
     /**
-     * DO NOT MODIFY THE MAP VIA THIS (unless you synchronize around it!) It will result in unknown object visibility!
-     *
-     * Returns an iterator for the entries in the map. Remove is supported. Note that the same iterator instance is returned each
-     * time this method is called. Use the {@link Entries} constructor for nested or multithreaded iteration.
+     * Returns a new iterator for the entries of the current snapshot. The iterator is over a copy of the snapshot (which is only created once,
+     * when it is first needed and is never modified), and every call returns its own iterator. Remove is not supported.
+     * Prefer {@link #forEach} or {@link #cursor()}, which never copy the map.
      */
     public
     Entries entries() {
-        return mapREF.get(this)
-                         .entries();
+        return new Entries<K, V>(iterable()) {
+            @Override
+            public
+            void remove() {
+                throw new UnsupportedOperationException("remove");
+            }
+        };
+    }
+
+    /**
+     * @return a copy of the current snapshot, which is only created once per snapshot. It is never modified, so it can be read by any
+     *         number of iterators at once.
+     */
+    private
+    ObjectMap<K, V> iterable() {
+        PersistentHashMap<K, V> snapshot = getMap();
+
+        IterableCopy<K, V> iterable = this.iterable;
+        if (iterable == null || iterable.snapshot != snapshot) {
+            ObjectMap<K, V> map = new ObjectMap<K, V>(Math.max(snapshot.size(), 1));
+
+            PersistentHashMap.Cursor<K, V> cursor = snapshot.cursor();
+            while (cursor.advance()) {
+                map.put(cursor.key(), cursor.value());
+            }
+
+            this.iterable = iterable = new IterableCopy<K, V>(snapshot, map);
+        }
+        return iterable.map;
     }
 
     /**
@@ -16,11 +16,10 @@
 package dorkbox.util.collections;
 
 import java.util.Collection;
-import java.util.Collections;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Consumer;
 
 /**
  * This class uses the "single-writer-principle" for lock-free publication.
@@ -30,6 +29,9 @@ import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
  * one thread can access this modification methods at a time. Getting or checking the presence of values can then happen in a lock-free
  * manner.
  * <p>
+ * The elements are stored as the keys of an immutable {@link PersistentHashMap}, and every modification publishes a new snapshot.
+ * Readers never see a partially modified set, and iteration is always over a consistent snapshot.
+ * <p>
  * According to my benchmarks, this is approximately 25% faster than ConcurrentHashMap for (all types of) reads, and a lot slower for
  * contended writes.
  * <p>
@@ -39,59 +41,61 @@ import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 public final
 class LockFreeSet<E> implements Set<E>, Cloneable, java.io.Serializable {
     // Recommended for best performance while adhering to the "single writer principle". Must be static-final
-    private static final AtomicReferenceFieldUpdater<LockFreeSet, Set> setREF = AtomicReferenceFieldUpdater.newUpdater(LockFreeSet.class,
-                                                                                                                       Set.class,
-                                                                                                                       "hashSet");
+    private static final AtomicReferenceFieldUpdater<LockFreeSet, PersistentHashMap> setREF =
+                    AtomicReferenceFieldUpdater.newUpdater(LockFreeSet.class,
+                                                           PersistentHashMap.class,
+                                                           "hashSet");
 
-    private volatile Set<E> hashSet;
+    private volatile PersistentHashMap<E, Boolean> hashSet;
 
     // synchronized is used here to ensure the "single writer principle", and make sure that ONLY one thread at a time can enter this
     // section. Because of this, we can have unlimited reader threads all going at the same time, without contention (which is our
     // use-case 99% of the time)
 
     /**
-     * Constructs a new, empty set; the backing <tt>HashMap</tt> instance has
-     * default initial capacity (16) and load factor (0.75).
+     * Constructs a new, empty set
      */
     public
     LockFreeSet() {
-        hashSet = new HashSet<E>();
+        hashSet = PersistentHashMap.empty();
     }
 
     /**
-     * Constructs a new, empty set; the backing <tt>HashMap</tt> instance has
-     * the specified initial capacity and the specified load factor.
+     * Constructs a new, empty set
      *
-     * @param initialCapacity the initial capacity of the hash map
-     * @param loadFactor the load factor of the hash map
+     * @param initialCapacity ignored, the set does not need to pre-allocate
+     * @param loadFactor ignored, the set does not need to pre-allocate
      *
      * @throws IllegalArgumentException if the initial capacity is less
      *         than zero, or if the load factor is nonpositive
      */
     public
     LockFreeSet(int initialCapacity, float loadFactor) {
-        hashSet = new HashSet<E>(initialCapacity, loadFactor);
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("Illegal initial capacity: " + initialCapacity);
+        }
+        if (loadFactor <= 0 || Float.isNaN(loadFactor)) {
+            throw new IllegalArgumentException("Illegal load factor: " + loadFactor);
+        }
+
+        hashSet = PersistentHashMap.empty();
     }
 
     /**
-     * Constructs a new, empty set; the backing <tt>HashMap</tt> instance has
-     * the specified initial capacity and default load factor (0.75).
+     * Constructs a new, empty set
      *
-     * @param initialCapacity the initial capacity of the hash table
+     * @param initialCapacity ignored, the set does not need to pre-allocate
      *
      * @throws IllegalArgumentException if the initial capacity is less
      *         than zero
      */
     public
     LockFreeSet(int initialCapacity) {
-        hashSet = new HashSet<E>(initialCapacity);
+        this(initialCapacity, 0.75F);
     }
 
     /**
-     * Constructs a new set containing the elements in the specified
-     * collection.  The <tt>HashMap</tt> is created with default load factor
-     * (0.75) and an initial capacity sufficient to contain the elements in
-     * the specified collection.
+     * Constructs a new set containing the elements in the specified collection.
      *
      * @param collection the collection whose elements are to be placed into this set
      *
@@ -99,15 +103,43 @@ class LockFreeSet<E> implements Set<E>, Cloneable, java.io.Serializable {
      */
     public
     LockFreeSet(final Collection<E> collection) {
-        hashSet = new HashSet<E>(collection);
+        PersistentHashMap.Builder<E, Boolean> builder = PersistentHashMap.builder();
+        for (E element : collection) {
+            builder.put(element, Boolean.TRUE);
+        }
+        hashSet = builder.build();
     }
 
 
+    /**
+     * Calls the consumer for each element of the current snapshot, without allocating. The snapshot is never modified, so this can be
+     * nested and used by any number of threads at once, and modifications made while iterating are not seen.
+     */
+    @Override
+    public
+    void forEach(final Consumer<? super E> consumer) {
+        // use the SWP to get a lock-free get of the value
+        setREF.get(this).forEachKey(consumer);
+    }
+
+    /**
+     * Returns a new cursor over the elements of the current snapshot. The snapshot is never modified, so the cursor can be nested
+     * and used by any number of threads at once, and modifications made while iterating are not seen.
+     */
+    public
+    PersistentHashMap.Cursor<E, Boolean> cursor() {
+        // use the SWP to get a lock-free get of the value
+        return setREF.get(this).cursor();
+    }
+
+    /**
+     * @return an immutable snapshot of this set. It's values are only valid at the moment this method is called.
+     */
     @SuppressWarnings("unchecked")
     public
     Set<E> elements() {
         // use the SWP to get a lock-free get of the value
-        return Collections.unmodifiableSet(setREF.get(this));
+        return setREF.get(this).keySet();
     }
 
 
@@ -131,7 +163,7 @@ class LockFreeSet<E> implements Set<E>, Cloneable, java.io.Serializable {
     boolean contains(final Object element) {
         // use the SWP to get a lock-free get of the value
         return setREF.get(this)
-                     .contains(element);
+                     .containsKey(element);
     }
 
     @Override
@@ -143,78 +175,119 @@ class LockFreeSet<E> implements Set<E>, Cloneable, java.io.Serializable {
     @Override
     public
     Object[] toArray() {
-        return setREF.get(this)
-                     .toArray();
+        return elements().toArray();
     }
 
     @Override
     public
     <T> T[] toArray(final T[] a) {
-        return (T[]) setREF.get(this)
-                           .toArray(a);
+        return elements().toArray(a);
     }
 
     @Override
     public synchronized
     boolean add(final E element) {
-        return hashSet.add(element);
+        PersistentHashMap<E, Boolean> set = this.hashSet;
+        PersistentHashMap<E, Boolean> newSet = set.with(element, Boolean.TRUE);
+        if (newSet == set) {
+            return false;
+        }
+
+        this.hashSet = newSet;
+        return true;
     }
 
     @Override
     public synchronized
     boolean remove(final Object element) {
-        return hashSet.remove(element);
+        PersistentHashMap<E, Boolean> set = this.hashSet;
+        PersistentHashMap<E, Boolean> newSet = set.without(element);
+        if (newSet == set) {
+            return false;
+        }
+
+        this.hashSet = newSet;
+        return true;
     }
 
     @Override
     public
     boolean containsAll(final Collection<?> collection) {
         // use the SWP to get a lock-free get of the value
-        return setREF.get(this)
-                     .containsAll(collection);
+        PersistentHashMap<E, Boolean> set = setREF.get(this);
+        for (Object element : collection) {
+            if (!set.containsKey(element)) {
+                return false;
+            }
+        }
+        return true;
     }
 
     @Override
     public synchronized
     boolean addAll(final Collection<? extends E> elements) {
-        return hashSet.addAll(elements);
+        PersistentHashMap.Builder<E, Boolean> builder = this.hashSet.toBuilder();
+        int size = builder.size();
+
+        for (E element : elements) {
+            builder.put(element, Boolean.TRUE);
+        }
+
+        this.hashSet = builder.build();
+        return builder.size() != size;
     }
 
     @Override
     public synchronized
     boolean retainAll(final Collection<?> collection) {
-        return hashSet.retainAll(collection);
+        PersistentHashMap<E, Boolean> set = this.hashSet;
+        PersistentHashMap.Builder<E, Boolean> builder = set.toBuilder();
+
+        for (E element : set.keySet()) {
+            if (!collection.contains(element)) {
+                builder.remove(element);
+            }
+        }
+
+        this.hashSet = builder.build();
+        return builder.size() != set.size();
     }
 
     @Override
     public synchronized
     boolean removeAll(final Collection<?> collection) {
-        return hashSet.removeAll(collection);
+        PersistentHashMap.Builder<E, Boolean> builder = this.hashSet.toBuilder();
+        int size = builder.size();
+
+        for (Object element : collection) {
+            builder.remove(element);
+        }
+
+        this.hashSet = builder.build();
+        return builder.size() != size;
     }
 
     @Override
     public synchronized
     void clear() {
-        hashSet.clear();
+        this.hashSet = PersistentHashMap.empty();
     }
 
     @Override
     public
     boolean equals(final Object o) {
-        return setREF.get(this).equals(o);
+        return elements().equals(o);
     }
 
     @Override
     public
     int hashCode() {
-        return setREF.get(this)
-                     .hashCode();
+        return elements().hashCode();
     }
 
     @Override
     public
     String toString() {
-        return setREF.get(this)
-                     .toString();
+        return elements().toString();
     }
 }
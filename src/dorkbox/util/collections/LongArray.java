@@ -19,6 +19,8 @@
 package dorkbox.util.collections;
 
 import java.util.Arrays;
+import java.util.function.LongPredicate;
+import java.util.function.LongUnaryOperator;
 
 import dorkbox.util.RandomUtil;
 
@@ -232,23 +234,49 @@ public class LongArray {
 		size -= count;
 	}
 
-	/** Removes from this array all of elements contained in the specified array.
+	/** Removes from this array all of elements contained in the specified array. For each item in the specified array, one
+	 * matching item is removed from this array. Large arrays are counted with a hash map, so this is O(n + m) instead of O(n * m).
 	 * @return true if this array was modified. */
 	public boolean removeAll (LongArray array) {
-		int size = this.size;
-		int startSize = size;
-		long[] items = this.items;
-		for (int i = 0, n = array.size; i < n; i++) {
-			long item = array.get(i);
-			for (int ii = 0; ii < size; ii++) {
-				if (item == items[ii]) {
-					removeIndex(ii);
-					size--;
-					break;
+		int n = array.size;
+		if (n < 16) {
+			int size = this.size;
+			int startSize = size;
+			long[] items = this.items;
+			for (int i = 0; i < n; i++) {
+				long item = array.get(i);
+				for (int ii = 0; ii < size; ii++) {
+					if (item == items[ii]) {
+						removeIndex(ii);
+						size--;
+						break;
+					}
 				}
 			}
+			return size != startSize;
+		}
+
+		LongMap<int[]> counts = new LongMap<int[]>(n);
+		long[] removed = array.items;
+		for (int i = 0; i < n; i++) {
+			int[] count = counts.get(removed[i]);
+			if (count == null) counts.put(removed[i], new int[] {1});
+			else
+				count[0]++;
 		}
-		return size != startSize;
+
+		long[] items = this.items;
+		int size = this.size, kept = 0;
+		for (int i = 0; i < size; i++) {
+			long item = items[i];
+			int[] count = counts.get(item);
+			if (count != null && count[0] > 0)
+				count[0]--;
+			else
+				items[kept++] = item;
+		}
+		this.size = kept;
+		return kept != size;
 	}
 
 	/** Removes and returns the last item. */
@@ -403,6 +431,136 @@ public class LongArray {
 		return buffer.toString();
 	}
 
+	/** Returns the sum of the items. */
+	public long sum () {
+		long[] items = this.items;
+		long sum = 0;
+		for (int i = 0, n = size; i < n; i++)
+			sum += items[i];
+		return sum;
+	}
+
+	/** Returns the smallest item.
+	 * @throws IllegalStateException if the array is empty */
+	public long min () {
+		if (size == 0) throw new IllegalStateException("Array is empty.");
+		long[] items = this.items;
+		long min = items[0];
+		for (int i = 1, n = size; i < n; i++)
+			min = Math.min(min, items[i]);
+		return min;
+	}
+
+	/** Returns the largest item.
+	 * @throws IllegalStateException if the array is empty */
+	public long max () {
+		if (size == 0) throw new IllegalStateException("Array is empty.");
+		long[] items = this.items;
+		long max = items[0];
+		for (int i = 1, n = size; i < n; i++)
+			max = Math.max(max, items[i]);
+		return max;
+	}
+
+	/** Replaces every item with the result of the operator. */
+	public void mapInPlace (LongUnaryOperator operator) {
+		long[] items = this.items;
+		for (int i = 0, n = size; i < n; i++)
+			items[i] = operator.applyAsLong(items[i]);
+	}
+
+	/** Removes the items that don't match the predicate, keeping the order of the remaining items.
+	 * @return true if this array was modified. */
+	public boolean filterInPlace (LongPredicate predicate) {
+		long[] items = this.items;
+		int n = size, kept = 0;
+		for (int i = 0; i < n; i++) {
+			long item = items[i];
+			// always write the item, so there is no branch on the result
+			items[kept] = item;
+			kept += predicate.test(item) ? 1 : 0;
+		}
+		size = kept;
+		return kept != n;
+	}
+
+	/** Returns a new ordered array with the items that are in this array or the specified array, without duplicates. Both arrays
+	 * must be sorted. */
+	public LongArray union (LongArray array) {
+		long[] items1 = this.items, items2 = array.items;
+		int n1 = size, n2 = array.size;
+		LongArray result = new LongArray(true, n1 + n2);
+		long[] out = result.items;
+		int i = 0, j = 0, count = 0;
+		while (i < n1 && j < n2) {
+			long item1 = items1[i], item2 = items2[j];
+			if (item1 < item2) {
+				count = appendUnique(out, count, item1);
+				i++;
+			} else if (item2 < item1) {
+				count = appendUnique(out, count, item2);
+				j++;
+			} else {
+				count = appendUnique(out, count, item1);
+				i++;
+				j++;
+			}
+		}
+		for (; i < n1; i++)
+			count = appendUnique(out, count, items1[i]);
+		for (; j < n2; j++)
+			count = appendUnique(out, count, items2[j]);
+		result.size = count;
+		return result;
+	}
+
+	/** Returns a new ordered array with the items that are in both this array and the specified array, without duplicates. Both
+	 * arrays must be sorted. */
+	public LongArray intersect (LongArray array) {
+		long[] items1 = this.items, items2 = array.items;
+		int n1 = size, n2 = array.size;
+		LongArray result = new LongArray(true, Math.min(n1, n2));
+		long[] out = result.items;
+		int i = 0, j = 0, count = 0;
+		while (i < n1 && j < n2) {
+			long item1 = items1[i], item2 = items2[j];
+			if (item1 < item2)
+				i++;
+			else if (item2 < item1)
+				j++;
+			else {
+				count = appendUnique(out, count, item1);
+				i++;
+				j++;
+			}
+		}
+		result.size = count;
+		return result;
+	}
+
+	/** Returns a new ordered array with the items that are in this array but not in the specified array, without duplicates. Both
+	 * arrays must be sorted. */
+	public LongArray difference (LongArray array) {
+		long[] items1 = this.items, items2 = array.items;
+		int n1 = size, n2 = array.size;
+		LongArray result = new LongArray(true, n1);
+		long[] out = result.items;
+		int j = 0, count = 0;
+		for (int i = 0; i < n1; i++) {
+			long item = items1[i];
+			while (j < n2 && items2[j] < item)
+				j++;
+			if (j == n2 || item != items2[j]) count = appendUnique(out, count, item);
+		}
+		result.size = count;
+		return result;
+	}
+
+	static private int appendUnique (long[] out, int count, long item) {
+		if (count == 0 || out[count - 1] != item) out[count++] = item;
+		return count;
+	}
+
 	/** @see #LongArray(long[]) */
 	static public LongArray with (long... array) {
 		return new LongArray(array);
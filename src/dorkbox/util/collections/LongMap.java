@@ -18,6 +18,7 @@
 
 package dorkbox.util.collections;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -29,7 +30,8 @@ import dorkbox.util.RandomUtil;
  * <br>
  * This map performs very fast get, containsKey, and remove (typically O(1), worst case O(log(n))). Put may be a bit slower,
  * depending on hash collisions. Load factors greater than 0.91 greatly increase the chances the map will have to rehash to the
- * next higher POT size.
+ * next higher POT size. Keys with low-entropy (or sequential) hash codes can instead use
+ * {@link HashEngine#LINEAR_PROBING}, which is chosen when the map is created.
  * @author Nathan Sweet */
 @SuppressWarnings({"NullableProblems", "rawtypes", "unchecked"})
 public class LongMap<V> implements Iterable<LongMap.Entry<V>> {
@@ -50,6 +52,7 @@ public class LongMap<V> implements Iterable<LongMap.Entry<V>> {
 	private int hashShift, mask, threshold;
 	private int stashCapacity;
 	private int pushIterations;
+	private final boolean linearProbing;
 
 	private Entries entries1, entries2;
 	private Values values1, values2;
@@ -70,6 +73,14 @@ public class LongMap<V> implements Iterable<LongMap.Entry<V>> {
 	 * growing the backing table.
 	 * @param initialCapacity If not a power of two, it is increased to the next nearest power of two. */
 	public LongMap (int initialCapacity, float loadFactor) {
+		this(initialCapacity, loadFactor, HashEngine.CUCKOO);
+	}
+
+	/** Creates a new map with the specified initial capacity, load factor and hash engine. This map will hold initialCapacity items
+	 * before growing the backing table.
+	 * @param initialCapacity If not a power of two, it is increased to the next nearest power of two.
+	 * @param loadFactor Must be less than 1 for {@link HashEngine#LINEAR_PROBING} */
+	public LongMap (int initialCapacity, float loadFactor, HashEngine engine) {
 		if (initialCapacity < 0) throw new IllegalArgumentException("initialCapacity must be >= 0: " + initialCapacity);
 		initialCapacity = MathUtil.nextPowerOfTwo((int)Math.ceil(initialCapacity / loadFactor));
 		if (initialCapacity > 1 << 30) throw new IllegalArgumentException("initialCapacity is too large: " + initialCapacity);
@@ -77,11 +88,13 @@ public class LongMap<V> implements Iterable<LongMap.Entry<V>> {
 
 		if (loadFactor <= 0) throw new IllegalArgumentException("loadFactor must be > 0: " + loadFactor);
 		this.loadFactor = loadFactor;
+		HashEngine.validateLoadFactor(engine, loadFactor);
+		linearProbing = engine == HashEngine.LINEAR_PROBING;
 
 		threshold = (int)(capacity * loadFactor);
 		mask = capacity - 1;
 		hashShift = 63 - Long.numberOfTrailingZeros(capacity);
-		stashCapacity = Math.max(3, (int)Math.ceil(Math.log(capacity)) * 2);
+		stashCapacity = linearProbing ? 0 : Math.max(3, (int)Math.ceil(Math.log(capacity)) * 2);
 		pushIterations = Math.max(Math.min(capacity, 8), (int)Math.sqrt(capacity) / 8);
 
 		keyTable = new long[capacity + stashCapacity];
@@ -90,7 +103,7 @@ public class LongMap<V> implements Iterable<LongMap.Entry<V>> {
 
 	/** Creates a new map identical to the specified map. */
 	public LongMap (LongMap<? extends V> map) {
-		this((int)Math.floor(map.capacity * map.loadFactor), map.loadFactor);
+		this((int)Math.floor(map.capacity * map.loadFactor), map.loadFactor, map.linearProbing ? HashEngine.LINEAR_PROBING : HashEngine.CUCKOO);
 		stashSize = map.stashSize;
 		System.arraycopy(map.keyTable, 0, keyTable, 0, map.keyTable.length);
 		System.arraycopy(map.valueTable, 0, valueTable, 0, map.valueTable.length);
@@ -112,6 +125,8 @@ public class LongMap<V> implements Iterable<LongMap.Entry<V>> {
 
 		long[] keyTable = this.keyTable;
 
+		if (linearProbing) return putProbing(key, value);
+
 		// Check for existing keys.
 		int index1 = (int)(key & mask);
 		long key1 = keyTable[index1];
@@ -185,6 +200,11 @@ public class LongMap<V> implements Iterable<LongMap.Entry<V>> {
 			return;
 		}
 
+		if (linearProbing) {
+			putResizeProbing(key, value);
+			return;
+		}
+
 		// Check for empty buckets.
 		int index1 = (int)(key & mask);
 		long key1 = keyTable[index1];
@@ -305,6 +325,11 @@ public class LongMap<V> implements Iterable<LongMap.Entry<V>> {
 			if (!hasZeroValue) return null;
 			return zeroValue;
 		}
+		if (linearProbing) {
+			int index = locateKey(key);
+			return index < 0 ? null : valueTable[index];
+		}
+
 		int index = (int)(key & mask);
 		if (keyTable[index] != key) {
 			index = hash2(key);
@@ -321,6 +346,11 @@ public class LongMap<V> implements Iterable<LongMap.Entry<V>> {
 			if (!hasZeroValue) return defaultValue;
 			return zeroValue;
 		}
+		if (linearProbing) {
+			int index = locateKey(key);
+			return index < 0 ? defaultValue : valueTable[index];
+		}
+
 		int index = (int)(key & mask);
 		if (keyTable[index] != key) {
 			index = hash2(key);
@@ -349,6 +379,15 @@ public class LongMap<V> implements Iterable<LongMap.Entry<V>> {
 			return oldValue;
 		}
 
+		if (linearProbing) {
+			int index = locateKey(key);
+			if (index < 0) return null;
+			V oldValue = valueTable[index];
+			removeProbingIndex(index);
+			size--;
+			return oldValue;
+		}
+
 		int index = (int)(key & mask);
 		if (keyTable[index] == key) {
 			keyTable[index] = EMPTY;
@@ -428,7 +467,7 @@ public class LongMap<V> implements Iterable<LongMap.Entry<V>> {
 		zeroValue = null;
 		hasZeroValue = false;
 		size = 0;
-		resize(maximumCapacity);
+		resize(MathUtil.nextPowerOfTwo(maximumCapacity));
 	}
 
 	public void clear () {
@@ -468,6 +507,8 @@ public class LongMap<V> implements Iterable<LongMap.Entry<V>> {
 
 	public boolean containsKey (long key) {
 		if (key == 0) return hasZeroValue;
+		if (linearProbing) return locateKey(key) >= 0;
+
 		int index = (int)(key & mask);
 		if (keyTable[index] != key) {
 			index = hash2(key);
@@ -524,7 +565,7 @@ public class LongMap<V> implements Iterable<LongMap.Entry<V>> {
 		threshold = (int)(newSize * loadFactor);
 		mask = newSize - 1;
 		hashShift = 63 - Long.numberOfTrailingZeros(newSize);
-		stashCapacity = Math.max(3, (int)Math.ceil(Math.log(newSize)) * 2);
+		stashCapacity = linearProbing ? 0 : Math.max(3, (int)Math.ceil(Math.log(newSize)) * 2);
 		pushIterations = Math.max(Math.min(newSize, 8), (int)Math.sqrt(newSize) / 8);
 
 		long[] oldKeyTable = keyTable;
@@ -544,6 +585,66 @@ public class LongMap<V> implements Iterable<LongMap.Entry<V>> {
 		}
 	}
 
+	/** Returns the index of the key, or -(index + 1) of the empty index where the key would be put. Only for linear probing. */
+	private int locateKey (long key) {
+		long[] keyTable = this.keyTable;
+		for (int i = HashEngine.place(key, mask);; i = i + 1 & mask) {
+			long other = keyTable[i];
+			if (other == EMPTY) return -(i + 1);
+			if (key == other) return i;
+		}
+	}
+
+	private V putProbing (long key, V value) {
+		int index = locateKey(key);
+		if (index >= 0) {
+			V oldValue = valueTable[index];
+			valueTable[index] = value;
+			return oldValue;
+		}
+		index = -(index + 1);
+		keyTable[index] = key;
+		valueTable[index] = value;
+		if (size++ >= threshold) resize(capacity << 1);
+		return null;
+	}
+
+	/** Skips checks for existing keys. */
+	private void putResizeProbing (long key, V value) {
+		long[] keyTable = this.keyTable;
+		int index = HashEngine.place(key, mask);
+		while (keyTable[index] != EMPTY)
+			index = index + 1 & mask;
+		keyTable[index] = key;
+		valueTable[index] = value;
+		if (size++ >= threshold) resize(capacity << 1);
+	}
+
+	/** Removes the key at the index, and shifts back the keys after it that belong at (or before) the removed index, so that there are
+	 * no tombstones. Only for linear probing.
+	 * @return the index that a key from the start of the table was shifted back to (wrapping around to the end), or -1 if there was
+	 *         none. A removal wraps around at most once. */
+	int removeProbingIndex (int index) {
+		long[] keyTable = this.keyTable;
+		V[] valueTable = this.valueTable;
+		int mask = this.mask;
+		int next = index + 1 & mask;
+		int wrapped = -1;
+		long key;
+		while ((key = keyTable[next]) != EMPTY) {
+			if (HashEngine.canShift(index, next, HashEngine.place(key, mask), mask)) {
+				keyTable[index] = key;
+				valueTable[index] = valueTable[next];
+				if (next < index) wrapped = index;
+				index = next;
+			}
+			next = next + 1 & mask;
+		}
+		keyTable[index] = EMPTY;
+		valueTable[index] = null;
+		return wrapped;
+	}
+
 	private int hash2 (long h) {
 		h *= PRIME2;
 		return (int)((h ^ h >>> hashShift) & mask);
@@ -696,6 +797,24 @@ public class LongMap<V> implements Iterable<LongMap.Entry<V>> {
 		return keys2;
 	}
 
+	/** Calls the consumer for each entry, without allocating. Unlike {@link #entries()}, this can be nested and used by multiple
+	 * threads at once, as long as the map is not modified. */
+	public void forEach (LongObjConsumer<? super V> consumer) {
+		if (hasZeroValue) consumer.accept(0, zeroValue);
+		long[] keyTable = this.keyTable;
+		V[] valueTable = this.valueTable;
+		for (int i = 0, n = capacity + stashSize; i < n; i++) {
+			long key = keyTable[i];
+			if (key != EMPTY) consumer.accept(key, valueTable[i]);
+		}
+	}
+
+	/** Returns a new cursor over the entries. A cursor has no shared state, so unlike {@link #entries()} it can be nested and used by
+	 * multiple threads at once, as long as the map is not modified. It can be reused with {@link Cursor#reset()}. */
+	public Cursor<V> cursor () {
+		return new Cursor<V>(this);
+	}
+
 	static public class Entry<V> {
 		public long key;
 		public V value;
@@ -716,6 +835,10 @@ public class LongMap<V> implements Iterable<LongMap.Entry<V>> {
 		int nextIndex, currentIndex;
 		boolean valid = true;
 
+		// the keys that were already iterated, but were shifted back to the end of the table by remove(). They are skipped until reset.
+		long[] skipKeys;
+		int skipCount;
+
 		public MapIterator (LongMap<V> map) {
 			this.map = map;
 			reset();
@@ -724,6 +847,7 @@ public class LongMap<V> implements Iterable<LongMap.Entry<V>> {
 		public void reset () {
 			currentIndex = INDEX_ILLEGAL;
 			nextIndex = INDEX_ZERO;
+			skipCount = 0;
 			if (map.hasZeroValue)
 				hasNext = true;
 			else
@@ -735,18 +859,42 @@ public class LongMap<V> implements Iterable<LongMap.Entry<V>> {
 			long[] keyTable = map.keyTable;
 			for (int n = map.capacity + map.stashSize; ++nextIndex < n;) {
 				if (keyTable[nextIndex] != EMPTY) {
+					if (skipCount > 0 && skipped(keyTable[nextIndex])) continue;
 					hasNext = true;
 					break;
 				}
 			}
 		}
 
+		/** @return true if the key was already iterated */
+		private boolean skipped (long key) {
+			for (int i = 0; i < skipCount; i++) {
+				if (skipKeys[i] == key) return true;
+			}
+			return false;
+		}
+
 		public void remove () {
 			if (currentIndex == INDEX_ZERO && map.hasZeroValue) {
 				map.zeroValue = null;
 				map.hasZeroValue = false;
 			} else if (currentIndex < 0) {
 				throw new IllegalStateException("next must be called before remove.");
+			} else if (map.linearProbing) {
+				int wrapped = map.removeProbingIndex(currentIndex);
+				if (wrapped != -1) {
+					// a key from the start of the table (which was already iterated) was shifted back to the end of the table
+					if (skipKeys == null)
+						skipKeys = new long[4];
+					else if (skipCount == skipKeys.length)
+						skipKeys = Arrays.copyOf(skipKeys, skipCount << 1);
+					skipKeys[skipCount++] = map.keyTable[wrapped];
+				}
+				// a later key may have been shifted back into the removed index, so it has to be iterated
+				if (map.keyTable[currentIndex] != EMPTY) {
+					nextIndex = currentIndex - 1;
+					findNextIndex();
+				}
 			} else if (currentIndex >= map.capacity) {
 				map.removeStashIndex(currentIndex);
 				nextIndex = currentIndex - 1;
@@ -871,4 +1019,49 @@ public class LongMap<V> implements Iterable<LongMap.Entry<V>> {
 			return array;
 		}
 	}
+
+	/** Iterates over the entries without allocating, by moving to the next entry with {@link #advance()}:
+	 * <pre>
+	 * for (Cursor cursor = map.cursor(); cursor.advance();)
+	 *    use(cursor.key(), cursor.value());
+	 * </pre>
+	 * The key and value are read from the map, so they are only valid until the map is modified. */
+	static public class Cursor<V> {
+		static private final int INDEX_START = -2;
+		static private final int INDEX_ZERO = -1;
+
+		final LongMap<V> map;
+		int index;
+
+		public Cursor (LongMap<V> map) {
+			this.map = map;
+			index = INDEX_START;
+		}
+
+		/** Moves the cursor back to before the first entry. */
+		public void reset () {
+			index = INDEX_START;
+		}
+
+		/** Moves to the next entry.
+		 * @return false if there are no more entries */
+		public boolean advance () {
+			if (index == INDEX_START) {
+				index = INDEX_ZERO;
+				if (map.hasZeroValue) return true;
+			}
+			long[] keyTable = map.keyTable;
+			for (int n = map.capacity + map.stashSize; index + 1 < n;)
+				if (keyTable[++index] != EMPTY) return true;
+			return false;
+		}
+
+		public long key () {
+			return index == INDEX_ZERO ? 0 : map.keyTable[index];
+		}
+
+		public V value () {
+			return index == INDEX_ZERO ? map.zeroValue : map.valueTable[index];
+		}
+	}
 }
@@ -18,8 +18,10 @@
 
 package dorkbox.util.collections;
 
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.function.ObjIntConsumer;
 
 import dorkbox.util.MathUtil;
 import dorkbox.util.RandomUtil;
@@ -30,7 +32,8 @@ import dorkbox.util.RandomUtil;
  * <br>
  * This map performs very fast get, containsKey, and remove (typically O(1), worst case O(log(n))). Put may be a bit slower,
  * depending on hash collisions. Load factors greater than 0.91 greatly increase the chances the map will have to rehash to the
- * next higher POT size.
+ * next higher POT size. Keys with low-entropy (or sequential) hash codes can instead use
+ * {@link HashEngine#LINEAR_PROBING}, which is chosen when the map is created.
  * @author Nathan Sweet */
 @SuppressWarnings({"unchecked", "NullableProblems"})
 public class ObjectIntMap<K> implements Iterable<ObjectIntMap.Entry<K>> {
@@ -48,6 +51,7 @@ public class ObjectIntMap<K> implements Iterable<ObjectIntMap.Entry<K>> {
     private int hashShift, mask, threshold;
     private int stashCapacity;
     private int pushIterations;
+    private final boolean linearProbing;
 
     private Entries entries1, entries2;
     private Values values1, values2;
@@ -68,6 +72,14 @@ public class ObjectIntMap<K> implements Iterable<ObjectIntMap.Entry<K>> {
      * growing the backing table.
      * @param initialCapacity If not a power of two, it is increased to the next nearest power of two. */
     public ObjectIntMap (int initialCapacity, float loadFactor) {
+        this(initialCapacity, loadFactor, HashEngine.CUCKOO);
+    }
+
+    /** Creates a new map with the specified initial capacity, load factor and hash engine. This map will hold initialCapacity items
+     * before growing the backing table.
+     * @param initialCapacity If not a power of two, it is increased to the next nearest power of two.
+     * @param loadFactor Must be less than 1 for {@link HashEngine#LINEAR_PROBING} */
+    public ObjectIntMap (int initialCapacity, float loadFactor, HashEngine engine) {
         if (initialCapacity < 0) throw new IllegalArgumentException("initialCapacity must be >= 0: " + initialCapacity);
         initialCapacity = MathUtil.nextPowerOfTwo((int)Math.ceil(initialCapacity / loadFactor));
         if (initialCapacity > 1 << 30) throw new IllegalArgumentException("initialCapacity is too large: " + initialCapacity);
@@ -75,11 +87,13 @@ public class ObjectIntMap<K> implements Iterable<ObjectIntMap.Entry<K>> {
 
         if (loadFactor <= 0) throw new IllegalArgumentException("loadFactor must be > 0: " + loadFactor);
         this.loadFactor = loadFactor;
+        HashEngine.validateLoadFactor(engine, loadFactor);
+        linearProbing = engine == HashEngine.LINEAR_PROBING;
 
         threshold = (int)(capacity * loadFactor);
         mask = capacity - 1;
         hashShift = 31 - Integer.numberOfTrailingZeros(capacity);
-        stashCapacity = Math.max(3, (int)Math.ceil(Math.log(capacity)) * 2);
+        stashCapacity = linearProbing ? 0 : Math.max(3, (int)Math.ceil(Math.log(capacity)) * 2);
         pushIterations = Math.max(Math.min(capacity, 8), (int)Math.sqrt(capacity) / 8);
 
         keyTable = (K[])new Object[capacity + stashCapacity];
@@ -88,7 +102,7 @@ public class ObjectIntMap<K> implements Iterable<ObjectIntMap.Entry<K>> {
 
     /** Creates a new map identical to the specified map. */
     public ObjectIntMap (ObjectIntMap<? extends K> map) {
-        this((int)Math.floor(map.capacity * map.loadFactor), map.loadFactor);
+        this((int)Math.floor(map.capacity * map.loadFactor), map.loadFactor, map.linearProbing ? HashEngine.LINEAR_PROBING : HashEngine.CUCKOO);
         stashSize = map.stashSize;
         System.arraycopy(map.keyTable, 0, keyTable, 0, map.keyTable.length);
         System.arraycopy(map.valueTable, 0, valueTable, 0, map.valueTable.length);
@@ -97,6 +111,11 @@ public class ObjectIntMap<K> implements Iterable<ObjectIntMap.Entry<K>> {
 
     public void put (K key, int value) {
         if (key == null) throw new IllegalArgumentException("key cannot be null.");
+        if (linearProbing) {
+            putProbing(key, value);
+            return;
+        }
+
         K[] keyTable = this.keyTable;
 
         // Check for existing keys.
@@ -162,6 +181,11 @@ public class ObjectIntMap<K> implements Iterable<ObjectIntMap.Entry<K>> {
 
     /** Skips checks for existing keys. */
     private void putResize (K key, int value) {
+        if (linearProbing) {
+            putResizeProbing(key, value);
+            return;
+        }
+
         // Check for empty buckets.
         int hashCode = key.hashCode();
         int index1 = hashCode & mask;
@@ -281,6 +305,11 @@ public class ObjectIntMap<K> implements Iterable<ObjectIntMap.Entry<K>> {
 
     /** @param defaultValue Returned if the key was not associated with a value. */
     public int get (K key, int defaultValue) {
+        if (linearProbing) {
+            int index = locateKey(key);
+            return index < 0 ? defaultValue : valueTable[index];
+        }
+
         int hashCode = key.hashCode();
         int index = hashCode & mask;
         if (!key.equals(keyTable[index])) {
@@ -303,6 +332,17 @@ public class ObjectIntMap<K> implements Iterable<ObjectIntMap.Entry<K>> {
     /** Returns the key's current value and increments the stored value. If the key is not in the map, defaultValue + increment is
      * put into the map. */
     public int getAndIncrement (K key, int defaultValue, int increment) {
+        if (linearProbing) {
+            int index = locateKey(key);
+            if (index >= 0) {
+                int value = valueTable[index];
+                valueTable[index] = value + increment;
+                return value;
+            }
+            put(key, defaultValue + increment);
+            return defaultValue;
+        }
+
         int hashCode = key.hashCode();
         int index = hashCode & mask;
         if (!key.equals(keyTable[index])) {
@@ -330,6 +370,15 @@ public class ObjectIntMap<K> implements Iterable<ObjectIntMap.Entry<K>> {
     }
 
     public int remove (K key, int defaultValue) {
+        if (linearProbing) {
+            int index = locateKey(key);
+            if (index < 0) return defaultValue;
+            int oldValue = valueTable[index];
+            removeProbingIndex(index);
+            size--;
+            return oldValue;
+        }
+
         int hashCode = key.hashCode();
         int index = hashCode & mask;
         if (key.equals(keyTable[index])) {
@@ -404,7 +453,7 @@ public class ObjectIntMap<K> implements Iterable<ObjectIntMap.Entry<K>> {
             return;
         }
         size = 0;
-        resize(maximumCapacity);
+        resize(MathUtil.nextPowerOfTwo(maximumCapacity));
     }
 
     public void clear () {
@@ -428,6 +477,8 @@ public class ObjectIntMap<K> implements Iterable<ObjectIntMap.Entry<K>> {
     }
 
     public boolean containsKey (K key) {
+        if (linearProbing) return locateKey(key) >= 0;
+
         int hashCode = key.hashCode();
         int index = hashCode & mask;
         if (!key.equals(keyTable[index])) {
@@ -472,7 +523,7 @@ public class ObjectIntMap<K> implements Iterable<ObjectIntMap.Entry<K>> {
         threshold = (int)(newSize * loadFactor);
         mask = newSize - 1;
         hashShift = 31 - Integer.numberOfTrailingZeros(newSize);
-        stashCapacity = Math.max(3, (int)Math.ceil(Math.log(newSize)) * 2);
+        stashCapacity = linearProbing ? 0 : Math.max(3, (int)Math.ceil(Math.log(newSize)) * 2);
         pushIterations = Math.max(Math.min(newSize, 8), (int)Math.sqrt(newSize) / 8);
 
         K[] oldKeyTable = keyTable;
@@ -492,6 +543,63 @@ public class ObjectIntMap<K> implements Iterable<ObjectIntMap.Entry<K>> {
         }
     }
 
+    /** Returns the index of the key, or -(index + 1) of the empty index where the key would be put. Only for linear probing. */
+    private int locateKey (K key) {
+        K[] keyTable = this.keyTable;
+        for (int i = HashEngine.place(key.hashCode(), mask);; i = i + 1 & mask) {
+            K other = keyTable[i];
+            if (other == null) return -(i + 1);
+            if (key.equals(other)) return i;
+        }
+    }
+
+    private void putProbing (K key, int value) {
+        int index = locateKey(key);
+        if (index >= 0) {
+            valueTable[index] = value;
+            return;
+        }
+        index = -(index + 1);
+        keyTable[index] = key;
+        valueTable[index] = value;
+        if (size++ >= threshold) resize(capacity << 1);
+    }
+
+    /** Skips checks for existing keys. */
+    private void putResizeProbing (K key, int value) {
+        K[] keyTable = this.keyTable;
+        int index = HashEngine.place(key.hashCode(), mask);
+        while (keyTable[index] != null)
+            index = index + 1 & mask;
+        keyTable[index] = key;
+        valueTable[index] = value;
+        if (size++ >= threshold) resize(capacity << 1);
+    }
+
+    /** Removes the key at the index, and shifts back the keys after it that belong at (or before) the removed index, so that there are
+     * no tombstones. Only for linear probing.
+     * @return the index that a key from the start of the table was shifted back to (wrapping around to the end), or -1 if there was
+     *         none. A removal wraps around at most once. */
+    int removeProbingIndex (int index) {
+        K[] keyTable = this.keyTable;
+        int[] valueTable = this.valueTable;
+        int mask = this.mask;
+        int next = index + 1 & mask;
+        int wrapped = -1;
+        K key;
+        while ((key = keyTable[next]) != null) {
+            if (HashEngine.canShift(index, next, HashEngine.place(key.hashCode(), mask), mask)) {
+                keyTable[index] = key;
+                valueTable[index] = valueTable[next];
+                if (next < index) wrapped = index;
+                index = next;
+            }
+            next = next + 1 & mask;
+        }
+        keyTable[index] = null;
+        return wrapped;
+    }
+
     private int hash2 (int h) {
         h *= PRIME2;
         return (h ^ h >>> hashShift) & mask;
@@ -629,6 +737,23 @@ public class ObjectIntMap<K> implements Iterable<ObjectIntMap.Entry<K>> {
         return keys2;
     }
 
+    /** Calls the consumer for each entry, without allocating. Unlike {@link #entries()}, this can be nested and used by multiple
+     * threads at once, as long as the map is not modified. */
+    public void forEach (ObjIntConsumer<? super K> consumer) {
+        K[] keyTable = this.keyTable;
+        int[] valueTable = this.valueTable;
+        for (int i = 0, n = capacity + stashSize; i < n; i++) {
+            K key = keyTable[i];
+            if (key != null) consumer.accept(key, valueTable[i]);
+        }
+    }
+
+    /** Returns a new cursor over the entries. A cursor has no shared state, so unlike {@link #entries()} it can be nested and used by
+     * multiple threads at once, as long as the map is not modified. It can be reused with {@link Cursor#reset()}. */
+    public Cursor<K> cursor () {
+        return new Cursor<K>(this);
+    }
+
     static public class Entry<K> {
         public K key;
         public int value;
@@ -646,6 +771,10 @@ public class ObjectIntMap<K> implements Iterable<ObjectIntMap.Entry<K>> {
         int nextIndex, currentIndex;
         boolean valid = true;
 
+        // the keys that were already iterated, but were shifted back to the end of the table by remove(). They are skipped until reset.
+        Object[] skipKeys;
+        int skipCount;
+
         public MapIterator (ObjectIntMap<K> map) {
             this.map = map;
             reset();
@@ -654,6 +783,7 @@ public class ObjectIntMap<K> implements Iterable<ObjectIntMap.Entry<K>> {
         public void reset () {
             currentIndex = -1;
             nextIndex = -1;
+            clearSkipKeys();
             findNextIndex();
         }
 
@@ -662,15 +792,45 @@ public class ObjectIntMap<K> implements Iterable<ObjectIntMap.Entry<K>> {
             K[] keyTable = map.keyTable;
             for (int n = map.capacity + map.stashSize; ++nextIndex < n;) {
                 if (keyTable[nextIndex] != null) {
+                    if (skipCount > 0 && skipped(keyTable[nextIndex])) continue;
                     hasNext = true;
                     break;
                 }
             }
         }
 
+        /** @return true if the key was already iterated */
+        private boolean skipped (Object key) {
+            for (int i = 0; i < skipCount; i++) {
+                if (skipKeys[i] == key) return true;
+            }
+            return false;
+        }
+
+        private void clearSkipKeys () {
+            while (skipCount > 0) {
+                skipKeys[--skipCount] = null;
+            }
+        }
+
         public void remove () {
             if (currentIndex < 0) throw new IllegalStateException("next must be called before remove.");
-            if (currentIndex >= map.capacity) {
+            if (map.linearProbing) {
+                int wrapped = map.removeProbingIndex(currentIndex);
+                if (wrapped != -1) {
+                    // a key from the start of the table (which was already iterated) was shifted back to the end of the table
+                    if (skipKeys == null)
+                        skipKeys = new Object[4];
+                    else if (skipCount == skipKeys.length)
+                        skipKeys = Arrays.copyOf(skipKeys, skipCount << 1);
+                    skipKeys[skipCount++] = map.keyTable[wrapped];
+                }
+                // a later key may have been shifted back into the removed index, so it has to be iterated
+                if (map.keyTable[currentIndex] != null) {
+                    nextIndex = currentIndex - 1;
+                    findNextIndex();
+                }
+            } else if (currentIndex >= map.capacity) {
                 map.removeStashIndex(currentIndex);
                 nextIndex = currentIndex - 1;
                 findNextIndex();
@@ -793,4 +953,42 @@ public class ObjectIntMap<K> implements Iterable<ObjectIntMap.Entry<K>> {
             super.remove();
         }
     }
+
+    /** Iterates over the entries without allocating, by moving to the next entry with {@link #advance()}:
+     * <pre>
+     * for (Cursor cursor = map.cursor(); cursor.advance();)
+     *    use(cursor.key(), cursor.value());
+     * </pre>
+     * The key and value are read from the map, so they are only valid until the map is modified. */
+    static public class Cursor<K> {
+        final ObjectIntMap<K> map;
+        int index;
+
+        public Cursor (ObjectIntMap<K> map) {
+            this.map = map;
+            index = -1;
+        }
+
+        /** Moves the cursor back to before the first entry. */
+        public void reset () {
+            index = -1;
+        }
+
+        /** Moves to the next entry.
+         * @return false if there are no more entries */
+        public boolean advance () {
+            K[] keyTable = map.keyTable;
+            for (int n = map.capacity + map.stashSize; index + 1 < n;)
+                if (keyTable[++index] != null) return true;
+            return false;
+        }
+
+        public K key () {
+            return map.keyTable[index];
+        }
+
+        public int value () {
+            return map.valueTable[index];
+        }
+    }
 }
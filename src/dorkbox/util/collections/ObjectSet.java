@@ -20,6 +20,7 @@ package dorkbox.util.collections;
 
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.function.Consumer;
 
 import dorkbox.util.MathUtil;
 import dorkbox.util.RandomUtil;
@@ -86,7 +87,12 @@ public class ObjectSet<T> implements Iterable<T> {
 
 	/** Creates a new set identical to the specified set. */
 	public ObjectSet (ObjectSet set) {
-		this((int)Math.floor(set.capacity * set.loadFactor), set.loadFactor);
+		this(Math.max((int)Math.floor(set.capacity * set.loadFactor), set.size), set.loadFactor);
+		if (set instanceof OrderedSet) {
+			// the items of an OrderedSet are not in its hash table
+			addAll(set);
+			return;
+		}
 		stashSize = set.stashSize;
 		System.arraycopy(set.keyTable, 0, keyTable, 0, set.keyTable.length);
 		size = set.size;
@@ -505,6 +511,23 @@ public class ObjectSet<T> implements Iterable<T> {
 		return iterator2;
 	}
 
+	/** Calls the consumer for each key, without allocating. Unlike {@link #iterator()}, this can be nested and used by multiple
+	 * threads at once, as long as the set is not modified. */
+	@Override
+	public void forEach (Consumer<? super T> consumer) {
+		T[] keyTable = this.keyTable;
+		for (int i = 0, n = capacity + stashSize; i < n; i++) {
+			T key = keyTable[i];
+			if (key != null) consumer.accept(key);
+		}
+	}
+
+	/** Returns a new cursor over the keys. A cursor has no shared state, so unlike {@link #iterator()} it can be nested and used by
+	 * multiple threads at once, as long as the set is not modified. It can be reused with {@link Cursor#reset()}. */
+	public Cursor<T> cursor () {
+		return new Cursor<T>(this);
+	}
+
 	static public <T> ObjectSet<T> with (T... array) {
 		ObjectSet set = new ObjectSet();
 		set.addAll(array);
@@ -587,4 +610,38 @@ public class ObjectSet<T> implements Iterable<T> {
 			return toArray(new Array(true, set.size));
 		}
 	}
+
+	/** Iterates over the keys without allocating, by moving to the next key with {@link #advance()}:
+	 * <pre>
+	 * for (Cursor cursor = set.cursor(); cursor.advance();)
+	 *    use(cursor.key());
+	 * </pre>
+	 * The key is read from the set, so it is only valid until the set is modified. */
+	static public class Cursor<T> {
+		final ObjectSet<T> set;
+		int index;
+
+		public Cursor (ObjectSet<T> set) {
+			this.set = set;
+			index = -1;
+		}
+
+		/** Moves the cursor back to before the first key. */
+		public void reset () {
+			index = -1;
+		}
+
+		/** Moves to the next key.
+		 * @return false if there are no more keys */
+		public boolean advance () {
+			T[] keyTable = set.keyTable;
+			for (int n = set.capacity + set.stashSize; index + 1 < n;)
+				if (keyTable[++index] != null) return true;
+			return false;
+		}
+
+		public T key () {
+			return set.keyTable[index];
+		}
+	}
 }
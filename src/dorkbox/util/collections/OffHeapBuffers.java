@@ -0,0 +1,184 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Allocates, releases and persists the (off-heap) tables for the off-heap maps.
+ */
+final
+class OffHeapBuffers {
+    static final int HEADER_SIZE = 64;
+    static final int VERSION = 1;
+
+    private static final Object unsafe;
+    private static final Method invokeCleaner;
+
+    static {
+        Object theUnsafe = null;
+        Method cleaner = null;
+
+        try {
+            // java 9+
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            cleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+
+            Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            theUnsafe = field.get(null);
+        } catch (Exception ignored) {
+            // java 8 uses the cleaner of the buffer instead
+            cleaner = null;
+        }
+
+        unsafe = theUnsafe;
+        invokeCleaner = cleaner;
+    }
+
+    private
+    OffHeapBuffers() {
+    }
+
+    /**
+     * @return a new (zeroed) direct buffer, in the native byte order
+     */
+    static
+    ByteBuffer allocate(final long bytes) {
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Table is too large: " + bytes + " bytes");
+        }
+        return ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Frees the memory of a direct (or memory-mapped) buffer immediately, instead of waiting for the GC. The buffer MUST NOT be used
+     * afterwards.
+     */
+    static
+    void release(final ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+
+        try {
+            if (invokeCleaner != null) {
+                invokeCleaner.invoke(unsafe, buffer);
+            }
+            else {
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            }
+        } catch (Exception ignored) {
+            // the memory is freed when the buffer is garbage collected
+        }
+    }
+
+    /**
+     * Writes the header and the table to the file. The file is replaced atomically, because it might still be memory-mapped by a loaded map
+     * (and truncating a mapped file crashes whoever reads it).
+     */
+    static
+    void save(final File file, final ByteBuffer header, final ByteBuffer table, final int tableBytes) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                               StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            header.position(0).limit(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                channel.write(header);
+            }
+
+            ByteBuffer source = table.duplicate();
+            source.position(0).limit(tableBytes);
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+            channel.force(false);
+        } finally {
+            channel.close();
+        }
+
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @return a new header, with the magic number, version and byte order already written
+     */
+    static
+    ByteBuffer newHeader(final int magic) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        header.putInt(magic);
+        header.putInt(VERSION);
+        header.put((byte) (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? 1 : 0));
+        return header;
+    }
+
+    /**
+     * Reads (and validates) the header of the file. The header is positioned after the magic number, version and byte order.
+     */
+    static
+    ByteBuffer readHeader(final FileChannel channel, final int magic, final File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        while (header.hasRemaining()) {
+            if (channel.read(header) < 0) {
+                throw new IOException("File is too small: " + file);
+            }
+        }
+        header.flip();
+
+        if (header.getInt() != magic) {
+            throw new IOException("File is not an off-heap map of this type: " + file);
+        }
+        if (header.getInt() != VERSION) {
+            throw new IOException("Unsupported off-heap map version: " + file);
+        }
+        if ((header.get() == 1) != (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN)) {
+            throw new IOException("File was saved with a different byte order: " + file);
+        }
+
+        return header;
+    }
+
+    /**
+     * Memory-maps the table of the file. Changes to the table are private (copy-on-write), and are not written back to the file.
+     */
+    static
+    ByteBuffer mapTable(final FileChannel channel, final int tableBytes, final File file) throws IOException {
+        if (channel.size() < HEADER_SIZE + (long) tableBytes) {
+            throw new IOException("File is truncated: " + file);
+        }
+        return channel.map(FileChannel.MapMode.PRIVATE, HEADER_SIZE, tableBytes).order(ByteOrder.nativeOrder());
+    }
+}
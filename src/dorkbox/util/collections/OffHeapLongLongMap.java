@@ -0,0 +1,568 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+import dorkbox.util.MathUtil;
+
+/**
+ * An unordered map where the keys and values are longs, which are stored off-heap (in a direct or memory-mapped buffer) so that very large
+ * maps do not put any pressure on the GC. This implementation uses linear probing with backward-shift deletion.
+ * <p>
+ * Resizing is incremental: when the map reaches its load factor, a table twice the size is allocated, and every following put/remove
+ * moves a few clusters of entries from the old table to the new one. No single put pays for a full rehash, and lookups check both tables
+ * until all of the entries are moved.
+ * <p>
+ * The map can be saved to a file, and then loaded by memory-mapping that file (instead of re-inserting every entry). Changes to a loaded
+ * map are private to it, and are not written back to the file unless it is saved again.
+ * <p>
+ * The memory is freed by {@link #close()}, and the map cannot be used afterwards. This class is not thread-safe.
+ *
+ * @author dorkbox, llc
+ */
+public final
+class OffHeapLongLongMap implements Closeable {
+    public
+    interface Visitor {
+        void visit(long key, long value);
+    }
+
+    // "OHLL"
+    private static final int MAGIC = 0x4F484C4C;
+
+    // key (8 bytes) + value (8 bytes)
+    private static final int SLOT_SIZE = 16;
+
+    // the table must fit in a single buffer
+    private static final int MAX_CAPACITY = 1 << 26;
+
+    // the minimum number of slots moved from the old table by every put/remove, while resizing
+    private static final int MIGRATE_STEP = 32;
+
+    private final float loadFactor;
+    private int size;
+
+    private ByteBuffer table;
+    private int capacity;
+    private int mask;
+    private int threshold;
+
+    // while resizing, the entries that have not been moved to the new table yet
+    private ByteBuffer oldTable;
+    private int oldMask;
+    private int migrateIndex;
+    private int migrateRemaining;
+
+    // 0 marks an empty slot, so the zero key is stored separately
+    private boolean hasZeroValue;
+    private long zeroValue;
+
+    /**
+     * Creates a new map with an initial capacity of 1024 and a load factor of 0.75.
+     */
+    public
+    OffHeapLongLongMap() {
+        this(1024, 0.75f);
+    }
+
+    /**
+     * Creates a new map with a load factor of 0.75.
+     *
+     * @param initialCapacity If not a power of two, it is increased to the next nearest power of two.
+     */
+    public
+    OffHeapLongLongMap(int initialCapacity) {
+        this(initialCapacity, 0.75f);
+    }
+
+    /**
+     * Creates a new map with the specified initial capacity and load factor.
+     *
+     * @param initialCapacity If not a power of two, it is increased to the next nearest power of two.
+     * @param loadFactor must be less than 1
+     */
+    public
+    OffHeapLongLongMap(int initialCapacity, float loadFactor) {
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("initialCapacity must be >= 0: " + initialCapacity);
+        }
+        if (initialCapacity > MAX_CAPACITY) {
+            throw new IllegalArgumentException("initialCapacity is too large: " + initialCapacity);
+        }
+        if (loadFactor <= 0 || loadFactor >= 1.0f) {
+            throw new IllegalArgumentException("loadFactor must be > 0 and < 1: " + loadFactor);
+        }
+
+        this.loadFactor = loadFactor;
+        setTable(OffHeapBuffers.allocate((long) tableSize(initialCapacity) * SLOT_SIZE), tableSize(initialCapacity));
+    }
+
+    private
+    OffHeapLongLongMap(final ByteBuffer table, final int capacity, final float loadFactor) {
+        this.loadFactor = loadFactor;
+        setTable(table, capacity);
+    }
+
+    private static
+    int tableSize(final int initialCapacity) {
+        return Math.max(8, MathUtil.nextPowerOfTwo(initialCapacity));
+    }
+
+    private
+    void setTable(final ByteBuffer table, final int capacity) {
+        this.table = table;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+
+        if (capacity == MAX_CAPACITY) {
+            // cannot grow anymore, so allow it to fill up (but always keep an empty slot)
+            this.threshold = capacity - 1;
+        }
+        else {
+            this.threshold = Math.min((int) (capacity * loadFactor), capacity - 1);
+        }
+    }
+
+    /**
+     * Loads a map that was saved with {@link #save(File)}, by memory-mapping the file.
+     */
+    public static
+    OffHeapLongLongMap load(final File file) throws IOException {
+        // a private (copy-on-write) mapping needs a writable channel, even though nothing is written to the file
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            ByteBuffer header = OffHeapBuffers.readHeader(channel, MAGIC, file);
+            int capacity = header.getInt();
+            int size = header.getInt();
+            float loadFactor = header.getFloat();
+            boolean hasZeroValue = header.get() == 1;
+            long zeroValue = header.getLong();
+
+            if (capacity < 8 || capacity > MAX_CAPACITY || Integer.bitCount(capacity) != 1 || size < 0 || size > capacity ||
+                loadFactor <= 0 || loadFactor >= 1.0f) {
+                throw new IOException("File has an invalid header: " + file);
+            }
+
+            ByteBuffer table = OffHeapBuffers.mapTable(channel, capacity * SLOT_SIZE, file);
+
+            OffHeapLongLongMap map = new OffHeapLongLongMap(table, capacity, loadFactor);
+            map.size = size;
+            map.hasZeroValue = hasZeroValue;
+            map.zeroValue = zeroValue;
+            return map;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Saves the map to a file, so that it can be loaded later with {@link #load(File)}. Any resize in progress is completed first.
+     */
+    public
+    void save(final File file) throws IOException {
+        checkOpen();
+        while (oldTable != null) {
+            migrate(Integer.MAX_VALUE);
+        }
+
+        ByteBuffer header = OffHeapBuffers.newHeader(MAGIC);
+        header.putInt(capacity);
+        header.putInt(size);
+        header.putFloat(loadFactor);
+        header.put((byte) (hasZeroValue ? 1 : 0));
+        header.putLong(zeroValue);
+
+        OffHeapBuffers.save(file, header, table, capacity * SLOT_SIZE);
+    }
+
+    private
+    void checkOpen() {
+        if (table == null) {
+            throw new IllegalStateException("The map has been closed");
+        }
+    }
+
+    /**
+     * @return the index of the key, or -(index + 1) of the empty slot where the key belongs
+     */
+    private static
+    int locate(final ByteBuffer table, final int mask, final long key) {
+        int index = HashEngine.place(key, mask);
+        while (true) {
+            long other = table.getLong(index * SLOT_SIZE);
+            if (other == key) {
+                return index;
+            }
+            if (other == 0) {
+                return -(index + 1);
+            }
+            index = index + 1 & mask;
+        }
+    }
+
+    public
+    void put(long key, long value) {
+        checkOpen();
+
+        if (key == 0) {
+            if (!hasZeroValue) {
+                hasZeroValue = true;
+                size++;
+            }
+            zeroValue = value;
+            return;
+        }
+
+        ByteBuffer table = this.table;
+        int index = locate(table, mask, key);
+        if (index >= 0) {
+            table.putLong(index * SLOT_SIZE + 8, value);
+            return;
+        }
+
+        if (oldTable != null) {
+            int oldIndex = locate(oldTable, oldMask, key);
+            if (oldIndex >= 0) {
+                oldTable.putLong(oldIndex * SLOT_SIZE + 8, value);
+                migrate(MIGRATE_STEP);
+                return;
+            }
+        }
+
+        if (size >= threshold && capacity == MAX_CAPACITY) {
+            throw new IllegalStateException("The map is full: " + size);
+        }
+
+        index = -(index + 1);
+        table.putLong(index * SLOT_SIZE, key);
+        table.putLong(index * SLOT_SIZE + 8, value);
+        size++;
+
+        if (oldTable != null) {
+            migrate(MIGRATE_STEP);
+        }
+        else if (size >= threshold && capacity < MAX_CAPACITY) {
+            startResize();
+        }
+    }
+
+    /**
+     * @param defaultValue Returned if the key was not associated with a value.
+     */
+    public
+    long get(long key, long defaultValue) {
+        checkOpen();
+
+        if (key == 0) {
+            return hasZeroValue ? zeroValue : defaultValue;
+        }
+
+        int index = locate(table, mask, key);
+        if (index >= 0) {
+            return table.getLong(index * SLOT_SIZE + 8);
+        }
+
+        if (oldTable != null) {
+            index = locate(oldTable, oldMask, key);
+            if (index >= 0) {
+                return oldTable.getLong(index * SLOT_SIZE + 8);
+            }
+        }
+
+        return defaultValue;
+    }
+
+    /**
+     * Adds the specified increment to the value of the key, and returns the value before the increment.
+     *
+     * @param defaultValue Used as the value (before the increment) if the key was not associated with a value.
+     */
+    public
+    long getAndIncrement(long key, long defaultValue, long increment) {
+        long value = get(key, defaultValue);
+        put(key, value + increment);
+        return value;
+    }
+
+    /**
+     * @param defaultValue Returned if the key was not associated with a value.
+     *
+     * @return the value that was removed
+     */
+    public
+    long remove(long key, long defaultValue) {
+        checkOpen();
+
+        if (key == 0) {
+            if (!hasZeroValue) {
+                return defaultValue;
+            }
+            hasZeroValue = false;
+            size--;
+            return zeroValue;
+        }
+
+        int index = locate(table, mask, key);
+        if (index >= 0) {
+            long value = table.getLong(index * SLOT_SIZE + 8);
+            removeIndex(table, mask, index);
+            size--;
+
+            if (oldTable != null) {
+                migrate(MIGRATE_STEP);
+            }
+            return value;
+        }
+
+        if (oldTable != null) {
+            index = locate(oldTable, oldMask, key);
+            if (index >= 0) {
+                long value = oldTable.getLong(index * SLOT_SIZE + 8);
+                removeIndex(oldTable, oldMask, index);
+                size--;
+
+                migrate(MIGRATE_STEP);
+                return value;
+            }
+        }
+
+        return defaultValue;
+    }
+
+    /**
+     * Removes the entry at the index, and shifts back the entries after it (in the same cluster) that can move closer to where they belong.
+     */
+    private static
+    void removeIndex(final ByteBuffer table, final int mask, int empty) {
+        int next = empty + 1 & mask;
+        long key;
+        while ((key = table.getLong(next * SLOT_SIZE)) != 0) {
+            int placement = HashEngine.place(key, mask);
+            if (HashEngine.canShift(empty, next, placement, mask)) {
+                table.putLong(empty * SLOT_SIZE, key);
+                table.putLong(empty * SLOT_SIZE + 8, table.getLong(next * SLOT_SIZE + 8));
+                empty = next;
+            }
+            next = next + 1 & mask;
+        }
+
+        table.putLong(empty * SLOT_SIZE, 0L);
+        table.putLong(empty * SLOT_SIZE + 8, 0L);
+    }
+
+    /**
+     * Starts moving the entries to a table that is twice the size.
+     */
+    private
+    void startResize() {
+        ByteBuffer oldTable = this.table;
+        int oldMask = this.mask;
+        int newCapacity = capacity << 1;
+
+        setTable(OffHeapBuffers.allocate((long) newCapacity * SLOT_SIZE), newCapacity);
+        this.oldTable = oldTable;
+        this.oldMask = oldMask;
+
+        // start at an empty slot, so that only whole clusters are moved. This keeps the probe chains in the old table valid
+        int start = 0;
+        while (oldTable.getLong(start * SLOT_SIZE) != 0) {
+            start++;
+        }
+        this.migrateIndex = start;
+        this.migrateRemaining = oldMask + 1;
+    }
+
+    /**
+     * Moves at least the specified number of slots from the old table to the new table, stopping at the end of a cluster.
+     */
+    private
+    void migrate(final int minimum) {
+        ByteBuffer oldTable = this.oldTable;
+        ByteBuffer table = this.table;
+        int oldMask = this.oldMask;
+        int mask = this.mask;
+
+        int index = migrateIndex;
+        int remaining = migrateRemaining;
+        int moved = 0;
+
+        while (remaining > 0) {
+            long key = oldTable.getLong(index * SLOT_SIZE);
+            if (key != 0) {
+                int newIndex = -(locate(table, mask, key) + 1);
+                table.putLong(newIndex * SLOT_SIZE, key);
+                table.putLong(newIndex * SLOT_SIZE + 8, oldTable.getLong(index * SLOT_SIZE + 8));
+                oldTable.putLong(index * SLOT_SIZE, 0L);
+            }
+            else if (moved >= minimum) {
+                break;
+            }
+
+            index = index + 1 & oldMask;
+            remaining--;
+            moved++;
+        }
+
+        migrateIndex = index;
+        migrateRemaining = remaining;
+
+        if (remaining == 0) {
+            this.oldTable = null;
+            OffHeapBuffers.release(oldTable);
+
+            if (size >= threshold && capacity < MAX_CAPACITY) {
+                startResize();
+            }
+        }
+    }
+
+    /**
+     * Returns true if the specified key is in the map.
+     */
+    public
+    boolean containsKey(long key) {
+        checkOpen();
+
+        if (key == 0) {
+            return hasZeroValue;
+        }
+
+        return locate(table, mask, key) >= 0 || (oldTable != null && locate(oldTable, oldMask, key) >= 0);
+    }
+
+    /**
+     * Runs the visitor for every entry in the map, without allocating.
+     */
+    public
+    void forEach(final Visitor visitor) {
+        checkOpen();
+
+        if (hasZeroValue) {
+            visitor.visit(0, zeroValue);
+        }
+
+        visit(table, capacity, visitor);
+        if (oldTable != null) {
+            visit(oldTable, oldMask + 1, visitor);
+        }
+    }
+
+    private static
+    void visit(final ByteBuffer table, final int capacity, final Visitor visitor) {
+        for (int i = 0; i < capacity; i++) {
+            long key = table.getLong(i * SLOT_SIZE);
+            if (key != 0) {
+                visitor.visit(key, table.getLong(i * SLOT_SIZE + 8));
+            }
+        }
+    }
+
+    /**
+     * @return the number of entries in the map
+     */
+    public
+    int size() {
+        return size;
+    }
+
+    public
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes every entry, and shrinks the table to the specified capacity.
+     */
+    public
+    void clear(int maximumCapacity) {
+        checkOpen();
+
+        int capacity = tableSize(Math.min(maximumCapacity, MAX_CAPACITY));
+        releaseTables();
+
+        setTable(OffHeapBuffers.allocate((long) capacity * SLOT_SIZE), capacity);
+        size = 0;
+        hasZeroValue = false;
+        zeroValue = 0;
+    }
+
+    /**
+     * Removes every entry, keeping the current capacity.
+     */
+    public
+    void clear() {
+        clear(capacity);
+    }
+
+    /**
+     * Frees the off-heap memory of this map. The map cannot be used afterwards.
+     */
+    @Override
+    public
+    void close() {
+        if (table != null) {
+            releaseTables();
+            size = 0;
+            hasZeroValue = false;
+        }
+    }
+
+    private
+    void releaseTables() {
+        ByteBuffer table = this.table;
+        ByteBuffer oldTable = this.oldTable;
+
+        this.table = null;
+        this.oldTable = null;
+
+        OffHeapBuffers.release(oldTable);
+        OffHeapBuffers.release(table);
+    }
+
+    @Override
+    public
+    String toString() {
+        if (table == null) {
+            return "{closed}";
+        }
+        if (size == 0) {
+            return "{}";
+        }
+
+        final StringBuilder buffer = new StringBuilder(32);
+        buffer.append('{');
+        forEach(new Visitor() {
+            @Override
+            public
+            void visit(final long key, final long value) {
+                if (buffer.length() > 1) {
+                    buffer.append(", ");
+                }
+                buffer.append(key);
+                buffer.append('=');
+                buffer.append(value);
+            }
+        });
+        buffer.append('}');
+        return buffer.toString();
+    }
+}
@@ -18,82 +18,170 @@
 
 package dorkbox.util.collections;
 
+import java.util.Comparator;
 import java.util.NoSuchElementException;
-
-/** An {@link ObjectMap} that also stores keys in an {@link Array} using the insertion order. Iteration over the
- * {@link #entries()}, {@link #keys()}, and {@link #values()} is ordered and faster than an unordered map. Keys can also be
- * accessed and the order changed using {@link #orderedKeys()}. There is some additional overhead for put and remove. When used
- * for faster iteration versus ObjectMap and the order does not actually matter, copying during remove can be greatly reduced by
- * setting {@link Array#ordered} to false for {@link OrderedMap#orderedKeys()}.
+import java.util.function.BiConsumer;
+
+/** An {@link ObjectMap} that keeps the entries in insertion order. Iteration over the {@link #entries()}, {@link #keys()}, and
+ * {@link #values()} is ordered and faster than an unordered map.
+ * <p>
+ * The entries are stored like a "compact dict": the keys and values are in dense arrays in insertion order, and the hash table
+ * only holds the position of each key (an int), so get, put and remove are O(1) and there is no separate array of keys. Removing
+ * an entry leaves a gap, which is squeezed out later. The hash table always uses linear probing, so the load factor is limited to
+ * 0.9. The hash table of the ObjectMap is not used.
+ * <p>
+ * Because there is no array of keys, {@link #orderedKeys()} returns a copy of the keys in order, and changing it does not change
+ * the order of the map. The order is changed with {@link #removeIndex(int)}, {@link #move(int, int)} and {@link #sort(Comparator)}.
  * @author Nathan Sweet */
-@SuppressWarnings({"unchecked", "NullableProblems"})
+@SuppressWarnings({"unchecked", "NullableProblems", "rawtypes"})
 public class OrderedMap<K, V> extends ObjectMap<K, V> {
-	final Array<K> keys;
+	final OrderedTable<K> table;
 
 	private Entries entries1, entries2;
 	private Values values1, values2;
 	private Keys keys1, keys2;
 
 	public OrderedMap () {
-		keys = new Array();
+		this(51, 0.8f);
 	}
 
 	public OrderedMap (int initialCapacity) {
-		super(initialCapacity);
-		keys = new Array(capacity);
+		this(initialCapacity, 0.8f);
 	}
 
 	public OrderedMap (int initialCapacity, float loadFactor) {
-		super(initialCapacity, loadFactor);
-		keys = new Array(capacity);
+		super(0, loadFactor);
+		table = new OrderedTable<K>(initialCapacity, loadFactor, true);
 	}
 
 	public OrderedMap (OrderedMap<? extends K, ? extends V> map) {
-		super(map);
-		keys = new Array(map.keys);
+		super(0, map.table.loadFactor);
+		table = new OrderedTable<K>(map.table);
+		size = table.size;
+	}
+
+	@Override
+	public V put (K key, V value) {
+		if (key == null) throw new IllegalArgumentException("key cannot be null.");
+		int position = table.add(key);
+		if (position < 0) {
+			position = -(position + 1);
+			V oldValue = (V)table.values[position];
+			table.values[position] = value;
+			return oldValue;
+		}
+		table.values[position] = value;
+		size = table.size;
+		return null;
 	}
 
 	@Override
-    public V put (K key, V value) {
-		if (!containsKey(key)) keys.add(key);
-		return super.put(key, value);
+	public V get (K key) {
+		int position = table.positionOf(key);
+		return position < 0 ? null : (V)table.values[position];
 	}
 
 	@Override
-    public V remove (K key) {
-		keys.removeValue(key, false);
-		return super.remove(key);
+	public V get (K key, V defaultValue) {
+		int position = table.positionOf(key);
+		return position < 0 ? defaultValue : (V)table.values[position];
 	}
 
+	@Override
+	public V remove (K key) {
+		int position = table.positionOf(key);
+		if (position < 0) return null;
+		return removePosition(position);
+	}
+
+	/** Removes the entry at the index in the order. If entries have been removed since the last time, this is O(n). */
 	public V removeIndex (int index) {
-		return super.remove(keys.removeIndex(index));
+		return removePosition(table.positionAt(index));
+	}
+
+	/** Moves the entry at the index in the order to another index, which shifts the entries in between. This is O(n). */
+	public void move (int fromIndex, int toIndex) {
+		table.move(fromIndex, toIndex);
+	}
+
+	/** Sorts the order of the entries by their keys. The sort is stable, and O(n log n).
+	 * @param comparator May be null to sort the keys by their natural order. */
+	public void sort (Comparator<? super K> comparator) {
+		table.sort(comparator);
+	}
+
+	V removePosition (int position) {
+		V oldValue = (V)table.values[position];
+		table.removeAt(position);
+		size = table.size;
+		return oldValue;
+	}
+
+	@Override
+	public boolean containsKey (K key) {
+		return table.positionOf(key) >= 0;
+	}
+
+	@Override
+	public boolean containsValue (Object value, boolean identity) {
+		return findPosition(value, identity) >= 0;
+	}
+
+	@Override
+	public K findKey (Object value, boolean identity) {
+		int position = findPosition(value, identity);
+		return position < 0 ? null : table.keys[position];
+	}
+
+	private int findPosition (Object value, boolean identity) {
+		K[] keys = table.keys;
+		Object[] values = table.values;
+		for (int i = 0, n = table.end; i < n; i++) {
+			if (keys[i] == null) continue;
+			Object other = values[i];
+			if (value == null ? other == null : identity ? other == value : value.equals(other)) return i;
+		}
+		return -1;
+	}
+
+	@Override
+	public void ensureCapacity (int additionalCapacity) {
+		if (additionalCapacity < 0) throw new IllegalArgumentException("additionalCapacity must be >= 0: " + additionalCapacity);
+		table.ensureCapacity(size + additionalCapacity);
 	}
 
 	@Override
-    public void clear (int maximumCapacity) {
-		keys.clear();
-		super.clear(maximumCapacity);
+	public void shrink (int maximumCapacity) {
+		table.shrink(maximumCapacity);
 	}
 
 	@Override
-    public void clear () {
-		keys.clear();
-		super.clear();
+	public void clear (int maximumCapacity) {
+		table.clear(maximumCapacity);
+		size = 0;
 	}
 
+	@Override
+	public void clear () {
+		table.clear();
+		size = 0;
+	}
+
+	/** Returns the keys in order. This is a new copy, so changing the array does not change the map. Use {@link #removeIndex(int)},
+	 * {@link #move(int, int)} or {@link #sort(Comparator)} to change the order of the map. */
 	public Array<K> orderedKeys () {
-		return keys;
+		return table.toArray();
 	}
 
 	@Override
-    public Entries<K, V> iterator () {
+	public Entries<K, V> iterator () {
 		return entries();
 	}
 
 	/** Returns an iterator for the entries in the map. Remove is supported. Note that the same iterator instance is returned each
 	 * time this method is called. Use the {@link OrderedMapEntries} constructor for nested or multithreaded iteration. */
 	@Override
-    public Entries<K, V> entries () {
+	public Entries<K, V> entries () {
 		if (entries1 == null) {
 			entries1 = new OrderedMapEntries(this);
 			entries2 = new OrderedMapEntries(this);
@@ -113,7 +201,7 @@ public class OrderedMap<K, V> extends ObjectMap<K, V> {
 	/** Returns an iterator for the values in the map. Remove is supported. Note that the same iterator instance is returned each
 	 * time this method is called. Use the {@link OrderedMapValues} constructor for nested or multithreaded iteration. */
 	@Override
-    public Values<V> values () {
+	public Values<V> values () {
 		if (values1 == null) {
 			values1 = new OrderedMapValues(this);
 			values2 = new OrderedMapValues(this);
@@ -133,7 +221,7 @@ public class OrderedMap<K, V> extends ObjectMap<K, V> {
 	/** Returns an iterator for the keys in the map. Remove is supported. Note that the same iterator instance is returned each
 	 * time this method is called. Use the {@link OrderedMapKeys} constructor for nested or multithreaded iteration. */
 	@Override
-    public Keys<K> keys () {
+	public Keys<K> keys () {
 		if (keys1 == null) {
 			keys1 = new OrderedMapKeys(this);
 			keys2 = new OrderedMapKeys(this);
@@ -150,122 +238,225 @@ public class OrderedMap<K, V> extends ObjectMap<K, V> {
 		return keys2;
 	}
 
+	/** Calls the consumer for each entry in order, without allocating. */
 	@Override
-    public String toString () {
-		if (size == 0) return "{}";
+	public void forEach (BiConsumer<? super K, ? super V> consumer) {
+		K[] keys = table.keys;
+		Object[] values = table.values;
+		for (int i = 0, n = table.end; i < n; i++) {
+			K key = keys[i];
+			if (key != null) consumer.accept(key, (V)values[i]);
+		}
+	}
+
+	/** Returns a new cursor over the entries in order. */
+	@Override
+	public Cursor<K, V> cursor () {
+		return new OrderedMapCursor(this);
+	}
+
+	@Override
+	public int hashCode () {
+		int h = 0;
+		K[] keys = table.keys;
+		Object[] values = table.values;
+		for (int i = 0, n = table.end; i < n; i++) {
+			K key = keys[i];
+			if (key != null) {
+				h += key.hashCode() * 31;
+
+				Object value = values[i];
+				if (value != null) {
+					h += value.hashCode();
+				}
+			}
+		}
+		return h;
+	}
+
+	@Override
+	public boolean equals (Object obj) {
+		if (obj == this) return true;
+		if (!(obj instanceof ObjectMap)) return false;
+		ObjectMap<K, V> other = (ObjectMap)obj;
+		if (other.size != size) return false;
+		K[] keys = table.keys;
+		Object[] values = table.values;
+		for (int i = 0, n = table.end; i < n; i++) {
+			K key = keys[i];
+			if (key != null) {
+				Object value = values[i];
+				if (value == null) {
+					if (!other.containsKey(key) || other.get(key) != null) return false;
+				} else {
+					if (!value.equals(other.get(key))) return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public String toString (String separator) {
+		return toString(separator, false);
+	}
+
+	@Override
+	public String toString () {
+		return toString(", ", true);
+	}
+
+	private String toString (String separator, boolean braces) {
+		if (size == 0) return braces ? "{}" : "";
 		StringBuilder buffer = new StringBuilder(32);
-		buffer.append('{');
-		Array<K> keys = this.keys;
-		for (int i = 0, n = keys.size; i < n; i++) {
-			K key = keys.get(i);
-			if (i > 0) buffer.append(", ");
+		if (braces) buffer.append('{');
+		K[] keys = table.keys;
+		Object[] values = table.values;
+		boolean first = true;
+		for (int i = 0, n = table.end; i < n; i++) {
+			K key = keys[i];
+			if (key == null) continue;
+			if (!first) buffer.append(separator);
+			first = false;
 			buffer.append(key);
 			buffer.append('=');
-			buffer.append(get(key));
+			buffer.append(values[i]);
 		}
-		buffer.append('}');
+		if (braces) buffer.append('}');
 		return buffer.toString();
 	}
 
-	@SuppressWarnings("rawtypes")
-    static public class OrderedMapEntries<K, V> extends Entries<K, V> {
-		private final Array<K> keys;
+	/** The iterators walk over the positions in the dense arrays, skipping the gaps. */
+	static int nextPosition (ObjectMap map, int position) {
+		return ((OrderedMap)map).table.next(position);
+	}
 
+	static boolean hasPosition (ObjectMap map, int position) {
+		return position < ((OrderedMap)map).table.end;
+	}
+
+	static public class OrderedMapEntries<K, V> extends Entries<K, V> {
 		public OrderedMapEntries (OrderedMap<K, V> map) {
 			super(map);
-			keys = map.keys;
 		}
 
 		@Override
-        public void reset () {
-			nextIndex = 0;
-			hasNext = map.size > 0;
+		public void reset () {
+			currentIndex = -1;
+			nextIndex = nextPosition(map, 0);
+			hasNext = hasPosition(map, nextIndex);
 		}
 
 		@Override
-        public Entry next () {
+		public Entry next () {
 			if (!hasNext) throw new NoSuchElementException();
 			if (!valid) throw new RuntimeException("#iterator() cannot be used nested.");
-			entry.key = keys.get(nextIndex);
-			entry.value = map.get(entry.key);
-			nextIndex++;
-			hasNext = nextIndex < map.size;
+			OrderedTable table = ((OrderedMap)map).table;
+			entry.key = (K)table.keys[nextIndex];
+			entry.value = (V)table.values[nextIndex];
+			currentIndex = nextIndex;
+			nextIndex = nextPosition(map, nextIndex + 1);
+			hasNext = hasPosition(map, nextIndex);
 			return entry;
 		}
 
 		@Override
-        public void remove () {
+		public void remove () {
 			if (currentIndex < 0) throw new IllegalStateException("next must be called before remove.");
-			map.remove(entry.key);
-			nextIndex--;
+			((OrderedMap)map).removePosition(currentIndex);
+			currentIndex = -1;
+			// removing can shorten the used positions, when it removes the last entry
+			hasNext = hasPosition(map, nextIndex);
 		}
 	}
 
 	static public class OrderedMapKeys<K> extends Keys<K> {
-		private final Array<K> keys;
-
 		public OrderedMapKeys (OrderedMap<K, ?> map) {
 			super(map);
-			keys = map.keys;
 		}
 
 		@Override
-        public void reset () {
-			nextIndex = 0;
-			hasNext = map.size > 0;
+		public void reset () {
+			currentIndex = -1;
+			nextIndex = nextPosition(map, 0);
+			hasNext = hasPosition(map, nextIndex);
 		}
 
 		@Override
-        public K next () {
+		public K next () {
 			if (!hasNext) throw new NoSuchElementException();
 			if (!valid) throw new RuntimeException("#iterator() cannot be used nested.");
-			K key = keys.get(nextIndex);
+			K key = (K)((OrderedMap)map).table.keys[nextIndex];
 			currentIndex = nextIndex;
-			nextIndex++;
-			hasNext = nextIndex < map.size;
+			nextIndex = nextPosition(map, nextIndex + 1);
+			hasNext = hasPosition(map, nextIndex);
 			return key;
 		}
 
 		@Override
-        public void remove () {
+		public void remove () {
 			if (currentIndex < 0) throw new IllegalStateException("next must be called before remove.");
-			((OrderedMap)map).removeIndex(nextIndex - 1);
-			nextIndex = currentIndex;
+			((OrderedMap)map).removePosition(currentIndex);
 			currentIndex = -1;
+			hasNext = hasPosition(map, nextIndex);
 		}
 	}
 
 	static public class OrderedMapValues<V> extends Values<V> {
-		private final Array keys;
-
 		public OrderedMapValues (OrderedMap<?, V> map) {
 			super(map);
-			keys = map.keys;
 		}
 
 		@Override
-        public void reset () {
-			nextIndex = 0;
-			hasNext = map.size > 0;
+		public void reset () {
+			currentIndex = -1;
+			nextIndex = nextPosition(map, 0);
+			hasNext = hasPosition(map, nextIndex);
 		}
 
 		@Override
-        public V next () {
+		public V next () {
 			if (!hasNext) throw new NoSuchElementException();
 			if (!valid) throw new RuntimeException("#iterator() cannot be used nested.");
-			V value = (V)map.get(keys.get(nextIndex));
+			V value = (V)((OrderedMap)map).table.values[nextIndex];
 			currentIndex = nextIndex;
-			nextIndex++;
-			hasNext = nextIndex < map.size;
+			nextIndex = nextPosition(map, nextIndex + 1);
+			hasNext = hasPosition(map, nextIndex);
 			return value;
 		}
 
 		@Override
-        public void remove () {
+		public void remove () {
 			if (currentIndex < 0) throw new IllegalStateException("next must be called before remove.");
-			((OrderedMap)map).removeIndex(currentIndex);
-			nextIndex = currentIndex;
+			((OrderedMap)map).removePosition(currentIndex);
 			currentIndex = -1;
+			hasNext = hasPosition(map, nextIndex);
+		}
+	}
+
+	/** Walks over the positions in the dense arrays, skipping the gaps. */
+	static public class OrderedMapCursor<K, V> extends Cursor<K, V> {
+		public OrderedMapCursor (OrderedMap<K, V> map) {
+			super(map);
+		}
+
+		@Override
+		public boolean advance () {
+			OrderedTable<K> table = ((OrderedMap)map).table;
+			int next = table.next(index + 1);
+			if (next >= table.end) return false;
+			index = next;
+			return true;
+		}
+
+		@Override
+		public K key () {
+			return ((OrderedMap<K, V>)map).table.keys[index];
+		}
+
+		@Override
+		public V value () {
+			return (V)((OrderedMap)map).table.values[index];
 		}
 	}
 }
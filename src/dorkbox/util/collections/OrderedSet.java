@@ -18,87 +18,148 @@
 
 package dorkbox.util.collections;
 
+import java.util.Comparator;
 import java.util.NoSuchElementException;
+import java.util.function.Consumer;
 
-/** An {@link ObjectSet} that also stores keys in an {@link Array} using the insertion order. {@link #iterator() Iteration} is
- * ordered and faster than an unordered set. Keys can also be accessed and the order changed using {@link #orderedItems()}. There
- * is some additional overhead for put and remove. When used for faster iteration versus ObjectSet and the order does not actually
- * matter, copying during remove can be greatly reduced by setting {@link Array#ordered} to false for
- * {@link OrderedSet#orderedItems()}.
+/** An {@link ObjectSet} that keeps the items in insertion order. {@link #iterator() Iteration} is ordered and faster than an
+ * unordered set.
+ * <p>
+ * The items are stored like a "compact dict": they are in a dense array in insertion order, and the hash table only holds the
+ * position of each item (an int), so add, contains and remove are O(1) and there is no separate array of items. Removing an item
+ * leaves a gap, which is squeezed out later. The hash table always uses linear probing, so the load factor is limited to 0.9. The
+ * hash table of the ObjectSet is not used.
+ * <p>
+ * Because there is no array of items, {@link #orderedItems()} returns a copy of the items in order, and changing it does not
+ * change the order of the set. The order is changed with {@link #add(Object, int)}, {@link #removeIndex(int)},
+ * {@link #move(int, int)} and {@link #sort(Comparator)}.
  * @author Nathan Sweet */
 @SuppressWarnings({"unchecked", "rawtypes"})
 public class OrderedSet<T> extends ObjectSet<T> {
-	final Array<T> items;
+	final OrderedTable<T> table;
 	OrderedSetIterator iterator1, iterator2;
 
 	public OrderedSet () {
-		items = new Array();
+		this(51, 0.8f);
 	}
 
 	public OrderedSet (int initialCapacity, float loadFactor) {
-		super(initialCapacity, loadFactor);
-		items = new Array(capacity);
+		super(0, loadFactor);
+		table = new OrderedTable<T>(initialCapacity, loadFactor, false);
 	}
 
 	public OrderedSet (int initialCapacity) {
-		super(initialCapacity);
-		items = new Array(capacity);
+		this(initialCapacity, 0.8f);
 	}
 
 	public OrderedSet (OrderedSet set) {
-		super(set);
-		items = new Array(capacity);
-		items.addAll(set.items);
+		super(0, set.table.loadFactor);
+		table = new OrderedTable<T>(set.table);
+		size = table.size;
 	}
 
 	@Override
-    public boolean add (T key) {
-		if (!super.add(key)) return false;
-		items.add(key);
+	public boolean add (T key) {
+		if (key == null) throw new IllegalArgumentException("key cannot be null.");
+		if (table.add(key) < 0) return false;
+		size = table.size;
 		return true;
 	}
 
+	/** Adds the key at the index in the order, or moves it there if it is already in the set. This is O(n).
+	 * @return true if the key was not already in the set */
 	public boolean add (T key, int index) {
-		if (!super.add(key)) {
-			items.removeValue(key, true);
-			items.insert(index, key);
-			return false;
-		}
-		items.insert(index, key);
-		return true;
+		if (key == null) throw new IllegalArgumentException("key cannot be null.");
+		int position = table.positionOf(key);
+		if (position >= 0) table.removeAt(position);
+		table.insert(index, key);
+		size = table.size;
+		return position < 0;
 	}
 
 	@Override
-    public boolean remove (T key) {
-		if (!super.remove(key)) return false;
-		items.removeValue(key, false);
+	public boolean remove (T key) {
+		int position = table.positionOf(key);
+		if (position < 0) return false;
+		removePosition(position);
 		return true;
 	}
 
+	/** Removes the item at the index in the order. If items have been removed since the last time, this is O(n). */
 	public T removeIndex (int index) {
-		T key = items.removeIndex(index);
-		super.remove(key);
+		int position = table.positionAt(index);
+		T key = table.keys[position];
+		removePosition(position);
 		return key;
 	}
 
+	/** Moves the item at the index in the order to another index, which shifts the items in between. This is O(n). */
+	public void move (int fromIndex, int toIndex) {
+		table.move(fromIndex, toIndex);
+	}
+
+	/** Sorts the order of the items. The sort is stable, and O(n log n).
+	 * @param comparator May be null to sort the items by their natural order. */
+	public void sort (Comparator<? super T> comparator) {
+		table.sort(comparator);
+	}
+
+	void removePosition (int position) {
+		table.removeAt(position);
+		size = table.size;
+	}
+
+	@Override
+	public boolean contains (T key) {
+		return table.positionOf(key) >= 0;
+	}
+
+	/** @return May be null. */
+	@Override
+	public T get (T key) {
+		int position = table.positionOf(key);
+		return position < 0 ? null : table.keys[position];
+	}
+
+	/** Returns the first item in the order. */
 	@Override
-    public void clear (int maximumCapacity) {
-		items.clear();
-		super.clear(maximumCapacity);
+	public T first () {
+		if (size == 0) throw new IllegalStateException("OrderedSet is empty.");
+		return table.keys[table.next(0)];
 	}
 
 	@Override
-    public void clear () {
-		items.clear();
-		super.clear();
+	public void ensureCapacity (int additionalCapacity) {
+		if (additionalCapacity < 0) throw new IllegalArgumentException("additionalCapacity must be >= 0: " + additionalCapacity);
+		table.ensureCapacity(size + additionalCapacity);
 	}
 
+	@Override
+	public void shrink (int maximumCapacity) {
+		table.shrink(maximumCapacity);
+	}
+
+	@Override
+	public void clear (int maximumCapacity) {
+		table.clear(maximumCapacity);
+		size = 0;
+	}
+
+	@Override
+	public void clear () {
+		table.clear();
+		size = 0;
+	}
+
+	/** Returns the items in order. This is a new copy, so changing the array does not change the set. Use
+	 * {@link #add(Object, int)}, {@link #removeIndex(int)}, {@link #move(int, int)} or {@link #sort(Comparator)} to change the order
+	 * of the set. */
 	public Array<T> orderedItems () {
-		return items;
+		return table.toArray();
 	}
 
 	@Override
-    public OrderedSetIterator<T> iterator () {
+	public OrderedSetIterator<T> iterator () {
 		if (iterator1 == null) {
 			iterator1 = new OrderedSetIterator(this);
 			iterator2 = new OrderedSetIterator(this);
@@ -115,55 +176,113 @@ public class OrderedSet<T> extends ObjectSet<T> {
 		return iterator2;
 	}
 
+	/** Calls the consumer for each item in order, without allocating. */
 	@Override
-    public String toString () {
-		if (size == 0) return "{}";
-		T[] items = this.items.items;
-		StringBuilder buffer = new StringBuilder(32);
-		buffer.append('{');
-		buffer.append(items[0]);
-		for (int i = 1; i < size; i++) {
-			buffer.append(", ");
-			buffer.append(items[i]);
-		}
-		buffer.append('}');
-		return buffer.toString();
+	public void forEach (Consumer<? super T> consumer) {
+		T[] keys = table.keys;
+		for (int i = 0, n = table.end; i < n; i++)
+			if (keys[i] != null) consumer.accept(keys[i]);
 	}
 
+	/** Returns a new cursor over the items in order. */
 	@Override
-    public String toString (String separator) {
-		return items.toString(separator);
+	public Cursor<T> cursor () {
+		return new OrderedSetCursor(this);
 	}
 
-	static public class OrderedSetIterator<T> extends ObjectSetIterator<T> {
-		private Array<T> items;
+	@Override
+	public int hashCode () {
+		int h = 0;
+		T[] keys = table.keys;
+		for (int i = 0, n = table.end; i < n; i++)
+			if (keys[i] != null) h += keys[i].hashCode();
+		return h;
+	}
+
+	@Override
+	public boolean equals (Object obj) {
+		if (!(obj instanceof ObjectSet)) return false;
+		ObjectSet other = (ObjectSet)obj;
+		if (other.size != size) return false;
+		T[] keys = table.keys;
+		for (int i = 0, n = table.end; i < n; i++)
+			if (keys[i] != null && !other.contains(keys[i])) return false;
+		return true;
+	}
+
+	@Override
+	public String toString () {
+		return '{' + toString(", ") + '}';
+	}
+
+	@Override
+	public String toString (String separator) {
+		if (size == 0) return "";
+		StringBuilder buffer = new StringBuilder(32);
+		T[] keys = table.keys;
+		boolean first = true;
+		for (int i = 0, n = table.end; i < n; i++) {
+			T key = keys[i];
+			if (key == null) continue;
+			if (!first) buffer.append(separator);
+			first = false;
+			buffer.append(key);
+		}
+		return buffer.toString();
+	}
 
+	/** Walks over the positions in the dense array, skipping the gaps. */
+	static public class OrderedSetIterator<T> extends ObjectSetIterator<T> {
 		public OrderedSetIterator (OrderedSet<T> set) {
 			super(set);
-			items = set.items;
 		}
 
 		@Override
-        public void reset () {
-			nextIndex = 0;
-			hasNext = set.size > 0;
+		public void reset () {
+			currentIndex = -1;
+			nextIndex = ((OrderedSet)set).table.next(0);
+			hasNext = nextIndex < ((OrderedSet)set).table.end;
 		}
 
 		@Override
-        public T next () {
+		public T next () {
 			if (!hasNext) throw new NoSuchElementException();
 			if (!valid) throw new RuntimeException("#iterator() cannot be used nested.");
-			T key = items.get(nextIndex);
-			nextIndex++;
-			hasNext = nextIndex < set.size;
+			OrderedTable<T> table = ((OrderedSet)set).table;
+			T key = table.keys[nextIndex];
+			currentIndex = nextIndex;
+			nextIndex = table.next(nextIndex + 1);
+			hasNext = nextIndex < table.end;
 			return key;
 		}
 
 		@Override
-        public void remove () {
-			if (nextIndex < 0) throw new IllegalStateException("next must be called before remove.");
-			nextIndex--;
-			((OrderedSet)set).removeIndex(nextIndex);
+		public void remove () {
+			if (currentIndex < 0) throw new IllegalStateException("next must be called before remove.");
+			((OrderedSet)set).removePosition(currentIndex);
+			currentIndex = -1;
+			hasNext = nextIndex < ((OrderedSet)set).table.end;
+		}
+	}
+
+	/** Walks over the positions in the dense array, skipping the gaps. */
+	static public class OrderedSetCursor<T> extends Cursor<T> {
+		public OrderedSetCursor (OrderedSet<T> set) {
+			super(set);
+		}
+
+		@Override
+		public boolean advance () {
+			OrderedTable<T> table = ((OrderedSet)set).table;
+			int next = table.next(index + 1);
+			if (next >= table.end) return false;
+			index = next;
+			return true;
+		}
+
+		@Override
+		public T key () {
+			return ((OrderedSet<T>)set).table.keys[index];
 		}
 	}
 }
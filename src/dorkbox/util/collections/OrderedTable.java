@@ -0,0 +1,513 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import dorkbox.util.MathUtil;
+
+/**
+ * The storage of {@link OrderedMap} and {@link OrderedSet}, using the layout of a "compact dict".
+ * <p>
+ * The keys (and values) are kept in dense arrays in insertion order, and the hash table (using linear probing) only holds the position
+ * of each key in those arrays. A hash table slot is an int instead of a key and a value, there is no separate array for the order, and
+ * iteration is a sequential walk over the dense arrays. The hash code of each key is kept in a dense array as well, so probing,
+ * removing and growing the table don't have to read the keys.
+ * <p>
+ * Removing a key leaves a gap (null) at its position, so that no other key has to move, and the gaps are squeezed out when the dense
+ * arrays are full (or when a position is needed by index).
+ */
+@SuppressWarnings("unchecked")
+final
+class OrderedTable<K> {
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    // the position + 1 of the key in the dense arrays, or 0 if the slot is empty
+    private int[] slots;
+    private int mask;
+
+    K[] keys;
+    // null if there are no values (for a set)
+    Object[] values;
+    // the hash code of each key, so that probing and re-indexing don't have to read the keys
+    private int[] hashes;
+
+    // the number of positions that are used (including gaps), and the number of keys
+    int end;
+    int size;
+
+    final float loadFactor;
+
+    /**
+     * @param loadFactor is limited to 0.9, because the table uses linear probing
+     */
+    OrderedTable(final int initialCapacity, final float loadFactor, final boolean hasValues) {
+        if (initialCapacity < 0) {
+            throw new IllegalArgumentException("initialCapacity must be >= 0: " + initialCapacity);
+        }
+        if (loadFactor <= 0) {
+            throw new IllegalArgumentException("loadFactor must be > 0: " + loadFactor);
+        }
+
+        this.loadFactor = Math.min(loadFactor, 0.9f);
+
+        int capacity = capacityFor(initialCapacity);
+        slots = new int[capacity];
+        mask = capacity - 1;
+        keys = (K[]) new Object[denseLength(capacity)];
+        values = hasValues ? new Object[keys.length] : null;
+        hashes = new int[keys.length];
+    }
+
+    OrderedTable(final OrderedTable<? extends K> table) {
+        this(table.size, table.loadFactor, table.values != null);
+
+        K[] keys = this.keys;
+        Object[] values = this.values;
+        int[] hashes = this.hashes;
+        K[] otherKeys = table.keys;
+        Object[] otherValues = table.values;
+        int[] otherHashes = table.hashes;
+
+        int position = 0;
+        for (int i = 0, n = table.end; i < n; i++) {
+            K key = otherKeys[i];
+            if (key != null) {
+                keys[position] = key;
+                if (values != null) {
+                    values[position] = otherValues[i];
+                }
+                hashes[position] = otherHashes[i];
+                position++;
+            }
+        }
+        end = size = position;
+        index();
+    }
+
+    /**
+     * @return the number of slots needed for the number of keys
+     */
+    private
+    int capacityFor(final int count) {
+        // at least 2, so that there is always an empty slot
+        int capacity = Math.max(2, MathUtil.nextPowerOfTwo((int) Math.ceil(count / loadFactor)));
+        if (capacity > MAX_CAPACITY || capacity < 0) {
+            throw new IllegalArgumentException("The capacity is too large: " + count);
+        }
+        return capacity;
+    }
+
+    /**
+     * @return the length of the dense arrays for the number of slots
+     */
+    private
+    int denseLength(final int capacity) {
+        return Math.max(1, Math.min(capacity - 1, (int) (capacity * loadFactor)));
+    }
+
+    /**
+     * @return the position of the key, or -1 if it is not in the table
+     */
+    int positionOf(final Object key) {
+        int slot = locate(key, key.hashCode());
+        return slot < 0 ? -1 : slots[slot] - 1;
+    }
+
+    /**
+     * @return the slot of the key, or -(slot + 1) of the empty slot where it would be put
+     */
+    private
+    int locate(final Object key, final int hashCode) {
+        int[] slots = this.slots;
+        int[] hashes = this.hashes;
+        int mask = this.mask;
+
+        for (int i = HashEngine.place(hashCode, mask); ; i = i + 1 & mask) {
+            int position = slots[i] - 1;
+            if (position < 0) {
+                return -(i + 1);
+            }
+            if (hashes[position] == hashCode && key.equals(keys[position])) {
+                return i;
+            }
+        }
+    }
+
+    /**
+     * Adds the key at the end of the order.
+     *
+     * @return the position of the new key, or -(position + 1) of the key if it was already in the table
+     */
+    int add(final K key) {
+        int hashCode = key.hashCode();
+        int slot = locate(key, hashCode);
+        if (slot >= 0) {
+            return -slots[slot];
+        }
+
+        if (end == keys.length) {
+            do {
+                makeRoom();
+            } while (end == keys.length);
+            slot = locate(key, hashCode);
+        }
+
+        int position = end++;
+        keys[position] = key;
+        hashes[position] = hashCode;
+        slots[-(slot + 1)] = position + 1;
+        size++;
+        return position;
+    }
+
+    /**
+     * Inserts the key, which must not be in the table, at the index in the order. This moves the keys after it, so it is O(n).
+     */
+    void insert(final int index, final K key) {
+        if (index > size) {
+            throw new IndexOutOfBoundsException("index can't be > size: " + index + " > " + size);
+        }
+        while (end == keys.length) {
+            makeRoom();
+        }
+        compact();
+
+        System.arraycopy(keys, index, keys, index + 1, end - index);
+        System.arraycopy(hashes, index, hashes, index + 1, end - index);
+        keys[index] = key;
+        hashes[index] = key.hashCode();
+        if (values != null) {
+            System.arraycopy(values, index, values, index + 1, end - index);
+            values[index] = null;
+        }
+        end++;
+        size++;
+        index();
+    }
+
+    /**
+     * Moves the key at the index in the order to another index, which shifts the keys in between. This is O(n).
+     */
+    void move(final int fromIndex, final int toIndex) {
+        if (fromIndex >= size) {
+            throw new IndexOutOfBoundsException("fromIndex can't be >= size: " + fromIndex + " >= " + size);
+        }
+        if (toIndex >= size) {
+            throw new IndexOutOfBoundsException("toIndex can't be >= size: " + toIndex + " >= " + size);
+        }
+        compact();
+
+        K key = keys[fromIndex];
+        int hashCode = hashes[fromIndex];
+        Object value = values != null ? values[fromIndex] : null;
+
+        if (fromIndex < toIndex) {
+            System.arraycopy(keys, fromIndex + 1, keys, fromIndex, toIndex - fromIndex);
+            System.arraycopy(hashes, fromIndex + 1, hashes, fromIndex, toIndex - fromIndex);
+            if (values != null) {
+                System.arraycopy(values, fromIndex + 1, values, fromIndex, toIndex - fromIndex);
+            }
+        }
+        else {
+            System.arraycopy(keys, toIndex, keys, toIndex + 1, fromIndex - toIndex);
+            System.arraycopy(hashes, toIndex, hashes, toIndex + 1, fromIndex - toIndex);
+            if (values != null) {
+                System.arraycopy(values, toIndex, values, toIndex + 1, fromIndex - toIndex);
+            }
+        }
+
+        keys[toIndex] = key;
+        hashes[toIndex] = hashCode;
+        if (values != null) {
+            values[toIndex] = value;
+        }
+        index();
+    }
+
+    /**
+     * Sorts the order of the keys (and their values). The sort is stable.
+     *
+     * @param comparator null to sort the keys by their natural order
+     */
+    void sort(final Comparator<? super K> comparator) {
+        compact();
+
+        final K[] keys = this.keys;
+        int end = this.end;
+
+        Integer[] order = new Integer[end];
+        for (int i = 0; i < end; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public
+            int compare(final Integer a, final Integer b) {
+                if (comparator == null) {
+                    return ((Comparable<Object>) keys[a]).compareTo(keys[b]);
+                }
+                return comparator.compare(keys[a], keys[b]);
+            }
+        });
+
+        K[] sortedKeys = (K[]) new Object[keys.length];
+        int[] sortedHashes = new int[keys.length];
+        Object[] sortedValues = values != null ? new Object[keys.length] : null;
+        for (int i = 0; i < end; i++) {
+            int position = order[i];
+            sortedKeys[i] = keys[position];
+            sortedHashes[i] = hashes[position];
+            if (sortedValues != null) {
+                sortedValues[i] = values[position];
+            }
+        }
+
+        this.keys = sortedKeys;
+        this.hashes = sortedHashes;
+        this.values = sortedValues;
+        index();
+    }
+
+    /**
+     * Removes the key at the position, which leaves a gap in the dense arrays.
+     */
+    void removeAt(final int position) {
+        int[] slots = this.slots;
+        int[] hashes = this.hashes;
+        int mask = this.mask;
+
+        int slot = HashEngine.place(hashes[position], mask);
+        while (slots[slot] != position + 1) {
+            slot = slot + 1 & mask;
+        }
+
+        // shift back the keys after the removed slot that belong at (or before) it, so that there are no tombstones in the slots
+        int next = slot + 1 & mask;
+        int other;
+        while ((other = slots[next] - 1) >= 0) {
+            if (HashEngine.canShift(slot, next, HashEngine.place(hashes[other], mask), mask)) {
+                slots[slot] = slots[next];
+                slot = next;
+            }
+            next = next + 1 & mask;
+        }
+        slots[slot] = 0;
+
+        keys[position] = null;
+        if (values != null) {
+            values[position] = null;
+        }
+        size--;
+
+        // a gap at the end doesn't have to be kept
+        while (end > 0 && keys[end - 1] == null) {
+            end--;
+        }
+    }
+
+    /**
+     * @return the position of the key at the index in the order. If there are gaps, they are removed first (which is O(n)).
+     */
+    int positionAt(final int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("index can't be >= size: " + index + " >= " + size);
+        }
+        if (compact()) {
+            index();
+        }
+        return index;
+    }
+
+    /**
+     * @return the first position (that has a key) at or after the position, or end if there is none
+     */
+    int next(int position) {
+        K[] keys = this.keys;
+        int end = this.end;
+        while (position < end && keys[position] == null) {
+            position++;
+        }
+        return position;
+    }
+
+    void clear() {
+        if (size == 0 && end == 0) {
+            return;
+        }
+
+        Arrays.fill(slots, 0);
+        Arrays.fill(keys, 0, end, null);
+        if (values != null) {
+            Arrays.fill(values, 0, end, null);
+        }
+        end = size = 0;
+    }
+
+    /**
+     * Clears the table, and reduces its capacity if it is larger than the maximum capacity.
+     */
+    void clear(final int maximumCapacity) {
+        int capacity = capacityFor(maximumCapacity);
+        if (slots.length <= capacity) {
+            clear();
+            return;
+        }
+        end = size = 0;
+        resize(capacity);
+    }
+
+    /**
+     * Reduces the capacity to hold the maximum capacity (or the size, if it is larger).
+     */
+    void shrink(int maximumCapacity) {
+        if (maximumCapacity < 0) {
+            throw new IllegalArgumentException("maximumCapacity must be >= 0: " + maximumCapacity);
+        }
+        if (size > maximumCapacity) {
+            maximumCapacity = size;
+        }
+        int capacity = capacityFor(maximumCapacity);
+        if (slots.length > capacity) {
+            resize(capacity);
+        }
+    }
+
+    void ensureCapacity(final int sizeNeeded) {
+        if (sizeNeeded > keys.length) {
+            resize(capacityFor(sizeNeeded));
+        }
+    }
+
+    /**
+     * Called when the dense arrays are full. If at least half of the positions are gaps they are squeezed out, otherwise the table
+     * grows.
+     */
+    private
+    void makeRoom() {
+        if (size < keys.length >>> 1) {
+            compact();
+            index();
+        }
+        else {
+            if (slots.length == MAX_CAPACITY) {
+                throw new IllegalStateException("The table is too large.");
+            }
+            resize(slots.length << 1);
+        }
+    }
+
+    /**
+     * Moves the keys over the gaps, keeping their order. The slots must be rebuilt afterwards.
+     *
+     * @return true if there were gaps
+     */
+    private
+    boolean compact() {
+        if (end == size) {
+            return false;
+        }
+
+        K[] keys = this.keys;
+        Object[] values = this.values;
+        int[] hashes = this.hashes;
+        int position = 0;
+        for (int i = 0, n = end; i < n; i++) {
+            K key = keys[i];
+            if (key != null) {
+                keys[position] = key;
+                if (values != null) {
+                    values[position] = values[i];
+                }
+                hashes[position] = hashes[i];
+                position++;
+            }
+        }
+        Arrays.fill(keys, position, end, null);
+        if (values != null) {
+            Arrays.fill(values, position, end, null);
+        }
+        end = position;
+        return true;
+    }
+
+    private
+    void resize(final int capacity) {
+        K[] oldKeys = keys;
+        Object[] oldValues = values;
+        int[] oldHashes = hashes;
+        int oldEnd = end;
+
+        slots = new int[capacity];
+        mask = capacity - 1;
+        keys = (K[]) new Object[denseLength(capacity)];
+        values = oldValues == null ? null : new Object[keys.length];
+        hashes = new int[keys.length];
+
+        int position = 0;
+        for (int i = 0; i < oldEnd; i++) {
+            K key = oldKeys[i];
+            if (key != null) {
+                keys[position] = key;
+                if (values != null) {
+                    values[position] = oldValues[i];
+                }
+                hashes[position] = oldHashes[i];
+                position++;
+            }
+        }
+        end = position;
+        index();
+    }
+
+    /**
+     * Rebuilds the slots from the dense arrays.
+     */
+    private
+    void index() {
+        int[] slots = this.slots;
+        K[] keys = this.keys;
+        int[] hashes = this.hashes;
+        int mask = this.mask;
+
+        Arrays.fill(slots, 0);
+        for (int position = 0, n = end; position < n; position++) {
+            if (keys[position] != null) {
+                int slot = HashEngine.place(hashes[position], mask);
+                while (slots[slot] != 0) {
+                    slot = slot + 1 & mask;
+                }
+                slots[slot] = position + 1;
+            }
+        }
+    }
+
+    /**
+     * @return a new array with the keys in order
+     */
+    Array<K> toArray() {
+        Array<K> array = new Array<K>(true, size);
+        K[] keys = this.keys;
+        for (int i = 0, n = end; i < n; i++) {
+            K key = keys[i];
+            if (key != null) {
+                array.add(key);
+            }
+        }
+        return array;
+    }
+}
@@ -0,0 +1,908 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * An immutable hash map, implemented as a hash array mapped trie (HAMT).
+ * <p>
+ * Every modification returns a new map, and only copies the path (at most 7 small nodes) from the root to the modified entry. Everything
+ * else is shared with the original map, so a modification is O(log32 n) instead of a full O(n) copy. Because a map can never change
+ * after it has been created, it can be safely published to (and read by) any number of threads without locking.
+ * <p>
+ * For bulk modifications use a {@link Builder}, which modifies the nodes it has already copied in-place, and only publishes a map when
+ * {@link Builder#build()} is called.
+ * <p>
+ * Null keys and null values are permitted. All of the {@link Map} mutation methods throw {@link UnsupportedOperationException}.
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+public final
+class PersistentHashMap<K, V> extends AbstractMap<K, V> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final Object NOT_FOUND = new Object();
+    private static final PersistentHashMap EMPTY = new PersistentHashMap(null, 0, false, null);
+
+    private final Node root;
+    private final int size;
+
+    private final boolean hasNull;
+    private final V nullValue;
+
+    /**
+     * @return the empty map
+     */
+    public static
+    <K, V> PersistentHashMap<K, V> empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @return a new map that contains all of the mappings of the specified map
+     */
+    public static
+    <K, V> PersistentHashMap<K, V> of(Map<? extends K, ? extends V> map) {
+        if (map instanceof PersistentHashMap) {
+            return (PersistentHashMap<K, V>) map;
+        }
+
+        Builder<K, V> builder = new Builder<K, V>(EMPTY);
+        builder.putAll(map);
+        return builder.build();
+    }
+
+    /**
+     * @return a new builder, which starts with no mappings
+     */
+    public static
+    <K, V> Builder<K, V> builder() {
+        return new Builder<K, V>(EMPTY);
+    }
+
+    private
+    PersistentHashMap(final Node root, final int size, final boolean hasNull, final V nullValue) {
+        this.root = root;
+        this.size = size;
+        this.hasNull = hasNull;
+        this.nullValue = nullValue;
+    }
+
+    private static
+    int hash(final Object key) {
+        int h = key.hashCode();
+        // spread the upper bits, since the top level of the trie only uses the low 5 bits
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public
+    int size() {
+        return size;
+    }
+
+    @Override
+    public
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public
+    boolean containsKey(final Object key) {
+        if (key == null) {
+            return hasNull;
+        }
+
+        return root != null && root.find(0, hash(key), key, NOT_FOUND) != NOT_FOUND;
+    }
+
+    @Override
+    public
+    V get(final Object key) {
+        if (key == null) {
+            return nullValue;
+        }
+
+        if (root == null) {
+            return null;
+        }
+
+        return (V) root.find(0, hash(key), key, null);
+    }
+
+    @Override
+    public
+    V getOrDefault(final Object key, final V defaultValue) {
+        if (key == null) {
+            return hasNull ? nullValue : defaultValue;
+        }
+
+        if (root == null) {
+            return defaultValue;
+        }
+
+        return (V) root.find(0, hash(key), key, defaultValue);
+    }
+
+    /**
+     * @return a map that has the specified mapping. If this map already has this exact mapping, this map is returned.
+     */
+    public
+    PersistentHashMap<K, V> with(final K key, final V value) {
+        if (key == null) {
+            if (hasNull && value == nullValue) {
+                return this;
+            }
+            return new PersistentHashMap<K, V>(root, hasNull ? size : size + 1, true, value);
+        }
+
+        Box box = new Box();
+        Node newRoot = (root == null ? BitmapNode.EMPTY : root).put(null, 0, hash(key), key, value, box);
+        if (newRoot == root) {
+            return this;
+        }
+
+        return new PersistentHashMap<K, V>(newRoot, box.added ? size + 1 : size, hasNull, nullValue);
+    }
+
+    /**
+     * @return a map without a mapping for the specified key. If this map does not have the key, this map is returned.
+     */
+    public
+    PersistentHashMap<K, V> without(final Object key) {
+        if (key == null) {
+            if (!hasNull) {
+                return this;
+            }
+            return new PersistentHashMap<K, V>(root, size - 1, false, null);
+        }
+
+        if (root == null) {
+            return this;
+        }
+
+        Box box = new Box();
+        Node newRoot = root.remove(null, 0, hash(key), key, box);
+        if (!box.removed) {
+            return this;
+        }
+
+        return new PersistentHashMap<K, V>(newRoot, size - 1, hasNull, nullValue);
+    }
+
+    /**
+     * @return a builder that starts with all of the mappings in this map. This map is not affected by changes to the builder.
+     */
+    public
+    Builder<K, V> toBuilder() {
+        return new Builder<K, V>(this);
+    }
+
+    @Override
+    public
+    Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<Entry<K, V>>() {
+            @Override
+            public
+            Iterator<Entry<K, V>> iterator() {
+                return new EntryIterator<K, V>(PersistentHashMap.this);
+            }
+
+            @Override
+            public
+            int size() {
+                return size;
+            }
+
+            @Override
+            public
+            boolean contains(final Object o) {
+                if (!(o instanceof Entry)) {
+                    return false;
+                }
+
+                Entry<?, ?> entry = (Entry<?, ?>) o;
+                Object key = entry.getKey();
+                if (!containsKey(key)) {
+                    return false;
+                }
+
+                Object value = get(key);
+                return value == null ? entry.getValue() == null : value.equals(entry.getValue());
+            }
+        };
+    }
+
+
+    /**
+     * Calls the action for each entry, without allocating. Because the map never changes, this can be used by any number of threads at
+     * once.
+     */
+    @Override
+    public
+    void forEach(final BiConsumer<? super K, ? super V> action) {
+        if (hasNull) {
+            action.accept(null, nullValue);
+        }
+        if (root != null) {
+            forEach(root, action);
+        }
+    }
+
+    private static
+    void forEach(final Node node, final BiConsumer action) {
+        Object[] array = node instanceof BitmapNode ? ((BitmapNode) node).array : ((CollisionNode) node).array;
+        for (int i = 0; i < array.length; i += 2) {
+            Object key = array[i];
+            if (key == null) {
+                forEach((Node) array[i + 1], action);
+            }
+            else {
+                action.accept(key, array[i + 1]);
+            }
+        }
+    }
+
+    /**
+     * Calls the action for each key, without allocating.
+     */
+    public
+    void forEachKey(final Consumer<? super K> action) {
+        if (hasNull) {
+            action.accept(null);
+        }
+        if (root != null) {
+            forEachKey(root, action);
+        }
+    }
+
+    private static
+    void forEachKey(final Node node, final Consumer action) {
+        Object[] array = node instanceof BitmapNode ? ((BitmapNode) node).array : ((CollisionNode) node).array;
+        for (int i = 0; i < array.length; i += 2) {
+            Object key = array[i];
+            if (key == null) {
+                forEachKey((Node) array[i + 1], action);
+            }
+            else {
+                action.accept(key);
+            }
+        }
+    }
+
+    /**
+     * @return a new cursor over the entries, which can be reused with {@link Cursor#reset()}
+     */
+    public
+    Cursor<K, V> cursor() {
+        return new Cursor<K, V>(this);
+    }
+
+    /**
+     * Accumulates modifications, without publishing a new map for every change. Nodes that were copied by this builder are modified
+     * in-place, so a bulk load only allocates the nodes that end up in the final map.
+     * <p>
+     * A builder is NOT thread safe.
+     */
+    public static final
+    class Builder<K, V> {
+        // identifies the nodes that this builder owns (and can modify in-place)
+        private Object owner = new Object();
+
+        private Node root;
+        private int size;
+        private boolean hasNull;
+        private V nullValue;
+
+        private PersistentHashMap<K, V> built;
+
+        Builder(final PersistentHashMap<K, V> map) {
+            this.root = map.root;
+            this.size = map.size;
+            this.hasNull = map.hasNull;
+            this.nullValue = map.nullValue;
+            this.built = map;
+        }
+
+        public
+        int size() {
+            return size;
+        }
+
+        public
+        boolean containsKey(final Object key) {
+            if (key == null) {
+                return hasNull;
+            }
+            return root != null && root.find(0, hash(key), key, NOT_FOUND) != NOT_FOUND;
+        }
+
+        public
+        V get(final Object key) {
+            if (key == null) {
+                return nullValue;
+            }
+            return root == null ? null : (V) root.find(0, hash(key), key, null);
+        }
+
+        /**
+         * @return the previous value associated with the key, or null
+         */
+        public
+        V put(final K key, final V value) {
+            if (key == null) {
+                V prev = nullValue;
+                if (!hasNull) {
+                    size++;
+                    hasNull = true;
+                    built = null;
+                }
+                if (prev != value) {
+                    nullValue = value;
+                    built = null;
+                }
+                return prev;
+            }
+
+            Box box = new Box();
+            Node newRoot = (root == null ? BitmapNode.EMPTY : root).put(owner, 0, hash(key), key, value, box);
+            if (box.added) {
+                size++;
+            }
+
+            if (newRoot != root || box.changed) {
+                root = newRoot;
+                built = null;
+            }
+
+            return (V) box.value;
+        }
+
+        public
+        void putAll(final Map<? extends K, ? extends V> map) {
+            for (Map.Entry<? extends K, ? extends V> entry : map.entrySet()) {
+                put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        /**
+         * @return the previous value associated with the key, or null
+         */
+        public
+        V remove(final Object key) {
+            if (key == null) {
+                V prev = nullValue;
+                if (hasNull) {
+                    size--;
+                    hasNull = false;
+                    nullValue = null;
+                    built = null;
+                }
+                return prev;
+            }
+
+            if (root == null) {
+                return null;
+            }
+
+            Box box = new Box();
+            Node newRoot = root.remove(owner, 0, hash(key), key, box);
+            if (box.removed) {
+                size--;
+                root = newRoot;
+                built = null;
+            }
+
+            return (V) box.value;
+        }
+
+        public
+        void clear() {
+            root = null;
+            size = 0;
+            hasNull = false;
+            nullValue = null;
+            built = null;
+        }
+
+        /**
+         * @return an immutable map of the current state of this builder. The builder can continue to be used afterwards.
+         */
+        public
+        PersistentHashMap<K, V> build() {
+            if (built == null) {
+                if (size == 0) {
+                    built = EMPTY;
+                }
+                else {
+                    built = new PersistentHashMap<K, V>(root, size, hasNull, nullValue);
+                }
+
+                // the published nodes must never be modified again
+                owner = new Object();
+            }
+
+            return built;
+        }
+    }
+
+
+    /**
+     * Results of a modification
+     */
+    private static final
+    class Box {
+        boolean added;
+        boolean removed;
+
+        // true if a node was modified in-place (by a builder)
+        boolean changed;
+
+        Object value;
+    }
+
+    private abstract static
+    class Node implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        abstract
+        Object find(int shift, int hash, Object key, Object notFound);
+
+        abstract
+        Node put(Object owner, int shift, int hash, Object key, Object value, Box box);
+
+        /**
+         * @return null if this node is now empty
+         */
+        abstract
+        Node remove(Object owner, int shift, int hash, Object key, Box box);
+    }
+
+    /**
+     * A node with up to 32 children, where {@code array} contains [key, value] pairs. If the key is null, the value is a sub-node.
+     */
+    private static final
+    class BitmapNode extends Node {
+        private static final long serialVersionUID = 1L;
+
+        static final BitmapNode EMPTY = new BitmapNode(null, 0, new Object[0]);
+
+        transient Object owner;
+        int bitmap;
+        Object[] array;
+
+        BitmapNode(final Object owner, final int bitmap, final Object[] array) {
+            this.owner = owner;
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private
+        int index(final int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        Object find(final int shift, final int hash, final Object key, final Object notFound) {
+            int bit = 1 << ((hash >>> shift) & 0x1F);
+            if ((bitmap & bit) == 0) {
+                return notFound;
+            }
+
+            int idx = index(bit) << 1;
+            Object keyOrNull = array[idx];
+            Object valueOrNode = array[idx + 1];
+
+            if (keyOrNull == null) {
+                return ((Node) valueOrNode).find(shift + 5, hash, key, notFound);
+            }
+            if (key.equals(keyOrNull)) {
+                return valueOrNode;
+            }
+            return notFound;
+        }
+
+        private
+        BitmapNode editable(final Object owner) {
+            if (owner != null && this.owner == owner) {
+                return this;
+            }
+            return new BitmapNode(owner, bitmap, array.clone());
+        }
+
+        private
+        Node set(final Object owner, final int index, final Object value, final Box box) {
+            BitmapNode node = editable(owner);
+            node.array[index] = value;
+            if (node == this) {
+                box.changed = true;
+            }
+            return node;
+        }
+
+        @Override
+        Node put(final Object owner, final int shift, final int hash, final Object key, final Object value, final Box box) {
+            int bit = 1 << ((hash >>> shift) & 0x1F);
+            int idx = index(bit) << 1;
+
+            if ((bitmap & bit) != 0) {
+                Object keyOrNull = array[idx];
+                Object valueOrNode = array[idx + 1];
+
+                if (keyOrNull == null) {
+                    Node child = (Node) valueOrNode;
+                    Node newChild = child.put(owner, shift + 5, hash, key, value, box);
+                    if (newChild == child) {
+                        return this;
+                    }
+                    return set(owner, idx + 1, newChild, box);
+                }
+
+                if (key.equals(keyOrNull)) {
+                    box.value = valueOrNode;
+                    if (valueOrNode == value) {
+                        return this;
+                    }
+                    return set(owner, idx + 1, value, box);
+                }
+
+                // different key in the same slot, push both down a level
+                box.added = true;
+                Node child = createNode(owner, shift + 5, keyOrNull, valueOrNode, hash, key, value);
+
+                BitmapNode node = editable(owner);
+                node.array[idx] = null;
+                node.array[idx + 1] = child;
+                if (node == this) {
+                    box.changed = true;
+                }
+                return node;
+            }
+
+            box.added = true;
+
+            int count = Integer.bitCount(bitmap);
+            Object[] newArray = new Object[(count + 1) << 1];
+            System.arraycopy(array, 0, newArray, 0, idx);
+            newArray[idx] = key;
+            newArray[idx + 1] = value;
+            System.arraycopy(array, idx, newArray, idx + 2, (count << 1) - idx);
+
+            if (owner != null && this.owner == owner) {
+                this.bitmap |= bit;
+                this.array = newArray;
+                box.changed = true;
+                return this;
+            }
+
+            return new BitmapNode(owner, bitmap | bit, newArray);
+        }
+
+        @Override
+        Node remove(final Object owner, final int shift, final int hash, final Object key, final Box box) {
+            int bit = 1 << ((hash >>> shift) & 0x1F);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+
+            int idx = index(bit) << 1;
+            Object keyOrNull = array[idx];
+            Object valueOrNode = array[idx + 1];
+
+            if (keyOrNull == null) {
+                Node child = (Node) valueOrNode;
+                Node newChild = child.remove(owner, shift + 5, hash, key, box);
+                if (newChild == child) {
+                    return this;
+                }
+                if (newChild != null) {
+                    return set(owner, idx + 1, newChild, box);
+                }
+            }
+            else if (key.equals(keyOrNull)) {
+                box.removed = true;
+                box.value = valueOrNode;
+            }
+            else {
+                return this;
+            }
+
+            // remove the slot
+            if (bitmap == bit) {
+                return null;
+            }
+
+            int count = Integer.bitCount(bitmap);
+            Object[] newArray = new Object[(count - 1) << 1];
+            System.arraycopy(array, 0, newArray, 0, idx);
+            System.arraycopy(array, idx + 2, newArray, idx, (count << 1) - idx - 2);
+
+            if (owner != null && this.owner == owner) {
+                this.bitmap ^= bit;
+                this.array = newArray;
+                box.changed = true;
+                return this;
+            }
+
+            return new BitmapNode(owner, bitmap ^ bit, newArray);
+        }
+
+        private static
+        Node createNode(final Object owner, final int shift, final Object key1, final Object value1,
+                        final int hash2, final Object key2, final Object value2) {
+            int hash1 = hash(key1);
+            if (hash1 == hash2) {
+                return new CollisionNode(owner, hash1, new Object[] {key1, value1, key2, value2});
+            }
+
+            Box box = new Box();
+            return EMPTY.put(owner, shift, hash1, key1, value1, box)
+                        .put(owner, shift, hash2, key2, value2, box);
+        }
+    }
+
+    /**
+     * A node for keys that have the exact same hash. {@code array} contains [key, value] pairs
+     */
+    private static final
+    class CollisionNode extends Node {
+        private static final long serialVersionUID = 1L;
+
+        transient Object owner;
+        final int hash;
+        Object[] array;
+
+        CollisionNode(final Object owner, final int hash, final Object[] array) {
+            this.owner = owner;
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private
+        int indexOf(final Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Object find(final int shift, final int hash, final Object key, final Object notFound) {
+            int idx = indexOf(key);
+            if (idx < 0) {
+                return notFound;
+            }
+            return array[idx + 1];
+        }
+
+        @Override
+        Node put(final Object owner, final int shift, final int hash, final Object key, final Object value, final Box box) {
+            if (hash == this.hash) {
+                int idx = indexOf(key);
+                if (idx >= 0) {
+                    box.value = array[idx + 1];
+                    if (array[idx + 1] == value) {
+                        return this;
+                    }
+
+                    if (owner != null && this.owner == owner) {
+                        array[idx + 1] = value;
+                        box.changed = true;
+                        return this;
+                    }
+
+                    Object[] newArray = array.clone();
+                    newArray[idx + 1] = value;
+                    return new CollisionNode(owner, hash, newArray);
+                }
+
+                box.added = true;
+                Object[] newArray = new Object[array.length + 2];
+                System.arraycopy(array, 0, newArray, 0, array.length);
+                newArray[array.length] = key;
+                newArray[array.length + 1] = value;
+
+                if (owner != null && this.owner == owner) {
+                    array = newArray;
+                    box.changed = true;
+                    return this;
+                }
+                return new CollisionNode(owner, hash, newArray);
+            }
+
+            // different hash, so nest this node inside a bitmap node
+            BitmapNode node = new BitmapNode(owner, 1 << ((this.hash >>> shift) & 0x1F), new Object[] {null, this});
+            return node.put(owner, shift, hash, key, value, box);
+        }
+
+        @Override
+        Node remove(final Object owner, final int shift, final int hash, final Object key, final Box box) {
+            int idx = indexOf(key);
+            if (idx < 0) {
+                return this;
+            }
+
+            box.removed = true;
+            box.value = array[idx + 1];
+
+            if (array.length == 2) {
+                return null;
+            }
+
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, idx);
+            System.arraycopy(array, idx + 2, newArray, idx, array.length - idx - 2);
+
+            if (owner != null && this.owner == owner) {
+                array = newArray;
+                box.changed = true;
+                return this;
+            }
+            return new CollisionNode(owner, hash, newArray);
+        }
+    }
+
+    /**
+     * Iterates over the entries without allocating (after the cursor has been created), by moving to the next entry with
+     * {@link #advance()}. The trie is walked depth-first, and is at most 7 levels deep (plus 1 for collision nodes).
+     * <p>
+     * Because the map never changes, any number of cursors can be used at once, by any number of threads.
+     */
+    public static final
+    class Cursor<K, V> {
+        private final PersistentHashMap<K, V> map;
+
+        private final Object[][] arrays = new Object[8][];
+        private final int[] indexes = new int[8];
+        private int depth;
+
+        private boolean pendingNull;
+
+        private K key;
+        private V value;
+
+        Cursor(final PersistentHashMap<K, V> map) {
+            this.map = map;
+            reset();
+        }
+
+        /**
+         * Moves the cursor back to before the first entry.
+         */
+        public
+        void reset() {
+            while (depth >= 0) {
+                arrays[depth--] = null;
+            }
+
+            pendingNull = map.hasNull;
+            key = null;
+            value = null;
+
+            if (map.root != null) {
+                push(map.root);
+            }
+        }
+
+        private
+        void push(final Node node) {
+            depth++;
+            if (node instanceof BitmapNode) {
+                arrays[depth] = ((BitmapNode) node).array;
+            }
+            else {
+                arrays[depth] = ((CollisionNode) node).array;
+            }
+            indexes[depth] = 0;
+        }
+
+        /**
+         * Moves to the next entry.
+         *
+         * @return false if there are no more entries
+         */
+        public
+        boolean advance() {
+            if (pendingNull) {
+                pendingNull = false;
+                key = null;
+                value = map.nullValue;
+                return true;
+            }
+
+            while (depth >= 0) {
+                Object[] array = arrays[depth];
+                int index = indexes[depth];
+
+                if (index >= array.length) {
+                    arrays[depth] = null;
+                    depth--;
+                    continue;
+                }
+
+                indexes[depth] = index + 2;
+
+                Object key = array[index];
+                if (key == null) {
+                    push((Node) array[index + 1]);
+                    continue;
+                }
+
+                this.key = (K) key;
+                this.value = (V) array[index + 1];
+                return true;
+            }
+
+            return false;
+        }
+
+        public
+        K key() {
+            return key;
+        }
+
+        public
+        V value() {
+            return value;
+        }
+    }
+
+    private static final
+    class EntryIterator<K, V> implements Iterator<Entry<K, V>> {
+        private final Cursor<K, V> cursor;
+        private boolean hasNext;
+
+        EntryIterator(final PersistentHashMap<K, V> map) {
+            cursor = new Cursor<K, V>(map);
+            hasNext = cursor.advance();
+        }
+
+        @Override
+        public
+        boolean hasNext() {
+            return hasNext;
+        }
+
+        @Override
+        public
+        Entry<K, V> next() {
+            if (!hasNext) {
+                throw new NoSuchElementException();
+            }
+
+            Entry<K, V> entry = new SimpleImmutableEntry<K, V>(cursor.key(), cursor.value());
+            hasNext = cursor.advance();
+            return entry;
+        }
+
+        @Override
+        public
+        void remove() {
+            throw new UnsupportedOperationException("remove");
+        }
+    }
+}
@@ -0,0 +1,632 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import java.io.Serializable;
+
+/**
+ * An immutable map that uses int keys, implemented as a hash array mapped trie (with the compact node layout of a CHAMP trie).
+ * <p>
+ * Every modification returns a new map, and only copies the path (at most 7 small nodes) from the root to the modified entry. Everything
+ * else is shared with the original map, so a modification is O(log32 n) instead of a full O(n) copy. Because a map can never change
+ * after it has been created, it can be safely published to (and read by) any number of threads without locking.
+ * <p>
+ * The keys are not boxed, and reading a value does not allocate. The key is scrambled with a bijective hash, so different keys never
+ * collide. Null values are permitted.
+ */
+@SuppressWarnings("unchecked")
+public final
+class PersistentIntMap<V> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final Object NOT_FOUND = new Object();
+    private static final PersistentIntMap<?> EMPTY = new PersistentIntMap<Object>(Node.EMPTY, 0);
+
+    private final Node root;
+    private final int size;
+
+    // the legacy iterators need an IntMap. It is only created when they are used, only once per map, and is never modified
+    private transient volatile IntMap<V> iterable;
+
+    /**
+     * @return the empty map
+     */
+    public static
+    <V> PersistentIntMap<V> empty() {
+        return (PersistentIntMap<V>) EMPTY;
+    }
+
+    /**
+     * @return a new map that contains all of the mappings of the specified map
+     */
+    public static
+    <V> PersistentIntMap<V> of(final IntMap<? extends V> map) {
+        PersistentIntMap<V> result = empty();
+
+        IntMap.Cursor<? extends V> cursor = map.cursor();
+        while (cursor.advance()) {
+            result = result.with(cursor.key(), cursor.value());
+        }
+        return result;
+    }
+
+    private
+    PersistentIntMap(final Node root, final int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Both steps are bijective, so two different keys never have the same hash
+     */
+    static
+    int hash(final int key) {
+        int h = key * 0x9E3779B9;
+        // spread the upper bits, since the top level of the trie only uses the low 5 bits
+        return h ^ (h >>> 16);
+    }
+
+    public
+    int size() {
+        return size;
+    }
+
+    public
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    public
+    boolean containsKey(final int key) {
+        return root.find(hash(key), key, NOT_FOUND) != NOT_FOUND;
+    }
+
+    public
+    V get(final int key) {
+        return (V) root.find(hash(key), key, null);
+    }
+
+    /**
+     * @return the value for the specified key, or the default value if the key is not in the map
+     */
+    public
+    V get(final int key, final V defaultValue) {
+        return (V) root.find(hash(key), key, defaultValue);
+    }
+
+    /**
+     * Returns true if the specified value is in the map. Note this traverses the entire map and compares every value, which may be
+     * an expensive operation.
+     *
+     * @param identity If true, uses == to compare the specified value with values in the map. If false, uses
+     *         {@link #equals(Object)}.
+     */
+    public
+    boolean containsValue(final Object value, final boolean identity) {
+        Cursor<V> cursor = cursor();
+        while (cursor.advance()) {
+            Object other = cursor.value();
+            if (other == value || (!identity && value != null && value.equals(other))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a map that has the specified mapping. If this map already has this exact mapping, this map is returned.
+     */
+    public
+    PersistentIntMap<V> with(final int key, final V value) {
+        Box box = new Box();
+        Node newRoot = root.put(0, hash(key), key, value, box);
+        if (newRoot == root) {
+            return this;
+        }
+
+        return new PersistentIntMap<V>(newRoot, box.added ? size + 1 : size);
+    }
+
+    /**
+     * @return a map without a mapping for the specified key. If this map does not have the key, this map is returned.
+     */
+    public
+    PersistentIntMap<V> without(final int key) {
+        Box box = new Box();
+        Node newRoot = root.remove(0, hash(key), key, box);
+        if (!box.removed) {
+            return this;
+        }
+
+        if (size == 1) {
+            return empty();
+        }
+        return new PersistentIntMap<V>(newRoot, size - 1);
+    }
+
+    /**
+     * Calls the consumer for each entry, without allocating. Because the map never changes, this can be used by any number of threads at
+     * once.
+     */
+    public
+    void forEach(final IntObjConsumer<? super V> consumer) {
+        forEach(root, consumer);
+    }
+
+    private static
+    <V> void forEach(final Node node, final IntObjConsumer<? super V> consumer) {
+        int[] keys = node.keys;
+        Object[] slots = node.slots;
+
+        int i = 0;
+        for (; i < keys.length; i++) {
+            consumer.accept(keys[i], (V) slots[i]);
+        }
+        for (; i < slots.length; i++) {
+            forEach((Node) slots[i], consumer);
+        }
+    }
+
+    /**
+     * @return a new cursor over the entries, which can be reused with {@link Cursor#reset()}
+     */
+    public
+    Cursor<V> cursor() {
+        return new Cursor<V>(this);
+    }
+
+    /**
+     * @return a new iterator for the keys. It is over a copy of this map, which is shared by every iterator of this snapshot (so removing
+     *         through the iterator is not supported).
+     */
+    IntMap.Keys keys() {
+        return new IntMap.Keys(iterable()) {
+            @Override
+            public
+            void remove() {
+                throw new UnsupportedOperationException("remove");
+            }
+        };
+    }
+
+    /**
+     * @return a new iterator for the values. It is over a copy of this map, which is shared by every iterator of this snapshot (so
+     *         removing through the iterator is not supported).
+     */
+    IntMap.Values<V> values() {
+        return new IntMap.Values<V>(iterable()) {
+            @Override
+            public
+            void remove() {
+                throw new UnsupportedOperationException("remove");
+            }
+        };
+    }
+
+    /**
+     * @return a new iterator for the entries. It is over a copy of this map, which is shared by every iterator of this snapshot (so
+     *         removing through the iterator is not supported).
+     */
+    IntMap.Entries<V> entries() {
+        return new IntMap.Entries<V>(iterable()) {
+            @Override
+            public
+            void remove() {
+                throw new UnsupportedOperationException("remove");
+            }
+        };
+    }
+
+    /**
+     * @return a copy of this map, which is only created once (when it is first needed). It is never modified, so it can be read by any
+     *         number of iterators at once.
+     */
+    IntMap<V> iterable() {
+        IntMap<V> iterable = this.iterable;
+        if (iterable == null) {
+            final IntMap<V> copy = new IntMap<V>(Math.max(size, 1));
+            forEach(new IntObjConsumer<V>() {
+                @Override
+                public
+                void accept(final int key, final V value) {
+                    copy.put(key, value);
+                }
+            });
+
+            this.iterable = iterable = copy;
+        }
+        return iterable;
+    }
+
+    /**
+     * Only maps with the exact same mappings are equal
+     */
+    @Override
+    public
+    boolean equals(final Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if (!(obj instanceof PersistentIntMap)) {
+            return false;
+        }
+
+        PersistentIntMap<?> other = (PersistentIntMap<?>) obj;
+        if (other.size != size) {
+            return false;
+        }
+
+        Cursor<V> cursor = cursor();
+        while (cursor.advance()) {
+            Object value = cursor.value();
+            Object otherValue = other.root.find(hash(cursor.key()), cursor.key(), NOT_FOUND);
+
+            if (otherValue == NOT_FOUND || (value == null ? otherValue != null : !value.equals(otherValue))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The same hash code as an {@link IntMap} with the same mappings
+     */
+    @Override
+    public
+    int hashCode() {
+        int h = 0;
+
+        Cursor<V> cursor = cursor();
+        while (cursor.advance()) {
+            h += cursor.key() * 31;
+
+            V value = cursor.value();
+            if (value != null) {
+                h += value.hashCode();
+            }
+        }
+        return h;
+    }
+
+    @Override
+    public
+    String toString() {
+        if (size == 0) {
+            return "[]";
+        }
+
+        StringBuilder buffer = new StringBuilder(32);
+        buffer.append('[');
+
+        Cursor<V> cursor = cursor();
+        while (cursor.advance()) {
+            buffer.append(cursor.key());
+            buffer.append('=');
+            buffer.append(cursor.value());
+            buffer.append(", ");
+        }
+
+        // delete the last ', '
+        buffer.setLength(buffer.length() - 2);
+        buffer.append(']');
+        return buffer.toString();
+    }
+
+
+    /**
+     * Results of a modification
+     */
+    private static final
+    class Box {
+        boolean added;
+        boolean removed;
+    }
+
+    /**
+     * A node with up to 32 entries. The keys of the entries that are stored in this node are in {@code keys}, and {@code slots} contains
+     * their values, followed by the sub-nodes. Both are ordered by the bit of the entry in {@code dataMap} (or {@code nodeMap}).
+     */
+    private static final
+    class Node implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        static final Node EMPTY = new Node(0, 0, new int[0], new Object[0]);
+
+        final int dataMap;
+        final int nodeMap;
+        final int[] keys;
+        final Object[] slots;
+
+        Node(final int dataMap, final int nodeMap, final int[] keys, final Object[] slots) {
+            this.dataMap = dataMap;
+            this.nodeMap = nodeMap;
+            this.keys = keys;
+            this.slots = slots;
+        }
+
+        private static
+        int index(final int map, final int bit) {
+            return Integer.bitCount(map & (bit - 1));
+        }
+
+        Object find(final int hash, final int key, final Object notFound) {
+            Node node = this;
+            int shift = 0;
+
+            while (true) {
+                int bit = 1 << ((hash >>> shift) & 0x1F);
+
+                if ((node.dataMap & bit) != 0) {
+                    int index = index(node.dataMap, bit);
+                    return node.keys[index] == key ? node.slots[index] : notFound;
+                }
+
+                if ((node.nodeMap & bit) == 0) {
+                    return notFound;
+                }
+
+                node = (Node) node.slots[node.keys.length + index(node.nodeMap, bit)];
+                shift += 5;
+            }
+        }
+
+        Node put(final int shift, final int hash, final int key, final Object value, final Box box) {
+            int bit = 1 << ((hash >>> shift) & 0x1F);
+
+            if ((dataMap & bit) != 0) {
+                int index = index(dataMap, bit);
+                int otherKey = keys[index];
+
+                if (otherKey == key) {
+                    if (slots[index] == value) {
+                        return this;
+                    }
+
+                    Object[] newSlots = slots.clone();
+                    newSlots[index] = value;
+                    return new Node(dataMap, nodeMap, keys, newSlots);
+                }
+
+                // different key in the same slot, push both down a level
+                box.added = true;
+                Node child = merge(shift + 5, hash(otherKey), otherKey, slots[index], hash, key, value);
+                return dataToNode(bit, index, child);
+            }
+
+            if ((nodeMap & bit) != 0) {
+                int index = keys.length + index(nodeMap, bit);
+                Node child = (Node) slots[index];
+                Node newChild = child.put(shift + 5, hash, key, value, box);
+                if (newChild == child) {
+                    return this;
+                }
+
+                Object[] newSlots = slots.clone();
+                newSlots[index] = newChild;
+                return new Node(dataMap, nodeMap, keys, newSlots);
+            }
+
+            box.added = true;
+
+            int index = index(dataMap, bit);
+            int[] newKeys = new int[keys.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            newKeys[index] = key;
+            System.arraycopy(keys, index, newKeys, index + 1, keys.length - index);
+
+            Object[] newSlots = new Object[slots.length + 1];
+            System.arraycopy(slots, 0, newSlots, 0, index);
+            newSlots[index] = value;
+            System.arraycopy(slots, index, newSlots, index + 1, slots.length - index);
+
+            return new Node(dataMap | bit, nodeMap, newKeys, newSlots);
+        }
+
+        Node remove(final int shift, final int hash, final int key, final Box box) {
+            int bit = 1 << ((hash >>> shift) & 0x1F);
+
+            if ((dataMap & bit) != 0) {
+                int index = index(dataMap, bit);
+                if (keys[index] != key) {
+                    return this;
+                }
+
+                box.removed = true;
+
+                int[] newKeys = new int[keys.length - 1];
+                System.arraycopy(keys, 0, newKeys, 0, index);
+                System.arraycopy(keys, index + 1, newKeys, index, newKeys.length - index);
+
+                Object[] newSlots = new Object[slots.length - 1];
+                System.arraycopy(slots, 0, newSlots, 0, index);
+                System.arraycopy(slots, index + 1, newSlots, index, newSlots.length - index);
+
+                return new Node(dataMap ^ bit, nodeMap, newKeys, newSlots);
+            }
+
+            if ((nodeMap & bit) != 0) {
+                int index = keys.length + index(nodeMap, bit);
+                Node child = (Node) slots[index];
+                Node newChild = child.remove(shift + 5, hash, key, box);
+                if (newChild == child) {
+                    return this;
+                }
+
+                // a sub-node always has at least 2 entries. A single entry is moved back up into this node
+                if (newChild.nodeMap == 0 && newChild.keys.length == 1) {
+                    return nodeToData(bit, newChild.keys[0], newChild.slots[0]);
+                }
+
+                Object[] newSlots = slots.clone();
+                newSlots[index] = newChild;
+                return new Node(dataMap, nodeMap, keys, newSlots);
+            }
+
+            return this;
+        }
+
+        /**
+         * Replaces the entry at the data index with the sub-node
+         */
+        private
+        Node dataToNode(final int bit, final int index, final Node child) {
+            int dataCount = keys.length;
+            int nodeIndex = dataCount + index(nodeMap, bit);
+
+            int[] newKeys = new int[dataCount - 1];
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            System.arraycopy(keys, index + 1, newKeys, index, dataCount - 1 - index);
+
+            // one value less, one node more
+            Object[] newSlots = new Object[slots.length];
+            System.arraycopy(slots, 0, newSlots, 0, index);
+            System.arraycopy(slots, index + 1, newSlots, index, nodeIndex - index - 1);
+            newSlots[nodeIndex - 1] = child;
+            System.arraycopy(slots, nodeIndex, newSlots, nodeIndex, slots.length - nodeIndex);
+
+            return new Node(dataMap ^ bit, nodeMap | bit, newKeys, newSlots);
+        }
+
+        /**
+         * Replaces the sub-node with a single entry
+         */
+        private
+        Node nodeToData(final int bit, final int key, final Object value) {
+            int dataCount = keys.length;
+            int index = index(dataMap, bit);
+            int nodeIndex = dataCount + index(nodeMap, bit);
+
+            int[] newKeys = new int[dataCount + 1];
+            System.arraycopy(keys, 0, newKeys, 0, index);
+            newKeys[index] = key;
+            System.arraycopy(keys, index, newKeys, index + 1, dataCount - index);
+
+            // one value more, one node less
+            Object[] newSlots = new Object[slots.length];
+            System.arraycopy(slots, 0, newSlots, 0, index);
+            newSlots[index] = value;
+            System.arraycopy(slots, index, newSlots, index + 1, nodeIndex - index);
+            System.arraycopy(slots, nodeIndex + 1, newSlots, nodeIndex + 1, slots.length - nodeIndex - 1);
+
+            return new Node(dataMap | bit, nodeMap ^ bit, newKeys, newSlots);
+        }
+
+        /**
+         * @return a node with both entries (which always have different hashes)
+         */
+        private static
+        Node merge(final int shift, final int hash1, final int key1, final Object value1,
+                   final int hash2, final int key2, final Object value2) {
+            int bit1 = (hash1 >>> shift) & 0x1F;
+            int bit2 = (hash2 >>> shift) & 0x1F;
+
+            if (bit1 == bit2) {
+                Node child = merge(shift + 5, hash1, key1, value1, hash2, key2, value2);
+                return new Node(0, 1 << bit1, new int[0], new Object[] {child});
+            }
+
+            if (bit1 < bit2) {
+                return new Node((1 << bit1) | (1 << bit2), 0, new int[] {key1, key2}, new Object[] {value1, value2});
+            }
+            return new Node((1 << bit1) | (1 << bit2), 0, new int[] {key2, key1}, new Object[] {value2, value1});
+        }
+    }
+
+    /**
+     * Iterates over the entries without allocating (after the cursor has been created), by moving to the next entry with
+     * {@link #advance()}. The trie is walked depth-first, and is at most 7 levels deep.
+     * <p>
+     * Because the map never changes, any number of cursors can be used at once, by any number of threads.
+     */
+    public static final
+    class Cursor<V> {
+        private final PersistentIntMap<V> map;
+
+        private final Node[] nodes = new Node[8];
+        private final int[] indexes = new int[8];
+        private int depth;
+
+        private int key;
+        private V value;
+
+        Cursor(final PersistentIntMap<V> map) {
+            this.map = map;
+            reset();
+        }
+
+        /**
+         * Moves the cursor back to before the first entry.
+         */
+        public
+        void reset() {
+            while (depth > 0) {
+                nodes[depth--] = null;
+            }
+
+            nodes[0] = map.root;
+            indexes[0] = 0;
+            key = 0;
+            value = null;
+        }
+
+        /**
+         * Moves to the next entry.
+         *
+         * @return false if there are no more entries
+         */
+        public
+        boolean advance() {
+            while (depth >= 0) {
+                Node node = nodes[depth];
+                int index = indexes[depth];
+
+                if (index < node.keys.length) {
+                    indexes[depth] = index + 1;
+                    key = node.keys[index];
+                    value = (V) node.slots[index];
+                    return true;
+                }
+
+                if (index < node.slots.length) {
+                    indexes[depth] = index + 1;
+
+                    depth++;
+                    nodes[depth] = (Node) node.slots[index];
+                    indexes[depth] = 0;
+                    continue;
+                }
+
+                if (depth == 0) {
+                    // stay on the root, so that advance() keeps returning false
+                    return false;
+                }
+                nodes[depth--] = null;
+            }
+
+            return false;
+        }
+
+        public
+        int key() {
+            return key;
+        }
+
+        public
+        V value() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,554 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import java.util.Arrays;
+
+/**
+ * Selects a ranked element (kth ordered statistic) or the top-K elements from primitive arrays, without boxing. This is the primitive
+ * version of {@link Select}.
+ * <p>
+ * The lowest ranking element starts at 1, not 0. 1 = first, 2 = second, 3 = third, etc.
+ * <p>
+ * Selecting a ranked element partially reorders the array (there are no copies), and uses a single pass for the min and max, and
+ * quickselect (with a median of three pivot) for values in between. If quickselect partitions badly, the remaining range is sorted, so the
+ * worst case is O(n log(n)). The top-K methods do not modify the array, and use a heap of K elements, which is O(n log(K)).
+ * <p>
+ * Floats are compared the same as Arrays.sort: -0.0 is less than 0.0, and NaN is the largest.
+ *
+ * @author dorkbox, llc
+ */
+public final
+class PrimitiveSelect {
+    private
+    PrimitiveSelect() {
+    }
+
+    private static
+    void checkRank(final int kthLowest, final int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("cannot select from empty array (size < 1)");
+        }
+        if (kthLowest < 1 || kthLowest > size) {
+            throw new IllegalArgumentException("Kth rank is out of range. k: " + kthLowest + ", size: " + size);
+        }
+    }
+
+    private static
+    void checkTopK(final int k, final int size) {
+        if (k < 0 || k > size) {
+            throw new IllegalArgumentException("K is out of range. k: " + k + ", size: " + size);
+        }
+    }
+
+    /**
+     * @return the maximum number of bad partitions before the rest of the range is sorted instead
+     */
+    private static
+    int depthLimit(final int size) {
+        return 2 * (32 - Integer.numberOfLeadingZeros(size));
+    }
+
+
+    public static
+    int select(final IntArray array, final int kthLowest) {
+        return select(array.items, kthLowest, array.size);
+    }
+
+    /**
+     * @return the kth lowest value of the first 'size' items. The items are partially reordered.
+     */
+    public static
+    int select(final int[] items, final int kthLowest, final int size) {
+        checkRank(kthLowest, size);
+
+        if (kthLowest == 1) {
+            int min = items[0];
+            for (int i = 1; i < size; i++) {
+                min = Math.min(min, items[i]);
+            }
+            return min;
+        }
+        if (kthLowest == size) {
+            int max = items[0];
+            for (int i = 1; i < size; i++) {
+                max = Math.max(max, items[i]);
+            }
+            return max;
+        }
+
+        final int k = kthLowest - 1;
+        int left = 0;
+        int right = size - 1;
+        int depth = depthLimit(size);
+
+        while (right > left) {
+            if (depth-- == 0) {
+                Arrays.sort(items, left, right + 1);
+                break;
+            }
+
+            // median of three, which also puts a sentinel at both ends
+            final int middle = left + right >>> 1;
+            if (items[middle] < items[left]) {
+                swap(items, middle, left);
+            }
+            if (items[right] < items[left]) {
+                swap(items, right, left);
+            }
+            if (items[right] < items[middle]) {
+                swap(items, right, middle);
+            }
+            final int pivot = items[middle];
+
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (items[i] < pivot) {
+                    i++;
+                }
+                while (items[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(items, i++, j--);
+                }
+            }
+
+            if (k <= j) {
+                right = j;
+            }
+            else if (k >= i) {
+                left = i;
+            }
+            else {
+                break;
+            }
+        }
+
+        return items[k];
+    }
+
+    public static
+    long select(final LongArray array, final int kthLowest) {
+        return select(array.items, kthLowest, array.size);
+    }
+
+    /**
+     * @return the kth lowest value of the first 'size' items. The items are partially reordered.
+     */
+    public static
+    long select(final long[] items, final int kthLowest, final int size) {
+        checkRank(kthLowest, size);
+
+        if (kthLowest == 1) {
+            long min = items[0];
+            for (int i = 1; i < size; i++) {
+                min = Math.min(min, items[i]);
+            }
+            return min;
+        }
+        if (kthLowest == size) {
+            long max = items[0];
+            for (int i = 1; i < size; i++) {
+                max = Math.max(max, items[i]);
+            }
+            return max;
+        }
+
+        final int k = kthLowest - 1;
+        int left = 0;
+        int right = size - 1;
+        int depth = depthLimit(size);
+
+        while (right > left) {
+            if (depth-- == 0) {
+                Arrays.sort(items, left, right + 1);
+                break;
+            }
+
+            // median of three, which also puts a sentinel at both ends
+            final int middle = left + right >>> 1;
+            if (items[middle] < items[left]) {
+                swap(items, middle, left);
+            }
+            if (items[right] < items[left]) {
+                swap(items, right, left);
+            }
+            if (items[right] < items[middle]) {
+                swap(items, right, middle);
+            }
+            final long pivot = items[middle];
+
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (items[i] < pivot) {
+                    i++;
+                }
+                while (items[j] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(items, i++, j--);
+                }
+            }
+
+            if (k <= j) {
+                right = j;
+            }
+            else if (k >= i) {
+                left = i;
+            }
+            else {
+                break;
+            }
+        }
+
+        return items[k];
+    }
+
+    public static
+    float select(final FloatArray array, final int kthLowest) {
+        return select(array.items, kthLowest, array.size);
+    }
+
+    /**
+     * @return the kth lowest value of the first 'size' items. The items are partially reordered.
+     */
+    public static
+    float select(final float[] items, final int kthLowest, final int size) {
+        checkRank(kthLowest, size);
+
+        if (kthLowest == 1) {
+            float min = items[0];
+            for (int i = 1; i < size; i++) {
+                if (Float.compare(items[i], min) < 0) {
+                    min = items[i];
+                }
+            }
+            return min;
+        }
+        if (kthLowest == size) {
+            float max = items[0];
+            for (int i = 1; i < size; i++) {
+                if (Float.compare(items[i], max) > 0) {
+                    max = items[i];
+                }
+            }
+            return max;
+        }
+
+        final int k = kthLowest - 1;
+        int left = 0;
+        int right = size - 1;
+        int depth = depthLimit(size);
+
+        while (right > left) {
+            if (depth-- == 0) {
+                Arrays.sort(items, left, right + 1);
+                break;
+            }
+
+            // median of three, which also puts a sentinel at both ends
+            final int middle = left + right >>> 1;
+            if (Float.compare(items[middle], items[left]) < 0) {
+                swap(items, middle, left);
+            }
+            if (Float.compare(items[right], items[left]) < 0) {
+                swap(items, right, left);
+            }
+            if (Float.compare(items[right], items[middle]) < 0) {
+                swap(items, right, middle);
+            }
+            final float pivot = items[middle];
+
+            int i = left;
+            int j = right;
+            while (i <= j) {
+                while (Float.compare(items[i], pivot) < 0) {
+                    i++;
+                }
+                while (Float.compare(items[j], pivot) > 0) {
+                    j--;
+                }
+                if (i <= j) {
+                    swap(items, i++, j--);
+                }
+            }
+
+            if (k <= j) {
+                right = j;
+            }
+            else if (k >= i) {
+                left = i;
+            }
+            else {
+                break;
+            }
+        }
+
+        return items[k];
+    }
+
+
+    public static
+    int[] topK(final IntArray array, final int k) {
+        return topK(array.items, array.size, k);
+    }
+
+    /**
+     * @return the k largest values of the first 'size' items, largest first. The items are not modified.
+     */
+    public static
+    int[] topK(final int[] items, final int size, final int k) {
+        final int[] heap = topKIndex(items, size, k);
+        final int[] values = new int[k];
+        for (int i = 0; i < k; i++) {
+            values[i] = items[heap[i]];
+        }
+        return values;
+    }
+
+    /**
+     * @return the indices of the k largest values of the first 'size' items, largest first. The items are not modified.
+     */
+    public static
+    int[] topKIndex(final int[] items, final int size, final int k) {
+        checkTopK(k, size);
+
+        // a min-heap (of indices) of the k largest values so far. The root is the smallest of them
+        final int[] heap = new int[k];
+        if (k == 0) {
+            return heap;
+        }
+
+        for (int i = 0; i < k; i++) {
+            heap[i] = i;
+        }
+        for (int i = (k >>> 1) - 1; i >= 0; i--) {
+            siftDown(items, heap, i, k);
+        }
+
+        for (int i = k; i < size; i++) {
+            if (items[i] > items[heap[0]]) {
+                heap[0] = i;
+                siftDown(items, heap, 0, k);
+            }
+        }
+
+        // heap sort, which moves the smallest values to the end
+        for (int end = k - 1; end > 0; end--) {
+            final int root = heap[0];
+            heap[0] = heap[end];
+            heap[end] = root;
+            siftDown(items, heap, 0, end);
+        }
+        return heap;
+    }
+
+    private static
+    void siftDown(final int[] items, final int[] heap, int index, final int size) {
+        final int value = heap[index];
+        while (true) {
+            int child = (index << 1) + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && items[heap[child + 1]] < items[heap[child]]) {
+                child++;
+            }
+            if (items[heap[child]] >= items[value]) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = value;
+    }
+
+    public static
+    long[] topK(final LongArray array, final int k) {
+        return topK(array.items, array.size, k);
+    }
+
+    /**
+     * @return the k largest values of the first 'size' items, largest first. The items are not modified.
+     */
+    public static
+    long[] topK(final long[] items, final int size, final int k) {
+        final int[] heap = topKIndex(items, size, k);
+        final long[] values = new long[k];
+        for (int i = 0; i < k; i++) {
+            values[i] = items[heap[i]];
+        }
+        return values;
+    }
+
+    /**
+     * @return the indices of the k largest values of the first 'size' items, largest first. The items are not modified.
+     */
+    public static
+    int[] topKIndex(final long[] items, final int size, final int k) {
+        checkTopK(k, size);
+
+        // a min-heap (of indices) of the k largest values so far. The root is the smallest of them
+        final int[] heap = new int[k];
+        if (k == 0) {
+            return heap;
+        }
+
+        for (int i = 0; i < k; i++) {
+            heap[i] = i;
+        }
+        for (int i = (k >>> 1) - 1; i >= 0; i--) {
+            siftDown(items, heap, i, k);
+        }
+
+        for (int i = k; i < size; i++) {
+            if (items[i] > items[heap[0]]) {
+                heap[0] = i;
+                siftDown(items, heap, 0, k);
+            }
+        }
+
+        // heap sort, which moves the smallest values to the end
+        for (int end = k - 1; end > 0; end--) {
+            final int root = heap[0];
+            heap[0] = heap[end];
+            heap[end] = root;
+            siftDown(items, heap, 0, end);
+        }
+        return heap;
+    }
+
+    private static
+    void siftDown(final long[] items, final int[] heap, int index, final int size) {
+        final int value = heap[index];
+        while (true) {
+            int child = (index << 1) + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && items[heap[child + 1]] < items[heap[child]]) {
+                child++;
+            }
+            if (items[heap[child]] >= items[value]) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = value;
+    }
+
+    public static
+    float[] topK(final FloatArray array, final int k) {
+        return topK(array.items, array.size, k);
+    }
+
+    /**
+     * @return the k largest values of the first 'size' items, largest first. The items are not modified.
+     */
+    public static
+    float[] topK(final float[] items, final int size, final int k) {
+        final int[] heap = topKIndex(items, size, k);
+        final float[] values = new float[k];
+        for (int i = 0; i < k; i++) {
+            values[i] = items[heap[i]];
+        }
+        return values;
+    }
+
+    /**
+     * @return the indices of the k largest values of the first 'size' items, largest first. The items are not modified.
+     */
+    public static
+    int[] topKIndex(final float[] items, final int size, final int k) {
+        checkTopK(k, size);
+
+        // a min-heap (of indices) of the k largest values so far. The root is the smallest of them
+        final int[] heap = new int[k];
+        if (k == 0) {
+            return heap;
+        }
+
+        for (int i = 0; i < k; i++) {
+            heap[i] = i;
+        }
+        for (int i = (k >>> 1) - 1; i >= 0; i--) {
+            siftDown(items, heap, i, k);
+        }
+
+        for (int i = k; i < size; i++) {
+            if (Float.compare(items[i], items[heap[0]]) > 0) {
+                heap[0] = i;
+                siftDown(items, heap, 0, k);
+            }
+        }
+
+        // heap sort, which moves the smallest values to the end
+        for (int end = k - 1; end > 0; end--) {
+            final int root = heap[0];
+            heap[0] = heap[end];
+            heap[end] = root;
+            siftDown(items, heap, 0, end);
+        }
+        return heap;
+    }
+
+    private static
+    void siftDown(final float[] items, final int[] heap, int index, final int size) {
+        final int value = heap[index];
+        while (true) {
+            int child = (index << 1) + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && Float.compare(items[heap[child + 1]], items[heap[child]]) < 0) {
+                child++;
+            }
+            if (Float.compare(items[heap[child]], items[value]) >= 0) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = value;
+    }
+
+
+    private static
+    void swap(final int[] items, final int first, final int second) {
+        final int value = items[first];
+        items[first] = items[second];
+        items[second] = value;
+    }
+
+    private static
+    void swap(final long[] items, final int first, final int second) {
+        final long value = items[first];
+        items[first] = items[second];
+        items[second] = value;
+    }
+
+    private static
+    void swap(final float[] items, final int first, final int second) {
+        final float value = items[first];
+        items[first] = items[second];
+        items[second] = value;
+    }
+}
@@ -0,0 +1,878 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Sorts primitive arrays (int, long and float) with an LSD radix sort, which is O(n) and much faster than a comparison sort for large
+ * arrays. The sort is stable, so it can also sort indices by their keys (an argsort), which lets parallel arrays be permuted without
+ * boxing.
+ * <p>
+ * Radix sorting requires working memory (the size of the array), and this class allows that memory to be reused to avoid allocation.
+ * Small arrays are sorted with Arrays.sort instead.
+ * <p>
+ * Floats are sorted the same as Arrays.sort: -0.0 is before 0.0, and NaN is last (every NaN is sorted as the canonical NaN).
+ * <p>
+ * Multiple threads must not use the same instance at the same time.
+ *
+ * @author dorkbox, llc
+ */
+public
+class PrimitiveSort {
+    // radix sorting has a (small) fixed cost for the digit counts, which is not worth it for small arrays
+    private static final int RADIX_THRESHOLD = 512;
+
+    // the minimum number of elements per chunk, when sorting in parallel
+    private static final int PARALLEL_CHUNK = 1 << 15;
+
+    private static PrimitiveSort instance;
+
+    private int[] intBuffer = new int[0];
+    private int[] intBuffer2 = new int[0];
+    private int[] indexBuffer = new int[0];
+    private long[] longBuffer = new long[0];
+
+    private final int[] counts = new int[8 * 256];
+
+    /**
+     * Returns a PrimitiveSort instance for convenience. Multiple threads must not use this instance at the same time.
+     */
+    public static
+    PrimitiveSort instance() {
+        if (instance == null) {
+            instance = new PrimitiveSort();
+        }
+        return instance;
+    }
+
+    private
+    int[] intBuffer(final int size) {
+        if (intBuffer.length < size) {
+            intBuffer = new int[size];
+        }
+        return intBuffer;
+    }
+
+    private
+    int[] intBuffer2(final int size) {
+        if (intBuffer2.length < size) {
+            intBuffer2 = new int[size];
+        }
+        return intBuffer2;
+    }
+
+    private
+    int[] indexBuffer(final int size) {
+        if (indexBuffer.length < size) {
+            indexBuffer = new int[size];
+        }
+        return indexBuffer;
+    }
+
+    private
+    long[] longBuffer(final int size) {
+        if (longBuffer.length < size) {
+            longBuffer = new long[size];
+        }
+        return longBuffer;
+    }
+
+    /**
+     * Releases the working memory, which otherwise stays as large as the largest array that was sorted.
+     */
+    public
+    void trim() {
+        intBuffer = new int[0];
+        intBuffer2 = new int[0];
+        indexBuffer = new int[0];
+        longBuffer = new long[0];
+    }
+
+
+    private static
+    void checkRange(final int length, final int fromIndex, final int toIndex) {
+        if (fromIndex > toIndex) {
+            throw new IllegalArgumentException("fromIndex(" + fromIndex + ") > toIndex(" + toIndex + ")");
+        }
+        if (fromIndex < 0) {
+            throw new ArrayIndexOutOfBoundsException(fromIndex);
+        }
+        if (toIndex > length) {
+            throw new ArrayIndexOutOfBoundsException(toIndex);
+        }
+    }
+
+    // the (sortable) int bits of a float. Negative floats have their magnitude bits flipped, so they sort in reverse
+    static
+    int floatToSortable(final float value) {
+        final int bits = Float.floatToIntBits(value);
+        return bits ^ (bits >> 31 & 0x7FFFFFFF);
+    }
+
+    static
+    float sortableToFloat(final int bits) {
+        return Float.intBitsToFloat(bits ^ (bits >> 31 & 0x7FFFFFFF));
+    }
+
+
+    public
+    void sort(final IntArray array) {
+        sort(array.items, 0, array.size);
+    }
+
+    public
+    void sort(final int[] a) {
+        sort(a, 0, a.length);
+    }
+
+    public
+    void sort(final int[] a, final int fromIndex, final int toIndex) {
+        checkRange(a.length, fromIndex, toIndex);
+
+        final int size = toIndex - fromIndex;
+        if (size < RADIX_THRESHOLD) {
+            Arrays.sort(a, fromIndex, toIndex);
+            return;
+        }
+
+        radixSort(a, fromIndex, intBuffer(size), 0, size, counts);
+    }
+
+    public
+    void sort(final LongArray array) {
+        sort(array.items, 0, array.size);
+    }
+
+    public
+    void sort(final long[] a) {
+        sort(a, 0, a.length);
+    }
+
+    public
+    void sort(final long[] a, final int fromIndex, final int toIndex) {
+        checkRange(a.length, fromIndex, toIndex);
+
+        final int size = toIndex - fromIndex;
+        if (size < RADIX_THRESHOLD) {
+            Arrays.sort(a, fromIndex, toIndex);
+            return;
+        }
+
+        radixSort(a, fromIndex, longBuffer(size), size, counts);
+    }
+
+    public
+    void sort(final FloatArray array) {
+        sort(array.items, 0, array.size);
+    }
+
+    public
+    void sort(final float[] a) {
+        sort(a, 0, a.length);
+    }
+
+    public
+    void sort(final float[] a, final int fromIndex, final int toIndex) {
+        checkRange(a.length, fromIndex, toIndex);
+
+        final int size = toIndex - fromIndex;
+        if (size < RADIX_THRESHOLD) {
+            Arrays.sort(a, fromIndex, toIndex);
+            return;
+        }
+
+        final int[] keys = intBuffer2(size);
+        for (int i = 0; i < size; i++) {
+            keys[i] = floatToSortable(a[fromIndex + i]);
+        }
+
+        radixSort(keys, 0, intBuffer(size), 0, size, counts);
+
+        for (int i = 0; i < size; i++) {
+            a[fromIndex + i] = sortableToFloat(keys[i]);
+        }
+    }
+
+    /**
+     * Sorts the ints (at the offset) with an LSD radix sort, one byte at a time. Passes where every value has the same digit are skipped.
+     */
+    private static
+    void radixSort(final int[] a, final int offset, final int[] buffer, final int bufferOffset, final int size, final int[] counts) {
+        Arrays.fill(counts, 0, 4 * 256, 0);
+        for (int i = offset, end = offset + size; i < end; i++) {
+            final int value = a[i];
+            counts[value & 0xFF]++;
+            counts[256 + (value >>> 8 & 0xFF)]++;
+            counts[512 + (value >>> 16 & 0xFF)]++;
+            counts[768 + (value >>> 24 ^ 0x80)]++;
+        }
+
+        int[] source = a;
+        int sourceOffset = offset;
+        int[] target = buffer;
+        int targetOffset = bufferOffset;
+
+        for (int pass = 0; pass < 4; pass++) {
+            final int base = pass << 8;
+            final int shift = pass << 3;
+            // the sign bit is flipped, so that negative numbers are first
+            final int flip = pass == 3 ? 0x80 : 0;
+
+            if (counts[base + ((source[sourceOffset] >>> shift & 0xFF) ^ flip)] == size) {
+                continue;
+            }
+
+            toOffsets(counts, base, targetOffset);
+            for (int i = sourceOffset, end = sourceOffset + size; i < end; i++) {
+                final int value = source[i];
+                target[counts[base + ((value >>> shift & 0xFF) ^ flip)]++] = value;
+            }
+
+            final int[] swap = source;
+            source = target;
+            target = swap;
+
+            final int swapOffset = sourceOffset;
+            sourceOffset = targetOffset;
+            targetOffset = swapOffset;
+        }
+
+        if (source != a) {
+            System.arraycopy(source, sourceOffset, a, offset, size);
+        }
+    }
+
+    /**
+     * Sorts the longs (at the offset) with an LSD radix sort, one byte at a time. Passes where every value has the same digit are skipped.
+     */
+    private static
+    void radixSort(final long[] a, final int offset, final long[] buffer, final int size, final int[] counts) {
+        Arrays.fill(counts, 0, 8 * 256, 0);
+        for (int i = offset, end = offset + size; i < end; i++) {
+            final long value = a[i];
+            for (int pass = 0; pass < 7; pass++) {
+                counts[(pass << 8) + ((int) (value >>> (pass << 3)) & 0xFF)]++;
+            }
+            counts[(7 << 8) + ((int) (value >>> 56) ^ 0x80)]++;
+        }
+
+        long[] source = a;
+        int sourceOffset = offset;
+        long[] target = buffer;
+        int targetOffset = 0;
+
+        for (int pass = 0; pass < 8; pass++) {
+            final int base = pass << 8;
+            final int shift = pass << 3;
+            // the sign bit is flipped, so that negative numbers are first
+            final int flip = pass == 7 ? 0x80 : 0;
+
+            if (counts[base + (((int) (source[sourceOffset] >>> shift) & 0xFF) ^ flip)] == size) {
+                continue;
+            }
+
+            toOffsets(counts, base, targetOffset);
+            for (int i = sourceOffset, end = sourceOffset + size; i < end; i++) {
+                final long value = source[i];
+                target[counts[base + (((int) (value >>> shift) & 0xFF) ^ flip)]++] = value;
+            }
+
+            final long[] swap = source;
+            source = target;
+            target = swap;
+
+            final int swapOffset = sourceOffset;
+            sourceOffset = targetOffset;
+            targetOffset = swapOffset;
+        }
+
+        if (source != a) {
+            System.arraycopy(source, sourceOffset, a, offset, size);
+        }
+    }
+
+    /**
+     * Converts the 256 digit counts (at the base) into the index where each digit starts.
+     */
+    private static
+    void toOffsets(final int[] counts, final int base, final int start) {
+        int sum = start;
+        for (int i = base, end = base + 256; i < end; i++) {
+            final int count = counts[i];
+            counts[i] = sum;
+            sum += count;
+        }
+    }
+
+
+    /**
+     * Sorts the ints in parallel (in the common fork-join pool).
+     */
+    public
+    void parallelSort(final int[] a) {
+        parallelSort(a, 0, a.length, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Sorts the ints in parallel. Every radix pass is split into chunks, which count their digits and then move their values at the same
+     * time. Small arrays (or a pool without parallelism) are sorted on the calling thread.
+     */
+    public
+    void parallelSort(final int[] a, final int fromIndex, final int toIndex, final ForkJoinPool pool) {
+        checkRange(a.length, fromIndex, toIndex);
+
+        final int size = toIndex - fromIndex;
+        final int chunks = chunkCount(size, pool);
+        if (chunks < 2) {
+            sort(a, fromIndex, toIndex);
+            return;
+        }
+
+        parallelRadixSort(a, fromIndex, intBuffer(size), size, chunks, pool);
+    }
+
+    /**
+     * Sorts the longs in parallel (in the common fork-join pool).
+     */
+    public
+    void parallelSort(final long[] a) {
+        parallelSort(a, 0, a.length, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Sorts the longs in parallel. Every radix pass is split into chunks, which count their digits and then move their values at the same
+     * time. Small arrays (or a pool without parallelism) are sorted on the calling thread.
+     */
+    public
+    void parallelSort(final long[] a, final int fromIndex, final int toIndex, final ForkJoinPool pool) {
+        checkRange(a.length, fromIndex, toIndex);
+
+        final int size = toIndex - fromIndex;
+        final int chunks = chunkCount(size, pool);
+        if (chunks < 2) {
+            sort(a, fromIndex, toIndex);
+            return;
+        }
+
+        parallelRadixSort(a, fromIndex, longBuffer(size), size, chunks, pool);
+    }
+
+    /**
+     * Sorts the floats in parallel (in the common fork-join pool).
+     */
+    public
+    void parallelSort(final float[] a) {
+        parallelSort(a, 0, a.length, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Sorts the floats in parallel. Small arrays (or a pool without parallelism) are sorted on the calling thread.
+     */
+    public
+    void parallelSort(final float[] a, final int fromIndex, final int toIndex, final ForkJoinPool pool) {
+        checkRange(a.length, fromIndex, toIndex);
+
+        final int size = toIndex - fromIndex;
+        final int chunks = chunkCount(size, pool);
+        if (chunks < 2) {
+            sort(a, fromIndex, toIndex);
+            return;
+        }
+
+        final int[] keys = intBuffer2(size);
+        for (int i = 0; i < size; i++) {
+            keys[i] = floatToSortable(a[fromIndex + i]);
+        }
+
+        parallelRadixSort(keys, 0, intBuffer(size), size, chunks, pool);
+
+        for (int i = 0; i < size; i++) {
+            a[fromIndex + i] = sortableToFloat(keys[i]);
+        }
+    }
+
+    private static
+    int chunkCount(final int size, final ForkJoinPool pool) {
+        return Math.min(pool.getParallelism() * 4, size / PARALLEL_CHUNK);
+    }
+
+    /**
+     * One chunk of a parallel radix pass. It either counts the digits of its part of the source, or moves its part of the source to the
+     * target (at the offsets of its digits).
+     */
+    @SuppressWarnings("serial")
+    private static final
+    class RadixChunk extends RecursiveAction {
+        private final Object source;
+        private final Object target;
+        private final int start;
+        private final int end;
+        private final int[] counts;
+        private final int shift;
+        private final int flip;
+        private final boolean move;
+
+        RadixChunk(final Object source, final Object target, final int start, final int end, final int[] counts, final int shift,
+                   final int flip, final boolean move) {
+            this.source = source;
+            this.target = target;
+            this.start = start;
+            this.end = end;
+            this.counts = counts;
+            this.shift = shift;
+            this.flip = flip;
+            this.move = move;
+        }
+
+        @Override
+        protected
+        void compute() {
+            final int[] counts = this.counts;
+            final int shift = this.shift;
+            final int flip = this.flip;
+
+            if (source instanceof int[]) {
+                final int[] source = (int[]) this.source;
+                if (move) {
+                    final int[] target = (int[]) this.target;
+                    for (int i = start; i < end; i++) {
+                        final int value = source[i];
+                        target[counts[(value >>> shift & 0xFF) ^ flip]++] = value;
+                    }
+                }
+                else {
+                    Arrays.fill(counts, 0);
+                    for (int i = start; i < end; i++) {
+                        counts[(source[i] >>> shift & 0xFF) ^ flip]++;
+                    }
+                }
+            }
+            else {
+                final long[] source = (long[]) this.source;
+                if (move) {
+                    final long[] target = (long[]) this.target;
+                    for (int i = start; i < end; i++) {
+                        final long value = source[i];
+                        target[counts[((int) (value >>> shift) & 0xFF) ^ flip]++] = value;
+                    }
+                }
+                else {
+                    Arrays.fill(counts, 0);
+                    for (int i = start; i < end; i++) {
+                        counts[((int) (source[i] >>> shift) & 0xFF) ^ flip]++;
+                    }
+                }
+            }
+        }
+    }
+
+    private static
+    void parallelRadixSort(final int[] a, final int offset, final int[] buffer, final int size, final int chunks, final ForkJoinPool pool) {
+        final int[] temp;
+        if (offset == 0) {
+            temp = a;
+        }
+        else {
+            temp = new int[size];
+            System.arraycopy(a, offset, temp, 0, size);
+        }
+
+        final Object sorted = parallelRadixSort(temp, buffer, size, 4, chunks, pool);
+        if (sorted != a || offset != 0) {
+            System.arraycopy(sorted, 0, a, offset, size);
+        }
+    }
+
+    private static
+    void parallelRadixSort(final long[] a, final int offset, final long[] buffer, final int size, final int chunks,
+                           final ForkJoinPool pool) {
+        final long[] temp;
+        if (offset == 0) {
+            temp = a;
+        }
+        else {
+            temp = new long[size];
+            System.arraycopy(a, offset, temp, 0, size);
+        }
+
+        final Object sorted = parallelRadixSort(temp, buffer, size, 8, chunks, pool);
+        if (sorted != a || offset != 0) {
+            System.arraycopy(sorted, 0, a, offset, size);
+        }
+    }
+
+    /**
+     * @return the array (source or buffer) that has the sorted values
+     */
+    private static
+    Object parallelRadixSort(Object source, Object target, final int size, final int digits, final int chunks, final ForkJoinPool pool) {
+        final int[][] counts = new int[chunks][256];
+        final RadixChunk[] tasks = new RadixChunk[chunks];
+        final int chunkSize = (size + chunks - 1) / chunks;
+
+        for (int pass = 0; pass < digits; pass++) {
+            final int shift = pass << 3;
+            // the sign bit is flipped, so that negative numbers are first
+            final int flip = pass == digits - 1 ? 0x80 : 0;
+
+            for (int c = 0; c < chunks; c++) {
+                tasks[c] = new RadixChunk(source, target, c * chunkSize, Math.min(size, (c + 1) * chunkSize), counts[c], shift, flip, false);
+            }
+            invokeAll(pool, tasks);
+
+            // each chunk moves its values to the offsets of its digits, after the same digits of the chunks before it (so it is stable)
+            int sum = 0;
+            boolean skip = false;
+            for (int digit = 0; digit < 256; digit++) {
+                final int start = sum;
+                for (int c = 0; c < chunks; c++) {
+                    final int count = counts[c][digit];
+                    counts[c][digit] = sum;
+                    sum += count;
+                }
+                if (sum - start == size) {
+                    // every value has the same digit
+                    skip = true;
+                    break;
+                }
+            }
+            if (skip) {
+                continue;
+            }
+
+            for (int c = 0; c < chunks; c++) {
+                tasks[c] = new RadixChunk(source, target, c * chunkSize, Math.min(size, (c + 1) * chunkSize), counts[c], shift, flip, true);
+            }
+            invokeAll(pool, tasks);
+
+            final Object swap = source;
+            source = target;
+            target = swap;
+        }
+
+        return source;
+    }
+
+    private static
+    void invokeAll(final ForkJoinPool pool, final RadixChunk[] tasks) {
+        pool.invoke(new RecursiveAction() {
+            @Override
+            protected
+            void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+
+
+    /**
+     * Sorts the indices of the keys by their key (an argsort), without changing the keys. The sort is stable, so equal keys keep their
+     * order.
+     *
+     * @return the indices (from fromIndex to toIndex) of the keys, in the order of the sorted keys
+     *
+     * @see #permute(int[], int, int[])
+     */
+    public
+    int[] sortIndex(final int[] keys, final int fromIndex, final int toIndex) {
+        checkRange(keys.length, fromIndex, toIndex);
+
+        final int size = toIndex - fromIndex;
+        final int[] sortKeys = intBuffer2(size);
+        System.arraycopy(keys, fromIndex, sortKeys, 0, size);
+
+        return radixSortIndex(sortKeys, fromIndex, size);
+    }
+
+    /**
+     * Sorts the indices of the keys by their key (an argsort), without changing the keys. The sort is stable, so equal keys keep their
+     * order.
+     *
+     * @return the indices (from fromIndex to toIndex) of the keys, in the order of the sorted keys
+     *
+     * @see #permute(int[], int, int[])
+     */
+    public
+    int[] sortIndex(final float[] keys, final int fromIndex, final int toIndex) {
+        checkRange(keys.length, fromIndex, toIndex);
+
+        final int size = toIndex - fromIndex;
+        final int[] sortKeys = intBuffer2(size);
+        for (int i = 0; i < size; i++) {
+            sortKeys[i] = floatToSortable(keys[fromIndex + i]);
+        }
+
+        return radixSortIndex(sortKeys, fromIndex, size);
+    }
+
+    /**
+     * Sorts the indices of the keys by their key (an argsort), without changing the keys. The sort is stable, so equal keys keep their
+     * order.
+     *
+     * @return the indices (from fromIndex to toIndex) of the keys, in the order of the sorted keys
+     *
+     * @see #permute(int[], int, int[])
+     */
+    public
+    int[] sortIndex(final long[] keys, final int fromIndex, final int toIndex) {
+        checkRange(keys.length, fromIndex, toIndex);
+
+        final int size = toIndex - fromIndex;
+        final long[] sortKeys = new long[size];
+        System.arraycopy(keys, fromIndex, sortKeys, 0, size);
+        final long[] keyBuffer = longBuffer(size);
+
+        int[] index = new int[size];
+        for (int i = 0; i < size; i++) {
+            index[i] = fromIndex + i;
+        }
+        int[] indexTarget = indexBuffer(size);
+
+        final int[] counts = this.counts;
+        long[] source = sortKeys;
+        long[] target = keyBuffer;
+
+        for (int pass = 0; pass < 8; pass++) {
+            final int shift = pass << 3;
+            // the sign bit is flipped, so that negative numbers are first
+            final int flip = pass == 7 ? 0x80 : 0;
+
+            Arrays.fill(counts, 0, 256, 0);
+            for (int i = 0; i < size; i++) {
+                counts[((int) (source[i] >>> shift) & 0xFF) ^ flip]++;
+            }
+            if (size == 0 || counts[((int) (source[0] >>> shift) & 0xFF) ^ flip] == size) {
+                continue;
+            }
+
+            toOffsets(counts, 0, 0);
+            for (int i = 0; i < size; i++) {
+                final long value = source[i];
+                final int position = counts[((int) (value >>> shift) & 0xFF) ^ flip]++;
+                target[position] = value;
+                indexTarget[position] = index[i];
+            }
+
+            final long[] swap = source;
+            source = target;
+            target = swap;
+
+            final int[] swapIndex = index;
+            index = indexTarget;
+            indexTarget = swapIndex;
+        }
+
+        return finishIndex(index, size);
+    }
+
+    /**
+     * Radix sorts the (int) keys, and moves the indices with them.
+     */
+    private
+    int[] radixSortIndex(final int[] keys, final int fromIndex, final int size) {
+        final int[] keyBuffer = intBuffer(size);
+
+        int[] index = new int[size];
+        for (int i = 0; i < size; i++) {
+            index[i] = fromIndex + i;
+        }
+        int[] indexTarget = indexBuffer(size);
+
+        final int[] counts = this.counts;
+        int[] source = keys;
+        int[] target = keyBuffer;
+
+        for (int pass = 0; pass < 4; pass++) {
+            final int shift = pass << 3;
+            // the sign bit is flipped, so that negative numbers are first
+            final int flip = pass == 3 ? 0x80 : 0;
+
+            Arrays.fill(counts, 0, 256, 0);
+            for (int i = 0; i < size; i++) {
+                counts[(source[i] >>> shift & 0xFF) ^ flip]++;
+            }
+            if (size == 0 || counts[(source[0] >>> shift & 0xFF) ^ flip] == size) {
+                continue;
+            }
+
+            toOffsets(counts, 0, 0);
+            for (int i = 0; i < size; i++) {
+                final int value = source[i];
+                final int position = counts[(value >>> shift & 0xFF) ^ flip]++;
+                target[position] = value;
+                indexTarget[position] = index[i];
+            }
+
+            final int[] swap = source;
+            source = target;
+            target = swap;
+
+            final int[] swapIndex = index;
+            index = indexTarget;
+            indexTarget = swapIndex;
+        }
+
+        return finishIndex(index, size);
+    }
+
+    /**
+     * The sorted indices are either in the array that was returned to the caller, or in the (reused) index buffer.
+     */
+    private
+    int[] finishIndex(final int[] index, final int size) {
+        if (index == indexBuffer) {
+            final int[] result = new int[size];
+            System.arraycopy(index, 0, result, 0, size);
+            return result;
+        }
+        return index;
+    }
+
+
+    /**
+     * Reorders the items (starting at the offset) so that items[offset + i] is the item that was at order[i]. This is done in place, by
+     * following the cycles of the permutation.
+     *
+     * @param order the indices returned by one of the sortIndex methods. It is temporarily modified, and is restored before returning.
+     */
+    public static
+    void permute(final int[] items, final int offset, final int[] order) {
+        for (int i = 0; i < order.length; i++) {
+            if (order[i] < 0) {
+                continue;
+            }
+
+            // follow the cycle that starts at i, marking each visited index by flipping its bits
+            final int first = items[offset + i];
+            int current = i;
+            while (true) {
+                final int next = order[current] - offset;
+                order[current] = ~order[current];
+                if (next == i) {
+                    items[offset + current] = first;
+                    break;
+                }
+                items[offset + current] = items[offset + next];
+                current = next;
+            }
+        }
+
+        restore(order);
+    }
+
+    /**
+     * Reorders the items (starting at the offset) so that items[offset + i] is the item that was at order[i]. This is done in place, by
+     * following the cycles of the permutation.
+     *
+     * @param order the indices returned by one of the sortIndex methods. It is temporarily modified, and is restored before returning.
+     */
+    public static
+    void permute(final long[] items, final int offset, final int[] order) {
+        for (int i = 0; i < order.length; i++) {
+            if (order[i] < 0) {
+                continue;
+            }
+
+            // follow the cycle that starts at i, marking each visited index by flipping its bits
+            final long first = items[offset + i];
+            int current = i;
+            while (true) {
+                final int next = order[current] - offset;
+                order[current] = ~order[current];
+                if (next == i) {
+                    items[offset + current] = first;
+                    break;
+                }
+                items[offset + current] = items[offset + next];
+                current = next;
+            }
+        }
+
+        restore(order);
+    }
+
+    /**
+     * Reorders the items (starting at the offset) so that items[offset + i] is the item that was at order[i]. This is done in place, by
+     * following the cycles of the permutation.
+     *
+     * @param order the indices returned by one of the sortIndex methods. It is temporarily modified, and is restored before returning.
+     */
+    public static
+    void permute(final float[] items, final int offset, final int[] order) {
+        for (int i = 0; i < order.length; i++) {
+            if (order[i] < 0) {
+                continue;
+            }
+
+            // follow the cycle that starts at i, marking each visited index by flipping its bits
+            final float first = items[offset + i];
+            int current = i;
+            while (true) {
+                final int next = order[current] - offset;
+                order[current] = ~order[current];
+                if (next == i) {
+                    items[offset + current] = first;
+                    break;
+                }
+                items[offset + current] = items[offset + next];
+                current = next;
+            }
+        }
+
+        restore(order);
+    }
+
+    /**
+     * Reorders the items (starting at the offset) so that items[offset + i] is the item that was at order[i]. This is done in place, by
+     * following the cycles of the permutation.
+     *
+     * @param order the indices returned by one of the sortIndex methods. It is temporarily modified, and is restored before returning.
+     */
+    public static
+    void permute(final Object[] items, final int offset, final int[] order) {
+        for (int i = 0; i < order.length; i++) {
+            if (order[i] < 0) {
+                continue;
+            }
+
+            // follow the cycle that starts at i, marking each visited index by flipping its bits
+            final Object first = items[offset + i];
+            int current = i;
+            while (true) {
+                final int next = order[current] - offset;
+                order[current] = ~order[current];
+                if (next == i) {
+                    items[offset + current] = first;
+                    break;
+                }
+                items[offset + current] = items[offset + next];
+                current = next;
+            }
+        }
+
+        restore(order);
+    }
+
+    private static
+    void restore(final int[] order) {
+        for (int i = 0; i < order.length; i++) {
+            order[i] = ~order[i];
+        }
+    }
+}
@@ -58,7 +58,14 @@ public class Sort {
 		timSort.doSort(a, c, fromIndex, toIndex);
 	}
 
-	/** Returns a Sort instance for convenience. Multiple threads must not use this instance at the same time. */
+	/** Shrinks the working memory back to its initial size, if it has grown larger than the specified number of elements. */
+	public void trim (int maxBufferLength) {
+		if (timSort != null) timSort.trim(maxBufferLength);
+		if (comparableTimSort != null) comparableTimSort.trim(maxBufferLength);
+	}
+
+	/** Returns a Sort instance for convenience. Multiple threads must not use this instance at the same time (use a {@link SortPool}
+	 * instead). */
 	static public Sort instance () {
 		if (instance == null) instance = new Sort();
 		return instance;
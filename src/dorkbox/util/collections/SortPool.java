@@ -0,0 +1,418 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import dorkbox.util.MathUtil;
+
+/**
+ * A thread-safe pool of {@link Sort} instances, with the same sort methods as Sort. Each sort borrows a sorter (and its merge buffer) from
+ * the pool, so sorting many small arrays from many threads does not allocate. Merge buffers that grew larger than the maximum buffer
+ * length are shrunk before the sorter is returned to the pool, so the pool never keeps more than a bounded amount of memory.
+ * <p>
+ * Large arrays can also be sorted in parallel (on a fork-join pool): chunks of the array are sorted at the same time (with TimSort), and
+ * then merged together in parallel. The parallel sort is stable, and is identical to the sequential sort except for the extra working
+ * memory (the size of the array) that it needs. Adjacent chunks that are already in order are not merged.
+ *
+ * @author dorkbox, llc
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+public
+class SortPool {
+    // the minimum number of elements that are sorted (or merged) by a single task, when sorting in parallel
+    private static final int PARALLEL_CHUNK = 1 << 13;
+
+    private static final Comparator NATURAL_ORDER = new Comparator() {
+        @Override
+        public
+        int compare(final Object o1, final Object o2) {
+            return ((Comparable) o1).compareTo(o2);
+        }
+    };
+
+    private static final SortPool instance = new SortPool();
+
+    private final AtomicReferenceArray<Sort> sorters;
+    private final int mask;
+    private final int maxBufferLength;
+
+    /**
+     * Returns a shared SortPool instance, which can be used by any number of threads at the same time.
+     */
+    public static
+    SortPool instance() {
+        return instance;
+    }
+
+    /**
+     * Creates a pool that keeps up to two sorters per processor, with merge buffers of up to 64k elements.
+     */
+    public
+    SortPool() {
+        this(Runtime.getRuntime().availableProcessors() * 2, 1 << 16);
+    }
+
+    /**
+     * @param maxPooled the maximum number of sorters that are kept in the pool. More sorters are created if needed, but they are not kept.
+     * @param maxBufferLength the maximum length of the merge buffer that a pooled sorter keeps
+     */
+    public
+    SortPool(final int maxPooled, final int maxBufferLength) {
+        if (maxPooled < 1) {
+            throw new IllegalArgumentException("maxPooled must be > 0: " + maxPooled);
+        }
+
+        this.sorters = new AtomicReferenceArray<Sort>(MathUtil.nextPowerOfTwo(maxPooled));
+        this.mask = sorters.length() - 1;
+        this.maxBufferLength = maxBufferLength;
+    }
+
+    /**
+     * @return a sorter from the pool, or a new one if the pool is empty
+     */
+    private
+    Sort borrow() {
+        // start at a different slot for each thread, so that threads do not contend for the same slots
+        final int start = (int) Thread.currentThread().getId();
+        for (int i = 0; i <= mask; i++) {
+            final int index = start + i & mask;
+            if (sorters.get(index) != null) {
+                final Sort sort = sorters.getAndSet(index, null);
+                if (sort != null) {
+                    return sort;
+                }
+            }
+        }
+        return new Sort();
+    }
+
+    /**
+     * Returns the sorter to the pool (if there is room), after shrinking its merge buffer.
+     */
+    private
+    void release(final Sort sort) {
+        sort.trim(maxBufferLength);
+
+        final int start = (int) Thread.currentThread().getId();
+        for (int i = 0; i <= mask; i++) {
+            final int index = start + i & mask;
+            if (sorters.get(index) == null && sorters.compareAndSet(index, null, sort)) {
+                return;
+            }
+        }
+    }
+
+    public
+    <T> void sort(final Array<T> a) {
+        sort(a.items, 0, a.size);
+    }
+
+    public
+    <T> void sort(final T[] a) {
+        sort(a, 0, a.length);
+    }
+
+    public
+    <T> void sort(final T[] a, final int fromIndex, final int toIndex) {
+        final Sort sort = borrow();
+        try {
+            sort.sort(a, fromIndex, toIndex);
+        } finally {
+            release(sort);
+        }
+    }
+
+    public
+    <T> void sort(final Array<T> a, final Comparator<? super T> c) {
+        sort(a.items, c, 0, a.size);
+    }
+
+    public
+    <T> void sort(final T[] a, final Comparator<? super T> c) {
+        sort(a, c, 0, a.length);
+    }
+
+    public
+    <T> void sort(final T[] a, final Comparator<? super T> c, final int fromIndex, final int toIndex) {
+        final Sort sort = borrow();
+        try {
+            sort.sort(a, c, fromIndex, toIndex);
+        } finally {
+            release(sort);
+        }
+    }
+
+
+    /**
+     * Sorts the array in parallel (in the common fork-join pool), using the natural ordering of the elements.
+     */
+    public
+    <T> void parallelSort(final Array<T> a) {
+        parallelSort(a.items, null, 0, a.size, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Sorts the array in parallel (in the common fork-join pool), using the natural ordering of the elements.
+     */
+    public
+    <T> void parallelSort(final T[] a) {
+        parallelSort(a, null, 0, a.length, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Sorts the array in parallel (in the common fork-join pool).
+     */
+    public
+    <T> void parallelSort(final Array<T> a, final Comparator<? super T> c) {
+        parallelSort(a.items, c, 0, a.size, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Sorts the array in parallel (in the common fork-join pool).
+     */
+    public
+    <T> void parallelSort(final T[] a, final Comparator<? super T> c) {
+        parallelSort(a, c, 0, a.length, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Sorts the range of the array in parallel. Small ranges (or a pool without parallelism) are sorted on the calling thread.
+     *
+     * @param c the comparator, or null to use the natural ordering of the elements
+     */
+    public
+    <T> void parallelSort(final T[] a, final Comparator<? super T> c, final int fromIndex, final int toIndex, final ForkJoinPool pool) {
+        if (fromIndex > toIndex) {
+            throw new IllegalArgumentException("fromIndex(" + fromIndex + ") > toIndex(" + toIndex + ")");
+        }
+        if (fromIndex < 0) {
+            throw new ArrayIndexOutOfBoundsException(fromIndex);
+        }
+        if (toIndex > a.length) {
+            throw new ArrayIndexOutOfBoundsException(toIndex);
+        }
+
+        final int size = toIndex - fromIndex;
+        final int parallelism = pool.getParallelism();
+        if (parallelism < 2 || size < PARALLEL_CHUNK * 2) {
+            if (c == null) {
+                sort(a, fromIndex, toIndex);
+            }
+            else {
+                sort(a, c, fromIndex, toIndex);
+            }
+            return;
+        }
+
+        // a few chunks per thread, so that uneven chunks still balance
+        final int chunkSize = Math.max(PARALLEL_CHUNK, size / (parallelism << 2));
+        final Comparator comparator = c == null ? NATURAL_ORDER : c;
+
+        final Object[] buffer = new Object[size];
+        pool.invoke(new SortTask(a, buffer, fromIndex, fromIndex, toIndex, false, chunkSize, c, comparator));
+    }
+
+    /**
+     * Sorts a range, leaving the sorted result either in the array or in the buffer. The halves are sorted into the other one, and then
+     * merged into the target, so every level of merging only moves the elements once.
+     */
+    @SuppressWarnings("serial")
+    private
+    class SortTask extends RecursiveAction {
+        private final Object[] a;
+        private final Object[] buffer;
+        // the buffer index of 'lo' is 'lo - offset'
+        private final int offset;
+        private final int lo;
+        private final int hi;
+        private final boolean intoBuffer;
+        private final int chunkSize;
+        // null when sorting by the natural ordering
+        private final Comparator c;
+        private final Comparator comparator;
+
+        SortTask(final Object[] a, final Object[] buffer, final int offset, final int lo, final int hi, final boolean intoBuffer,
+                 final int chunkSize, final Comparator c, final Comparator comparator) {
+            this.a = a;
+            this.buffer = buffer;
+            this.offset = offset;
+            this.lo = lo;
+            this.hi = hi;
+            this.intoBuffer = intoBuffer;
+            this.chunkSize = chunkSize;
+            this.c = c;
+            this.comparator = comparator;
+        }
+
+        @Override
+        protected
+        void compute() {
+            if (hi - lo <= chunkSize) {
+                if (c == null) {
+                    sort(a, lo, hi);
+                }
+                else {
+                    sort(a, c, lo, hi);
+                }
+
+                if (intoBuffer) {
+                    System.arraycopy(a, lo, buffer, lo - offset, hi - lo);
+                }
+                return;
+            }
+
+            final int mid = lo + hi >>> 1;
+            invokeAll(new SortTask(a, buffer, offset, lo, mid, !intoBuffer, chunkSize, c, comparator),
+                      new SortTask(a, buffer, offset, mid, hi, !intoBuffer, chunkSize, c, comparator));
+
+            // the halves are in the other array
+            final Object[] source;
+            final int sourceOffset;
+            final Object[] target;
+            final int targetOffset;
+            if (intoBuffer) {
+                source = a;
+                sourceOffset = 0;
+                target = buffer;
+                targetOffset = offset;
+            }
+            else {
+                source = buffer;
+                sourceOffset = offset;
+                target = a;
+                targetOffset = 0;
+            }
+
+            new MergeTask(source, lo - sourceOffset, mid - sourceOffset, mid - sourceOffset, hi - sourceOffset, target, lo - targetOffset,
+                          comparator).compute();
+        }
+    }
+
+    /**
+     * Merges two adjacent sorted ranges of the source into the target. Large merges are split in two (with a binary search) and merged
+     * in parallel. Ties are taken from the first range, so the merge is stable.
+     */
+    @SuppressWarnings("serial")
+    private static
+    class MergeTask extends RecursiveAction {
+        private final Object[] source;
+        private final int lo1;
+        private final int hi1;
+        private final int lo2;
+        private final int hi2;
+        private final Object[] target;
+        private final int targetLo;
+        private final Comparator comparator;
+
+        MergeTask(final Object[] source, final int lo1, final int hi1, final int lo2, final int hi2, final Object[] target,
+                  final int targetLo, final Comparator comparator) {
+            this.source = source;
+            this.lo1 = lo1;
+            this.hi1 = hi1;
+            this.lo2 = lo2;
+            this.hi2 = hi2;
+            this.target = target;
+            this.targetLo = targetLo;
+            this.comparator = comparator;
+        }
+
+        @Override
+        protected
+        void compute() {
+            final Object[] source = this.source;
+            final Comparator comparator = this.comparator;
+            final int length1 = hi1 - lo1;
+            final int length2 = hi2 - lo2;
+
+            // already in order (or one range is empty), so there is nothing to merge
+            if (length1 == 0 || length2 == 0 || comparator.compare(source[hi1 - 1], source[lo2]) <= 0) {
+                System.arraycopy(source, lo1, target, targetLo, length1);
+                System.arraycopy(source, lo2, target, targetLo + length1, length2);
+                return;
+            }
+
+            if (length1 + length2 <= PARALLEL_CHUNK) {
+                int i = lo1;
+                int j = lo2;
+                int k = targetLo;
+                while (i < hi1 && j < hi2) {
+                    if (comparator.compare(source[j], source[i]) < 0) {
+                        target[k++] = source[j++];
+                    }
+                    else {
+                        target[k++] = source[i++];
+                    }
+                }
+                System.arraycopy(source, i, target, k, hi1 - i);
+                System.arraycopy(source, j, target, k + (hi1 - i), hi2 - j);
+                return;
+            }
+
+            // split the larger range in the middle, and find where that element belongs in the other range
+            int mid1;
+            int mid2;
+            if (length1 >= length2) {
+                mid1 = lo1 + hi1 >>> 1;
+                mid2 = lowerBound(source, lo2, hi2, source[mid1], comparator);
+            }
+            else {
+                mid2 = lo2 + hi2 >>> 1;
+                mid1 = upperBound(source, lo1, hi1, source[mid2], comparator);
+            }
+
+            invokeAll(new MergeTask(source, lo1, mid1, lo2, mid2, target, targetLo, comparator),
+                      new MergeTask(source, mid1, hi1, mid2, hi2, target, targetLo + (mid1 - lo1) + (mid2 - lo2), comparator));
+        }
+
+        /**
+         * @return the index of the first element that is not less than the key
+         */
+        private static
+        int lowerBound(final Object[] a, int lo, int hi, final Object key, final Comparator comparator) {
+            while (lo < hi) {
+                final int mid = lo + hi >>> 1;
+                if (comparator.compare(a[mid], key) < 0) {
+                    lo = mid + 1;
+                }
+                else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        /**
+         * @return the index of the first element that is greater than the key
+         */
+        private static
+        int upperBound(final Object[] a, int lo, int hi, final Object key, final Comparator comparator) {
+            while (lo < hi) {
+                final int mid = lo + hi >>> 1;
+                if (comparator.compare(a[mid], key) <= 0) {
+                    lo = mid + 1;
+                }
+                else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+    }
+}
@@ -146,6 +146,12 @@ class TimSort<T> {
 			tmp[i] = null;
 	}
 
+	/** Shrinks the temp storage for merges back to its initial size, if it has grown larger than the specified length. This bounds
+	 * the memory that is kept by a sorter that is reused. */
+	void trim (int maxTmpLength) {
+		if (tmp.length > Math.max(maxTmpLength, INITIAL_TMP_STORAGE_LENGTH)) tmp = (T[])new Object[INITIAL_TMP_STORAGE_LENGTH];
+	}
+
 	/** Creates a TimSort instance to maintain the state of an ongoing sort.
 	 *
 	 * @param a the array to be sorted
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+import dorkbox.util.MathUtil;
+
+/**
+ * The locks used by the writers of the lock-free bimaps.
+ * <p>
+ * A writer that changes one mapping locks the stripes of its key and its value, builds the next snapshot from the current one, and
+ * publishes it with a compare-and-set. Writers of the same key or value are serialized by their stripes. Writers of unrelated mappings
+ * build their snapshots at the same time, but they all publish to the same snapshot reference, so a writer retries whenever a writer of
+ * other stripes published first. Because the snapshots share every unchanged node with each other, a retry only copies the O(log n)
+ * paths to the key and the value again (and never the whole map), so the cost of a conflict does not grow with the size of the map.
+ * <p>
+ * With 1 stripe there is only a single writer at a time (the "single-writer-principle"), and the compare-and-set always succeeds.
+ * Writers that change many mappings lock every stripe.
+ */
+final
+class WriteStripes {
+    private final ReentrantLock[] locks;
+    private final int mask;
+
+    /**
+     * @param stripes the number of stripes, which is rounded up to a power of two
+     */
+    WriteStripes(final int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("stripes must be >= 1: " + stripes);
+        }
+
+        int count = MathUtil.nextPowerOfTwo(Math.min(stripes, 1 << 16));
+        locks = new ReentrantLock[count];
+        for (int i = 0; i < count; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        mask = count - 1;
+    }
+
+    int size() {
+        return locks.length;
+    }
+
+    /**
+     * Locks the stripes of both hash codes. The stripe with the lower index is always locked first, so writers can't deadlock.
+     */
+    void lock(final int hash1, final int hash2) {
+        int stripe1 = HashEngine.place(hash1, mask);
+        int stripe2 = HashEngine.place(hash2, mask);
+
+        locks[Math.min(stripe1, stripe2)].lock();
+        if (stripe1 != stripe2) {
+            locks[Math.max(stripe1, stripe2)].lock();
+        }
+    }
+
+    void unlock(final int hash1, final int hash2) {
+        int stripe1 = HashEngine.place(hash1, mask);
+        int stripe2 = HashEngine.place(hash2, mask);
+
+        if (stripe1 != stripe2) {
+            locks[Math.max(stripe1, stripe2)].unlock();
+        }
+        locks[Math.min(stripe1, stripe2)].unlock();
+    }
+
+    void lockAll() {
+        for (ReentrantLock lock : locks) {
+            lock.lock();
+        }
+    }
+
+    void unlockAll() {
+        for (int i = locks.length - 1; i >= 0; i--) {
+            locks[i].unlock();
+        }
+    }
+}
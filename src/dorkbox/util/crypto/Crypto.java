@@ -17,10 +17,12 @@ package dorkbox.util.crypto;
 
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.security.Provider;
 import java.security.Security;
 import java.util.Arrays;
@@ -76,6 +78,12 @@ class Crypto {
     // cafeʞ, as signed bytes is: [-2, -54, -54, -98]
     private static final byte[] CUSTOM_HEADER = new byte[] {(byte) -2, (byte) -54, (byte) -54, (byte) -98};
 
+    // the buffer size for reading files
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    // the maximum size of a memory-mapped region of a file
+    static final long MAP_REGION_SIZE = 64L * 1024L * 1024L;
+
     public static
     void addProvider() {
         // make sure we only add it once (in case it's added elsewhere...)
@@ -123,46 +131,32 @@ class Crypto {
 
     /**
      * Return the hash of the file or NULL if file is invalid
+     * <p>
+     * The file is read via a {@link FileChannel}. For very large files, see {@link CryptoTreeHash} for a parallel (tree) hash.
      *
+     * @param startPosition the position in the file to start hashing from
+     * @param endPosition the number of bytes (from the start position) to hash. If this is larger than the remaining size of the file,
+     *                    the rest of the file is hashed
      * @param logger
      *                 may be null, if no log output is necessary
      */
     public static
     byte[] hashFile(File file, Digest digest, long startPosition, long endPosition, Logger logger) {
         if (file.isFile() && file.canRead()) {
-            InputStream inputStream = null;
+            FileChannel channel = null;
             try {
-                inputStream = new FileInputStream(file);
-                long skip = inputStream.skip(startPosition);
-                if (skip != startPosition) {
-                    throw new RuntimeException("Unable to skip " + startPosition + " bytes. Only skippped " + skip + " instead");
-                }
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
 
-                long size = file.length() - startPosition;
+                long size = channel.size() - startPosition;
                 long lengthFromEnd = size - endPosition;
 
                 if (lengthFromEnd > 0 && lengthFromEnd < size) {
                     size -= lengthFromEnd;
                 }
 
-                int bufferSize = 4096;
-                byte[] buffer = new byte[bufferSize];
-
-                int readBytes;
                 digest.reset();
-
-                while (size > 0) {
-                    //noinspection NumericCastThatLosesPrecision
-                    int maxToRead = (int) Math.min(bufferSize, size);
-                    readBytes = inputStream.read(buffer, 0, maxToRead);
-                    size -= readBytes;
-
-                    if (readBytes == 0) {
-                        //wtf. finally still gets called.
-                        return null;
-                    }
-
-                    digest.update(buffer, 0, readBytes);
+                if (!updateDigest(channel, digest, startPosition, size, new byte[BUFFER_SIZE])) {
+                    return null;
                 }
             } catch (Exception e) {
                 if (logger != null) {
@@ -170,10 +164,11 @@ class Crypto {
                 } else {
                     e.printStackTrace();
                 }
+                return null;
             } finally {
-                if (inputStream != null) {
+                if (channel != null) {
                     try {
-                        inputStream.close();
+                        channel.close();
                     } catch (IOException e) {
                         e.printStackTrace();
                     }
@@ -191,8 +186,40 @@ class Crypto {
         }
     }
 
+    /**
+     * Updates the digest with the specified region of the channel, using positional reads (so the channel can be shared by multiple threads).
+     *
+     * @return false if the channel ended before the region was read
+     */
+    static
+    boolean updateDigest(final FileChannel channel, final Digest digest, long position, long length, final byte[] buffer)
+                    throws IOException {
+        final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+
+        while (length > 0) {
+            byteBuffer.clear();
+            if (length < buffer.length) {
+                //noinspection NumericCastThatLosesPrecision
+                byteBuffer.limit((int) length);
+            }
+
+            int readBytes = channel.read(byteBuffer, position);
+            if (readBytes <= 0) {
+                return false;
+            }
+
+            digest.update(buffer, 0, readBytes);
+            position += readBytes;
+            length -= readBytes;
+        }
+
+        return true;
+    }
+
     /**
      * Return the xxhash of the file as or 0 if file is invalid
+     * <p>
+     * The file is memory-mapped (in regions), so xxhash can read it directly.
      *
      * @param logger
      *                 may be null, if no log output is necessary
@@ -200,7 +227,7 @@ class Crypto {
     public static
     int xxHashFile(File file, long lengthFromEnd, Logger logger) {
         if (file.isFile() && file.canRead()) {
-            InputStream inputStream = null;
+            FileChannel channel = null;
 
             // used to initialize the hash value, use whatever value you want, but always the same
             int seed = 0x9747b28c;  // must match number in C (in Auth::xxHash32())
@@ -210,33 +237,20 @@ class Crypto {
             XXHash.XXH32_reset(state, seed);
 
             try {
-                inputStream = new FileInputStream(file);
-                long size = file.length();
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+                long size = channel.size();
 
                 if (lengthFromEnd > 0 && lengthFromEnd < size) {
                     size -= lengthFromEnd;
                 }
 
-                int bufferSize = 4096;
-                byte[] buffer = new byte[bufferSize];
-                ByteBuffer bbuffer = ByteBuffer.wrap(buffer);
-
-
-                int readBytes;
-
-                while (size > 0) {
-                    //noinspection NumericCastThatLosesPrecision
-                    int maxToRead = (int) Math.min(bufferSize, size);
-                    readBytes = inputStream.read(buffer, 0, maxToRead);
-                    size -= readBytes;
-
-                    if (readBytes == 0) {
-                        //wtf. finally still gets called.
-                        return 0;
-                    }
+                long position = 0;
+                while (position < size) {
+                    long regionSize = Math.min(MAP_REGION_SIZE, size - position);
+                    MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, regionSize);
 
-                    bbuffer.limit(readBytes);
-                    XXHash.XXH32_update(state, bbuffer);
+                    XXHash.XXH32_update(state, region);
+                    position += regionSize;
                 }
             } catch (Exception e) {
                 if (logger != null) {
@@ -244,10 +258,11 @@ class Crypto {
                 } else {
                     e.printStackTrace();
                 }
+                return 0;
             } finally {
-                if (inputStream != null) {
+                if (channel != null) {
                     try {
-                        inputStream.close();
+                        channel.close();
                     } catch (IOException e) {
                         e.printStackTrace();
                     }
@@ -280,8 +295,61 @@ class Crypto {
         return number;
     }
 
+    // how a jar entry is hashed
+    static final int HASH_SKIP = -1;
+    static final int HASH = 0;
+    static final int HASH_WITH_ACTION = 1;
+
+    /**
+     * Data with NO extra data will NOT BE HASHED, and data that matches our action bitmask WILL NOT BE HASHED.
+     *
+     * @return how the jar entry must be hashed, {@link #HASH_SKIP}, {@link #HASH} or {@link #HASH_WITH_ACTION} (the action, from the
+     *         extra data, must also be hashed)
+     *
+     * @throws RuntimeException if the extra data of the entry is not ours
+     */
+    static
+    int getHashType(final JarEntry jarEntry, final int action) {
+        if (jarEntry.isDirectory()) {
+            return HASH_SKIP;
+        }
+
+        byte[] extraData = jarEntry.getExtra();
+        if (extraData == null || extraData.length == 0) {
+            return HASH_SKIP;
+        }
+
+        if (extraData.length >= 4) {
+            for (int i = 0; i < CUSTOM_HEADER.length; i++) {
+                if (extraData[i] != CUSTOM_HEADER[i]) {
+                    throw new RuntimeException("Unexpected extra data in zip assigned. Aborting");
+                }
+            }
+
+            // this means we matched our header
+            if (extraData[4] > 0) {
+                // we have an ACTION describing how it was compressed, etc
+                int fileAction = toInt(new byte[] {extraData[5], extraData[6], extraData[7], extraData[8]});
+
+                if ((fileAction & action) != action) {
+                    return HASH_WITH_ACTION;
+                }
+                return HASH_SKIP;
+            }
+            else {
+                return HASH;
+            }
+        }
+        else {
+            throw new RuntimeException("Unexpected extra data in zip assigned. Aborting");
+        }
+    }
+
     /**
      * Specifically, to return the hash of the ALL files/directories inside the jar, minus the action specified (LGPL) files.
+     * <p>
+     * This hashes every entry as a single stream (in the order of the entries). See {@link CryptoJarHash} for a parallel (and incremental)
+     * version.
      */
     public static
     byte[] hashJarContentsExcludeAction(File jarDestFilename, Digest digest, int action) throws IOException {
@@ -290,8 +358,6 @@ class Crypto {
         try {
             Enumeration<JarEntry> jarElements = jarDestFile.entries();
 
-            boolean okToHash;
-            boolean hasAction;
             byte[] buffer = new byte[2048];
             int read;
             digest.reset();
@@ -299,47 +365,11 @@ class Crypto {
             while (jarElements.hasMoreElements()) {
                 JarEntry jarEntry = jarElements.nextElement();
                 String name = jarEntry.getName();
-                okToHash = !jarEntry.isDirectory();
-
-                if (!okToHash) {
-                    continue;
-                }
-
-                // data with NO extra data will NOT BE HASHED
-                // data that matches our action bitmask WILL NOT BE HASHED
-
-                okToHash = false;
-                hasAction = false;
 
+                int hashType = getHashType(jarEntry, action);
+                boolean okToHash = hashType != HASH_SKIP;
+                boolean hasAction = hashType == HASH_WITH_ACTION;
                 byte[] extraData = jarEntry.getExtra();
-                if (extraData == null || extraData.length == 0) {
-                    okToHash = false;
-                }
-                else if (extraData.length >= 4) {
-                    for (int i = 0; i < CUSTOM_HEADER.length; i++) {
-                        if (extraData[i] != CUSTOM_HEADER[i]) {
-                            throw new RuntimeException("Unexpected extra data in zip assigned. Aborting");
-                        }
-                    }
-
-                    // this means we matched our header
-                    if (extraData[4] > 0) {
-                        hasAction = true;
-
-                        // we have an ACTION describing how it was compressed, etc
-                        int fileAction = toInt(new byte[] {extraData[5], extraData[6], extraData[7], extraData[8]});
-
-                        if ((fileAction & action) != action) {
-                            okToHash = true;
-                        }
-                    }
-                    else {
-                        okToHash = true;
-                    }
-                }
-                else {
-                    throw new RuntimeException("Unexpected extra data in zip assigned. Aborting");
-                }
 
                 // skips hashing lgpl files. (technically, whatever our action bitmask is...)
                 // we want to hash everything BY DEFAULT. we ALSO want to hash the NAME, LOAD ACTION TYPE, and the contents
@@ -28,6 +28,8 @@ import java.io.OutputStream;
 
 /**
  * AES crypto functions
+ * <p>
+ * For large data (ie: files), see {@link CryptoAESStream}, which is segmented and can run across multiple threads.
  */
 @SuppressWarnings({"Duplicates"})
 public final
@@ -0,0 +1,633 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.crypto;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.slf4j.Logger;
+
+/**
+ * Segmented AES-GCM streaming, for data that is too large to push through a single GCM pass (ie: multi-GB files).
+ * <p>
+ * The plaintext is split into fixed size segments, and every segment is encrypted + authenticated on its own (it has its own tag). Because
+ * the segment boundaries are fixed, any segment can be located directly, which permits encrypting/decrypting on multiple threads, only
+ * decrypting a range of the file, and resuming an interrupted operation.
+ * <p>
+ * Format:
+ * <pre>
+ *   header  : [version (1)][segment size (4)][nonce prefix (7)]
+ *   segment : [ciphertext (segment size, the last segment may be shorter)][GCM tag (16)]
+ *
+ *   nonce   : [nonce prefix (7)][segment index (4)][1 if this is the last segment, otherwise 0]
+ * </pre>
+ * The header is the associated data for every segment, and because the last segment is flagged in its nonce, reordering, dropping or
+ * truncating segments will fail authentication. There are always at least 1 segment (empty input is 1 empty segment).
+ * <p>
+ * The nonce prefix is random per encryption, so the same key can be reused for different files. Never re-encrypt DIFFERENT data into an
+ * existing header (the nonces will repeat), which is why resume requires the input to be unchanged.
+ */
+public final
+class CryptoAESStream {
+    public static final int DEFAULT_SEGMENT_SIZE = 1024 * 1024; // 1 MB
+
+    private static final byte VERSION = 1;
+    private static final int NONCE_PREFIX_SIZE = 7;
+    private static final int NONCE_SIZE = 12;
+    private static final int TAG_SIZE = 16;
+    private static final int MAC_SIZE_BITS = TAG_SIZE * 8;
+
+    /**
+     * Max number of segments (the segment index is an unsigned int in the nonce)
+     */
+    private static final long MAX_SEGMENTS = 0xFFFFFFFFL;
+
+    public static final int HEADER_SIZE = 1 + 4 + NONCE_PREFIX_SIZE;
+
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * AES encrypt (segmented GCM) from one channel to another, using the default segment size.
+     *
+     * @param logger
+     *                 may be null, if no log output is necessary
+     *
+     * @return true if successful
+     */
+    public static
+    boolean encrypt(byte[] aesKey, ReadableByteChannel in, WritableByteChannel out, Logger logger) {
+        return encrypt(aesKey, in, out, DEFAULT_SEGMENT_SIZE, logger);
+    }
+
+    /**
+     * AES encrypt (segmented GCM) from one channel to another. The buffers are allocated once (~3x the segment size), and the data is
+     * read/encrypted/written one segment at a time.
+     *
+     * @param segmentSize
+     *                 the size of each plaintext segment. Larger segments are faster, smaller segments are finer grained for random access.
+     * @param logger
+     *                 may be null, if no log output is necessary
+     *
+     * @return true if successful
+     */
+    public static
+    boolean encrypt(byte[] aesKey, ReadableByteChannel in, WritableByteChannel out, int segmentSize, Logger logger) {
+        try {
+            byte[] header = newHeader(segmentSize);
+            writeFully(out, header, 0, HEADER_SIZE);
+
+            GCMBlockCipher aesEngine = new GCMBlockCipher(new AESEngine());
+            KeyParameter key = new KeyParameter(aesKey);
+
+            byte[] current = new byte[segmentSize];
+            byte[] next = new byte[segmentSize];
+            byte[] outBuf = new byte[segmentSize + TAG_SIZE];
+
+            int currentLength = readFully(in, current);
+            long segment = 0L;
+
+            while (true) {
+                // we have to look ahead one segment, in order to know if the current segment is the last one
+                int nextLength = currentLength == segmentSize ? readFully(in, next) : 0;
+                boolean isLast = nextLength == 0;
+
+                int length = encryptSegment(aesEngine, key, header, segment, isLast, current, currentLength, outBuf);
+                writeFully(out, outBuf, 0, length);
+
+                if (isLast) {
+                    break;
+                }
+
+                if (++segment > MAX_SEGMENTS) {
+                    throw new IOException("Too many segments. Increase the segment size.");
+                }
+
+                byte[] tmp = current;
+                current = next;
+                next = tmp;
+                currentLength = nextLength;
+            }
+        } catch (Exception e) {
+            if (logger != null) {
+                logger.error("Unable to perform AES cipher.", e);
+            }
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * AES decrypt (segmented GCM) from one channel to another. Plaintext is only written after its segment has been authenticated.
+     *
+     * @param logger
+     *                 may be null, if no log output is necessary
+     *
+     * @return true if successful. If false, the data written so far is authentic, but incomplete.
+     */
+    public static
+    boolean decrypt(byte[] aesKey, ReadableByteChannel in, WritableByteChannel out, Logger logger) {
+        try {
+            byte[] header = new byte[HEADER_SIZE];
+            if (readFully(in, header) != HEADER_SIZE) {
+                throw new EOFException("Missing header");
+            }
+
+            int segmentSize = getSegmentSize(header);
+            int encryptedSegmentSize = segmentSize + TAG_SIZE;
+
+            GCMBlockCipher aesEngine = new GCMBlockCipher(new AESEngine());
+            KeyParameter key = new KeyParameter(aesKey);
+
+            byte[] current = new byte[encryptedSegmentSize];
+            byte[] next = new byte[encryptedSegmentSize];
+            byte[] outBuf = new byte[segmentSize];
+
+            int currentLength = readFully(in, current);
+            long segment = 0L;
+
+            while (true) {
+                int nextLength = currentLength == encryptedSegmentSize ? readFully(in, next) : 0;
+                boolean isLast = nextLength == 0;
+
+                int length = decryptSegment(aesEngine, key, header, segment, isLast, current, currentLength, outBuf);
+                writeFully(out, outBuf, 0, length);
+
+                if (isLast) {
+                    break;
+                }
+
+                if (++segment > MAX_SEGMENTS) {
+                    throw new IOException("Too many segments.");
+                }
+
+                byte[] tmp = current;
+                current = next;
+                next = tmp;
+                currentLength = nextLength;
+            }
+        } catch (Exception e) {
+            if (logger != null) {
+                logger.error("Unable to perform AES cipher.", e);
+            }
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * AES encrypt (segmented GCM) one file to another, with the segments split across the executor.
+     *
+     * @param executor
+     *                 the executor used to process the segments. If null, everything runs on the calling thread.
+     * @param logger
+     *                 may be null, if no log output is necessary
+     *
+     * @return true if successful
+     */
+    public static
+    boolean encryptFile(byte[] aesKey, FileChannel in, FileChannel out, int segmentSize, ExecutorService executor, Logger logger) {
+        try {
+            byte[] header = newHeader(segmentSize);
+            writeFully(out, header, 0L);
+
+            long segmentCount = segmentCount(in.size(), segmentSize);
+            out.truncate(encryptedSize(in.size(), segmentSize));
+
+            return run(new SegmentTask(SegmentTask.ENCRYPT, aesKey, header, in, out, segmentCount), 0L, segmentCount, executor, logger);
+        } catch (Exception e) {
+            if (logger != null) {
+                logger.error("Unable to perform AES cipher.", e);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Resumes an interrupted {@link #encryptFile(byte[], FileChannel, FileChannel, int, ExecutorService, Logger)}. Every segment already
+     * in the output is verified, and only the segments that are missing or fail verification are encrypted again.
+     * <p>
+     * The input MUST be unchanged from the original encryption, otherwise nonces are reused for different data.
+     *
+     * @param executor
+     *                 the executor used to process the segments. If null, everything runs on the calling thread.
+     * @param logger
+     *                 may be null, if no log output is necessary
+     *
+     * @return true if successful
+     */
+    public static
+    boolean resumeEncryptFile(byte[] aesKey, FileChannel in, FileChannel out, ExecutorService executor, Logger logger) {
+        try {
+            if (out.size() < HEADER_SIZE) {
+                // nothing was written, so there is nothing to resume
+                return encryptFile(aesKey, in, out, DEFAULT_SEGMENT_SIZE, executor, logger);
+            }
+
+            byte[] header = new byte[HEADER_SIZE];
+            readFully(out, header, 0L);
+            int segmentSize = getSegmentSize(header);
+
+            long segmentCount = segmentCount(in.size(), segmentSize);
+            long encryptedSize = encryptedSize(in.size(), segmentSize);
+            if (out.size() != encryptedSize) {
+                out.truncate(Math.min(out.size(), encryptedSize));
+            }
+
+            return run(new SegmentTask(SegmentTask.RESUME, aesKey, header, in, out, segmentCount), 0L, segmentCount, executor, logger);
+        } catch (Exception e) {
+            if (logger != null) {
+                logger.error("Unable to perform AES cipher.", e);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * AES decrypt (segmented GCM) one file to another, with the segments split across the executor.
+     *
+     * @param executor
+     *                 the executor used to process the segments. If null, everything runs on the calling thread.
+     * @param logger
+     *                 may be null, if no log output is necessary
+     *
+     * @return true if successful
+     */
+    public static
+    boolean decryptFile(byte[] aesKey, FileChannel in, FileChannel out, ExecutorService executor, Logger logger) {
+        return decryptFile(aesKey, in, out, 0L, Long.MAX_VALUE, executor, logger);
+    }
+
+    /**
+     * AES decrypt (segmented GCM) a range of segments from one file to another. The plaintext is written at the same position that it
+     * had originally, so this can be used for random access, or to resume an interrupted decryption.
+     *
+     * @param firstSegment
+     *                 the first segment to decrypt
+     * @param count
+     *                 the number of segments to decrypt (clamped to the number of segments in the file)
+     * @param executor
+     *                 the executor used to process the segments. If null, everything runs on the calling thread.
+     * @param logger
+     *                 may be null, if no log output is necessary
+     *
+     * @return true if successful
+     */
+    public static
+    boolean decryptFile(byte[] aesKey, FileChannel in, FileChannel out, long firstSegment, long count, ExecutorService executor, Logger logger) {
+        try {
+            byte[] header = new byte[HEADER_SIZE];
+            if (readFully(in, header, 0L) != HEADER_SIZE) {
+                throw new EOFException("Missing header");
+            }
+
+            int segmentSize = getSegmentSize(header);
+            long segmentCount = encryptedSegmentCount(in.size(), segmentSize);
+
+            if (firstSegment < 0 || firstSegment >= segmentCount) {
+                throw new IllegalArgumentException("Invalid segment " + firstSegment + ". There are " + segmentCount + " segments.");
+            }
+
+            long lastSegment = firstSegment + Math.min(count, segmentCount - firstSegment);
+
+            if (!run(new SegmentTask(SegmentTask.DECRYPT, aesKey, header, in, out, segmentCount), firstSegment, lastSegment, executor, logger)) {
+                return false;
+            }
+
+            if (lastSegment == segmentCount) {
+                // the output might have been larger than the plaintext (for example, an older version of the file)
+                out.truncate(in.size() - HEADER_SIZE - segmentCount * TAG_SIZE);
+            }
+            return true;
+        } catch (Exception e) {
+            if (logger != null) {
+                logger.error("Unable to perform AES cipher.", e);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of segments for the specified plaintext size
+     */
+    public static
+    long segmentCount(long plaintextSize, int segmentSize) throws IOException {
+        long count = plaintextSize == 0L ? 1L : (plaintextSize + segmentSize - 1) / segmentSize;
+        if (count > MAX_SEGMENTS) {
+            throw new IOException("Too many segments. Increase the segment size.");
+        }
+        return count;
+    }
+
+    /**
+     * @return the size of the encrypted data (including the header) for the specified plaintext size
+     */
+    public static
+    long encryptedSize(long plaintextSize, int segmentSize) throws IOException {
+        return HEADER_SIZE + plaintextSize + segmentCount(plaintextSize, segmentSize) * TAG_SIZE;
+    }
+
+    /**
+     * @return the number of segments in the encrypted data of the specified size (including the header)
+     */
+    private static
+    long encryptedSegmentCount(long encryptedSize, int segmentSize) throws IOException {
+        long payload = encryptedSize - HEADER_SIZE;
+        int encryptedSegmentSize = segmentSize + TAG_SIZE;
+
+        long count = (payload + encryptedSegmentSize - 1) / encryptedSegmentSize;
+        if (count < 1L || payload - (count - 1) * encryptedSegmentSize < TAG_SIZE) {
+            throw new IOException("Invalid encrypted size");
+        }
+
+        return count;
+    }
+
+    private static
+    byte[] newHeader(int segmentSize) {
+        if (segmentSize <= 0) {
+            throw new IllegalArgumentException("Segment size must be > 0");
+        }
+
+        byte[] header = new byte[HEADER_SIZE];
+        header[0] = VERSION;
+        header[1] = (byte) (segmentSize >>> 24);
+        header[2] = (byte) (segmentSize >>> 16);
+        header[3] = (byte) (segmentSize >>> 8);
+        header[4] = (byte) segmentSize;
+
+        byte[] prefix = new byte[NONCE_PREFIX_SIZE];
+        random.nextBytes(prefix);
+        System.arraycopy(prefix, 0, header, 5, NONCE_PREFIX_SIZE);
+
+        return header;
+    }
+
+    private static
+    int getSegmentSize(byte[] header) throws IOException {
+        if (header[0] != VERSION) {
+            throw new IOException("Unknown version: " + header[0]);
+        }
+
+        int segmentSize = (header[1] & 0xFF) << 24 | (header[2] & 0xFF) << 16 | (header[3] & 0xFF) << 8 | (header[4] & 0xFF);
+        if (segmentSize <= 0) {
+            throw new IOException("Invalid segment size: " + segmentSize);
+        }
+
+        return segmentSize;
+    }
+
+    private static
+    AEADParameters parameters(KeyParameter key, byte[] header, long segment, boolean isLast) {
+        byte[] nonce = new byte[NONCE_SIZE];
+        System.arraycopy(header, 5, nonce, 0, NONCE_PREFIX_SIZE);
+        nonce[7] = (byte) (segment >>> 24);
+        nonce[8] = (byte) (segment >>> 16);
+        nonce[9] = (byte) (segment >>> 8);
+        nonce[10] = (byte) segment;
+        nonce[11] = isLast ? (byte) 1 : (byte) 0;
+
+        return new AEADParameters(key, MAC_SIZE_BITS, nonce, header);
+    }
+
+    /**
+     * @return the length of the encrypted segment (including the tag)
+     */
+    private static
+    int encryptSegment(GCMBlockCipher aesEngine, KeyParameter key, byte[] header, long segment, boolean isLast,
+                       byte[] in, int length, byte[] out) throws InvalidCipherTextException {
+
+        aesEngine.init(true, parameters(key, header, segment, isLast));
+
+        int actualLength = aesEngine.processBytes(in, 0, length, out, 0);
+        actualLength += aesEngine.doFinal(out, actualLength);
+        return actualLength;
+    }
+
+    /**
+     * @return the length of the decrypted segment
+     */
+    private static
+    int decryptSegment(GCMBlockCipher aesEngine, KeyParameter key, byte[] header, long segment, boolean isLast,
+                       byte[] in, int length, byte[] out) throws InvalidCipherTextException {
+
+        if (length < TAG_SIZE) {
+            throw new InvalidCipherTextException("Segment " + segment + " is truncated");
+        }
+
+        aesEngine.init(false, parameters(key, header, segment, isLast));
+
+        int actualLength = aesEngine.processBytes(in, 0, length, out, 0);
+        actualLength += aesEngine.doFinal(out, actualLength);
+        return actualLength;
+    }
+
+    /**
+     * Splits the segments into contiguous ranges (a few per CPU), so each task can reuse its buffers and cipher across its range.
+     */
+    private static
+    boolean run(final SegmentTask task, long firstSegment, long lastSegment, ExecutorService executor, Logger logger) {
+        long total = lastSegment - firstSegment;
+
+        if (executor == null || total == 1L) {
+            try {
+                task.process(firstSegment, lastSegment);
+                return true;
+            } catch (Exception e) {
+                if (logger != null) {
+                    logger.error("Unable to perform AES cipher.", e);
+                }
+                return false;
+            }
+        }
+
+        long taskCount = Math.min(total, Runtime.getRuntime().availableProcessors() * 4L);
+        long perTask = (total + taskCount - 1) / taskCount;
+
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (long start = firstSegment; start < lastSegment; start += perTask) {
+            final long from = start;
+            final long to = Math.min(lastSegment, start + perTask);
+
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public
+                Void call() throws Exception {
+                    task.process(from, to);
+                    return null;
+                }
+            }));
+        }
+
+        boolean success = true;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (Exception e) {
+                success = false;
+                if (logger != null) {
+                    logger.error("Unable to perform AES cipher.", e);
+                }
+            }
+        }
+
+        return success;
+    }
+
+    private static
+    int readFully(ReadableByteChannel in, byte[] buffer) throws IOException {
+        ByteBuffer wrap = ByteBuffer.wrap(buffer);
+        while (wrap.hasRemaining()) {
+            if (in.read(wrap) < 0) {
+                break;
+            }
+        }
+        return wrap.position();
+    }
+
+    private static
+    int readFully(FileChannel in, byte[] buffer, long position) throws IOException {
+        return readFully(in, buffer, buffer.length, position);
+    }
+
+    private static
+    int readFully(FileChannel in, byte[] buffer, int length, long position) throws IOException {
+        ByteBuffer wrap = ByteBuffer.wrap(buffer, 0, length);
+        while (wrap.hasRemaining()) {
+            if (in.read(wrap, position + wrap.position()) < 0) {
+                break;
+            }
+        }
+        return wrap.position();
+    }
+
+    private static
+    void writeFully(WritableByteChannel out, byte[] buffer, int offset, int length) throws IOException {
+        ByteBuffer wrap = ByteBuffer.wrap(buffer, offset, length);
+        while (wrap.hasRemaining()) {
+            out.write(wrap);
+        }
+    }
+
+    private static
+    void writeFully(FileChannel out, byte[] buffer, long position) throws IOException {
+        writeFully(out, buffer, buffer.length, position);
+    }
+
+    private static
+    void writeFully(FileChannel out, byte[] buffer, int length, long position) throws IOException {
+        ByteBuffer wrap = ByteBuffer.wrap(buffer, 0, length);
+        while (wrap.hasRemaining()) {
+            out.write(wrap, position + wrap.position());
+        }
+    }
+
+    /**
+     * Processes a range of segments between two files, using positional reads/writes so that multiple ranges can run at the same time.
+     */
+    private static final
+    class SegmentTask {
+        static final int ENCRYPT = 0;
+        static final int DECRYPT = 1;
+        static final int RESUME = 2;
+
+        private final int mode;
+        private final KeyParameter key;
+        private final byte[] header;
+        private final FileChannel in;
+        private final FileChannel out;
+        private final long segmentCount;
+        private final int segmentSize;
+
+        SegmentTask(int mode, byte[] aesKey, byte[] header, FileChannel in, FileChannel out, long segmentCount) throws IOException {
+            this.mode = mode;
+            this.key = new KeyParameter(aesKey);
+            this.header = header;
+            this.in = in;
+            this.out = out;
+            this.segmentCount = segmentCount;
+            this.segmentSize = getSegmentSize(header);
+        }
+
+        void process(long from, long to) throws IOException, InvalidCipherTextException {
+            GCMBlockCipher aesEngine = new GCMBlockCipher(new AESEngine());
+
+            // GCM refuses to encrypt with the nonce it was just initialized with, so verification has its own engine
+            GCMBlockCipher verifyEngine = mode == RESUME ? new GCMBlockCipher(new AESEngine()) : null;
+
+            int encryptedSegmentSize = segmentSize + TAG_SIZE;
+            byte[] plain = new byte[segmentSize];
+            byte[] encrypted = new byte[encryptedSegmentSize];
+
+            for (long segment = from; segment < to; segment++) {
+                boolean isLast = segment == segmentCount - 1;
+                long plainPosition = segment * segmentSize;
+                long encryptedPosition = HEADER_SIZE + segment * encryptedSegmentSize;
+
+                if (mode == DECRYPT) {
+                    int length = readFully(in, encrypted, encryptedPosition);
+                    length = decryptSegment(aesEngine, key, header, segment, isLast, encrypted, length, plain);
+                    writeFully(out, plain, length, plainPosition);
+                }
+                else {
+                    int plainLength = readFully(in, plain, plainPosition);
+                    if (plainLength != segmentSize && !isLast) {
+                        throw new EOFException("Input was modified while encrypting segment " + segment);
+                    }
+
+                    if (mode == RESUME) {
+                        int length = readFully(out, encrypted, plainLength + TAG_SIZE, encryptedPosition);
+                        if (length == plainLength + TAG_SIZE) {
+                            try {
+                                // we don't care about the output, only that the tag is valid
+                                decryptSegment(verifyEngine, key, header, segment, isLast, encrypted, length, plain);
+                                continue;
+                            } catch (InvalidCipherTextException ignored) {
+                                // torn or missing write, re-encrypt it
+                            }
+
+                            // the verification overwrote our plaintext
+                            readFully(in, plain, plainPosition);
+                        }
+                    }
+
+                    int length = encryptSegment(aesEngine, key, header, segment, isLast, plain, plainLength, encrypted);
+                    writeFully(out, encrypted, length, encryptedPosition);
+                }
+            }
+        }
+    }
+
+    private
+    CryptoAESStream() {
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.crypto;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.util.Memoable;
+import org.bouncycastle.util.encoders.Hex;
+import org.slf4j.Logger;
+
+import dorkbox.os.OS;
+
+/**
+ * A parallel (and optionally incremental) version of {@link Crypto#hashJarContentsExcludeAction(File, Digest, int)}.
+ * <p>
+ * The same entries are hashed (every file, minus the entries that match the action), and each entry hash includes the same data (the name,
+ * the action and the contents). However, every entry is hashed separately (entries are inflated and hashed in parallel), and the final hash
+ * is the hash of all the entry hashes, sorted by entry name. The final hash therefore does not depend on the order of the entries in the jar,
+ * and it is NOT the same as the hash from {@link Crypto#hashJarContentsExcludeAction(File, Digest, int)}.
+ * <p>
+ * The entry hashes can be saved in a manifest file (beside the jar), so that when the jar is hashed again only the entries that have changed
+ * are re-hashed. An entry is considered to be unchanged if its name, CRC32, size, compressed size and extra data are the same as in the
+ * manifest. Because a CRC32 is not a secure hash, the incremental mode is for detecting changes (ie: after a partial update), and not for
+ * security verification of a jar that might have been tampered with. Use the non-incremental mode for that.
+ */
+public final
+class CryptoJarHash {
+    private static final String MANIFEST_HEADER = "# jar content hashes v1";
+    private static final String MANIFEST_EXTENSION = ".hashes";
+
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private
+    CryptoJarHash() {
+    }
+
+    /**
+     * The information about an entry that is hashed
+     */
+    private static final
+    class Entry {
+        private final String name;
+        private final boolean hasAction;
+        private final byte[] extraData;
+
+        private final long crc;
+        private final long size;
+        private final long compressedSize;
+
+        private byte[] hash;
+
+        Entry(final JarEntry jarEntry, final boolean hasAction) {
+            this.name = jarEntry.getName();
+            this.hasAction = hasAction;
+            this.extraData = jarEntry.getExtra();
+            this.crc = jarEntry.getCrc();
+            this.size = jarEntry.getSize();
+            this.compressedSize = jarEntry.getCompressedSize();
+        }
+
+        // the key used to check if the entry has changed since the manifest was written
+        String getKey() {
+            return crc + " " + size + " " + compressedSize + " " + Hex.toHexString(extraData) + " " + name;
+        }
+    }
+
+    /**
+     * @return the file that the manifest (of the entry hashes) is saved to, for the specified jar
+     */
+    public static
+    File getManifestFile(final File jarFile) {
+        return new File(jarFile.getPath() + MANIFEST_EXTENSION);
+    }
+
+    /**
+     * Returns the hash of the ALL files inside the jar, minus the action specified (LGPL) files, or NULL if there was an error.
+     * <p>
+     * The entries are inflated and hashed in parallel.
+     *
+     * @param digest the digest to use. This must be a {@link Memoable} digest (which all of the BouncyCastle general digests are)
+     * @param pool the pool to hash the entries with, or null to use the common pool
+     * @param logger may be null, if no log output is necessary
+     */
+    public static
+    byte[] hashJarContentsExcludeAction(final File jarFile, final Digest digest, final int action, final ForkJoinPool pool,
+                                        final Logger logger) {
+        return hashJarContentsExcludeAction(jarFile, digest, action, null, pool, logger);
+    }
+
+    /**
+     * Returns the hash of the ALL files inside the jar, minus the action specified (LGPL) files, or NULL if there was an error.
+     * <p>
+     * The entries are inflated and hashed in parallel. If a manifest file is specified, only the entries that have changed since the manifest
+     * was saved are re-hashed, and the manifest is then updated. See the class documentation for when this is (and is not) appropriate.
+     *
+     * @param digest the digest to use. This must be a {@link Memoable} digest (which all of the BouncyCastle general digests are)
+     * @param manifestFile the file to load (and save) the entry hashes from, or null to hash every entry. See {@link #getManifestFile(File)}
+     * @param pool the pool to hash the entries with, or null to use the common pool
+     * @param logger may be null, if no log output is necessary
+     */
+    public static
+    byte[] hashJarContentsExcludeAction(final File jarFile, final Digest digest, final int action, final File manifestFile,
+                                        final ForkJoinPool pool, final Logger logger) {
+        if (!(digest instanceof Memoable)) {
+            throw new IllegalArgumentException("The digest must be Memoable, so that it can be copied for each thread.");
+        }
+
+        final String digestInfo = digest.getAlgorithmName() + " " + action;
+
+        try {
+            final List<Entry> entries = getEntries(jarFile, action);
+
+            // the entries that have to be hashed
+            List<Entry> toHash = entries;
+
+            if (manifestFile != null && manifestFile.isFile()) {
+                final Map<String, byte[]> manifest = loadManifest(manifestFile, digestInfo);
+
+                toHash = new ArrayList<Entry>();
+                for (Entry entry : entries) {
+                    entry.hash = manifest.get(entry.getKey());
+                    if (entry.hash == null) {
+                        toHash.add(entry);
+                    }
+                }
+            }
+
+            if (!toHash.isEmpty()) {
+                final ForkJoinPool forkJoinPool = pool != null ? pool : ForkJoinPool.commonPool();
+                final int chunkSize = Math.max(1, toHash.size() / (forkJoinPool.getParallelism() * CHUNKS_PER_THREAD));
+
+                forkJoinPool.invoke(new EntryTask(jarFile, digest, toHash, 0, toHash.size(), chunkSize));
+            }
+
+            if (manifestFile != null) {
+                saveManifest(manifestFile, digestInfo, entries);
+            }
+
+            // the final hash does not depend on the order of the entries in the jar
+            Collections.sort(entries, new Comparator<Entry>() {
+                @Override
+                public
+                int compare(final Entry o1, final Entry o2) {
+                    return o1.name.compareTo(o2.name);
+                }
+            });
+
+            final Digest root = copy(digest);
+            for (Entry entry : entries) {
+                root.update(entry.hash, 0, entry.hash.length);
+            }
+
+            final byte[] digestBytes = new byte[root.getDigestSize()];
+            root.doFinal(digestBytes, 0);
+            return digestBytes;
+        } catch (Exception e) {
+            if (logger != null) {
+                logger.error("Error hashing jar: {}", jarFile.getAbsolutePath(), e);
+            } else {
+                e.printStackTrace();
+            }
+            return null;
+        }
+    }
+
+    private static
+    Digest copy(final Digest digest) {
+        final Digest copy = (Digest) ((Memoable) digest).copy();
+        copy.reset();
+        return copy;
+    }
+
+    private static
+    List<Entry> getEntries(final File jarFile, final int action) throws IOException {
+        final List<Entry> entries = new ArrayList<Entry>();
+        final JarFile jar = new JarFile(jarFile);
+
+        try {
+            final Enumeration<JarEntry> jarElements = jar.entries();
+            while (jarElements.hasMoreElements()) {
+                final JarEntry jarEntry = jarElements.nextElement();
+
+                final int hashType = Crypto.getHashType(jarEntry, action);
+                if (hashType != Crypto.HASH_SKIP) {
+                    entries.add(new Entry(jarEntry, hashType == Crypto.HASH_WITH_ACTION));
+                }
+            }
+        } finally {
+            jar.close();
+        }
+
+        return entries;
+    }
+
+    private static
+    Map<String, byte[]> loadManifest(final File manifestFile, final String digestInfo) throws IOException {
+        final Map<String, byte[]> manifest = new HashMap<String, byte[]>();
+
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(Files.newInputStream(manifestFile.toPath()),
+                                                                               StandardCharsets.UTF_8));
+        try {
+            // a manifest for a different digest (or action) is ignored
+            if (!(MANIFEST_HEADER + " " + digestInfo).equals(reader.readLine())) {
+                return manifest;
+            }
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int index = line.indexOf(' ');
+                if (index > 0) {
+                    manifest.put(line.substring(index + 1), Hex.decode(line.substring(0, index)));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return manifest;
+    }
+
+    private static
+    void saveManifest(final File manifestFile, final String digestInfo, final List<Entry> entries) throws IOException {
+        // write to a temp file first, so a failure will not leave a broken manifest
+        final File tempFile = new File(manifestFile.getPath() + ".tmp");
+
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(tempFile.toPath()), StandardCharsets.UTF_8));
+        try {
+            writer.write(MANIFEST_HEADER + " " + digestInfo + "\n");
+
+            for (Entry entry : entries) {
+                writer.write(Hex.toHexString(entry.hash));
+                writer.write(' ');
+                writer.write(entry.getKey());
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+
+        Files.move(tempFile.toPath(), manifestFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static final
+    class EntryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final File jarFile;
+        private final Digest digest;
+        private final List<Entry> entries;
+        private final int start;
+        private final int end;
+        private final int chunkSize;
+
+        EntryTask(final File jarFile, final Digest digest, final List<Entry> entries, final int start, final int end, final int chunkSize) {
+            this.jarFile = jarFile;
+            this.digest = digest;
+            this.entries = entries;
+            this.start = start;
+            this.end = end;
+            this.chunkSize = chunkSize;
+        }
+
+        @Override
+        protected
+        void compute() {
+            if (end - start > chunkSize) {
+                final int mid = (start + end) >>> 1;
+                invokeAll(new EntryTask(jarFile, digest, entries, start, mid, chunkSize),
+                          new EntryTask(jarFile, digest, entries, mid, end, chunkSize));
+                return;
+            }
+
+            // every chunk has its own jar file, so that the entries are inflated without contention
+            JarFile jar = null;
+            try {
+                jar = new JarFile(jarFile);
+
+                final Digest digest = copy(this.digest);
+                final byte[] buffer = new byte[Crypto.BUFFER_SIZE];
+
+                for (int i = start; i < end; i++) {
+                    final Entry entry = entries.get(i);
+                    final JarEntry jarEntry = jar.getJarEntry(entry.name);
+                    if (jarEntry == null) {
+                        throw new IOException("Jar entry " + entry.name + " no longer exists");
+                    }
+
+                    entry.hash = hashEntry(jar, jarEntry, entry, digest, buffer);
+                }
+            } catch (IOException e) {
+                completeExceptionally(e);
+            } finally {
+                if (jar != null) {
+                    try {
+                        jar.close();
+                    } catch (IOException ignored) {
+                    }
+                }
+            }
+        }
+
+        private static
+        byte[] hashEntry(final JarFile jar, final JarEntry jarEntry, final Entry entry, final Digest digest, final byte[] buffer)
+                        throws IOException {
+            digest.reset();
+
+            // we ALSO want to hash the NAME, LOAD ACTION TYPE, and the contents
+            final byte[] bytes = entry.name.getBytes(OS.US_ASCII);
+            digest.update(bytes, 0, bytes.length);
+
+            if (entry.hasAction) {
+                // hash the action - since we don't want to permit anyone to change this after we sign the file
+                digest.update(entry.extraData, 5, 4);
+            }
+
+            final InputStream inputStream = jar.getInputStream(jarEntry);
+            try {
+                int read;
+                while ((read = inputStream.read(buffer)) > 0) {
+                    digest.update(buffer, 0, read);
+                }
+            } finally {
+                inputStream.close();
+            }
+
+            final byte[] hash = new byte[digest.getDigestSize()];
+            digest.doFinal(hash, 0);
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.crypto;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.bouncycastle.crypto.Digest;
+import org.bouncycastle.util.Memoable;
+import org.slf4j.Logger;
+
+/**
+ * A parallel (tree) hash of a file, for hashing very large files.
+ * <p>
+ * The file is split into fixed-size leaves, which are memory-mapped and hashed in parallel on a fork-join pool. The leaf hashes are then
+ * combined (pair-wise, level by level) into a single root hash. The leaf and node hashes use different prefixes (0x00 for leaves, 0x01 for
+ * nodes) so that a leaf can never be confused for a node.
+ * <p>
+ * The root hash is NOT the same as the (single stream) hash of the file via {@link Crypto#hashFile(File, Digest, Logger)}, and it depends on
+ * the leaf size. The leaf hashes can be kept (a Merkle tree), so that a range of the file can be re-verified later without re-hashing the
+ * entire file.
+ */
+public final
+class CryptoTreeHash {
+    public static final int DEFAULT_LEAF_SIZE = 4 * 1024 * 1024;
+
+    private static final byte LEAF_PREFIX = (byte) 0x00;
+    private static final byte NODE_PREFIX = (byte) 0x01;
+
+    /**
+     * The result of a tree hash.
+     */
+    public static final
+    class MerkleTree {
+        private final Digest digest;
+        private final long length;
+        private final int leafSize;
+        private final byte[] root;
+
+        // null if the leaves were not kept
+        private final byte[][] leaves;
+
+        private
+        MerkleTree(final Digest digest, final long length, final int leafSize, final byte[] root, final byte[][] leaves) {
+            this.digest = digest;
+            this.length = length;
+            this.leafSize = leafSize;
+            this.root = root;
+            this.leaves = leaves;
+        }
+
+        /**
+         * @return the root hash of the tree
+         */
+        public
+        byte[] getRoot() {
+            return root.clone();
+        }
+
+        /**
+         * @return the length of the file that was hashed
+         */
+        public
+        long getLength() {
+            return length;
+        }
+
+        /**
+         * @return the size of each leaf (the last leaf can be smaller)
+         */
+        public
+        int getLeafSize() {
+            return leafSize;
+        }
+
+        /**
+         * @return the number of leaves in the tree
+         */
+        public
+        int getLeafCount() {
+            return leafCount(length, leafSize);
+        }
+
+        /**
+         * @return true if the leaf hashes were kept (and a range can be verified)
+         */
+        public
+        boolean hasLeaves() {
+            return leaves != null;
+        }
+
+        /**
+         * @return the hash of the specified leaf, or null if the leaf hashes were not kept
+         */
+        public
+        byte[] getLeaf(final int index) {
+            if (leaves == null) {
+                return null;
+            }
+            return leaves[index].clone();
+        }
+
+        /**
+         * Verifies a range of the file against this tree, by only re-hashing the leaves that contain the range.
+         *
+         * @param file the file to verify. It must have the same length as the file that was hashed.
+         * @param position the start of the range to verify
+         * @param length the length of the range to verify
+         * @param pool the pool to hash the leaves with, or null to use the common pool
+         * @param logger may be null, if no log output is necessary
+         *
+         * @return true if the range matches, false if it does not (or there was an error)
+         *
+         * @throws IllegalStateException if the leaf hashes were not kept
+         */
+        public
+        boolean verifyRange(final File file, final long position, final long length, final ForkJoinPool pool, final Logger logger) {
+            if (leaves == null) {
+                throw new IllegalStateException("The leaf hashes were not kept, so a range cannot be verified.");
+            }
+            if (position < 0 || length < 0 || position + length > this.length) {
+                throw new IllegalArgumentException("The range must be inside the file");
+            }
+
+            if (file.length() != this.length) {
+                return false;
+            }
+
+            final int firstLeaf = (int) (position / leafSize);
+            final int lastLeaf = length == 0 ? firstLeaf : (int) ((position + length - 1) / leafSize);
+
+            final byte[][] actual = hashLeaves(file, digest, this.length, leafSize, firstLeaf, lastLeaf - firstLeaf + 1, pool, logger);
+            if (actual == null) {
+                return false;
+            }
+
+            for (int i = 0; i < actual.length; i++) {
+                if (!Arrays.equals(actual[i], leaves[firstLeaf + i])) {
+                    return false;
+                }
+            }
+
+            // make sure that the leaves we compared against are actually the ones that produced the root
+            return Arrays.equals(root, combine(copy(digest), leaves));
+        }
+    }
+
+
+    private
+    CryptoTreeHash() {
+    }
+
+    /**
+     * Returns the root of the tree hash of the file (using the default leaf size), or NULL if the file is invalid.
+     *
+     * @param digest the digest to use. This must be a {@link Memoable} digest (which all of the BouncyCastle general digests are)
+     * @param logger may be null, if no log output is necessary
+     */
+    public static
+    byte[] hashFile(final File file, final Digest digest, final Logger logger) {
+        MerkleTree tree = hashFile(file, digest, DEFAULT_LEAF_SIZE, false, null, logger);
+        if (tree == null) {
+            return null;
+        }
+        return tree.root;
+    }
+
+    /**
+     * Returns the tree hash of the file, or NULL if the file is invalid.
+     *
+     * @param digest the digest to use. This must be a {@link Memoable} digest (which all of the BouncyCastle general digests are)
+     * @param leafSize the size of each leaf. Every leaf is hashed by a single thread.
+     * @param keepLeaves true to keep the hash of every leaf (so a range of the file can be verified later)
+     * @param pool the pool to hash the leaves with, or null to use the common pool
+     * @param logger may be null, if no log output is necessary
+     */
+    public static
+    MerkleTree hashFile(final File file, final Digest digest, final int leafSize, final boolean keepLeaves, final ForkJoinPool pool,
+                        final Logger logger) {
+        if (!(digest instanceof Memoable)) {
+            throw new IllegalArgumentException("The digest must be Memoable, so that it can be copied for each thread.");
+        }
+        if (leafSize <= 0) {
+            throw new IllegalArgumentException("Leaf size must be > 0");
+        }
+
+        if (!file.isFile() || !file.canRead()) {
+            return null;
+        }
+
+        final long length = file.length();
+        final int leafCount = leafCount(length, leafSize);
+
+        final byte[][] leaves = hashLeaves(file, digest, length, leafSize, 0, leafCount, pool, logger);
+        if (leaves == null) {
+            return null;
+        }
+
+        final Digest copy = copy(digest);
+        final byte[] root = combine(copy, leaves);
+        return new MerkleTree(copy, length, leafSize, root, keepLeaves ? leaves : null);
+    }
+
+    private static
+    int leafCount(final long length, final int leafSize) {
+        // an empty file still has a single (empty) leaf
+        final long count = Math.max(1L, (length + leafSize - 1) / leafSize);
+        if (count > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Leaf size is too small for the file");
+        }
+        return (int) count;
+    }
+
+    private static
+    Digest copy(final Digest digest) {
+        Digest copy = (Digest) ((Memoable) digest).copy();
+        copy.reset();
+        return copy;
+    }
+
+    private static
+    byte[][] hashLeaves(final File file, final Digest digest, final long length, final int leafSize, final int firstLeaf, final int count,
+                        final ForkJoinPool pool, final Logger logger) {
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+
+            final byte[][] leaves = new byte[count][];
+            final LeafTask task = new LeafTask(channel, digest, length, leafSize, firstLeaf, leaves, 0, count);
+
+            if (pool != null) {
+                pool.invoke(task);
+            }
+            else {
+                ForkJoinPool.commonPool().invoke(task);
+            }
+
+            return leaves;
+        } catch (Exception e) {
+            if (logger != null) {
+                logger.error("Error hashing file: {}", file.getAbsolutePath(), e);
+            } else {
+                e.printStackTrace();
+            }
+            return null;
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Combines the leaves, level by level, into the root. If a level has an odd number of hashes, the last one is carried up unchanged.
+     */
+    static
+    byte[] combine(final Digest digest, final byte[][] leaves) {
+        final int size = digest.getDigestSize();
+        byte[][] level = leaves;
+
+        while (level.length > 1) {
+            final byte[][] next = new byte[(level.length + 1) / 2][];
+
+            for (int i = 0; i < next.length; i++) {
+                final int left = i * 2;
+                if (left + 1 == level.length) {
+                    next[i] = level[left];
+                    continue;
+                }
+
+                digest.reset();
+                digest.update(NODE_PREFIX);
+                digest.update(level[left], 0, size);
+                digest.update(level[left + 1], 0, size);
+
+                next[i] = new byte[size];
+                digest.doFinal(next[i], 0);
+            }
+
+            level = next;
+        }
+
+        return level[0];
+    }
+
+    private static final
+    class LeafTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final Digest digest;
+        private final long length;
+        private final int leafSize;
+        private final int firstLeaf;
+        private final byte[][] leaves;
+        private final int start;
+        private final int end;
+
+        LeafTask(final FileChannel channel, final Digest digest, final long length, final int leafSize, final int firstLeaf,
+                 final byte[][] leaves, final int start, final int end) {
+            this.channel = channel;
+            this.digest = digest;
+            this.length = length;
+            this.leafSize = leafSize;
+            this.firstLeaf = firstLeaf;
+            this.leaves = leaves;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        protected
+        void compute() {
+            if (end - start > 1) {
+                final int mid = (start + end) >>> 1;
+                invokeAll(new LeafTask(channel, digest, length, leafSize, firstLeaf, leaves, start, mid),
+                          new LeafTask(channel, digest, length, leafSize, firstLeaf, leaves, mid, end));
+                return;
+            }
+
+            try {
+                leaves[start] = hashLeaf(firstLeaf + start);
+            } catch (IOException e) {
+                completeExceptionally(e);
+            }
+        }
+
+        private
+        byte[] hashLeaf(final int leaf) throws IOException {
+            final Digest digest = copy(this.digest);
+            digest.update(LEAF_PREFIX);
+
+            final long position = (long) leaf * leafSize;
+            final long size = Math.min(leafSize, length - position);
+
+            if (size > 0) {
+                final MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                final byte[] buffer = new byte[(int) Math.min(Crypto.BUFFER_SIZE, size)];
+
+                while (region.hasRemaining()) {
+                    final int count = Math.min(buffer.length, region.remaining());
+                    region.get(buffer, 0, count);
+                    digest.update(buffer, 0, count);
+                }
+            }
+
+            final byte[] hash = new byte[digest.getDigestSize()];
+            digest.doFinal(hash, 0);
+            return hash;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public
+class CacheUtilTest {
+
+    private static
+    ByteArrayInputStream stream(final int value, final int size) {
+        byte[] bytes = new byte[size];
+        Arrays.fill(bytes, (byte) value);
+        return new ByteArrayInputStream(bytes);
+    }
+
+    @Test
+    public
+    void saveByHash() throws IOException {
+        CacheUtil cache = new CacheUtil("CacheUtilTest-hash");
+        cache.clear();
+
+        try {
+            File file = cache.save(stream(1, 10000));
+            assertNotNull(file);
+            assertEquals(10000, file.length());
+
+            // the same data is the same file, and is only saved once
+            assertEquals(file, cache.save(stream(1, 10000)));
+            assertEquals(file, cache.check(stream(1, 10000)));
+            assertEquals(1, cache.getEntryCount());
+            assertEquals(10000, cache.getSize());
+
+            assertNull(cache.check(stream(2, 10000)));
+
+            // the index is loaded from the journal
+            CacheUtil again = new CacheUtil("CacheUtilTest-hash");
+            assertEquals(1, again.getEntryCount());
+            assertEquals(file, again.check(stream(1, 10000)));
+            assertEquals(1, again.getHitCount());
+        } finally {
+            cache.clear();
+        }
+    }
+
+    @Test
+    public
+    void evictLru() throws IOException {
+        CacheUtil cache = new CacheUtil("CacheUtilTest-lru", 3000, 100, CacheUtil.Eviction.LRU);
+        cache.clear();
+
+        try {
+            File one = cache.save("one", stream(1, 1000));
+            cache.save("two", stream(2, 1000));
+            cache.save("three", stream(3, 1000));
+
+            // "one" is now the most recently used
+            assertNotNull(cache.check("one"));
+
+            cache.save("four", stream(4, 1000));
+            assertEquals(3, cache.getEntryCount());
+            assertEquals(1, cache.getEvictionCount());
+            assertNull(cache.check("two"));
+            assertNotNull(cache.check("one"));
+            assertTrue(one.isFile());
+            assertArrayEquals(new byte[] {1, 1}, Arrays.copyOf(Files.readAllBytes(one.toPath()), 2));
+        } finally {
+            cache.clear();
+        }
+    }
+
+    @Test
+    public
+    void oversizeFile() throws IOException {
+        CacheUtil cache = new CacheUtil("CacheUtilTest-oversize", 3000, 100, CacheUtil.Eviction.LRU);
+        cache.clear();
+
+        try {
+            cache.save("one", stream(1, 1000));
+
+            // a file larger than the whole cache is still returned, and only evicted by the next file
+            File big = cache.save("big", stream(2, 5000));
+            assertTrue(big.isFile());
+            assertEquals(5000, big.length());
+            assertNull(cache.check("one"));
+            assertEquals(1, cache.getEntryCount());
+
+            cache.save("two", stream(3, 1000));
+            assertFalse(big.exists());
+            assertNotNull(cache.check("two"));
+            assertEquals(1, cache.getEntryCount());
+        } finally {
+            cache.clear();
+        }
+    }
+
+    @Test
+    public
+    void evictTinyLfu() throws IOException {
+        CacheUtil cache = new CacheUtil("CacheUtilTest-lfu", Long.MAX_VALUE, 10, CacheUtil.Eviction.TINY_LFU);
+        cache.clear();
+
+        try {
+            for (int i = 0; i < 10; i++) {
+                cache.save("popular" + i, stream(i, 10));
+                for (int j = 0; j < 5; j++) {
+                    cache.check("popular" + i);
+                }
+            }
+
+            // a burst of files that are only used once do not push out the popular files
+            for (int i = 0; i < 50; i++) {
+                cache.save("once" + i, stream(i, 10));
+            }
+
+            assertEquals(10, cache.getEntryCount());
+
+            int popular = 0;
+            for (int i = 0; i < 10; i++) {
+                if (cache.check("popular" + i) != null) {
+                    popular++;
+                }
+            }
+            assertEquals(9, popular);
+        } finally {
+            cache.clear();
+        }
+    }
+}
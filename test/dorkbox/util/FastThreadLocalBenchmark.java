@@ -0,0 +1,158 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link FastThreadLocal} against {@link ThreadLocal}, for (hot) reads from long-lived threads, and for thread churn (many short-lived
+ * threads, which each use the thread-local once).
+ */
+public
+class FastThreadLocalBenchmark {
+    private static final int READS = 100000000;
+    private static final int SHORT_LIVED_THREADS = 100000;
+
+    private static final FastThreadLocal<Object> fastThreadLocal = new FastThreadLocal<Object>() {
+        @Override
+        public
+        Object initialValue() {
+            return new Object();
+        }
+    };
+
+    private static final ThreadLocal<Object> threadLocal = new ThreadLocal<Object>() {
+        @Override
+        protected
+        Object initialValue() {
+            return new Object();
+        }
+    };
+
+    public static
+    void main(String[] args) throws Exception {
+        final int max = 5;
+        for (int i = 0; i < max; i++) {
+            System.out.println("Warming up " + (i + 1) + " of " + max);
+            reads(false);
+        }
+
+        reads(true);
+        churn();
+    }
+
+    private static
+    void reads(final boolean print) throws InterruptedException {
+        final int threads = Runtime.getRuntime().availableProcessors();
+        final int perThread = READS / threads;
+
+        long start = System.nanoTime();
+        runAll(threads, new Runnable() {
+            @Override
+            public
+            void run() {
+                int hash = 0;
+                for (int i = 0; i < perThread; i++) {
+                    hash += fastThreadLocal.get().hashCode();
+                }
+                if (hash == 42) {
+                    System.out.println("unlikely");
+                }
+            }
+        });
+        long fast = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        runAll(threads, new Runnable() {
+            @Override
+            public
+            void run() {
+                int hash = 0;
+                for (int i = 0; i < perThread; i++) {
+                    hash += threadLocal.get().hashCode();
+                }
+                if (hash == 42) {
+                    System.out.println("unlikely");
+                }
+            }
+        });
+        long normal = System.nanoTime() - start;
+
+        if (print) {
+            System.out.println(String.format("Reads (%d threads)", threads));
+            System.out.println(String.format("  FastThreadLocal: %,15.0f reads/s", READS / (fast / 1000000000.0D)));
+            System.out.println(String.format("  ThreadLocal:     %,15.0f reads/s", READS / (normal / 1000000000.0D)));
+        }
+    }
+
+    private static
+    void churn() throws InterruptedException {
+        Runnable fastTask = new Runnable() {
+            @Override
+            public
+            void run() {
+                fastThreadLocal.get();
+            }
+        };
+        Runnable normalTask = new Runnable() {
+            @Override
+            public
+            void run() {
+                threadLocal.get();
+            }
+        };
+
+        // a new thread for every task, so thread ids keep increasing and threads keep dying
+        long start = System.nanoTime();
+        churn(fastTask);
+        long fast = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        churn(normalTask);
+        long normal = System.nanoTime() - start;
+
+        System.out.println(String.format("Thread churn (%,d short-lived threads)", SHORT_LIVED_THREADS));
+        System.out.println(String.format("  FastThreadLocal: %,10d ms", TimeUnit.NANOSECONDS.toMillis(fast)));
+        System.out.println(String.format("  ThreadLocal:     %,10d ms", TimeUnit.NANOSECONDS.toMillis(normal)));
+    }
+
+    private static
+    void churn(final Runnable task) throws InterruptedException {
+        Thread thread = null;
+        for (int i = 0; i < SHORT_LIVED_THREADS; i++) {
+            thread = new Thread(task);
+            thread.start();
+
+            if (i % 1000 == 0) {
+                // don't let too many threads pile up
+                thread.join();
+            }
+        }
+        thread.join();
+    }
+
+    private static
+    void runAll(final int threads, final Runnable runnable) throws InterruptedException {
+        Thread[] running = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            running[i] = new Thread(runnable);
+            running[i].start();
+        }
+        for (Thread thread : running) {
+            thread.join();
+        }
+    }
+}
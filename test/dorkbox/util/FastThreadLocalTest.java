@@ -0,0 +1,115 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public
+class FastThreadLocalTest {
+
+    @Test
+    public
+    void setGetRemove() {
+        final AtomicInteger created = new AtomicInteger();
+        FastThreadLocal<Object> threadLocal = new FastThreadLocal<Object>() {
+            @Override
+            public
+            Object initialValue() {
+                return created.incrementAndGet();
+            }
+        };
+
+        assertEquals(1, threadLocal.get());
+        assertEquals(1, threadLocal.get());
+
+        Object value = new Object();
+        threadLocal.set(value);
+        assertSame(value, threadLocal.get());
+
+        threadLocal.remove();
+        assertEquals(2, threadLocal.get());
+
+        FastThreadLocal<Object> empty = new FastThreadLocal<Object>();
+        assertNull(empty.get());
+    }
+
+    /**
+     * Many threads claim their slots at the same time (which rebuilds the array while slots are being claimed), while short-lived threads
+     * leave dead slots behind. Every thread must always see its own value.
+     */
+    @Test
+    public
+    void concurrentClaims() throws Exception {
+        final FastThreadLocal<Object> threadLocal = new FastThreadLocal<Object>();
+        final int threads = 64;
+        final int rounds = 20;
+
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+        for (int round = 0; round < rounds; round++) {
+            final CountDownLatch start = new CountDownLatch(1);
+            final CountDownLatch done = new CountDownLatch(threads);
+
+            for (int t = 0; t < threads; t++) {
+                new Thread() {
+                    @Override
+                    public
+                    void run() {
+                        try {
+                            start.await();
+
+                            Object value = new Object();
+                            threadLocal.set(value);
+
+                            for (int i = 0; i < 1000; i++) {
+                                if (threadLocal.get() != value) {
+                                    throw new AssertionError("Thread saw a value that it did not set");
+                                }
+                                if (i % 100 == 0) {
+                                    Thread.yield();
+                                }
+                            }
+                        } catch (Throwable e) {
+                            error.set(e);
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                }.start();
+            }
+
+            start.countDown();
+            done.await();
+
+            if (error.get() != null) {
+                throw new AssertionError(error.get());
+            }
+        }
+
+        // this thread still has its own slot
+        Object value = new Object();
+        threadLocal.set(value);
+        assertSame(value, threadLocal.get());
+    }
+}
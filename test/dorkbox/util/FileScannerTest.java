@@ -0,0 +1,207 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+public
+class FileScannerTest {
+
+    /**
+     * 3 levels of 3 directories, each with a .jar, a .zip and a .txt file
+     */
+    private static
+    void createTree(final File dir, final int depth, final Set<String> jars) throws IOException {
+        //noinspection ResultOfMethodCallIgnored
+        dir.mkdirs();
+
+        for (String extension : new String[] {".jar", ".zip", ".txt"}) {
+            File file = new File(dir, dir.getName() + extension);
+            Files.write(file.toPath(), new byte[extension.length() + depth]);
+
+            if (extension.equals(".jar")) {
+                jars.add(file.getAbsolutePath());
+            }
+        }
+
+        if (depth > 0) {
+            for (int i = 0; i < 3; i++) {
+                createTree(new File(dir, "dir" + depth + i), depth - 1, jars);
+            }
+        }
+    }
+
+    private static
+    Set<String> paths(final List<File> files) {
+        Set<String> paths = new HashSet<String>();
+        for (File file : files) {
+            paths.add(file.getAbsolutePath());
+        }
+        return paths;
+    }
+
+    @Test
+    public
+    void scan() throws IOException {
+        File root = Files.createTempDirectory("FileScannerTest").toFile();
+        try {
+            Set<String> jars = new HashSet<String>();
+            createTree(root, 2, jars);
+            assertEquals(13, jars.size());
+
+            assertEquals(jars, paths(FileUtil.parseDir(root, ".jar")));
+            assertEquals(39, FileUtil.parseDir(root).size());
+            assertEquals(26, FileUtil.parseDir(root, ".jar", ".zip").size());
+
+            // the attributes are read while scanning
+            final Set<String> found = Collections.synchronizedSet(new HashSet<String>());
+            assertTrue(FileScanner.glob("*.{jar,zip}").scan(root, new ForkJoinPool(4), new FileScanner.Visitor() {
+                @Override
+                public
+                boolean visit(final FileScanner.Entry entry) {
+                    assertTrue(entry.name().endsWith(".jar") || entry.name().endsWith(".zip"));
+                    assertEquals(entry.toFile().length(), entry.size());
+                    found.add(entry.toString());
+                    return true;
+                }
+            }));
+            assertEquals(26, found.size());
+            assertTrue(found.containsAll(jars));
+
+            Stream<FileScanner.Entry> stream = new FileScanner(".jar").stream(root);
+            try {
+                Set<String> streamed = stream.map(new Function<FileScanner.Entry, String>() {
+                    @Override
+                    public
+                    String apply(final FileScanner.Entry entry) {
+                        return entry.toString();
+                    }
+                }).collect(Collectors.<String>toSet());
+                assertEquals(jars, streamed);
+            } finally {
+                stream.close();
+            }
+
+            // early termination
+            final AtomicInteger count = new AtomicInteger();
+            FileScanner.Visitor stopAtFive = new FileScanner.Visitor() {
+                @Override
+                public
+                boolean visit(final FileScanner.Entry entry) {
+                    return count.incrementAndGet() < 5;
+                }
+            };
+            assertFalse(new FileScanner().scan(root, stopAtFive));
+            assertEquals(5, count.get());
+
+            count.set(0);
+            assertFalse(new FileScanner().scan(root, ForkJoinPool.commonPool(), stopAtFive));
+            assertTrue(count.get() >= 5);
+
+            stream = new FileScanner().stream(root);
+            try {
+                assertEquals(5, stream.limit(5).count());
+            } finally {
+                stream.close();
+            }
+
+            try {
+                new FileScanner().scan(new File(root, "missing"), stopAtFive);
+                fail("A missing directory should not be scanned");
+            } catch (IOException ignored) {
+            }
+        } finally {
+            assertTrue(FileUtil.delete(root));
+        }
+    }
+
+    @Test
+    public
+    void linksAndUnreadableDirectories() throws IOException {
+        File root = Files.createTempDirectory("FileScannerTest").toFile();
+        Path broken = new File(root, "a/broken.txt").toPath();
+        Path loop = new File(root, "a/loop").toPath();
+        File locked = new File(root, "locked");
+
+        try {
+            Set<String> files = new HashSet<String>();
+            createTree(new File(root, "a"), 0, files);
+            createTree(locked, 0, files);
+
+            try {
+                Files.createSymbolicLink(broken, new File(root, "missing.txt").toPath());
+                Files.createSymbolicLink(loop, root.toPath());
+            } catch (UnsupportedOperationException e) {
+                Assume.assumeNoException(e);
+            } catch (IOException e) {
+                Assume.assumeNoException(e);
+            }
+
+            // a link that points to nothing is still found, and the link to the root is not followed again
+            assertEquals(3, FileUtil.parseDir(root, ".txt").size());
+            assertEquals(7, FileUtil.parseDir(root).size());
+
+            final AtomicInteger count = new AtomicInteger();
+            assertTrue(new FileScanner().scan(root, ForkJoinPool.commonPool(), new FileScanner.Visitor() {
+                @Override
+                public
+                boolean visit(final FileScanner.Entry entry) {
+                    count.incrementAndGet();
+                    return true;
+                }
+            }));
+            assertEquals(7, count.get());
+
+            Stream<FileScanner.Entry> stream = new FileScanner().stream(root);
+            try {
+                assertEquals(7, stream.count());
+            } finally {
+                stream.close();
+            }
+
+            // a directory that cannot be read is skipped (unless running with permissions that ignore this)
+            Assume.assumeTrue(locked.setReadable(false, false));
+            Assume.assumeFalse(locked.canRead());
+            assertEquals(4, FileUtil.parseDir(root).size());
+        } finally {
+            //noinspection ResultOfMethodCallIgnored
+            locked.setReadable(true, false);
+            Files.deleteIfExists(broken);
+            Files.deleteIfExists(loop);
+            assertTrue(FileUtil.delete(root));
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import org.junit.Test;
+
+public
+class FileTreeTest {
+    // a small "small file" size, so that both the batches and the large file tasks are used
+    private static final FileTree fileTree = new FileTree(4, 1024);
+
+    private static
+    void write(final File file, final int size, final Random random) throws IOException {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+
+        //noinspection ResultOfMethodCallIgnored
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), bytes);
+        //noinspection ResultOfMethodCallIgnored
+        file.setLastModified(1500000000000L + size * 1000L);
+    }
+
+    /**
+     * 3 levels of 4 directories, each with 20 files (of which one is large)
+     */
+    private static
+    int createTree(final File dir, final int depth, final Random random) throws IOException {
+        int files = 0;
+        for (int i = 0; i < 20; i++) {
+            write(new File(dir, "file" + i + ".dat"), i == 0 ? 100000 + random.nextInt(1000) : random.nextInt(1000), random);
+            files++;
+        }
+        write(new File(dir, "ignore.me"), 10, random);
+
+        if (depth > 0) {
+            for (int i = 0; i < 4; i++) {
+                files += createTree(new File(dir, "dir" + i), depth - 1, random);
+            }
+            write(new File(dir, "skip/inside.dat"), 10, random);
+        }
+        return files;
+    }
+
+    private static
+    void assertSameTree(final File expected, final File actual) throws IOException {
+        String[] names = expected.list();
+        assertTrue(names != null);
+
+        for (String name : names) {
+            File expectedFile = new File(expected, name);
+            File actualFile = new File(actual, name);
+
+            if (name.equals("ignore.me") || name.equals("skip")) {
+                assertFalse(actualFile.exists());
+            }
+            else if (expectedFile.isDirectory()) {
+                assertTrue(actualFile.isDirectory());
+                assertSameTree(expectedFile, actualFile);
+            }
+            else {
+                assertArrayEquals(Files.readAllBytes(expectedFile.toPath()), Files.readAllBytes(actualFile.toPath()));
+                assertEquals(expectedFile.lastModified(), actualFile.lastModified());
+            }
+        }
+    }
+
+    private static
+    File tempDir(final String name) throws IOException {
+        return Files.createTempDirectory(name).toFile();
+    }
+
+    @Test
+    public
+    void copyAndMove() throws IOException {
+        File root = tempDir("FileTreeTest");
+        try {
+            File source = new File(root, "source");
+            int count = createTree(source, 2, new Random(42));
+
+            File copy = new File(root, "copy/nested");
+            FileTree.Progress progress = fileTree.copy(source, copy, "ignore.me", "skip");
+            assertTrue(progress.isDone());
+            assertEquals(count, progress.files());
+            assertEquals(21, progress.directories());
+            assertSameTree(source, copy);
+
+            // copying again overwrites everything
+            assertEquals(count, fileTree.copy(source, copy, "ignore.me", "skip").files());
+            assertSameTree(source, copy);
+
+            // with a name to ignore, every file is moved by itself (and the source directories stay behind)
+            File moved = new File(root, "moved");
+            progress = fileTree.move(copy, moved, "nothing");
+            assertEquals(count, progress.files());
+            assertSameTree(source, moved);
+            assertFalse(new File(copy, "file1.dat").exists());
+
+            // without anything to ignore, the entire directory is renamed
+            File renamed = new File(root, "renamed");
+            fileTree.move(moved, renamed);
+            assertFalse(moved.exists());
+            assertSameTree(source, renamed);
+
+            // a single file
+            File single = new File(root, "single/file.dat");
+            fileTree.copy(new File(source, "file0.dat"), single);
+            assertArrayEquals(Files.readAllBytes(new File(source, "file0.dat").toPath()), Files.readAllBytes(single.toPath()));
+        } finally {
+            assertTrue(FileUtil.delete(root));
+        }
+    }
+
+    @Test
+    public
+    void delete() throws IOException {
+        File root = tempDir("FileTreeTest");
+        try {
+            File source = new File(root, "source");
+            createTree(source, 2, new Random(42));
+
+            File keepFile = new File(source, "dir1/dir2/file3.dat");
+            FileTree.Progress progress = new FileTree.Progress();
+
+            // a file name, a directory name (prefaced with a '/') and the full path of a file
+            assertFalse(fileTree.delete(source, progress, "ignore.me", "/dir0", keepFile.getAbsolutePath()));
+            assertTrue(progress.files() > 0);
+
+            assertTrue(new File(source, "ignore.me").isFile());
+            assertTrue(new File(source, "dir0/file1.dat").isFile());
+            assertTrue(new File(source, "dir2/dir0/file1.dat").isFile());
+            assertTrue(keepFile.isFile());
+
+            assertFalse(new File(source, "file1.dat").exists());
+            assertFalse(new File(source, "dir1/file1.dat").exists());
+            assertFalse(new File(source, "skip").exists());
+
+            // a directory is only deleted if nothing in it was ignored
+            assertFalse(new File(source, "dir3/file1.dat").exists());
+            assertTrue(new File(source, "dir3/ignore.me").isFile());
+            assertFalse(new File(source, "dir3/dir1/skip").exists());
+
+            // deleting nothing is always successful
+            assertTrue(fileTree.delete(new File(root, "missing")));
+            assertTrue(fileTree.delete(source));
+            assertFalse(source.exists());
+        } finally {
+            assertTrue(FileUtil.delete(root));
+        }
+    }
+}
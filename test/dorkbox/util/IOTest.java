@@ -0,0 +1,167 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import org.junit.Test;
+
+public
+class IOTest {
+    private static
+    byte[] random(final int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public
+    void bufferPool() {
+        byte[] buffer = IO.acquireBuffer(5000);
+        assertEquals(16 * 1024, buffer.length);
+
+        // a nested acquire (while the buffer is in use) gets a different buffer
+        byte[] nested = IO.acquireBuffer(5000);
+        assertNotSame(buffer, nested);
+
+        IO.releaseBuffer(buffer);
+        assertSame(buffer, IO.acquireBuffer(16 * 1024));
+        IO.releaseBuffer(buffer);
+
+        assertEquals(4096, IO.acquireBuffer(1).length);
+        assertEquals(64 * 1024, IO.acquireBuffer(16 * 1024 + 1).length);
+        assertEquals(256 * 1024, IO.acquireBuffer(256 * 1024).length);
+        assertEquals(256 * 1024 + 1, IO.acquireBuffer(256 * 1024 + 1).length);
+
+        // only buffers of a size class are pooled
+        IO.releaseBuffer(new byte[5000]);
+        assertEquals(16 * 1024, IO.acquireBuffer(5000).length);
+
+        // the larger size classes are pooled as well, so releasing and acquiring them again does not allocate
+        for (int size : new int[] {20000, 64 * 1024, 256 * 1024}) {
+            byte[] large = IO.acquireBuffer(size);
+            IO.releaseBuffer(large);
+
+            IO.resetCounters();
+            for (int i = 0; i < 10; i++) {
+                byte[] again = IO.acquireBuffer(size);
+                assertSame(large, again);
+                IO.releaseBuffer(again);
+            }
+            assertEquals(0, IO.getBufferAllocations());
+        }
+
+        // larger than the largest size class
+        byte[] huge = IO.acquireBuffer(256 * 1024 + 1);
+        IO.releaseBuffer(huge);
+        assertNotSame(huge, IO.acquireBuffer(256 * 1024 + 1));
+    }
+
+    @Test
+    public
+    void copyStreams() throws IOException {
+        byte[] bytes = random(100000);
+
+        IO.resetCounters();
+        ByteArrayOutputStream output = IO.copyStream(new ByteArrayInputStream(bytes));
+        assertArrayEquals(bytes, output.toByteArray());
+        assertEquals(bytes.length, IO.getBytesCopied());
+        assertEquals(0L, IO.getBytesTransferred());
+
+        assertArrayEquals(bytes, IO.toBytes(new ByteArrayInputStream(bytes)));
+        assertArrayEquals(bytes, IO.toBytes(new ByteArrayInputStream(bytes), 10));
+        assertArrayEquals(bytes, IO.toBytes(new ByteArrayInputStream(bytes), 1000000));
+        assertArrayEquals(new byte[0], IO.toBytes(new ByteArrayInputStream(new byte[0])));
+    }
+
+    @Test
+    public
+    void copyFiles() throws IOException {
+        byte[] bytes = random(300000);
+
+        File source = File.createTempFile("IOTest", ".source");
+        File dest = File.createTempFile("IOTest", ".dest");
+        try {
+            Files.write(source.toPath(), bytes);
+
+            // file streams are transferred between their channels, starting from the current position
+            FileInputStream input = new FileInputStream(source);
+            FileOutputStream output = new FileOutputStream(dest);
+            try {
+                assertEquals(1000, input.skip(1000));
+
+                IO.resetCounters();
+                IO.copyStream(input, output);
+                assertEquals(bytes.length - 1000, IO.getBytesTransferred());
+                assertEquals(-1, input.read());
+            } finally {
+                input.close();
+                output.close();
+            }
+            assertEquals(bytes.length - 1000, dest.length());
+
+            // a file is read into an array of the exact size
+            input = new FileInputStream(source);
+            try {
+                assertArrayEquals(bytes, IO.toBytes(input));
+            } finally {
+                input.close();
+            }
+            assertArrayEquals(bytes, FileUtil.toBytes(source));
+
+            // a channel into a file channel
+            FileChannel channel = FileChannel.open(dest.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                assertEquals(bytes.length, IO.copy(Channels.newChannel(new ByteArrayInputStream(bytes)), channel));
+                assertEquals(bytes.length, channel.position());
+            } finally {
+                channel.close();
+            }
+            assertArrayEquals(bytes, Files.readAllBytes(dest.toPath()));
+
+            // a file channel into a channel
+            channel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+            try {
+                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                assertEquals(bytes.length, IO.copy(channel, Channels.newChannel(outputStream)));
+                assertArrayEquals(bytes, outputStream.toByteArray());
+                assertTrue(IO.getBytesCopied() >= bytes.length * 3L);
+            } finally {
+                channel.close();
+            }
+        } finally {
+            assertTrue(source.delete());
+            assertTrue(dest.delete());
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.tukaani.xz.LZMA2Options;
+
+/**
+ * Compares the compression (and decompression) throughput of the single threaded .lzma format with the block-parallel .xz format.
+ */
+public
+class LZMABenchmark {
+    private static final int SIZE = 32 * 1024 * 1024;
+    private static final int ROUNDS = 2;
+
+    public static
+    void main(String[] args) throws IOException {
+        byte[] bytes = LZMATest.words(SIZE, 42);
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        File compressed = File.createTempFile("LZMABenchmark", ".xz");
+        File decompressed = File.createTempFile("LZMABenchmark", ".out");
+
+        try {
+            for (int preset : new int[] {1, LZMA.DEFAULT_PRESET}) {
+                LZMA2Options options = new LZMA2Options(preset);
+
+                for (int round = 0; round < ROUNDS; round++) {
+                    boolean print = round == ROUNDS - 1;
+
+                    ByteArrayOutputStream output = new ByteArrayOutputStream(SIZE / 2);
+                    long start = System.nanoTime();
+                    LZMA.encode(new ByteArrayInputStream(bytes), output, options);
+                    print(print, "lzma  preset " + preset, System.nanoTime() - start, output.size());
+
+                    output.reset();
+                    start = System.nanoTime();
+                    LZMA.encodeXZ(new ByteArrayInputStream(bytes), output, options, 0, single);
+                    print(print, "xz    preset " + preset + " x1", System.nanoTime() - start, output.size());
+
+                    output.reset();
+                    start = System.nanoTime();
+                    LZMA.encodeXZ(new ByteArrayInputStream(bytes), output, options, 0, pool);
+                    print(print, "xz    preset " + preset + " x" + threads, System.nanoTime() - start, output.size());
+
+                    Files.write(compressed.toPath(), output.toByteArray());
+
+                    start = System.nanoTime();
+                    LZMA.decodeXZ(new ByteArrayInputStream(output.toByteArray()), new ByteArrayOutputStream(SIZE));
+                    print(print, "unxz  preset " + preset + " x1", System.nanoTime() - start, SIZE);
+
+                    start = System.nanoTime();
+                    LZMA.decodeXZ(compressed, decompressed, pool);
+                    print(print, "unxz  preset " + preset + " x" + threads, System.nanoTime() - start, SIZE);
+                }
+            }
+        } finally {
+            single.shutdown();
+            pool.shutdown();
+            //noinspection ResultOfMethodCallIgnored
+            compressed.delete();
+            //noinspection ResultOfMethodCallIgnored
+            decompressed.delete();
+        }
+    }
+
+    private static
+    void print(final boolean print, final String name, final long nanos, final long size) {
+        if (print) {
+            System.out.println(String.format("%-22s %,10.1f MB/s  (%,d bytes)", name, SIZE / (nanos / 1000000000.0D) / (1024 * 1024), size));
+        }
+    }
+}
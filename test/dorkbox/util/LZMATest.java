@@ -0,0 +1,147 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.SeekableFileInputStream;
+import org.tukaani.xz.SeekableXZInputStream;
+
+public
+class LZMATest {
+    /**
+     * Compressible data: random words from a small dictionary
+     */
+    static
+    byte[] words(final int size, final long seed) {
+        Random random = new Random(seed);
+        String[] words = new String[256];
+        for (int i = 0; i < words.length; i++) {
+            StringBuilder word = new StringBuilder();
+            for (int j = random.nextInt(8) + 2; j > 0; j--) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            words[i] = word.append(' ').toString();
+        }
+
+        byte[] bytes = new byte[size];
+        int length = 0;
+        while (length < size) {
+            String word = words[random.nextInt(words.length)];
+            for (int i = 0; i < word.length() && length < size; i++) {
+                bytes[length++] = (byte) word.charAt(i);
+            }
+        }
+        return bytes;
+    }
+
+    @Test
+    public
+    void lzma() throws IOException {
+        byte[] bytes = words(500000, 1);
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        LZMA.encode(new ByteArrayInputStream(bytes), compressed, 1);
+        assertTrue(compressed.size() < bytes.length / 2);
+
+        assertArrayEquals(bytes, LZMA.decode(new ByteArrayInputStream(compressed.toByteArray())).toByteArray());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertEquals(bytes.length, LZMA.decode(new ByteArrayInputStream(compressed.toByteArray()), Channels.newChannel(output)));
+        assertArrayEquals(bytes, output.toByteArray());
+    }
+
+    @Test
+    public
+    void xzBlocks() throws IOException {
+        byte[] bytes = words(1000000, 2);
+        LZMA2Options options = LZMA.options(1, 64 * 1024);
+
+        // the output does not depend on the number of threads
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        ExecutorService cached = Executors.newCachedThreadPool();
+
+        File compressed = File.createTempFile("LZMATest", ".xz");
+        File decompressed = File.createTempFile("LZMATest", ".out");
+        try {
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            LZMA.encodeXZ(new ByteArrayInputStream(bytes), expected, options, 100000, single);
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            LZMA.encodeXZ(new ByteArrayInputStream(bytes), output, options, 100000, pool);
+            assertArrayEquals(expected.toByteArray(), output.toByteArray());
+
+            // an unbounded pool reports Integer.MAX_VALUE threads
+            ByteArrayOutputStream cachedOutput = new ByteArrayOutputStream();
+            LZMA.encodeXZ(new ByteArrayInputStream(bytes), cachedOutput, options, 100000, cached);
+            assertArrayEquals(expected.toByteArray(), cachedOutput.toByteArray());
+            Files.write(compressed.toPath(), output.toByteArray());
+
+            // every block is seekable
+            SeekableXZInputStream seekable = new SeekableXZInputStream(new SeekableFileInputStream(compressed));
+            try {
+                assertEquals(10, seekable.getBlockCount());
+                assertEquals(bytes.length, seekable.length());
+
+                seekable.seek(654321);
+                assertEquals(bytes[654321], (byte) seekable.read());
+            } finally {
+                seekable.close();
+            }
+
+            ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+            assertEquals(bytes.length, LZMA.decodeXZ(new ByteArrayInputStream(output.toByteArray()), Channels.newChannel(streamed)));
+            assertArrayEquals(bytes, streamed.toByteArray());
+
+            assertEquals(bytes.length, LZMA.decodeXZ(compressed, decompressed, pool));
+            assertArrayEquals(bytes, Files.readAllBytes(decompressed.toPath()));
+            assertEquals(bytes.length, LZMA.decodeXZ(compressed, decompressed, cached));
+            assertArrayEquals(bytes, Files.readAllBytes(decompressed.toPath()));
+
+            // an empty input is still a valid .xz file
+            output.reset();
+            LZMA.encodeXZ(new ByteArrayInputStream(new byte[0]), output, 0);
+            streamed.reset();
+            LZMA.decodeXZ(new ByteArrayInputStream(output.toByteArray()), streamed);
+            assertEquals(0, streamed.size());
+
+            Files.write(compressed.toPath(), output.toByteArray());
+            assertEquals(0L, LZMA.decodeXZ(compressed, decompressed, null));
+            assertEquals(0L, decompressed.length());
+        } finally {
+            single.shutdown();
+            pool.shutdown();
+            cached.shutdown();
+            assertTrue(compressed.delete());
+            assertTrue(decompressed.delete());
+        }
+    }
+}
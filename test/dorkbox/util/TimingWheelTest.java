@@ -0,0 +1,241 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public
+class TimingWheelTest {
+    private static final long TICK_MILLIS = 5L;
+
+    // a tiny wheel, so that most delays take several revolutions of the wheel
+    private static
+    TimingWheel newWheel() {
+        return new TimingWheel("TimingWheelTest", TICK_MILLIS, TimeUnit.MILLISECONDS, 4, 1, true);
+    }
+
+    @Test
+    public
+    void delaysLongerThanOneRevolution() throws Exception {
+        TimingWheel wheel = newWheel();
+        try {
+            // one revolution is 20ms. These land in every bucket, with 0 to 7 rounds remaining
+            final long[] delays = new long[] {150, 3, 42, 20, 7, 100, 61, 25};
+            final List<Long> order = Collections.synchronizedList(new ArrayList<Long>());
+            final CountDownLatch done = new CountDownLatch(delays.length);
+            final AtomicInteger early = new AtomicInteger();
+
+            final long start = System.nanoTime();
+            for (final long delay : delays) {
+                wheel.schedule(new Runnable() {
+                    @Override
+                    public
+                    void run() {
+                        // a timeout is never run before its deadline
+                        if (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(delay)) {
+                            early.incrementAndGet();
+                        }
+                        order.add(delay);
+                        done.countDown();
+                    }
+                }, delay);
+            }
+
+            assertEquals(delays.length, wheel.getPendingCount());
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            assertEquals(0, early.get());
+            assertEquals(0, wheel.getPendingCount());
+            assertEquals(delays.length, wheel.getExecutedCount());
+
+            // the deadlines are at least a tick apart, so they expire in order
+            List<Long> expected = new ArrayList<Long>();
+            for (long delay : delays) {
+                expected.add(delay);
+            }
+            Collections.sort(expected);
+            assertEquals(expected, order);
+        } finally {
+            wheel.shutdown();
+        }
+    }
+
+    @Test
+    public
+    void rolloverSharesBuckets() throws Exception {
+        TimingWheel wheel = newWheel();
+        try {
+            // tick 2 and tick 6 are the same bucket. The first expires on the first pass, the second only after the wheel rolled over
+            final CountDownLatch first = new CountDownLatch(1);
+            final CountDownLatch second = new CountDownLatch(1);
+            final AtomicInteger firstRuns = new AtomicInteger();
+
+            final long start = System.nanoTime();
+            wheel.schedule(new Runnable() {
+                @Override
+                public
+                void run() {
+                    firstRuns.incrementAndGet();
+                    first.countDown();
+                }
+            }, 2 * TICK_MILLIS);
+            wheel.schedule(new Runnable() {
+                @Override
+                public
+                void run() {
+                    second.countDown();
+                }
+            }, 6 * TICK_MILLIS);
+
+            assertTrue(first.await(30, TimeUnit.SECONDS));
+            assertEquals(1L, second.getCount());
+
+            assertTrue(second.await(30, TimeUnit.SECONDS));
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(6 * TICK_MILLIS));
+            assertEquals(1, firstRuns.get());
+        } finally {
+            wheel.shutdown();
+        }
+    }
+
+    @Test
+    public
+    void cancel() throws Exception {
+        TimingWheel wheel = newWheel();
+        try {
+            final AtomicInteger cancelledRuns = new AtomicInteger();
+            final CountDownLatch done = new CountDownLatch(1);
+
+            // the cancelled timeout is in the same bucket as the one that runs, but has more rounds remaining
+            TimingWheel.Timeout cancelled = wheel.schedule(new Runnable() {
+                @Override
+                public
+                void run() {
+                    cancelledRuns.incrementAndGet();
+                }
+            }, 9 * TICK_MILLIS);
+            TimingWheel.Timeout timeout = wheel.schedule(new Runnable() {
+                @Override
+                public
+                void run() {
+                    done.countDown();
+                }
+            }, 13 * TICK_MILLIS);
+
+            assertTrue(cancelled.cancel());
+            assertFalse(cancelled.cancel());
+            assertTrue(cancelled.isCancelled());
+            assertFalse(cancelled.isExpired());
+            assertEquals(1, wheel.getPendingCount());
+
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            assertTrue(timeout.isExpired());
+
+            // an expired timeout cannot be cancelled
+            assertFalse(timeout.cancel());
+            assertFalse(timeout.isCancelled());
+
+            // wait past the deadline (and another revolution) of the cancelled timeout
+            Thread.sleep(20 * TICK_MILLIS);
+            assertEquals(0, cancelledRuns.get());
+            assertEquals(1, wheel.getExecutedCount());
+            assertEquals(0, wheel.getPendingCount());
+        } finally {
+            wheel.shutdown();
+        }
+    }
+
+    @Test
+    public
+    void hugeDelay() throws Exception {
+        TimingWheel wheel = newWheel();
+        try {
+            final AtomicInteger runs = new AtomicInteger();
+
+            // the deadline must not overflow (which would expire it immediately)
+            TimingWheel.Timeout timeout = wheel.schedule(new Runnable() {
+                @Override
+                public
+                void run() {
+                    runs.incrementAndGet();
+                }
+            }, Long.MAX_VALUE, TimeUnit.DAYS);
+
+            assertTrue(timeout.getDelayNanos() > TimeUnit.DAYS.toNanos(365));
+
+            Thread.sleep(20 * TICK_MILLIS);
+            assertEquals(0, runs.get());
+            assertFalse(timeout.isExpired());
+            assertEquals(1, wheel.getPendingCount());
+
+            assertTrue(timeout.cancel());
+            assertEquals(0, wheel.getPendingCount());
+        } finally {
+            wheel.shutdown();
+        }
+    }
+
+    @Test
+    public
+    void delayTimer() throws Exception {
+        TimingWheel wheel = newWheel();
+        try {
+            final AtomicInteger runs = new AtomicInteger();
+            final CountDownLatch done = new CountDownLatch(1);
+
+            DelayTimer timer = new DelayTimer(wheel, new Runnable() {
+                @Override
+                public
+                void run() {
+                    runs.incrementAndGet();
+                    done.countDown();
+                }
+            });
+
+            // restarting the delay cancels the previous one, so the listener only runs once
+            for (int i = 0; i < 10; i++) {
+                timer.delay(10 * TICK_MILLIS);
+            }
+            assertTrue(timer.isWaiting());
+            assertEquals(1, wheel.getPendingCount());
+
+            assertTrue(done.await(30, TimeUnit.SECONDS));
+            Thread.sleep(20 * TICK_MILLIS);
+            assertEquals(1, runs.get());
+            assertFalse(timer.isWaiting());
+
+            // a cancelled delay never runs
+            timer.delay(10 * TICK_MILLIS);
+            timer.cancel();
+            assertFalse(timer.isWaiting());
+            Thread.sleep(20 * TICK_MILLIS);
+            assertEquals(1, runs.get());
+            assertEquals(0, wheel.getPendingCount());
+        } finally {
+            wheel.shutdown();
+        }
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+public
+class WorkStealingProcessorTest {
+
+    private static final WorkStealingProcessor.Worker<Integer, Integer> SQUARE = new WorkStealingProcessor.Worker<Integer, Integer>() {
+        @Override
+        public
+        Integer process(final Integer task) {
+            return task * task;
+        }
+    };
+
+    private static
+    void assertSquares(final WorkStealingProcessor.Batch<Integer> batch, final int size) throws Exception {
+        List<Integer> results = batch.get(30, TimeUnit.SECONDS);
+
+        assertEquals(size, results.size());
+        for (int i = 0; i < results.size(); i++) {
+            assertEquals(Integer.valueOf(i * i), results.get(i));
+        }
+        assertTrue(batch.isDone());
+        assertFalse(batch.isCancelled());
+        assertEquals(size, batch.getCompletedCount());
+        assertEquals(1.0f, batch.getProgress(), 0.0f);
+    }
+
+    @Test
+    public
+    void resultsAreInOrder() throws Exception {
+        WorkStealingProcessor processor = new WorkStealingProcessor(4, 16);
+        try {
+            List<Integer> tasks = new ArrayList<Integer>();
+            LinkedList<Integer> linkedTasks = new LinkedList<Integer>();
+            for (int i = 0; i < 10000; i++) {
+                tasks.add(i);
+                linkedTasks.add(i);
+            }
+
+            // random access lists are split directly, everything else is chunked as it is read
+            assertSquares(processor.processAll(tasks, SQUARE), tasks.size());
+            assertSquares(processor.processAll(linkedTasks, SQUARE), tasks.size());
+
+            // an empty batch is done immediately
+            WorkStealingProcessor.Batch<Integer> empty = processor.processAll(Collections.<Integer>emptyList(), SQUARE);
+            assertEquals(0, empty.get(30, TimeUnit.SECONDS).size());
+        } finally {
+            processor.shutdown();
+        }
+    }
+
+    @Test
+    public
+    void idleWorkersStealChunks() throws Exception {
+        WorkStealingProcessor processor = new WorkStealingProcessor(4, 1);
+        try {
+            final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+            final AtomicIntegerArray processed = new AtomicIntegerArray(64);
+
+            // the whole range starts out on one worker, the others only get chunks by stealing them
+            processor.processRange(0, processed.length(), new WorkStealingProcessor.RangeWorker() {
+                @Override
+                public
+                void process(final int start, final int end) throws Exception {
+                    threads.add(Thread.currentThread().getName());
+                    for (int i = start; i < end; i++) {
+                        processed.incrementAndGet(i);
+                    }
+                    Thread.sleep(5);
+                }
+            }).get(30, TimeUnit.SECONDS);
+
+            for (int i = 0; i < processed.length(); i++) {
+                assertEquals(1, processed.get(i));
+            }
+            assertTrue("Only one worker processed chunks: " + threads, threads.size() > 1);
+        } finally {
+            processor.shutdown();
+        }
+    }
+
+    @Test
+    public
+    void failuresArePropagated() throws Exception {
+        WorkStealingProcessor processor = new WorkStealingProcessor(2, 8);
+        try {
+            final RuntimeException failure = new RuntimeException("task 100");
+            final AtomicInteger processed = new AtomicInteger();
+
+            List<Integer> tasks = new ArrayList<Integer>();
+            for (int i = 0; i < 100000; i++) {
+                tasks.add(i);
+            }
+
+            WorkStealingProcessor.Batch<Integer> batch = processor.processAll(tasks, new WorkStealingProcessor.Worker<Integer, Integer>() {
+                @Override
+                public
+                Integer process(final Integer task) {
+                    processed.incrementAndGet();
+                    if (task == 100) {
+                        throw failure;
+                    }
+                    return task;
+                }
+            });
+
+            try {
+                batch.get(30, TimeUnit.SECONDS);
+                fail("The failure should be thrown");
+            } catch (ExecutionException e) {
+                assertSame(failure, e.getCause());
+            }
+
+            // the rest of the batch is skipped
+            assertTrue(batch.isDone());
+            assertTrue(processed.get() < tasks.size());
+        } finally {
+            processor.shutdown();
+        }
+    }
+
+    @Test
+    public
+    void cancel() throws Exception {
+        WorkStealingProcessor processor = new WorkStealingProcessor(1, 1);
+        try {
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            final AtomicInteger processed = new AtomicInteger();
+
+            WorkStealingProcessor.Batch<Void> batch = processor.processRange(0, 100, new WorkStealingProcessor.RangeWorker() {
+                @Override
+                public
+                void process(final int start, final int end) throws Exception {
+                    started.countDown();
+                    release.await();
+                    processed.addAndGet(end - start);
+                }
+            });
+
+            assertTrue(started.await(30, TimeUnit.SECONDS));
+            assertTrue(batch.cancel(false));
+            assertFalse(batch.cancel(false));
+            assertTrue(batch.isCancelled());
+            assertTrue(batch.isDone());
+
+            try {
+                batch.get();
+                fail("A cancelled batch has no results");
+            } catch (CancellationException ignored) {
+            }
+
+            // the running chunk finishes, the rest are skipped
+            release.countDown();
+            assertTrue(processed.get() < 100);
+        } finally {
+            processor.shutdown();
+        }
+    }
+
+    @Test
+    public
+    void shutdownDrainsSubmittedWork() throws Exception {
+        WorkStealingProcessor processor = new WorkStealingProcessor(2, 4);
+
+        final AtomicIntegerArray processed = new AtomicIntegerArray(200);
+        WorkStealingProcessor.Batch<Void> batch = processor.processRange(0, processed.length(), new WorkStealingProcessor.RangeWorker() {
+            @Override
+            public
+            void process(final int start, final int end) throws Exception {
+                Thread.sleep(1);
+                for (int i = start; i < end; i++) {
+                    processed.incrementAndGet(i);
+                }
+            }
+        });
+
+        processor.shutdown();
+
+        // everything that was submitted before the shutdown still finishes
+        batch.get(30, TimeUnit.SECONDS);
+        for (int i = 0; i < processed.length(); i++) {
+            assertEquals(1, processed.get(i));
+        }
+
+        // work submitted after the shutdown is rejected
+        WorkStealingProcessor.Batch<Void> rejected = processor.processRange(0, 10, new WorkStealingProcessor.RangeWorker() {
+            @Override
+            public
+            void process(final int start, final int end) {
+                fail("Work should not run after shutdown");
+            }
+        });
+        try {
+            rejected.get(30, TimeUnit.SECONDS);
+            fail("The rejection should be thrown");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    @Test
+    public
+    void executor() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            WorkStealingProcessor processor = new WorkStealingProcessor(executor, 10);
+
+            final AtomicIntegerArray processed = new AtomicIntegerArray(1005);
+            processor.processRange(0, processed.length(), new WorkStealingProcessor.RangeWorker() {
+                @Override
+                public
+                void process(final int start, final int end) {
+                    assertTrue(end - start <= 10);
+                    for (int i = start; i < end; i++) {
+                        processed.incrementAndGet(i);
+                    }
+                }
+            }).get(30, TimeUnit.SECONDS);
+
+            for (int i = 0; i < processed.length(); i++) {
+                assertEquals(1, processed.get(i));
+            }
+
+            // the executor is never shutdown by the processor
+            processor.shutdown();
+            assertFalse(executor.isShutdown());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Test;
+
+public
+class ZipExtractorTest {
+    private static final ZipExtractor extractor = new ZipExtractor(4);
+
+    private static
+    Map<String, byte[]> createZip(final File zipFile) throws IOException {
+        Random random = new Random(42);
+        Map<String, byte[]> contents = new LinkedHashMap<String, byte[]>();
+
+        contents.put("META-INF/MANIFEST.MF", "Manifest-Version: 1.0\n".getBytes());
+        for (int i = 0; i < 200; i++) {
+            // compressible, so that the size in the zip is different
+            byte[] bytes = new byte[i == 7 ? 3000000 : random.nextInt(5000)];
+            for (int j = 0; j < bytes.length; j++) {
+                bytes[j] = (byte) (random.nextInt(8) + 'a');
+            }
+            contents.put("dir" + (i % 5) + "/sub" + (i % 3) + "/file" + i + ".txt", bytes);
+        }
+        contents.put("empty.txt", new byte[0]);
+
+        ZipOutputStream output = new ZipOutputStream(new FileOutputStream(zipFile));
+        try {
+            output.putNextEntry(new ZipEntry("dir0/"));
+            output.closeEntry();
+            output.putNextEntry(new ZipEntry("onlyDir/"));
+            output.closeEntry();
+
+            for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+                output.putNextEntry(new ZipEntry(entry.getKey()));
+                output.write(entry.getValue());
+                output.closeEntry();
+            }
+        } finally {
+            output.close();
+        }
+
+        return contents;
+    }
+
+    private static
+    void assertExtracted(final Map<String, byte[]> contents, final File outputDir, final boolean manifest) throws IOException {
+        for (Map.Entry<String, byte[]> entry : contents.entrySet()) {
+            File file = new File(outputDir, entry.getKey());
+            if (!manifest && entry.getKey().startsWith("META-INF/")) {
+                assertFalse(file.exists());
+            }
+            else {
+                assertArrayEquals(entry.getValue(), Files.readAllBytes(file.toPath()));
+            }
+        }
+        assertTrue(new File(outputDir, "onlyDir").isDirectory());
+    }
+
+    @Test
+    public
+    void extract() throws IOException {
+        File root = Files.createTempDirectory("ZipExtractorTest").toFile();
+        try {
+            File zipFile = new File(root, "test.zip");
+            Map<String, byte[]> contents = createZip(zipFile);
+
+            File outputDir = new File(root, "out");
+            FileTree.Progress progress = extractor.extract(zipFile, outputDir, false);
+            assertEquals(contents.size() - 1, progress.files());
+            assertExtracted(contents, outputDir, false);
+
+            // only the changed files are extracted again
+            File changed = new File(outputDir, "dir2/sub1/file7.txt");
+            Files.write(changed.toPath(), new byte[] {1, 2, 3});
+            File sameSize = new File(outputDir, "dir1/sub1/file1.txt");
+            byte[] bytes = Files.readAllBytes(sameSize.toPath());
+            bytes[0]++;
+            Files.write(sameSize.toPath(), bytes);
+
+            progress = extractor.extract(zipFile, outputDir, true, true, new FileTree.Progress());
+            assertEquals(3, progress.files());
+            assertEquals(contents.size() - 3, progress.ignored());
+            assertExtracted(contents, outputDir, true);
+
+            // the zip file and the zip stream are extracted the same way
+            File streamDir = new File(root, "stream");
+            FileUtil.unzip(new ZipInputStream(new FileInputStream(zipFile)), streamDir);
+            assertExtracted(contents, streamDir, true);
+
+            File fileDir = new File(root, "file");
+            FileUtil.unzipJar(zipFile, fileDir, false);
+            assertExtracted(contents, fileDir, false);
+        } finally {
+            assertTrue(FileUtil.delete(root));
+        }
+    }
+
+    @Test
+    public
+    void outsideOfOutput() throws IOException {
+        File root = Files.createTempDirectory("ZipExtractorTest").toFile();
+        try {
+            File zipFile = new File(root, "test.zip");
+            ZipOutputStream output = new ZipOutputStream(new FileOutputStream(zipFile));
+            try {
+                output.putNextEntry(new ZipEntry("../escaped.txt"));
+                output.write(1);
+                output.closeEntry();
+            } finally {
+                output.close();
+            }
+
+            try {
+                extractor.extract(zipFile, new File(root, "out"), true);
+                fail("Entries outside of the output directory must not be extracted");
+            } catch (IOException ignored) {
+            }
+            assertFalse(new File(root, "escaped.txt").exists());
+
+            // the same check when extracting from a stream
+            try {
+                FileUtil.unzip(new ZipInputStream(new FileInputStream(zipFile)), new File(root, "out"));
+                fail("Entries outside of the output directory must not be extracted");
+            } catch (IOException ignored) {
+            }
+            assertFalse(new File(root, "escaped.txt").exists());
+        } finally {
+            assertTrue(FileUtil.delete(root));
+        }
+    }
+}
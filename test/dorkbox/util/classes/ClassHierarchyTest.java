@@ -0,0 +1,140 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.classes;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.junit.Test;
+
+public
+class ClassHierarchyTest {
+    interface Listener {}
+    interface NamedListener extends Listener {}
+    interface Other {}
+
+    static class Base implements Listener {}
+    static class Child extends Base implements NamedListener, Serializable {
+        private static final long serialVersionUID = 1L;
+    }
+    static class Unrelated implements Other {}
+
+    private static
+    Set<Class<?>> superTypes(final Class<?> type) {
+        Set<Class<?>> types = new HashSet<Class<?>>();
+        for (Iterator<Class<?>> iterator = ClassHierarchy.getSuperTypes(type); iterator.hasNext(); ) {
+            types.add(iterator.next());
+        }
+        return types;
+    }
+
+    @Test
+    public
+    void superTypes() {
+        // every super class and interface, once (Listener is reached through Base and NamedListener)
+        Set<Class<?>> expected = new HashSet<Class<?>>(Arrays.<Class<?>>asList(Base.class, Listener.class, NamedListener.class,
+                                                                                Serializable.class, Object.class));
+        assertEquals(expected, superTypes(Child.class));
+        assertEquals(5, ClassHierarchy.getTypeInfo(Child.class).getSuperTypes().length);
+
+        // interfaces do not have Object as a super type
+        assertEquals(new HashSet<Class<?>>(Arrays.<Class<?>>asList(Listener.class)), superTypes(NamedListener.class));
+        assertEquals(0, superTypes(Object.class).size());
+    }
+
+    @Test
+    public
+    void subtypes() {
+        ClassHierarchy.TypeInfo child = ClassHierarchy.getTypeInfo(Child.class);
+        ClassHierarchy.TypeInfo listener = ClassHierarchy.getTypeInfo(Listener.class);
+
+        assertTrue(child.isSubtypeOf(Child.class));
+        assertTrue(child.isSubtypeOf(Base.class));
+        assertTrue(child.isSubtypeOf(listener));
+        assertTrue(child.isSubtypeOf(Object.class));
+        assertTrue(child.isSubtypeOf(ClassHierarchy.getTypeInfo(NamedListener.class).getId()));
+        assertFalse(child.isSubtypeOf(Unrelated.class));
+        assertFalse(child.isSubtypeOf(Other.class));
+        assertFalse(ClassHierarchy.getTypeInfo(Base.class).isSubtypeOf(Child.class));
+        assertFalse(listener.isSubtypeOf(Object.class));
+
+        // the interfaces of a class, including the ones of its super class
+        int[] interfaceIds = new int[] {listener.getId()};
+        assertTrue(child.implementsAny(interfaceIds));
+        assertTrue(ClassHierarchy.getTypeInfo(Base.class).implementsAny(interfaceIds));
+        assertFalse(ClassHierarchy.getTypeInfo(Unrelated.class).implementsAny(interfaceIds));
+
+        int otherId = ClassHierarchy.getTypeInfo(Other.class).getId();
+        int[] both = otherId < listener.getId() ? new int[] {otherId, listener.getId()} : new int[] {listener.getId(), otherId};
+        assertTrue(ClassHierarchy.getTypeInfo(Unrelated.class).implementsAny(both));
+        assertFalse(ClassHierarchy.getTypeInfo(Object.class).implementsAny(both));
+    }
+
+    @Test
+    public
+    void idsAreSparse() {
+        ClassHierarchy.TypeInfo child = ClassHierarchy.getTypeInfo(Child.class);
+
+        // only the ids of this type and its super types are kept (sorted), no matter how large the ids are
+        int[] typeIds = child.getTypeIds();
+        assertEquals(child.getSuperTypes().length + 1, typeIds.length);
+        for (int i = 1; i < typeIds.length; i++) {
+            assertTrue(typeIds[i - 1] < typeIds[i]);
+        }
+
+        int[] interfaceIds = child.getInterfaceIds();
+        assertEquals(3, interfaceIds.length);
+        assertTrue(Arrays.binarySearch(interfaceIds, ClassHierarchy.getTypeInfo(Serializable.class).getId()) >= 0);
+    }
+
+    @Test
+    public
+    void caching() {
+        ClassHierarchy hierarchy = new ClassHierarchy(0.8F);
+
+        assertSame(ClassHierarchy.getTypeInfo(Child.class), ClassHierarchy.getTypeInfo(Child.class));
+
+        // the class is first, then its super types
+        Class<?>[] classes = hierarchy.getClassAndSuperClasses(Child.class);
+        assertEquals(Child.class, classes[0]);
+        assertEquals(6, classes.length);
+        assertSame(classes, hierarchy.getClassAndSuperClasses(Child.class));
+
+        // the super types of an array type are array types as well
+        for (Class<?> type : hierarchy.getClassAndSuperClasses(Child[].class)) {
+            assertTrue(type.isArray());
+        }
+
+        assertSame(Child[].class, hierarchy.getArrayClass(Child.class));
+        assertSame(hierarchy.getArrayClass(Child.class), hierarchy.getArrayClass(Child.class));
+
+        // the caches are replaced on shutdown, and the values are computed again
+        hierarchy.shutdown();
+        Class<?>[] again = hierarchy.getClassAndSuperClasses(Child.class);
+        assertNotSame(classes, again);
+        assertArrayEquals(classes, again);
+    }
+}
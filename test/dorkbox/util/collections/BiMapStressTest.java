@@ -0,0 +1,366 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+
+import org.junit.Test;
+
+/**
+ * Runs many writers (and readers) against the striped bimaps, and checks that no update is lost, that values stay unique, and that
+ * readers only ever see both directions of the same snapshot.
+ */
+public
+class BiMapStressTest {
+    private static final int THREADS = 4;
+    private static final int STRIPES = 8;
+
+    /**
+     * Runs every task in its own thread (all starting at the same time), and re-throws the first failure.
+     */
+    private static
+    void run(final Runnable... tasks) throws Throwable {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(tasks.length);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        for (final Runnable task : tasks) {
+            Thread thread = new Thread() {
+                @Override
+                public
+                void run() {
+                    try {
+                        start.await();
+                        task.run();
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            thread.start();
+        }
+
+        start.countDown();
+        done.await();
+
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    @Test
+    public
+    void biMapNoLostUpdates() throws Throwable {
+        final int count = 2000;
+        final LockFreeBiMap<String, Integer> biMap = new LockFreeBiMap<String, Integer>(STRIPES);
+
+        Runnable[] writers = new Runnable[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            writers[t] = new Runnable() {
+                @Override
+                public
+                void run() {
+                    for (int i = 0; i < count; i++) {
+                        int value = thread * count + i;
+                        biMap.put("key" + value, value);
+                    }
+
+                    // every other mapping is removed again, and the rest are moved to a new value
+                    for (int i = 0; i < count; i++) {
+                        int value = thread * count + i;
+                        if ((i & 1) == 0) {
+                            assertEquals(Integer.valueOf(value), biMap.remove("key" + value));
+                        } else {
+                            assertEquals(Integer.valueOf(value), biMap.putForce("key" + value, -value));
+                        }
+                    }
+                }
+            };
+        }
+        run(writers);
+
+        assertEquals(THREADS * count / 2, biMap.values().size());
+        assertEquals(THREADS * count / 2, biMap.inverse().values().size());
+
+        for (int value = 0; value < THREADS * count; value++) {
+            if ((value & 1) == 0) {
+                assertNull(biMap.get("key" + value));
+            } else {
+                assertEquals(Integer.valueOf(-value), biMap.get("key" + value));
+                assertEquals("key" + value, biMap.getReverse(-value));
+                assertNull(biMap.getReverse(value));
+            }
+        }
+    }
+
+    @Test
+    public
+    void intBiMapNoLostUpdates() throws Throwable {
+        final int count = 500;
+        final LockFreeIntBiMap<String> biMap = new LockFreeIntBiMap<String>(Integer.MIN_VALUE, STRIPES);
+
+        Runnable[] writers = new Runnable[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            writers[t] = new Runnable() {
+                @Override
+                public
+                void run() {
+                    for (int i = 0; i < count; i++) {
+                        int key = thread * count + i;
+
+                        // half are written through the inverse view, which shares the same stripes
+                        if ((i & 1) == 0) {
+                            assertNull(biMap.put(key, "value" + key));
+                        } else {
+                            assertEquals(Integer.MIN_VALUE, biMap.inverse().put("value" + key, key));
+                        }
+                    }
+
+                    for (int i = 0; i < count; i += 2) {
+                        int key = thread * count + i;
+                        assertEquals("value" + key, biMap.remove(key));
+                    }
+                }
+            };
+        }
+        run(writers);
+
+        assertEquals(THREADS * count / 2, biMap.size());
+        assertEquals(THREADS * count / 2, biMap.inverse().size());
+
+        for (int key = 0; key < THREADS * count; key++) {
+            if ((key & 1) == 0) {
+                assertNull(biMap.get(key));
+                assertEquals(Integer.MIN_VALUE, biMap.inverse().get("value" + key));
+            } else {
+                assertEquals("value" + key, biMap.get(key));
+                assertEquals(key, biMap.inverse().get("value" + key));
+            }
+        }
+    }
+
+    @Test
+    public
+    void uniqueValues() throws Throwable {
+        final int rounds = 2000;
+        final LockFreeBiMap<String, Integer> biMap = new LockFreeBiMap<String, Integer>(STRIPES);
+        final LockFreeIntBiMap<Integer> intBiMap = new LockFreeIntBiMap<Integer>(Integer.MIN_VALUE, STRIPES);
+
+        final AtomicIntegerArray winners = new AtomicIntegerArray(rounds);
+        final AtomicIntegerArray intWinners = new AtomicIntegerArray(rounds);
+
+        Runnable[] writers = new Runnable[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            writers[t] = new Runnable() {
+                @Override
+                public
+                void run() {
+                    // every thread tries to bind its own key to the same value. Only one of them may succeed
+                    for (int value = 0; value < rounds; value++) {
+                        try {
+                            biMap.put(thread + ":" + value, value);
+                            winners.incrementAndGet(value);
+                        } catch (IllegalArgumentException ignored) {
+                        }
+
+                        try {
+                            intBiMap.put(thread * rounds + value, value);
+                            intWinners.incrementAndGet(value);
+                        } catch (IllegalArgumentException ignored) {
+                        }
+                    }
+                }
+            };
+        }
+        run(writers);
+
+        assertEquals(rounds, biMap.values().size());
+        assertEquals(rounds, intBiMap.size());
+
+        for (int value = 0; value < rounds; value++) {
+            assertEquals(1, winners.get(value));
+            assertEquals(1, intWinners.get(value));
+
+            String key = biMap.getReverse(value);
+            assertEquals(Integer.valueOf(value), biMap.get(key));
+
+            int intKey = intBiMap.inverse().get(value);
+            assertEquals(value, intKey % rounds);
+            assertEquals(Integer.valueOf(value), intBiMap.get(intKey));
+        }
+    }
+
+    @Test
+    public
+    void biMapSnapshots() throws Throwable {
+        final int versions = 3000;
+        final LockFreeBiMap<Integer, Long> biMap = new LockFreeBiMap<Integer, Long>(STRIPES);
+        for (int t = 0; t < THREADS; t++) {
+            biMap.put(t, value(t, 0));
+        }
+
+        Runnable[] tasks = new Runnable[THREADS + 2];
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            tasks[t] = new Runnable() {
+                @Override
+                public
+                void run() {
+                    // each writer owns one key, and moves it through increasing versions of its own values
+                    for (int version = 1; version <= versions; version++) {
+                        biMap.putForce(thread, value(thread, version));
+                    }
+                }
+            };
+        }
+
+        final Runnable reader = new Runnable() {
+            @Override
+            public
+            void run() {
+                long[] seen = new long[THREADS];
+                for (int i = 0; i < versions * 2; i++) {
+                    int thread = i % THREADS;
+
+                    // a value is only ever bound to the key of its writer, and that key never moves back to an older version
+                    Long value = biMap.get(thread);
+                    assertTrue(value >= seen[thread]);
+                    seen[thread] = value;
+
+                    Integer key = biMap.getReverse(value);
+                    assertTrue(key == null || key == thread);
+
+                    // every snapshot is a complete bijection
+                    final Map<Integer, Long> forward = new HashMap<Integer, Long>();
+                    biMap.forEach(new BiConsumer<Integer, Long>() {
+                        @Override
+                        public
+                        void accept(final Integer key, final Long value) {
+                            forward.put(key, value);
+                        }
+                    });
+                    assertEquals(THREADS, forward.size());
+                    for (Map.Entry<Integer, Long> entry : forward.entrySet()) {
+                        assertEquals(entry.getKey().intValue(), (int) (entry.getValue() >>> 32));
+                    }
+
+                    final Map<Long, Integer> reverse = new HashMap<Long, Integer>();
+                    biMap.inverse().forEach(new BiConsumer<Long, Integer>() {
+                        @Override
+                        public
+                        void accept(final Long value, final Integer key) {
+                            reverse.put(value, key);
+                        }
+                    });
+                    assertEquals(THREADS, reverse.size());
+                }
+            }
+        };
+        tasks[THREADS] = reader;
+        tasks[THREADS + 1] = reader;
+
+        run(tasks);
+
+        for (int t = 0; t < THREADS; t++) {
+            assertEquals(Long.valueOf(value(t, versions)), biMap.get(t));
+            assertEquals(Integer.valueOf(t), biMap.getReverse(value(t, versions)));
+        }
+        assertEquals(THREADS, biMap.inverse().values().size());
+    }
+
+    @Test
+    public
+    void intBiMapSnapshots() throws Throwable {
+        final int versions = 3000;
+        final LockFreeIntBiMap<Long> biMap = new LockFreeIntBiMap<Long>(-1, STRIPES);
+        for (int t = 0; t < THREADS; t++) {
+            biMap.put(t, value(t, 0));
+        }
+
+        Runnable[] tasks = new Runnable[THREADS + 2];
+        for (int t = 0; t < THREADS; t++) {
+            final int thread = t;
+            tasks[t] = new Runnable() {
+                @Override
+                public
+                void run() {
+                    for (int version = 1; version <= versions; version++) {
+                        biMap.inverse().putForce(value(thread, version), thread);
+                    }
+                }
+            };
+        }
+
+        final Runnable reader = new Runnable() {
+            @Override
+            public
+            void run() {
+                long[] seen = new long[THREADS];
+                for (int i = 0; i < versions * 2; i++) {
+                    int thread = i % THREADS;
+
+                    Long value = biMap.get(thread);
+                    assertTrue(value >= seen[thread]);
+                    seen[thread] = value;
+
+                    int key = biMap.inverse().get(value);
+                    assertTrue(key == -1 || key == thread);
+
+                    final int[] count = new int[1];
+                    biMap.forEach(new IntObjConsumer<Long>() {
+                        @Override
+                        public
+                        void accept(final int key, final Long value) {
+                            assertEquals(key, (int) (value >>> 32));
+                            count[0]++;
+                        }
+                    });
+                    assertEquals(THREADS, count[0]);
+                    assertEquals(THREADS, biMap.inverse().size());
+                }
+            }
+        };
+        tasks[THREADS] = reader;
+        tasks[THREADS + 1] = reader;
+
+        run(tasks);
+
+        for (int t = 0; t < THREADS; t++) {
+            assertEquals(Long.valueOf(value(t, versions)), biMap.get(t));
+            assertEquals(t, biMap.inverse().get(value(t, versions)));
+        }
+    }
+
+    // the writer is in the upper half, so the values of different writers never collide
+    private static
+    long value(final int thread, final int version) {
+        return ((long) thread << 32) | version;
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares BinarySearch (boxed values, through Indexed and Evaluator), Arrays.binarySearch and LongBinarySearch (one at a time and
+ * batched) over sorted timestamp tables of different sizes.
+ */
+public
+class BinarySearchBenchmark {
+    private static final int LOOKUPS = 1 << 20;
+    private static final int ROUNDS = 5;
+
+    public static
+    void main(String[] args) {
+        for (int size : new int[] {1 << 10, 1 << 16, 1 << 22}) {
+            System.out.println("---- " + size + " timestamps");
+
+            Random random = new Random(42);
+            final long[] timestamps = new long[size];
+            long time = 1600000000000L;
+            for (int i = 0; i < size; i++) {
+                time += 1 + random.nextInt(1000);
+                timestamps[i] = time;
+            }
+
+            long[] values = new long[LOOKUPS];
+            for (int i = 0; i < LOOKUPS; i++) {
+                values[i] = timestamps[0] + (long) (random.nextDouble() * (time - timestamps[0]));
+            }
+
+            BinarySearch<Long> binarySearch = new BinarySearch<Long>(new BinarySearch.Evaluator<Long>() {
+                @Override
+                public
+                long getValue(final Long obj) {
+                    return obj;
+                }
+            }, new BinarySearch.Indexed<Long>() {
+                @Override
+                public
+                Long get(final long index) {
+                    return timestamps[(int) index];
+                }
+
+                @Override
+                public
+                long size() {
+                    return timestamps.length;
+                }
+            });
+            LongBinarySearch search = new LongBinarySearch(timestamps);
+            int[] results = new int[LOOKUPS];
+
+            for (int round = 0; round < ROUNDS; round++) {
+                boolean print = round == ROUNDS - 1;
+                long checksum = 0;
+
+                long start = System.nanoTime();
+                for (int i = 0; i < LOOKUPS; i++) {
+                    checksum += binarySearch.search(values[i], Bias.BACKWARD);
+                }
+                print(print, "BinarySearch", System.nanoTime() - start, checksum);
+
+                checksum = 0;
+                start = System.nanoTime();
+                for (int i = 0; i < LOOKUPS; i++) {
+                    int index = Arrays.binarySearch(timestamps, values[i]);
+                    checksum += index >= 0 ? index : -index - 2;
+                }
+                print(print, "Arrays.binarySearch", System.nanoTime() - start, checksum);
+
+                checksum = 0;
+                start = System.nanoTime();
+                for (int i = 0; i < LOOKUPS; i++) {
+                    checksum += search.search(values[i], Bias.BACKWARD);
+                }
+                print(print, "LongBinarySearch", System.nanoTime() - start, checksum);
+
+                checksum = 0;
+                start = System.nanoTime();
+                search.searchAll(values, Bias.BACKWARD, results);
+                for (int i = 0; i < LOOKUPS; i++) {
+                    checksum += results[i];
+                }
+                print(print, "searchAll", System.nanoTime() - start, checksum);
+            }
+        }
+    }
+
+    private static
+    void print(final boolean print, final String name, final long nanos, final long checksum) {
+        if (print) {
+            System.out.println(String.format("%-20s %,15.0f ops/s  (checksum %d)", name, LOOKUPS / (nanos / 1000000000.0D), checksum));
+        }
+    }
+}
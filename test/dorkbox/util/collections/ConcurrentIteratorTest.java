@@ -0,0 +1,174 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public
+class ConcurrentIteratorTest {
+
+    @Test
+    public
+    void addRemove() {
+        ConcurrentIterator<Object> iterator = new ConcurrentIterator<Object>();
+        Object[] values = new Object[] {"a", "b", "c", "d"};
+
+        for (Object value : values) {
+            assertTrue(iterator.addIfAbsent(value));
+        }
+        assertFalse(iterator.addIfAbsent("a"));
+        assertEquals(4, iterator.size());
+
+        // in the order they were added
+        Object[] snapshot = iterator.snapshot();
+        assertArrayEquals(values, snapshot);
+        assertSame(snapshot, iterator.snapshot());
+
+        assertTrue(iterator.remove("b"));
+        assertFalse(iterator.remove("b"));
+        assertFalse(iterator.contains("b"));
+        assertArrayEquals(new Object[] {"a", "c", "d"}, iterator.snapshot());
+
+        List<Object> list = new ArrayList<Object>();
+        for (Object value : iterator) {
+            list.add(value);
+        }
+        assertEquals(3, list.size());
+
+        // the removed listener can be added again
+        assertTrue(iterator.addIfAbsent("b"));
+        assertArrayEquals(new Object[] {"a", "c", "d", "b"}, iterator.snapshot());
+
+        // an entry that is removed directly is no longer seen, and the listener can be added again
+        iterator.head().remove();
+        assertFalse(iterator.contains("a"));
+        assertTrue(iterator.addIfAbsent("a"));
+        assertEquals(4, iterator.size());
+        assertArrayEquals(new Object[] {"c", "d", "b", "a"}, iterator.snapshot());
+
+        iterator.clear();
+        assertEquals(0, iterator.size());
+        assertEquals(0, iterator.snapshot().length);
+        assertTrue(iterator.addIfAbsent("a"));
+    }
+
+    @Test
+    public
+    void removedEntriesAreUnlinked() {
+        ConcurrentIterator<Object> iterator = new ConcurrentIterator<Object>();
+        Object permanent = new Object();
+        iterator.add(permanent);
+
+        for (int i = 0; i < 10000; i++) {
+            Object listener = new Object();
+            iterator.add(listener);
+            assertTrue(iterator.contains(listener));
+            assertTrue(iterator.remove(listener));
+        }
+
+        int entries = 0;
+        for (ConcurrentEntry<Object> entry = iterator.head(); entry != null; entry = entry.next()) {
+            entries++;
+        }
+        assertTrue("Too many entries are still linked: " + entries, entries <= 20);
+        assertArrayEquals(new Object[] {permanent}, iterator.snapshot());
+    }
+
+    @Test
+    public
+    void concurrentChurn() throws Exception {
+        final ConcurrentIterator<Object> iterator = new ConcurrentIterator<Object>();
+        final int threads = 4;
+        final int iterations = 20000;
+
+        // a listener that is always there, and is seen by every iteration
+        final Object permanent = new Object();
+        iterator.add(permanent);
+
+        final CountDownLatch latch = new CountDownLatch(threads + 1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+
+        for (int t = 0; t < threads; t++) {
+            new Thread() {
+                @Override
+                public
+                void run() {
+                    try {
+                        Object[] listeners = new Object[8];
+                        for (int i = 0; i < listeners.length; i++) {
+                            listeners[i] = new Object();
+                        }
+
+                        for (int i = 0; i < iterations; i++) {
+                            Object listener = listeners[i % listeners.length];
+                            if (!iterator.addIfAbsent(listener)) {
+                                throw new AssertionError("Listener was already added");
+                            }
+                            if (!iterator.remove(listener)) {
+                                throw new AssertionError("Listener was not removed");
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        new Thread() {
+            @Override
+            public
+            void run() {
+                try {
+                    for (int i = 0; i < iterations; i++) {
+                        boolean found = false;
+                        for (Object value : iterator.snapshot()) {
+                            found |= value == permanent;
+                        }
+                        if (!found) {
+                            throw new AssertionError("Permanent listener was not seen");
+                        }
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                } finally {
+                    latch.countDown();
+                }
+            }
+        }.start();
+
+        latch.await();
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+
+        assertEquals(1, iterator.size());
+        assertArrayEquals(new Object[] {permanent}, iterator.snapshot());
+    }
+}
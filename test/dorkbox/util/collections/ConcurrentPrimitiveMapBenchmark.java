@@ -0,0 +1,179 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiFunction;
+
+/**
+ * Measures how the concurrent primitive maps scale with the number of writer threads (counter updates), compared to ConcurrentHashMap and
+ * the single-writer LockFreeIntMap.
+ */
+public
+class ConcurrentPrimitiveMapBenchmark {
+    private static final int KEYS = 100000;
+    private static final int OPERATIONS = 4000000;
+
+    private
+    interface CounterOps {
+        String name();
+        void increment(int key);
+    }
+
+    public static
+    void main(String[] args) throws Exception {
+        final int cpus = Runtime.getRuntime().availableProcessors();
+
+        // warm-up
+        for (int i = 0; i < 3; i++) {
+            for (CounterOps ops : maps(false)) {
+                run(ops, cpus, false);
+            }
+        }
+
+        for (int threads = 1; threads <= cpus * 2; threads <<= 1) {
+            System.out.println("---- " + threads + " writer thread(s)");
+            for (CounterOps ops : maps(threads <= 2)) {
+                run(ops, threads, true);
+            }
+        }
+    }
+
+    private static
+    CounterOps[] maps(final boolean includeCopyOnWrite) {
+        final ConcurrentIntIntMap intIntMap = new ConcurrentIntIntMap(KEYS);
+        final ConcurrentIntMap<Integer> intMap = new ConcurrentIntMap<Integer>(KEYS);
+        final ConcurrentHashMap<Integer, Integer> concurrentHashMap = new ConcurrentHashMap<Integer, Integer>(KEYS);
+        final LockFreeIntMap<Integer> lockFreeIntMap = new LockFreeIntMap<Integer>(KEYS);
+
+        final BiFunction<Integer, Integer, Integer> sum = new BiFunction<Integer, Integer, Integer>() {
+            @Override
+            public
+            Integer apply(final Integer left, final Integer right) {
+                return left + right;
+            }
+        };
+
+        CounterOps[] ops = new CounterOps[] {
+            new CounterOps() {
+                @Override
+                public
+                String name() {
+                    return "ConcurrentIntIntMap";
+                }
+
+                @Override
+                public
+                void increment(final int key) {
+                    intIntMap.addAndGet(key, 1);
+                }
+            },
+            new CounterOps() {
+                @Override
+                public
+                String name() {
+                    return "ConcurrentIntMap";
+                }
+
+                @Override
+                public
+                void increment(final int key) {
+                    intMap.merge(key, 1, sum);
+                }
+            },
+            new CounterOps() {
+                @Override
+                public
+                String name() {
+                    return "ConcurrentHashMap";
+                }
+
+                @Override
+                public
+                void increment(final int key) {
+                    concurrentHashMap.merge(key, 1, sum);
+                }
+            },
+            new CounterOps() {
+                @Override
+                public
+                String name() {
+                    return "LockFreeIntMap";
+                }
+
+                @Override
+                public
+                void increment(final int key) {
+                    // copy-on-write, so this is far slower. It is only run with few threads
+                    synchronized (lockFreeIntMap) {
+                        Integer value = lockFreeIntMap.get(key);
+                        lockFreeIntMap.put(key, value == null ? 1 : value + 1);
+                    }
+                }
+            },
+        };
+
+        if (includeCopyOnWrite) {
+            return ops;
+        }
+
+        CounterOps[] concurrentOps = new CounterOps[ops.length - 1];
+        System.arraycopy(ops, 0, concurrentOps, 0, concurrentOps.length);
+        return concurrentOps;
+    }
+
+    private static
+    void run(final CounterOps ops, final int threads, final boolean print) throws InterruptedException {
+        // the single-writer map publishes a new snapshot (and copies the path to the key) on every write
+        final int operations = (ops.name().equals("LockFreeIntMap") ? OPERATIONS / 10 : OPERATIONS) / threads;
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public
+                void run() {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    for (int i = 0; i < operations; i++) {
+                        ops.increment(random.nextInt(KEYS));
+                    }
+                    done.countDown();
+                }
+            });
+            thread.start();
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - startTime;
+
+        if (print) {
+            double opsPerSecond = (operations * (double) threads) / (elapsed / 1000000000.0D);
+            System.out.println(String.format("%-20s %,15.0f ops/s", ops.name(), opsPerSecond));
+        }
+    }
+}
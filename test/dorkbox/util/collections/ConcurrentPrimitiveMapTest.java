@@ -0,0 +1,221 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.BiFunction;
+import java.util.function.IntBinaryOperator;
+import java.util.function.LongFunction;
+
+import org.junit.Test;
+
+/**
+ * Compares the concurrent primitive maps against java.util.HashMap, and checks that the atomic updates are not lost between threads
+ */
+public
+class ConcurrentPrimitiveMapTest {
+    private static final IntBinaryOperator SUM = new IntBinaryOperator() {
+        @Override
+        public
+        int applyAsInt(final int left, final int right) {
+            return left + right;
+        }
+    };
+
+    @Test
+    public
+    void intIntMap() {
+        Random random = new Random(42);
+        ConcurrentIntIntMap map = new ConcurrentIntIntMap(4, 0.75f, 4);
+        Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+
+        for (int i = 0; i < 100000; i++) {
+            int key = random.nextInt(3000) - 1000;
+            Integer current = expected.get(key);
+
+            switch (random.nextInt(4)) {
+                case 0:
+                    expected.remove(key);
+                    assertEquals(current == null ? -1 : current, map.remove(key, -1));
+                    break;
+                case 1:
+                    expected.put(key, i);
+                    map.put(key, i);
+                    break;
+                case 2:
+                    int sum = current == null ? 3 : current + 3;
+                    expected.put(key, sum);
+                    assertEquals(sum, map.addAndGet(key, 3));
+                    break;
+                default:
+                    int merged = current == null ? i : current + i;
+                    expected.put(key, merged);
+                    assertEquals(merged, map.merge(key, i, SUM));
+                    break;
+            }
+            assertEquals(expected.size(), map.size());
+
+            int lookup = random.nextInt(3000) - 1000;
+            Integer value = expected.get(lookup);
+            assertEquals(value == null ? -1 : value, map.get(lookup, -1));
+            assertEquals(value != null, map.containsKey(lookup));
+        }
+
+        final Map<Integer, Integer> visited = new HashMap<Integer, Integer>();
+        map.forEach(new ConcurrentIntIntMap.Visitor() {
+            @Override
+            public
+            void visit(final int key, final int value) {
+                visited.put(key, value);
+            }
+        });
+        assertEquals(expected, visited);
+
+        map.clear();
+        assertTrue(map.isEmpty());
+    }
+
+    @Test
+    public
+    void intMap() {
+        Random random = new Random(42);
+        ConcurrentIntMap<Integer> map = new ConcurrentIntMap<Integer>(4, 0.75f, 4);
+        Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+
+        BiFunction<Integer, Integer, Integer> removeEven = new BiFunction<Integer, Integer, Integer>() {
+            @Override
+            public
+            Integer apply(final Integer current, final Integer value) {
+                return (current + value) % 2 == 0 ? null : current + value;
+            }
+        };
+
+        for (int i = 0; i < 100000; i++) {
+            int key = random.nextInt(3000) - 1000;
+
+            switch (random.nextInt(3)) {
+                case 0:
+                    assertEquals(expected.remove(key), map.remove(key));
+                    break;
+                case 1:
+                    assertEquals(expected.put(key, i), map.put(key, i));
+                    break;
+                default:
+                    assertEquals(expected.merge(key, i, removeEven), map.merge(key, i, removeEven));
+                    break;
+            }
+            assertEquals(expected.size(), map.size());
+
+            int lookup = random.nextInt(3000) - 1000;
+            assertEquals(expected.get(lookup), map.get(lookup));
+        }
+    }
+
+    @Test
+    public
+    void longMap() {
+        Random random = new Random(42);
+        ConcurrentLongMap<Long> map = new ConcurrentLongMap<Long>(4, 0.75f, 4);
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+
+        LongFunction<Long> negate = new LongFunction<Long>() {
+            @Override
+            public
+            Long apply(final long key) {
+                return -key;
+            }
+        };
+
+        for (int i = 0; i < 100000; i++) {
+            long key = (random.nextInt(3000) - 1000) * 0x100000001L;
+
+            switch (random.nextInt(3)) {
+                case 0:
+                    assertEquals(expected.remove(key), map.remove(key));
+                    break;
+                case 1:
+                    assertEquals(expected.put(key, (long) i), map.put(key, (long) i));
+                    break;
+                default:
+                    Long current = expected.get(key);
+                    if (current == null) {
+                        expected.put(key, -key);
+                    }
+                    assertEquals(expected.get(key), map.computeIfAbsent(key, negate));
+                    break;
+            }
+            assertEquals(expected.size(), map.size());
+        }
+
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+        assertNull(map.get(Long.MIN_VALUE));
+    }
+
+    @Test
+    public
+    void concurrentCounters() throws Exception {
+        final int threads = 4;
+        final int increments = 100000;
+        final ConcurrentIntIntMap map = new ConcurrentIntIntMap(4, 0.75f, 2);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            Thread thread = new Thread() {
+                @Override
+                public
+                void run() {
+                    try {
+                        start.await();
+
+                        Random random = new Random(seed);
+                        for (int i = 0; i < increments; i++) {
+                            map.addAndGet(random.nextInt(500), 1);
+                        }
+                    } catch (InterruptedException ignored) {
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            thread.start();
+        }
+
+        start.countDown();
+        done.await();
+
+        final long[] total = new long[1];
+        map.forEach(new ConcurrentIntIntMap.Visitor() {
+            @Override
+            public
+            void visit(final int key, final int value) {
+                total[0] += value;
+            }
+        });
+        assertEquals((long) threads * increments, total[0]);
+    }
+}
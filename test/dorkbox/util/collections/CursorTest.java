@@ -0,0 +1,451 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+import org.junit.Test;
+
+/**
+ * Checks that forEach() and cursor() visit the same entries as the iterators, can be nested, and can be used on the lock-free snapshots
+ * while they are being replaced.
+ */
+public
+class CursorTest {
+    @Test
+    public
+    void primitiveMaps() {
+        Random random = new Random(42);
+
+        for (HashEngine engine : HashEngine.values()) {
+            final IntMap<String> intMap = new IntMap<String>(4, 0.7f, engine);
+            LongMap<String> longMap = new LongMap<String>(4, 0.7f, engine);
+            IntIntMap intIntMap = new IntIntMap(4, 0.7f, engine);
+            IntFloatMap intFloatMap = new IntFloatMap(4, 0.7f, engine);
+            IntSet intSet = new IntSet(4, 0.7f);
+            final Map<Integer, String> expected = new HashMap<Integer, String>();
+
+            for (int i = 0; i < 500; i++) {
+                // 0 is stored outside of the table
+                int key = i == 0 ? 0 : random.nextInt(2000) - 1000;
+                intMap.put(key, "v" + key);
+                longMap.put(key * 0x100000000L, "v" + key);
+                intIntMap.put(key, key * 2);
+                intFloatMap.put(key, key / 2.0f);
+                intSet.add(key);
+                expected.put(key, "v" + key);
+            }
+
+            final Map<Integer, String> visited = new HashMap<Integer, String>();
+            intMap.forEach(new IntObjConsumer<String>() {
+                @Override
+                public
+                void accept(final int key, final String value) {
+                    visited.put(key, value);
+                }
+            });
+            assertEquals(expected, visited);
+
+            // the cursors visit the same entries, in the same order as the iterator
+            List<Integer> order = new ArrayList<Integer>();
+            for (IntMap.Entry<String> entry : intMap.entries()) {
+                order.add(entry.key);
+            }
+            IntMap.Cursor<String> cursor = intMap.cursor();
+            for (int pass = 0; pass < 2; pass++) {
+                int index = 0;
+                while (cursor.advance()) {
+                    assertEquals((int) order.get(index++), cursor.key());
+                    assertEquals(expected.get(cursor.key()), cursor.value());
+                }
+                assertEquals(order.size(), index);
+                assertFalse(cursor.advance());
+                cursor.reset();
+            }
+
+            LongMap.Cursor<String> longCursor = longMap.cursor();
+            IntIntMap.Cursor intIntCursor = intIntMap.cursor();
+            IntFloatMap.Cursor intFloatCursor = intFloatMap.cursor();
+            IntSet.Cursor intSetCursor = intSet.cursor();
+            int count = 0;
+            while (longCursor.advance()) {
+                assertEquals(longMap.get(longCursor.key()), longCursor.value());
+                assertEquals(expected.get((int) (longCursor.key() >> 32)), longCursor.value());
+                count++;
+            }
+            while (intIntCursor.advance()) {
+                assertEquals(intIntCursor.key() * 2, intIntCursor.value());
+                count++;
+            }
+            while (intFloatCursor.advance()) {
+                assertEquals(intFloatCursor.key() / 2.0f, intFloatCursor.value(), 0.0f);
+                count++;
+            }
+            while (intSetCursor.advance()) {
+                assertTrue(expected.containsKey(intSetCursor.key()));
+                count++;
+            }
+            assertEquals(expected.size() * 4, count);
+
+            final AtomicInteger sum = new AtomicInteger();
+            intSet.forEach(new IntConsumer() {
+                @Override
+                public
+                void accept(final int value) {
+                    sum.addAndGet(value);
+                }
+            });
+            intIntMap.forEach(new IntIntConsumer() {
+                @Override
+                public
+                void accept(final int key, final int value) {
+                    sum.addAndGet(value - key * 3);
+                }
+            });
+            assertEquals(0, sum.get());
+
+            // nesting
+            final AtomicInteger pairs = new AtomicInteger();
+            intMap.forEach(new IntObjConsumer<String>() {
+                @Override
+                public
+                void accept(final int key, final String value) {
+                    IntMap.Cursor<String> inner = intMap.cursor();
+                    while (inner.advance()) {
+                        pairs.incrementAndGet();
+                    }
+                }
+            });
+            assertEquals(expected.size() * expected.size(), pairs.get());
+        }
+    }
+
+    @Test
+    public
+    void objectMaps() {
+        Random random = new Random(42);
+        ObjectMap<String, Integer> objectMap = new ObjectMap<String, Integer>();
+        IdentityMap<String, Integer> identityMap = new IdentityMap<String, Integer>();
+        ObjectIntMap<String> objectIntMap = new ObjectIntMap<String>();
+        ObjectFloatMap<String> objectFloatMap = new ObjectFloatMap<String>();
+        ObjectSet<String> objectSet = new ObjectSet<String>();
+        ArrayMap<String, Integer> arrayMap = new ArrayMap<String, Integer>();
+        final OrderedMap<String, Integer> orderedMap = new OrderedMap<String, Integer>();
+        OrderedSet<String> orderedSet = new OrderedSet<String>();
+        final Map<String, Integer> expected = new HashMap<String, Integer>();
+
+        for (int i = 0; i < 300; i++) {
+            int value = random.nextInt(400);
+            // the same instance for equal keys, for the IdentityMap
+            String key = ("k" + value).intern();
+            objectMap.put(key, value);
+            identityMap.put(key, value);
+            objectIntMap.put(key, value);
+            objectFloatMap.put(key, value);
+            objectSet.add(key);
+            arrayMap.put(key, value);
+            orderedMap.put(key, value);
+            orderedSet.add(key);
+            expected.put(key, value);
+
+            if (i % 3 == 0) {
+                orderedMap.remove("k" + random.nextInt(400));
+            }
+        }
+
+        final Map<String, Integer> visited = new HashMap<String, Integer>();
+        BiConsumer<String, Integer> collect = new BiConsumer<String, Integer>() {
+            @Override
+            public
+            void accept(final String key, final Integer value) {
+                assertEquals(null, visited.put(key, value));
+            }
+        };
+        objectMap.forEach(collect);
+        assertEquals(expected, visited);
+        visited.clear();
+        identityMap.forEach(collect);
+        assertEquals(expected, visited);
+        visited.clear();
+        arrayMap.forEach(collect);
+        assertEquals(expected, visited);
+
+        assertEquals(expected.size(), countEntries(objectMap.cursor(), expected));
+        assertEquals(expected.size(), countEntries(identityMap.cursor(), expected));
+        assertEquals(expected.size(), countEntries(arrayMap.cursor(), expected));
+
+        ObjectIntMap.Cursor<String> objectIntCursor = objectIntMap.cursor();
+        ObjectFloatMap.Cursor<String> objectFloatCursor = objectFloatMap.cursor();
+        ObjectSet.Cursor<String> objectSetCursor = objectSet.cursor();
+        int count = 0;
+        while (objectIntCursor.advance()) {
+            assertEquals((int) expected.get(objectIntCursor.key()), objectIntCursor.value());
+            count++;
+        }
+        while (objectFloatCursor.advance()) {
+            assertEquals((float) expected.get(objectFloatCursor.key()), objectFloatCursor.value(), 0.0f);
+            count++;
+        }
+        while (objectSetCursor.advance()) {
+            assertTrue(expected.containsKey(objectSetCursor.key()));
+            count++;
+        }
+        assertEquals(expected.size() * 3, count);
+
+        // the ordered map and set keep their order, including the gaps that are left by removing
+        final List<String> order = new ArrayList<String>();
+        orderedMap.forEach(new BiConsumer<String, Integer>() {
+            @Override
+            public
+            void accept(final String key, final Integer value) {
+                order.add(key);
+                assertEquals(orderedMap.get(key), value);
+            }
+        });
+        assertEquals(order, toList(orderedMap.orderedKeys()));
+
+        ObjectMap.Cursor<String, Integer> orderedCursor = orderedMap.cursor();
+        for (int i = 0; i < order.size(); i++) {
+            assertTrue(orderedCursor.advance());
+            assertEquals(order.get(i), orderedCursor.key());
+            assertEquals(orderedMap.get(order.get(i)), orderedCursor.value());
+        }
+        assertFalse(orderedCursor.advance());
+
+        order.clear();
+        orderedSet.forEach(new Consumer<String>() {
+            @Override
+            public
+            void accept(final String key) {
+                order.add(key);
+            }
+        });
+        assertEquals(order, toList(orderedSet.orderedItems()));
+        ObjectSet.Cursor<String> orderedSetCursor = orderedSet.cursor();
+        for (int i = 0; i < order.size(); i++) {
+            assertTrue(orderedSetCursor.advance());
+            assertEquals(order.get(i), orderedSetCursor.key());
+        }
+        assertFalse(orderedSetCursor.advance());
+    }
+
+    @Test
+    public
+    void persistentHashMap() {
+        PersistentHashMap.Builder<Object, Integer> builder = PersistentHashMap.builder();
+        final Map<Object, Integer> expected = new HashMap<Object, Integer>();
+        for (int i = 0; i < 5000; i++) {
+            // keys with the same hash code end up in collision nodes
+            Object key = i % 10 == 0 ? new Collider(i) : Integer.valueOf(i);
+            builder.put(key, i);
+            expected.put(key, i);
+        }
+        builder.put(null, -1);
+        expected.put(null, -1);
+        PersistentHashMap<Object, Integer> map = builder.build();
+
+        final Map<Object, Integer> visited = new HashMap<Object, Integer>();
+        map.forEach(new BiConsumer<Object, Integer>() {
+            @Override
+            public
+            void accept(final Object key, final Integer value) {
+                visited.put(key, value);
+            }
+        });
+        assertEquals(expected, visited);
+
+        final AtomicInteger keys = new AtomicInteger();
+        map.forEachKey(new Consumer<Object>() {
+            @Override
+            public
+            void accept(final Object key) {
+                assertTrue(expected.containsKey(key));
+                keys.incrementAndGet();
+            }
+        });
+        assertEquals(expected.size(), keys.get());
+
+        PersistentHashMap.Cursor<Object, Integer> cursor = map.cursor();
+        for (int pass = 0; pass < 2; pass++) {
+            visited.clear();
+            while (cursor.advance()) {
+                assertEquals(null, visited.put(cursor.key(), cursor.value()));
+            }
+            assertEquals(expected, visited);
+            cursor.reset();
+        }
+    }
+
+    @Test
+    public
+    void lockFreeSnapshots() throws Exception {
+        final LockFreeIntMap<Integer> map = new LockFreeIntMap<Integer>();
+        final LockFreeHashMap<Integer, Integer> hashMap = new LockFreeHashMap<Integer, Integer>();
+        for (int i = 0; i < 1000; i++) {
+            map.put(i, i);
+            hashMap.put(i, i);
+        }
+
+        // the writer keeps the sum of the values at 0 mod 1000, by moving 1 from one key to another
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final long end = System.currentTimeMillis() + 500;
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public
+            void run() {
+                Random random = new Random(42);
+                while (System.currentTimeMillis() < end) {
+                    int key = random.nextInt(1000);
+                    // a new key, and a removed key, so that the snapshots have different sizes
+                    map.put(1000 + key, 0);
+                    map.remove(1000 + key);
+                    hashMap.put(key, hashMap.get(key) + 1000);
+                }
+            }
+        });
+
+        Runnable reader = new Runnable() {
+            @Override
+            public
+            void run() {
+                try {
+                    final long[] sum = new long[1];
+                    IntObjConsumer<Integer> sumMap = new IntObjConsumer<Integer>() {
+                        @Override
+                        public
+                        void accept(final int key, final Integer value) {
+                            sum[0] += value;
+                        }
+                    };
+                    BiConsumer<Integer, Integer> sumHashMap = new BiConsumer<Integer, Integer>() {
+                        @Override
+                        public
+                        void accept(final Integer key, final Integer value) {
+                            sum[0] += value % 1000;
+                        }
+                    };
+
+                    while (System.currentTimeMillis() < end) {
+                        sum[0] = 0;
+                        map.forEach(sumMap);
+                        assertEquals(999 * 1000 / 2, sum[0]);
+
+                        sum[0] = 0;
+                        PersistentIntMap.Cursor<Integer> cursor = map.cursor();
+                        while (cursor.advance()) {
+                            sum[0] += cursor.value();
+                        }
+                        assertEquals(999 * 1000 / 2, sum[0]);
+
+                        sum[0] = 0;
+                        hashMap.forEach(sumHashMap);
+                        assertEquals(999 * 1000 / 2, sum[0]);
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }
+        };
+
+        Thread[] readers = new Thread[3];
+        for (int i = 0; i < readers.length; i++) {
+            readers[i] = new Thread(reader);
+            readers[i].start();
+        }
+        writer.start();
+
+        writer.join();
+        for (Thread thread : readers) {
+            thread.join();
+        }
+        if (error.get() != null) {
+            throw new AssertionError(error.get());
+        }
+    }
+
+    private static
+    int countEntries(final ObjectMap.Cursor<String, Integer> cursor, final Map<String, Integer> expected) {
+        int count = 0;
+        while (cursor.advance()) {
+            assertEquals(expected.get(cursor.key()), cursor.value());
+            count++;
+        }
+        return count;
+    }
+
+    private static
+    int countEntries(final IdentityMap.Cursor<String, Integer> cursor, final Map<String, Integer> expected) {
+        int count = 0;
+        while (cursor.advance()) {
+            assertEquals(expected.get(cursor.key()), cursor.value());
+            count++;
+        }
+        return count;
+    }
+
+    private static
+    int countEntries(final ArrayMap.Cursor<String, Integer> cursor, final Map<String, Integer> expected) {
+        int count = 0;
+        while (cursor.advance()) {
+            assertEquals(expected.get(cursor.key()), cursor.value());
+            count++;
+        }
+        return count;
+    }
+
+    private static
+    List<String> toList(final Array<String> array) {
+        List<String> list = new ArrayList<String>();
+        for (int i = 0; i < array.size; i++) {
+            list.add(array.get(i));
+        }
+        return list;
+    }
+
+    private static final
+    class Collider {
+        private final int value;
+
+        Collider(final int value) {
+            this.value = value;
+        }
+
+        @Override
+        public
+        int hashCode() {
+            return 42;
+        }
+
+        @Override
+        public
+        boolean equals(final Object obj) {
+            return obj instanceof Collider && ((Collider) obj).value == value;
+        }
+    }
+}
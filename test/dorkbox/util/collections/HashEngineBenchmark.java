@@ -0,0 +1,177 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import java.util.Random;
+
+/**
+ * Compares the cuckoo and linear probing hash engines (IntMap and ObjectMap) for put/get/remove/iterate, across different key
+ * distributions.
+ */
+public
+class HashEngineBenchmark {
+    private static final int KEYS = 1 << 18;
+    private static final int ROUNDS = 5;
+
+    public static
+    void main(String[] args) {
+        final String[] distributions = new String[] {"sequential", "random", "strided (x 1024)"};
+
+        // warm-up
+        for (int i = 0; i < 3; i++) {
+            for (String distribution : distributions) {
+                int[] keys = keys(distribution);
+                for (HashEngine engine : HashEngine.values()) {
+                    runIntMap(engine, keys, false);
+                    runObjectMap(engine, keys, false);
+                }
+            }
+        }
+
+        for (String distribution : distributions) {
+            System.out.println("---- " + distribution + " keys");
+            int[] keys = keys(distribution);
+            for (HashEngine engine : HashEngine.values()) {
+                runIntMap(engine, keys, true);
+            }
+            for (HashEngine engine : HashEngine.values()) {
+                runObjectMap(engine, keys, true);
+            }
+        }
+    }
+
+    private static
+    int[] keys(final String distribution) {
+        Random random = new Random(42);
+        int[] keys = new int[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            if (distribution.startsWith("sequential")) {
+                keys[i] = i + 1;
+            }
+            else if (distribution.startsWith("random")) {
+                keys[i] = random.nextInt();
+            }
+            else {
+                keys[i] = (i + 1) * 1024;
+            }
+        }
+        return keys;
+    }
+
+    private static
+    void print(final String name, final HashEngine engine, final String operation, final long nanos, final int operations) {
+        System.out.println(String.format("%-10s %-15s %-8s %,15.0f ops/s", name, engine, operation, operations / (nanos / 1000000000.0D)));
+    }
+
+    private static
+    void runIntMap(final HashEngine engine, final int[] keys, final boolean print) {
+        long put = 0, get = 0, iterate = 0, remove = 0;
+        long sink = 0;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            IntMap<Object> map = new IntMap<Object>(51, 0.8f, engine);
+
+            long start = System.nanoTime();
+            for (int key : keys) {
+                map.put(key, map);
+            }
+            put += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int key : keys) {
+                if (map.get(key) != null) {
+                    sink++;
+                }
+            }
+            get += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (IntMap.Entry<Object> entry : map.entries()) {
+                sink += entry.key;
+            }
+            iterate += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int key : keys) {
+                map.remove(key);
+            }
+            remove += System.nanoTime() - start;
+        }
+
+        if (print) {
+            int operations = keys.length * ROUNDS;
+            print("IntMap", engine, "put", put, operations);
+            print("IntMap", engine, "get", get, operations);
+            print("IntMap", engine, "iterate", iterate, operations);
+            print("IntMap", engine, "remove", remove, operations);
+        }
+        if (sink == 42) {
+            System.out.println("impossible");
+        }
+    }
+
+    private static
+    void runObjectMap(final HashEngine engine, final int[] keys, final boolean print) {
+        Integer[] boxed = new Integer[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            boxed[i] = keys[i];
+        }
+
+        long put = 0, get = 0, iterate = 0, remove = 0;
+        long sink = 0;
+
+        for (int round = 0; round < ROUNDS; round++) {
+            ObjectMap<Integer, Object> map = new ObjectMap<Integer, Object>(51, 0.8f, engine);
+
+            long start = System.nanoTime();
+            for (Integer key : boxed) {
+                map.put(key, map);
+            }
+            put += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (Integer key : boxed) {
+                if (map.get(key) != null) {
+                    sink++;
+                }
+            }
+            get += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (ObjectMap.Entry<Integer, Object> entry : map.entries()) {
+                sink += entry.key;
+            }
+            iterate += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (Integer key : boxed) {
+                map.remove(key);
+            }
+            remove += System.nanoTime() - start;
+        }
+
+        if (print) {
+            int operations = keys.length * ROUNDS;
+            print("ObjectMap", engine, "put", put, operations);
+            print("ObjectMap", engine, "get", get, operations);
+            print("ObjectMap", engine, "iterate", iterate, operations);
+            print("ObjectMap", engine, "remove", remove, operations);
+        }
+        if (sink == 42) {
+            System.out.println("impossible");
+        }
+    }
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the maps (using linear probing) against java.util.HashMap, for random and sequential keys
+ */
+public
+class HashEngineTest {
+
+    private static
+    int nextKey(final Random random, final int i, final boolean sequential) {
+        return sequential ? i % 2000 : random.nextInt(3000) - 1000;
+    }
+
+    @Test
+    public
+    void intMap() {
+        for (boolean sequential : new boolean[] {true, false}) {
+            Random random = new Random(42);
+            IntMap<Integer> map = new IntMap<Integer>(4, 0.8f, HashEngine.LINEAR_PROBING);
+            Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+
+            for (int i = 0; i < 100000; i++) {
+                int key = nextKey(random, i, sequential);
+                switch (random.nextInt(3)) {
+                    case 0:
+                        assertEquals(expected.remove(key), map.remove(key));
+                        break;
+                    default:
+                        assertEquals(expected.put(key, i), map.put(key, i));
+                        break;
+                }
+                assertEquals(expected.size(), map.size);
+            }
+
+            for (int key = -1000; key < 2000; key++) {
+                assertEquals(expected.get(key), map.get(key));
+                assertEquals(expected.containsKey(key), map.containsKey(key));
+            }
+
+            // the iterator can remove while iterating, and must see every key once
+            int count = 0;
+            IntMap.Keys keys = map.keys();
+            while (keys.hasNext) {
+                int key = keys.next();
+                assertTrue(expected.containsKey(key));
+                count++;
+                if ((key & 1) == 0) {
+                    keys.remove();
+                    expected.remove(key);
+                }
+            }
+            assertTrue(count >= expected.size());
+            assertEquals(expected.size(), map.size);
+
+            for (int key = -1000; key < 2000; key++) {
+                assertEquals(expected.get(key), map.get(key));
+            }
+
+            // a copy has the same engine
+            IntMap<Integer> copy = new IntMap<Integer>(map);
+            assertEquals(map, copy);
+            copy.put(5000, 1);
+            assertEquals(Integer.valueOf(1), copy.get(5000));
+        }
+    }
+
+    @Test
+    public
+    void objectMap() {
+        Random random = new Random(42);
+        ObjectMap<String, Integer> map = new ObjectMap<String, Integer>(4, 0.9f, HashEngine.LINEAR_PROBING);
+        Map<String, Integer> expected = new HashMap<String, Integer>();
+
+        for (int i = 0; i < 100000; i++) {
+            String key = "key" + random.nextInt(2000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key), map.remove(key));
+            }
+            else {
+                assertEquals(expected.put(key, i), map.put(key, i));
+            }
+        }
+
+        assertEquals(expected.size(), map.size);
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+
+        ObjectMap.Entries<String, Integer> entries = map.entries();
+        while (entries.hasNext()) {
+            ObjectMap.Entry<String, Integer> entry = entries.next();
+            if (entry.value % 3 == 0) {
+                expected.remove(entry.key);
+                entries.remove();
+            }
+        }
+        assertEquals(expected.size(), map.size);
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+
+        map.clear();
+        assertNull(map.get("key1"));
+        assertFalse(map.containsKey("key1"));
+    }
+
+    @Test
+    public
+    void primitiveMaps() {
+        Random random = new Random(42);
+        IntIntMap intIntMap = new IntIntMap(4, 0.8f, HashEngine.LINEAR_PROBING);
+        LongMap<Integer> longMap = new LongMap<Integer>(4, 0.8f, HashEngine.LINEAR_PROBING);
+        ObjectIntMap<Integer> objectIntMap = new ObjectIntMap<Integer>(4, 0.8f, HashEngine.LINEAR_PROBING);
+        IdentityMap<Integer, Integer> identityMap = new IdentityMap<Integer, Integer>(4, 0.8f, HashEngine.LINEAR_PROBING);
+        Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+
+        Integer[] boxed = new Integer[2000];
+        for (int i = 0; i < boxed.length; i++) {
+            boxed[i] = new Integer(i);
+        }
+
+        for (int i = 0; i < 100000; i++) {
+            int key = random.nextInt(boxed.length);
+            if (random.nextInt(3) == 0) {
+                Integer old = expected.remove(key);
+                int defaultValue = old == null ? -1 : old;
+                assertEquals(defaultValue, intIntMap.remove(key, -1));
+                assertEquals(old, longMap.remove(key * 0x100000000L));
+                assertEquals(defaultValue, objectIntMap.remove(boxed[key], -1));
+                assertEquals(old, identityMap.remove(boxed[key]));
+            }
+            else {
+                Integer old = expected.get(key);
+                int value = old == null ? 1 : old + 1;
+                expected.put(key, value);
+
+                assertEquals(value - 1, intIntMap.getAndIncrement(key, 0, 1));
+                longMap.put(key * 0x100000000L, value);
+                assertEquals(value - 1, objectIntMap.getAndIncrement(boxed[key], 0, 1));
+                identityMap.put(boxed[key], value);
+            }
+        }
+
+        assertEquals(expected.size(), intIntMap.size);
+        assertEquals(expected.size(), longMap.size);
+        assertEquals(expected.size(), objectIntMap.size);
+        assertEquals(expected.size(), identityMap.size);
+
+        for (int key = 0; key < boxed.length; key++) {
+            Integer value = expected.get(key);
+            assertEquals(value == null ? -1 : value, intIntMap.get(key, -1));
+            assertEquals(value, longMap.get(key * 0x100000000L));
+            assertEquals(value == null ? -1 : value, objectIntMap.get(boxed[key], -1));
+            assertEquals(value, identityMap.get(boxed[key]));
+
+            // identity, not equals
+            assertNull(identityMap.get(new Integer(key)));
+        }
+    }
+
+    /**
+     * Removing keys while iterating shifts back the keys after them, which can wrap around from the start of the table to the end. Every
+     * key must still be iterated exactly once.
+     */
+    @Test
+    public
+    void iteratorRemove() {
+        Random random = new Random(42);
+
+        // the same instance for the same key, for the IdentityMap
+        Integer[] boxed = new Integer[1000];
+        for (int i = 0; i < boxed.length; i++) {
+            boxed[i] = new Integer(i);
+        }
+
+        for (int round = 0; round < 2000; round++) {
+            int count = 1 + random.nextInt(60);
+            Integer[] keys = new Integer[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = boxed[random.nextInt(boxed.length)];
+            }
+            // the same keys are removed from every map
+            long removeSeed = random.nextLong();
+
+            IntMap<Integer> intMap = new IntMap<Integer>(4, 0.9f, HashEngine.LINEAR_PROBING);
+            IntIntMap intIntMap = new IntIntMap(4, 0.9f, HashEngine.LINEAR_PROBING);
+            IntFloatMap intFloatMap = new IntFloatMap(4, 0.9f, HashEngine.LINEAR_PROBING);
+            LongMap<Integer> longMap = new LongMap<Integer>(4, 0.9f, HashEngine.LINEAR_PROBING);
+            ObjectMap<Integer, Integer> objectMap = new ObjectMap<Integer, Integer>(4, 0.9f, HashEngine.LINEAR_PROBING);
+            ObjectIntMap<Integer> objectIntMap = new ObjectIntMap<Integer>(4, 0.9f, HashEngine.LINEAR_PROBING);
+            ObjectFloatMap<Integer> objectFloatMap = new ObjectFloatMap<Integer>(4, 0.9f, HashEngine.LINEAR_PROBING);
+            IdentityMap<Integer, Integer> identityMap = new IdentityMap<Integer, Integer>(4, 0.9f, HashEngine.LINEAR_PROBING);
+
+            for (Integer key : keys) {
+                intMap.put(key, key);
+                intIntMap.put(key, key);
+                intFloatMap.put(key, key);
+                longMap.put(key, key);
+                objectMap.put(key, key);
+                objectIntMap.put(key, key);
+                objectFloatMap.put(key, key);
+                identityMap.put(key, key);
+            }
+
+            Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+            for (Integer key : keys) {
+                expected.put(key, 1);
+            }
+
+            Map<Integer, Integer> visits = new HashMap<Integer, Integer>();
+            Random removes = new Random(removeSeed);
+            IntMap.Keys intKeys = intMap.keys();
+            while (intKeys.hasNext) {
+                int key = intKeys.next();
+                visit(visits, key);
+                if (removes.nextBoolean()) intKeys.remove();
+            }
+            assertVisited(expected, visits, intMap.size, removeSeed);
+
+            visits.clear();
+            removes = new Random(removeSeed);
+            IntIntMap.Keys intIntKeys = intIntMap.keys();
+            while (intIntKeys.hasNext) {
+                visit(visits, intIntKeys.next());
+                if (removes.nextBoolean()) intIntKeys.remove();
+            }
+            assertVisited(expected, visits, intIntMap.size, removeSeed);
+
+            visits.clear();
+            removes = new Random(removeSeed);
+            IntFloatMap.Keys intFloatKeys = intFloatMap.keys();
+            while (intFloatKeys.hasNext) {
+                visit(visits, intFloatKeys.next());
+                if (removes.nextBoolean()) intFloatKeys.remove();
+            }
+            assertVisited(expected, visits, intFloatMap.size, removeSeed);
+
+            visits.clear();
+            removes = new Random(removeSeed);
+            LongMap.Keys longKeys = longMap.keys();
+            while (longKeys.hasNext) {
+                visit(visits, (int) longKeys.next());
+                if (removes.nextBoolean()) longKeys.remove();
+            }
+            assertVisited(expected, visits, longMap.size, removeSeed);
+
+            visits.clear();
+            removes = new Random(removeSeed);
+            ObjectMap.Keys<Integer> objectKeys = objectMap.keys();
+            while (objectKeys.hasNext) {
+                visit(visits, objectKeys.next());
+                if (removes.nextBoolean()) objectKeys.remove();
+            }
+            assertVisited(expected, visits, objectMap.size, removeSeed);
+
+            visits.clear();
+            removes = new Random(removeSeed);
+            ObjectIntMap.Keys<Integer> objectIntKeys = objectIntMap.keys();
+            while (objectIntKeys.hasNext) {
+                visit(visits, objectIntKeys.next());
+                if (removes.nextBoolean()) objectIntKeys.remove();
+            }
+            assertVisited(expected, visits, objectIntMap.size, removeSeed);
+
+            visits.clear();
+            removes = new Random(removeSeed);
+            ObjectFloatMap.Keys<Integer> objectFloatKeys = objectFloatMap.keys();
+            while (objectFloatKeys.hasNext) {
+                visit(visits, objectFloatKeys.next());
+                if (removes.nextBoolean()) objectFloatKeys.remove();
+            }
+            assertVisited(expected, visits, objectFloatMap.size, removeSeed);
+
+            visits.clear();
+            removes = new Random(removeSeed);
+            IdentityMap.Keys<Integer> identityKeys = identityMap.keys();
+            while (identityKeys.hasNext) {
+                visit(visits, identityKeys.next());
+                if (removes.nextBoolean()) identityKeys.remove();
+            }
+            assertVisited(expected, visits, identityMap.size, removeSeed);
+        }
+    }
+
+    private static
+    void visit(final Map<Integer, Integer> visits, final int key) {
+        Integer count = visits.get(key);
+        visits.put(key, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * Every key is visited once, and the keys that are left are the ones that the same random sequence did not remove.
+     */
+    private static
+    void assertVisited(final Map<Integer, Integer> expected, final Map<Integer, Integer> visits, final int size, final long removeSeed) {
+        assertEquals(expected, visits);
+
+        // one random boolean was drawn per visit, and every key that was not removed is left
+        int left = 0;
+        Random removes = new Random(removeSeed);
+        for (int i = 0; i < visits.size(); i++) {
+            if (!removes.nextBoolean()) {
+                left++;
+            }
+        }
+        assertEquals(left, size);
+    }
+
+    /**
+     * clear(int) with a capacity that is not a power of two must still leave a power of two table, otherwise the probing never visits
+     * some of the slots (and a put spins forever).
+     */
+    @Test(timeout = 30000)
+    public
+    void clearNonPowerOfTwo() {
+        IntMap<Integer> intMap = new IntMap<Integer>(4, 0.8f, HashEngine.LINEAR_PROBING);
+        IntIntMap intIntMap = new IntIntMap(4, 0.8f, HashEngine.LINEAR_PROBING);
+        IntFloatMap intFloatMap = new IntFloatMap(4, 0.8f, HashEngine.LINEAR_PROBING);
+        LongMap<Integer> longMap = new LongMap<Integer>(4, 0.8f, HashEngine.LINEAR_PROBING);
+        ObjectMap<Integer, Integer> objectMap = new ObjectMap<Integer, Integer>(4, 0.8f, HashEngine.LINEAR_PROBING);
+        ObjectIntMap<Integer> objectIntMap = new ObjectIntMap<Integer>(4, 0.8f, HashEngine.LINEAR_PROBING);
+        ObjectFloatMap<Integer> objectFloatMap = new ObjectFloatMap<Integer>(4, 0.8f, HashEngine.LINEAR_PROBING);
+        IdentityMap<Integer, Integer> identityMap = new IdentityMap<Integer, Integer>(4, 0.8f, HashEngine.LINEAR_PROBING);
+
+        Integer[] boxed = new Integer[200];
+        for (int i = 0; i < boxed.length; i++) {
+            boxed[i] = i;
+        }
+
+        for (int round = 0; round < 2; round++) {
+            for (Integer key : boxed) {
+                intMap.put(key, key);
+                intIntMap.put(key, key);
+                intFloatMap.put(key, key);
+                longMap.put(key, key);
+                objectMap.put(key, key);
+                objectIntMap.put(key, key);
+                objectFloatMap.put(key, key);
+                identityMap.put(key, key);
+            }
+
+            for (Integer key : boxed) {
+                assertEquals(key, intMap.get(key));
+                assertEquals(key.intValue(), intIntMap.get(key, -1));
+                assertEquals(key, intFloatMap.get(key, -1), 0.0f);
+                assertEquals(key, longMap.get(key));
+                assertEquals(key, objectMap.get(key));
+                assertEquals(key.intValue(), objectIntMap.get(key, -1));
+                assertEquals(key, objectFloatMap.get(key, -1), 0.0f);
+                assertEquals(key, identityMap.get(key));
+            }
+
+            intMap.clear(5);
+            intIntMap.clear(5);
+            intFloatMap.clear(5);
+            longMap.clear(5);
+            objectMap.clear(5);
+            objectIntMap.clear(5);
+            objectFloatMap.clear(5);
+            identityMap.clear(5);
+
+            assertEquals(0, intMap.size);
+            assertEquals(0, identityMap.size);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public
+    void loadFactor() {
+        new IntMap<Object>(16, 1.0f, HashEngine.LINEAR_PROBING);
+    }
+}
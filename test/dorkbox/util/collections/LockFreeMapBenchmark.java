@@ -0,0 +1,189 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Compares the lock-free (snapshot) maps against ConcurrentHashMap for different read/write mixes and thread counts.
+ */
+public
+class LockFreeMapBenchmark {
+    private static final int KEYS = 10000;
+    private static final int OPERATIONS = 2000000;
+
+    private
+    interface MapOps {
+        String name();
+        Object get(int key);
+        void put(int key, Integer value);
+    }
+
+    public static
+    void main(String[] args) throws Exception {
+        final int cpus = Runtime.getRuntime().availableProcessors();
+        final int[] threadCounts = new int[] {1, cpus, cpus * 2};
+
+        // write percentage
+        final int[] writeMixes = new int[] {0, 1, 10, 50};
+
+        // warm-up
+        for (int i = 0; i < 3; i++) {
+            for (MapOps ops : maps()) {
+                run(ops, cpus, 10, false);
+            }
+        }
+
+        for (int writes : writeMixes) {
+            for (int threads : threadCounts) {
+                System.out.println("---- " + threads + " thread(s), " + writes + "% writes");
+                for (MapOps ops : maps()) {
+                    run(ops, threads, writes, true);
+                }
+            }
+        }
+    }
+
+    private static
+    MapOps[] maps() {
+        final LockFreeHashMap<Integer, Integer> lockFreeHashMap = new LockFreeHashMap<Integer, Integer>();
+        final LockFreeIntMap<Integer> lockFreeIntMap = new LockFreeIntMap<Integer>();
+        final Map<Integer, Integer> concurrentHashMap = new ConcurrentHashMap<Integer, Integer>();
+
+        Map<Integer, Integer> initial = new java.util.HashMap<Integer, Integer>();
+        for (int i = 0; i < KEYS; i++) {
+            initial.put(i, i);
+            lockFreeIntMap.put(i, i);
+        }
+        lockFreeHashMap.putAll(initial);
+        concurrentHashMap.putAll(initial);
+
+        return new MapOps[] {
+            new MapOps() {
+                @Override
+                public
+                String name() {
+                    return "ConcurrentHashMap";
+                }
+
+                @Override
+                public
+                Object get(final int key) {
+                    return concurrentHashMap.get(key);
+                }
+
+                @Override
+                public
+                void put(final int key, final Integer value) {
+                    concurrentHashMap.put(key, value);
+                }
+            },
+            new MapOps() {
+                @Override
+                public
+                String name() {
+                    return "LockFreeHashMap";
+                }
+
+                @Override
+                public
+                Object get(final int key) {
+                    return lockFreeHashMap.get(key);
+                }
+
+                @Override
+                public
+                void put(final int key, final Integer value) {
+                    lockFreeHashMap.put(key, value);
+                }
+            },
+            new MapOps() {
+                @Override
+                public
+                String name() {
+                    return "LockFreeIntMap";
+                }
+
+                @Override
+                public
+                Object get(final int key) {
+                    return lockFreeIntMap.get(key);
+                }
+
+                @Override
+                public
+                void put(final int key, final Integer value) {
+                    lockFreeIntMap.put(key, value);
+                }
+            },
+        };
+    }
+
+    private static
+    void run(final MapOps ops, final int threads, final int writePercent, final boolean print) throws InterruptedException {
+        final int perThread = OPERATIONS / threads;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        // the copy-on-write maps are much slower for writes, so there are fewer total operations when writing
+        final int operations = writePercent == 0 ? perThread : perThread / (writePercent * 10);
+
+        for (int t = 0; t < threads; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public
+                void run() {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    Object sink = null;
+                    for (int i = 0; i < operations; i++) {
+                        int key = random.nextInt(KEYS);
+                        if (random.nextInt(100) < writePercent) {
+                            ops.put(key, i);
+                        }
+                        else {
+                            sink = ops.get(key);
+                        }
+                    }
+
+                    if (sink == this) {
+                        System.out.println("impossible");
+                    }
+                    done.countDown();
+                }
+            });
+            thread.start();
+        }
+
+        long startTime = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - startTime;
+
+        if (print) {
+            double opsPerSecond = (operations * (double) threads) / (elapsed / 1000000000.0D);
+            System.out.println(String.format("%-20s %,15.0f ops/s", ops.name(), opsPerSecond));
+        }
+    }
+}
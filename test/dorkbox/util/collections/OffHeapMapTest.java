@@ -0,0 +1,152 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares the off-heap maps against java.util.HashMap (including while they are resizing), and checks that they can be saved and loaded
+ */
+public
+class OffHeapMapTest {
+
+    @Test
+    public
+    void intIntMap() throws Exception {
+        Random random = new Random(42);
+        OffHeapIntIntMap map = new OffHeapIntIntMap(4, 0.8f);
+        Map<Integer, Integer> expected = new HashMap<Integer, Integer>();
+
+        for (int i = 0; i < 200000; i++) {
+            // mostly growing, so that there are many (incremental) resizes
+            int key = random.nextInt(50000) - 100;
+            switch (random.nextInt(4)) {
+                case 0:
+                    Integer removed = expected.remove(key);
+                    assertEquals(removed == null ? -1 : removed, map.remove(key, -1));
+                    break;
+                default:
+                    map.put(key, i);
+                    expected.put(key, i);
+                    break;
+            }
+            assertEquals(expected.size(), map.size());
+
+            int lookup = random.nextInt(50000) - 100;
+            Integer value = expected.get(lookup);
+            assertEquals(value == null ? -1 : value, map.get(lookup, -1));
+            assertEquals(value != null, map.containsKey(lookup));
+        }
+
+        final Map<Integer, Integer> visited = new HashMap<Integer, Integer>();
+        map.forEach(new OffHeapIntIntMap.Visitor() {
+            @Override
+            public
+            void visit(final int key, final int value) {
+                assertEquals(null, visited.put(key, value));
+            }
+        });
+        assertEquals(expected, visited);
+
+        File file = File.createTempFile("offHeapIntIntMap", ".map");
+        try {
+            map.save(file);
+            map.close();
+
+            OffHeapIntIntMap loaded = OffHeapIntIntMap.load(file);
+            assertEquals(expected.size(), loaded.size());
+            for (Map.Entry<Integer, Integer> entry : expected.entrySet()) {
+                assertEquals((int) entry.getValue(), loaded.get(entry.getKey(), -1));
+            }
+
+            // changes to a loaded map are private, and it can be saved over the file it was loaded from
+            assertEquals(0, loaded.getAndIncrement(-200, 0, 5));
+            assertEquals(5, loaded.get(-200, 0));
+            loaded.save(file);
+            loaded.close();
+
+            loaded = OffHeapIntIntMap.load(file);
+            assertEquals(expected.size() + 1, loaded.size());
+            assertEquals(5, loaded.get(-200, 0));
+            loaded.close();
+        } finally {
+            file.delete();
+        }
+
+        try {
+            map.get(1, 0);
+            fail("A closed map must not be usable");
+        } catch (IllegalStateException ignored) {
+        }
+    }
+
+    @Test
+    public
+    void longLongMap() throws Exception {
+        Random random = new Random(42);
+        OffHeapLongLongMap map = new OffHeapLongLongMap(4, 0.75f);
+        Map<Long, Long> expected = new HashMap<Long, Long>();
+
+        for (int i = 0; i < 200000; i++) {
+            long key = (random.nextInt(50000) - 100) * 0x100000001L;
+            switch (random.nextInt(4)) {
+                case 0:
+                    Long removed = expected.remove(key);
+                    assertEquals(removed == null ? -1L : removed, map.remove(key, -1L));
+                    break;
+                default:
+                    map.put(key, i * 3L);
+                    expected.put(key, i * 3L);
+                    break;
+            }
+            assertEquals(expected.size(), map.size());
+        }
+
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            assertEquals((long) entry.getValue(), map.get(entry.getKey(), -1L));
+        }
+
+        map.clear(16);
+        assertTrue(map.isEmpty());
+        assertFalse(map.containsKey(0L));
+
+        File file = File.createTempFile("offHeapLongLongMap", ".map");
+        try {
+            map.put(0L, 7L);
+            map.put(Long.MIN_VALUE, Long.MAX_VALUE);
+            map.save(file);
+            map.close();
+
+            OffHeapLongLongMap loaded = OffHeapLongLongMap.load(file);
+            assertEquals(2, loaded.size());
+            assertEquals(7L, loaded.get(0L, -1L));
+            assertEquals(Long.MAX_VALUE, loaded.get(Long.MIN_VALUE, -1L));
+            loaded.close();
+        } finally {
+            file.delete();
+        }
+    }
+}
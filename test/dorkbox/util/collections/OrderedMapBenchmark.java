@@ -0,0 +1,91 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+/**
+ * Compares OrderedMap and LinkedHashMap when putting, iterating and removing (in random order) a large number of keys.
+ */
+public
+class OrderedMapBenchmark {
+    private static final int SIZE = 1 << 20;
+    private static final int ROUNDS = 5;
+
+    public static
+    void main(String[] args) {
+        Integer[] keys = new Integer[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            keys[i] = i;
+        }
+        Integer[] shuffled = keys.clone();
+        Collections.shuffle(Arrays.asList(shuffled), new Random(42));
+
+        for (int round = 0; round < ROUNDS; round++) {
+            boolean print = round == ROUNDS - 1;
+
+            OrderedMap<Integer, Integer> map = new OrderedMap<Integer, Integer>();
+            long start = System.nanoTime();
+            for (Integer key : keys) {
+                map.put(key, key);
+            }
+            print(print, "OrderedMap put", System.nanoTime() - start, map.size);
+
+            long checksum = 0;
+            start = System.nanoTime();
+            for (ObjectMap.Entry<Integer, Integer> entry : map) {
+                checksum += entry.value;
+            }
+            print(print, "OrderedMap iterate", System.nanoTime() - start, checksum);
+
+            start = System.nanoTime();
+            for (Integer key : shuffled) {
+                map.remove(key);
+            }
+            print(print, "OrderedMap remove", System.nanoTime() - start, map.size);
+
+            LinkedHashMap<Integer, Integer> linkedMap = new LinkedHashMap<Integer, Integer>();
+            start = System.nanoTime();
+            for (Integer key : keys) {
+                linkedMap.put(key, key);
+            }
+            print(print, "LinkedHashMap put", System.nanoTime() - start, linkedMap.size());
+
+            checksum = 0;
+            start = System.nanoTime();
+            for (Integer value : linkedMap.values()) {
+                checksum += value;
+            }
+            print(print, "LinkedHashMap iterate", System.nanoTime() - start, checksum);
+
+            start = System.nanoTime();
+            for (Integer key : shuffled) {
+                linkedMap.remove(key);
+            }
+            print(print, "LinkedHashMap remove", System.nanoTime() - start, linkedMap.size());
+        }
+    }
+
+    private static
+    void print(final boolean print, final String name, final long nanos, final long checksum) {
+        if (print) {
+            System.out.println(String.format("%-22s %,15.0f ops/s  (checksum %d)", name, SIZE / (nanos / 1000000000.0D), checksum));
+        }
+    }
+}
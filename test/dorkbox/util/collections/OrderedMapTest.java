@@ -0,0 +1,290 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares OrderedMap and OrderedSet (which are "compact dicts") against LinkedHashMap and LinkedHashSet
+ */
+public
+class OrderedMapTest {
+    @Test
+    public
+    void orderedMap() {
+        Random random = new Random(42);
+        // a small load factor, so that growing and compacting happen often
+        OrderedMap<Integer, String> map = new OrderedMap<Integer, String>(0, 0.5f);
+        LinkedHashMap<Integer, String> expected = new LinkedHashMap<Integer, String>();
+
+        for (int i = 0; i < 20000; i++) {
+            int operation = random.nextInt(20);
+            Integer key = random.nextInt(300);
+
+            if (operation < 9) {
+                String value = Integer.toString(i);
+                String previous = expected.containsKey(key) ? expected.put(key, value) : putNew(expected, key, value);
+                assertEquals(previous, map.put(key, value));
+            }
+            else if (operation < 14) {
+                assertEquals(expected.remove(key), map.remove(key));
+            }
+            else if (operation < 16) {
+                if (!expected.isEmpty()) {
+                    int index = random.nextInt(expected.size());
+                    Integer removed = new ArrayList<Integer>(expected.keySet()).get(index);
+                    assertEquals(expected.remove(removed), map.removeIndex(index));
+                }
+            }
+            else if (operation == 16) {
+                // remove every third entry while iterating
+                Iterator<Map.Entry<Integer, String>> iterator = expected.entrySet().iterator();
+                ObjectMap.Entries<Integer, String> entries = map.entries();
+                int count = 0;
+                while (iterator.hasNext()) {
+                    Map.Entry<Integer, String> entry = iterator.next();
+                    assertTrue(entries.hasNext());
+                    ObjectMap.Entry<Integer, String> mapEntry = entries.next();
+                    assertEquals(entry.getKey(), mapEntry.key);
+                    assertEquals(entry.getValue(), mapEntry.value);
+                    if (count++ % 3 == 0) {
+                        iterator.remove();
+                        entries.remove();
+                    }
+                }
+                assertFalse(entries.hasNext());
+            }
+            else if (operation == 17) {
+                assertEquals(expected.get(key), map.get(key));
+                assertEquals(expected.containsKey(key), map.containsKey(key));
+            }
+            else if (operation == 18) {
+                if (random.nextInt(50) == 0) {
+                    expected.clear();
+                    map.clear(random.nextInt(10));
+                }
+                else {
+                    map.shrink(random.nextInt(100));
+                }
+            }
+            else {
+                assertOrder(expected, map);
+            }
+
+            assertEquals(expected.size(), map.size);
+        }
+
+        assertOrder(expected, map);
+
+        // the copies keep the order (ObjectMap doesn't, but has the same entries)
+        assertOrder(expected, new OrderedMap<Integer, String>(map));
+        ObjectMap<Integer, String> copy = new ObjectMap<Integer, String>(map);
+        assertEquals(expected.size(), copy.size);
+        for (Map.Entry<Integer, String> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), copy.get(entry.getKey()));
+        }
+        assertTrue(copy.equals(map));
+        assertTrue(map.equals(copy));
+        assertEquals(copy.hashCode(), map.hashCode());
+    }
+
+    @Test
+    public
+    void orderedSet() {
+        Random random = new Random(42);
+        OrderedSet<String> set = new OrderedSet<String>(4);
+        LinkedHashSet<String> expected = new LinkedHashSet<String>();
+
+        for (int i = 0; i < 20000; i++) {
+            int operation = random.nextInt(10);
+            String key = "key" + random.nextInt(300);
+
+            if (operation < 4) {
+                assertEquals(expected.add(key), set.add(key));
+            }
+            else if (operation < 7) {
+                assertEquals(expected.remove(key), set.remove(key));
+            }
+            else if (operation == 7) {
+                if (!expected.isEmpty()) {
+                    int index = random.nextInt(expected.size());
+                    String removed = new ArrayList<String>(expected).get(index);
+                    expected.remove(removed);
+                    assertEquals(removed, set.removeIndex(index));
+                }
+            }
+            else if (operation == 8) {
+                Iterator<String> iterator = expected.iterator();
+                ObjectSet.ObjectSetIterator<String> setIterator = set.iterator();
+                int count = 0;
+                while (iterator.hasNext()) {
+                    assertEquals(iterator.next(), setIterator.next());
+                    if (count++ % 4 == 0) {
+                        iterator.remove();
+                        setIterator.remove();
+                    }
+                }
+                assertFalse(setIterator.hasNext());
+            }
+            else {
+                assertEquals(expected.contains(key), set.contains(key));
+                assertOrder(expected, set);
+            }
+
+            assertEquals(expected.size(), set.size);
+        }
+
+        assertOrder(expected, set);
+        assertOrder(expected, new OrderedSet<String>(set));
+
+        ObjectSet<String> copy = new ObjectSet<String>(set);
+        assertEquals(expected.size(), copy.size);
+        assertTrue(copy.equals(set));
+        assertTrue(set.equals(copy));
+        assertEquals(copy.hashCode(), set.hashCode());
+    }
+
+    @Test
+    public
+    void reorder() {
+        OrderedSet<String> set = new OrderedSet<String>();
+        set.add("a");
+        set.add("b");
+        set.add("c");
+        set.remove("a");
+
+        // moves "c" to the front, and "d" is new
+        assertFalse(set.add("c", 0));
+        assertTrue(set.add("d", 1));
+        assertEquals("{c, d, b}", set.toString());
+        assertEquals("c", set.first());
+
+        // the ordered items are a copy
+        set.orderedItems().add("e");
+        assertFalse(set.contains("e"));
+        assertEquals(3, set.orderedItems().size);
+
+        OrderedMap<String, Integer> map = new OrderedMap<String, Integer>();
+        map.put("x", 1);
+        map.put("y", 2);
+        map.put("z", 3);
+        map.remove("x");
+        map.put("x", 4);
+        assertEquals("{y=2, z=3, x=4}", map.toString());
+        assertEquals(Integer.valueOf(3), map.removeIndex(1));
+        assertEquals("y", map.orderedKeys().first());
+        assertNull(map.get("z"));
+    }
+
+    @Test
+    public
+    void moveAndSort() {
+        OrderedMap<String, Integer> map = new OrderedMap<String, Integer>();
+        for (String key : new String[] {"d", "a", "x", "c", "b"}) {
+            map.put(key, key.charAt(0) - 'a');
+        }
+        // leaves a gap
+        map.remove("x");
+
+        map.move(0, 3);
+        assertEquals("{a=0, c=2, b=1, d=3}", map.toString());
+        map.move(2, 0);
+        assertEquals("{b=1, a=0, c=2, d=3}", map.toString());
+
+        map.sort(null);
+        assertEquals("{a=0, b=1, c=2, d=3}", map.toString());
+        map.sort(Collections.<String>reverseOrder());
+        assertEquals("{d=3, c=2, b=1, a=0}", map.toString());
+
+        // the keys are still found after changing the order
+        assertEquals(Integer.valueOf(2), map.get("c"));
+        assertEquals(Integer.valueOf(3), map.remove("d"));
+        map.put("e", 4);
+        assertEquals("{c=2, b=1, a=0, e=4}", map.toString());
+
+        OrderedSet<String> set = new OrderedSet<String>();
+        for (String item : new String[] {"d", "a", "x", "c", "b"}) {
+            set.add(item);
+        }
+        set.remove("x");
+
+        set.move(3, 0);
+        assertEquals("{b, d, a, c}", set.toString());
+        set.sort(null);
+        assertEquals("{a, b, c, d}", set.toString());
+        assertTrue(set.contains("c"));
+        assertFalse(set.contains("x"));
+    }
+
+    private static
+    String putNew(final LinkedHashMap<Integer, String> map, final Integer key, final String value) {
+        map.put(key, value);
+        return null;
+    }
+
+    private static
+    void assertOrder(final LinkedHashMap<Integer, String> expected, final OrderedMap<Integer, String> map) {
+        List<Integer> keys = new ArrayList<Integer>(expected.keySet());
+        Array<Integer> orderedKeys = map.orderedKeys();
+        assertEquals(keys.size(), orderedKeys.size);
+        for (int i = 0; i < keys.size(); i++) {
+            assertEquals(keys.get(i), orderedKeys.get(i));
+            assertEquals(expected.get(keys.get(i)), map.get(keys.get(i)));
+        }
+
+        int i = 0;
+        for (Integer key : map.keys()) {
+            assertEquals(keys.get(i++), key);
+        }
+        assertEquals(keys.size(), i);
+
+        i = 0;
+        for (String value : map.values()) {
+            assertEquals(expected.get(keys.get(i++)), value);
+        }
+        assertEquals(keys.size(), i);
+    }
+
+    private static
+    void assertOrder(final LinkedHashSet<String> expected, final OrderedSet<String> set) {
+        List<String> items = new ArrayList<String>(expected);
+        Array<String> orderedItems = set.orderedItems();
+        assertEquals(items.size(), orderedItems.size);
+        for (int i = 0; i < items.size(); i++) {
+            assertEquals(items.get(i), orderedItems.get(i));
+        }
+
+        int i = 0;
+        for (String item : set) {
+            assertEquals(items.get(i++), item);
+        }
+        assertEquals(items.size(), i);
+    }
+}
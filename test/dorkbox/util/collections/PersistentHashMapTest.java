@@ -0,0 +1,279 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public
+class PersistentHashMapTest {
+
+    // forces hash collisions, so the collision nodes are exercised as well
+    private static final
+    class BadHash {
+        private final int value;
+
+        BadHash(final int value) {
+            this.value = value;
+        }
+
+        @Override
+        public
+        int hashCode() {
+            return value % 7;
+        }
+
+        @Override
+        public
+        boolean equals(final Object o) {
+            return o instanceof BadHash && ((BadHash) o).value == value;
+        }
+    }
+
+    @Test
+    public
+    void randomOperations() {
+        Random random = new Random(42);
+        Map<Object, Integer> expected = new HashMap<Object, Integer>();
+        PersistentHashMap<Object, Integer> map = PersistentHashMap.empty();
+
+        for (int i = 0; i < 200000; i++) {
+            int value = random.nextInt(5000);
+            Object key;
+            switch (random.nextInt(3)) {
+                case 0: key = value; break;
+                case 1: key = new BadHash(value); break;
+                default: key = value == 0 ? null : "key" + value; break;
+            }
+
+            if (random.nextInt(3) == 0) {
+                PersistentHashMap<Object, Integer> previous = map;
+                map = map.without(key);
+                expected.remove(key);
+
+                assertFalse(map.containsKey(key));
+                if (previous.containsKey(key)) {
+                    // the old version is never changed
+                    assertEquals(previous.size() - 1, map.size());
+                }
+            }
+            else {
+                map = map.with(key, i);
+                expected.put(key, i);
+                assertEquals(Integer.valueOf(i), map.get(key));
+            }
+        }
+
+        assertEquals(expected, map);
+        assertEquals(map, expected);
+        assertEquals(expected.hashCode(), map.hashCode());
+    }
+
+    @Test
+    public
+    void builder() {
+        PersistentHashMap<Integer, String> original = PersistentHashMap.empty();
+        original = original.with(1, "one").with(2, "two");
+
+        PersistentHashMap.Builder<Integer, String> builder = original.toBuilder();
+        for (int i = 3; i < 1000; i++) {
+            builder.put(i, Integer.toString(i));
+        }
+        builder.remove(1);
+        PersistentHashMap<Integer, String> built = builder.build();
+
+        // the original snapshot is untouched
+        assertEquals(2, original.size());
+        assertEquals("one", original.get(1));
+
+        assertEquals(998, built.size());
+        assertNull(built.get(1));
+        assertEquals("999", built.get(999));
+
+        // changing the builder after build() must not change the built map
+        builder.put(5000, "5000");
+        assertFalse(built.containsKey(5000));
+
+        // no-op changes return the same instance
+        assertSame(built, built.with(2, "two"));
+        assertSame(built, built.without(-1));
+
+        // a null key (even with a null value) is a change
+        PersistentHashMap<Integer, String> before = builder.build();
+        builder.put(null, null);
+        PersistentHashMap<Integer, String> withNull = builder.build();
+        assertFalse(before.containsKey(null));
+        assertTrue(withNull.containsKey(null));
+        assertEquals(before.size() + 1, withNull.size());
+    }
+
+    @Test
+    public
+    void intMapRandomOperations() {
+        Random random = new Random(42);
+        IntMap<Integer> expected = new IntMap<Integer>();
+        PersistentIntMap<Integer> map = PersistentIntMap.empty();
+
+        for (int i = 0; i < 200000; i++) {
+            // a small range (so keys are removed and re-added), and some keys that share the low bits
+            int key = random.nextBoolean() ? random.nextInt(3000) - 1000 : random.nextInt(64) << 20;
+
+            if (random.nextInt(3) == 0) {
+                PersistentIntMap<Integer> previous = map;
+                map = map.without(key);
+
+                assertEquals(expected.containsKey(key), previous.containsKey(key));
+                assertEquals(expected.remove(key), previous.get(key));
+                assertFalse(map.containsKey(key));
+
+                // the old version is never changed
+                assertEquals(previous.containsKey(key) ? previous.size() - 1 : previous.size(), map.size());
+            }
+            else {
+                Integer value = random.nextInt(10) == 0 ? null : i;
+                map = map.with(key, value);
+                expected.put(key, value);
+
+                assertTrue(map.containsKey(key));
+                assertEquals(value, map.get(key));
+            }
+            assertEquals(expected.size, map.size());
+        }
+
+        // every entry is visited exactly once
+        IntMap<Integer> visited = new IntMap<Integer>();
+        PersistentIntMap.Cursor<Integer> cursor = map.cursor();
+        while (cursor.advance()) {
+            assertFalse(visited.containsKey(cursor.key()));
+            visited.put(cursor.key(), cursor.value());
+        }
+        assertEquals(expected, visited);
+        assertEquals(expected, map.iterable());
+        assertEquals(expected.hashCode(), map.hashCode());
+
+        // removing everything collapses the trie back to an empty map
+        cursor.reset();
+        PersistentIntMap<Integer> empty = map;
+        while (cursor.advance()) {
+            empty = empty.without(cursor.key());
+        }
+        assertSame(PersistentIntMap.empty(), empty);
+        assertEquals(expected.size, map.size());
+
+        // no-op changes return the same instance
+        assertSame(map, map.without(5000));
+        cursor.reset();
+        assertTrue(cursor.advance());
+        assertSame(map, map.with(cursor.key(), cursor.value()));
+    }
+
+    @Test
+    public
+    void snapshotIterators() {
+        LockFreeIntMap<Integer> intMap = new LockFreeIntMap<Integer>();
+        LockFreeObjectMap<Integer, Integer> objectMap = new LockFreeObjectMap<Integer, Integer>();
+        for (int i = 0; i < 100; i++) {
+            intMap.put(i, i);
+            objectMap.put(i, i);
+        }
+
+        // every call gets its own iterator, so they can be nested (or used by different threads)
+        int count = 0;
+        for (IntMap.Keys outer = intMap.keys(); outer.hasNext; outer.next()) {
+            for (IntMap.Keys inner = intMap.keys(); inner.hasNext; inner.next()) {
+                count++;
+            }
+        }
+        assertEquals(100 * 100, count);
+
+        count = 0;
+        for (Object ignored : objectMap.keys()) {
+            for (Object ignored2 : objectMap.values()) {
+                count++;
+            }
+        }
+        assertEquals(100 * 100, count);
+
+        // the snapshot cannot be modified through the iterators
+        IntMap.Entries<Integer> entries = intMap.entries();
+        entries.next();
+        try {
+            entries.remove();
+            fail("Snapshot iterators must not support remove");
+        } catch (UnsupportedOperationException ignored) {
+        }
+
+        ObjectMap.Keys<Integer> keys = objectMap.keys();
+        keys.next();
+        try {
+            keys.remove();
+            fail("Snapshot iterators must not support remove");
+        } catch (UnsupportedOperationException ignored) {
+        }
+
+        assertEquals(100, intMap.values().toArray().size);
+        assertEquals(100, objectMap.keys().toArray().size);
+    }
+
+    @Test
+    public
+    void biMapInverse() {
+        LockFreeBiMap<String, Integer> biMap = new LockFreeBiMap<String, Integer>();
+        biMap.put("one", 1);
+        biMap.put("two", 2);
+
+        try {
+            biMap.put("three", 1);
+            fail("Duplicate value should not be permitted");
+        } catch (IllegalArgumentException ignored) {
+        }
+
+        assertEquals(2, biMap.values().size());
+        assertEquals("one", biMap.inverse().get(1));
+
+        biMap.inverse().putForce(1, "uno");
+        assertNull(biMap.get("one"));
+        assertEquals(Integer.valueOf(1), biMap.get("uno"));
+        assertEquals(2, biMap.inverse().values().size());
+
+        LockFreeIntBiMap<String> intBiMap = new LockFreeIntBiMap<String>();
+        intBiMap.put(1, "one");
+        intBiMap.inverse().put("two", 2);
+        assertEquals("two", intBiMap.get(2));
+
+        intBiMap.putForce(3, "one");
+        assertNull(intBiMap.get(1));
+        assertEquals(3, intBiMap.inverse().get("one"));
+        assertEquals(2, intBiMap.inverse().size());
+
+        try {
+            intBiMap.inverse().put("three", 2);
+            fail("Duplicate value should not be permitted");
+        } catch (IllegalArgumentException ignored) {
+        }
+        assertTrue(intBiMap.inverse().get("three") == Integer.MIN_VALUE);
+    }
+}
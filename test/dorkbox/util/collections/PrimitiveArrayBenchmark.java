@@ -0,0 +1,135 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import java.util.Random;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Measures the bulk operations of the primitive arrays (which should be compiled into vector instructions), removeAll with
+ * the counted and the linear implementation, and the packed BooleanArray.
+ */
+public
+class PrimitiveArrayBenchmark {
+    private static final int SIZE = 1 << 20;
+    private static final int ROUNDS = 10;
+
+    private static final IntUnaryOperator TIMES_THREE = new IntUnaryOperator() {
+        @Override
+        public
+        int applyAsInt(final int operand) {
+            return operand * 3;
+        }
+    };
+
+    private static final IntPredicate EVEN = new IntPredicate() {
+        @Override
+        public
+        boolean test(final int value) {
+            return (value & 1) == 0;
+        }
+    };
+
+    public static
+    void main(String[] args) {
+        Random random = new Random(42);
+        IntArray array = new IntArray(SIZE);
+        for (int i = 0; i < SIZE; i++) {
+            array.add(random.nextInt());
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            boolean print = round == ROUNDS - 1;
+            long checksum = 0;
+
+            long start = System.nanoTime();
+            checksum += array.sum();
+            print(print, "sum", System.nanoTime() - start, SIZE, checksum);
+
+            start = System.nanoTime();
+            checksum += array.min() + array.max();
+            print(print, "min + max", System.nanoTime() - start, SIZE * 2, checksum);
+
+            IntArray copy = new IntArray(array);
+            start = System.nanoTime();
+            copy.mapInPlace(TIMES_THREE);
+            print(print, "mapInPlace", System.nanoTime() - start, SIZE, copy.items[0]);
+
+            start = System.nanoTime();
+            copy.filterInPlace(EVEN);
+            print(print, "filterInPlace", System.nanoTime() - start, SIZE, copy.size);
+
+            IntArray sorted1 = new IntArray(array);
+            IntArray sorted2 = new IntArray(copy);
+            sorted1.sort();
+            sorted2.sort();
+            start = System.nanoTime();
+            checksum += sorted1.union(sorted2).size + sorted1.intersect(sorted2).size + sorted1.difference(sorted2).size;
+            print(print, "union/intersect/diff", System.nanoTime() - start, (SIZE + sorted2.size) * 3, checksum);
+        }
+
+        // removeAll, where the old implementation is O(n * m)
+        for (int round = 0; round < ROUNDS; round++) {
+            boolean print = round == ROUNDS - 1;
+            IntArray items = new IntArray(SIZE / 16);
+            IntArray remove = new IntArray(SIZE / 64);
+            for (int i = 0; i < SIZE / 16; i++) {
+                items.add(random.nextInt(10000));
+            }
+            for (int i = 0; i < SIZE / 64; i++) {
+                remove.add(random.nextInt(20000));
+            }
+
+            IntArray linear = new IntArray(items);
+            long start = System.nanoTime();
+            for (int i = 0; i < remove.size; i++) {
+                linear.removeValue(remove.get(i));
+            }
+            print(print, "removeValue loop", System.nanoTime() - start, remove.size, linear.size);
+
+            start = System.nanoTime();
+            items.removeAll(remove);
+            print(print, "removeAll", System.nanoTime() - start, remove.size, items.size);
+        }
+
+        for (int round = 0; round < ROUNDS; round++) {
+            boolean print = round == ROUNDS - 1;
+            for (boolean packed : new boolean[] {false, true}) {
+                BooleanArray booleans = new BooleanArray(true, 0, packed);
+                long start = System.nanoTime();
+                for (int i = 0; i < SIZE; i++) {
+                    booleans.add((i % 3) == 0);
+                }
+                int count = booleans.count(true);
+                String name = packed ? "packed booleans" : "booleans";
+                print(print, name, System.nanoTime() - start, SIZE, count);
+
+                if (print) {
+                    long bytes = packed ? booleans.bits.length * 8L : booleans.items.length;
+                    System.out.println(String.format("%-22s %,15d bytes", name, bytes));
+                }
+            }
+        }
+    }
+
+    private static
+    void print(final boolean print, final String name, final long nanos, final int operations, final long checksum) {
+        if (print) {
+            System.out.println(String.format("%-22s %,15.0f items/s  (checksum %d)", name, operations / (nanos / 1000000000.0D), checksum));
+        }
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.function.IntPredicate;
+import java.util.function.IntUnaryOperator;
+
+import org.junit.Test;
+
+/**
+ * Compares the bulk operations of the primitive arrays (and the packed BooleanArray) against simple implementations
+ */
+public
+class PrimitiveArrayTest {
+    @Test
+    public
+    void bulkOperations() {
+        IntArray array = IntArray.with(5, -3, 8, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        assertEquals(5L - 3 + 8 + 2L * Integer.MAX_VALUE, array.sum());
+        assertEquals(-3, array.min());
+        assertEquals(Integer.MAX_VALUE, array.max());
+
+        array.mapInPlace(new IntUnaryOperator() {
+            @Override
+            public
+            int applyAsInt(final int operand) {
+                return operand / 2;
+            }
+        });
+        assertArrayEquals(new int[] {2, -1, 4, 0, Integer.MAX_VALUE / 2, Integer.MAX_VALUE / 2}, array.toArray());
+
+        assertTrue(array.filterInPlace(new IntPredicate() {
+            @Override
+            public
+            boolean test(final int value) {
+                return value % 2 == 0;
+            }
+        }));
+        assertArrayEquals(new int[] {2, 4, 0}, array.toArray());
+
+        FloatArray floats = FloatArray.with(1.5f, -2.0f, 4.0f);
+        assertEquals(3.5, floats.sum(), 0.0);
+        assertEquals(-2.0f, floats.min(), 0.0f);
+        assertEquals(4.0f, floats.max(), 0.0f);
+
+        ByteArray bytes = ByteArray.with((byte) 100, (byte) 100, (byte) -128);
+        assertEquals(72, bytes.sum());
+        assertEquals(-128, bytes.min());
+
+        CharArray chars = CharArray.with('z', 'a', 'm');
+        assertEquals('a', chars.min());
+        assertEquals('z', chars.max());
+
+        LongArray longs = LongArray.with(Long.MIN_VALUE, 7);
+        assertEquals(Long.MIN_VALUE, longs.min());
+        assertEquals(7, longs.max());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public
+    void minOfEmpty() {
+        new IntArray().min();
+    }
+
+    @Test
+    public
+    void sortedSetOperations() {
+        Random random = new Random(42);
+
+        for (int i = 0; i < 200; i++) {
+            IntArray array1 = random(random, random.nextInt(50), 40);
+            IntArray array2 = random(random, random.nextInt(50), 40);
+            array1.sort();
+            array2.sort();
+
+            TreeSet<Integer> union = set(array1);
+            union.addAll(set(array2));
+            assertArrayEquals(toArray(union), array1.union(array2).toArray());
+
+            TreeSet<Integer> intersect = set(array1);
+            intersect.retainAll(set(array2));
+            assertArrayEquals(toArray(intersect), array1.intersect(array2).toArray());
+
+            TreeSet<Integer> difference = set(array1);
+            difference.removeAll(set(array2));
+            assertArrayEquals(toArray(difference), array1.difference(array2).toArray());
+        }
+
+        FloatArray floats1 = FloatArray.with(-1.0f, 0.0f, 2.0f, Float.NaN);
+        FloatArray floats2 = FloatArray.with(-0.0f, 2.0f, Float.NaN);
+        assertArrayEquals(new float[] {-1.0f, -0.0f, 0.0f, 2.0f, Float.NaN}, floats1.union(floats2).toArray(), 0.0f);
+        assertArrayEquals(new float[] {2.0f, Float.NaN}, floats1.intersect(floats2).toArray(), 0.0f);
+    }
+
+    @Test
+    public
+    void removeAll() {
+        Random random = new Random(42);
+
+        // both the linear scan (small arrays) and the counted version (large arrays)
+        for (int removeSize : new int[] {0, 5, 15, 16, 100, 2000}) {
+            IntArray array = random(random, 1000, 50);
+            IntArray remove = random(random, removeSize, 60);
+
+            List<Integer> expected = new ArrayList<Integer>();
+            for (int i = 0; i < array.size; i++) {
+                expected.add(array.get(i));
+            }
+            for (int i = 0; i < remove.size; i++) {
+                expected.remove(Integer.valueOf(remove.get(i)));
+            }
+
+            boolean modified = array.removeAll(remove);
+            assertEquals(expected.size() != 1000, modified);
+
+            int[] expectedArray = new int[expected.size()];
+            for (int i = 0; i < expectedArray.length; i++) {
+                expectedArray[i] = expected.get(i);
+            }
+            assertArrayEquals(expectedArray, array.toArray());
+
+            LongArray longs = new LongArray();
+            ByteArray bytes = new ByteArray();
+            CharArray chars = new CharArray();
+            FloatArray floats = new FloatArray();
+            for (int i = 0; i < 1000; i++) {
+                int value = random.nextInt(50);
+                longs.add(value * 0x100000000L);
+                bytes.add((byte) value);
+                chars.add((char) value);
+                floats.add(value == 0 ? -0.0f : value);
+            }
+            LongArray removeLongs = new LongArray();
+            ByteArray removeBytes = new ByteArray();
+            CharArray removeChars = new CharArray();
+            FloatArray removeFloats = new FloatArray();
+            for (int i = 0; i < removeSize; i++) {
+                int value = random.nextInt(60);
+                removeLongs.add(value * 0x100000000L);
+                removeBytes.add((byte) value);
+                removeChars.add((char) value);
+                removeFloats.add(value == 59 ? Float.NaN : value);
+            }
+
+            LongArray linearLongs = new LongArray(longs);
+            ByteArray linearBytes = new ByteArray(bytes);
+            CharArray linearChars = new CharArray(chars);
+            FloatArray linearFloats = new FloatArray(floats);
+            for (int i = 0; i < removeSize; i++) {
+                linearLongs.removeValue(removeLongs.get(i));
+                linearBytes.removeValue(removeBytes.get(i));
+                linearChars.removeValue(removeChars.get(i));
+                linearFloats.removeValue(removeFloats.get(i));
+            }
+            longs.removeAll(removeLongs);
+            bytes.removeAll(removeBytes);
+            chars.removeAll(removeChars);
+            floats.removeAll(removeFloats);
+            assertArrayEquals(linearLongs.toArray(), longs.toArray());
+            assertArrayEquals(linearBytes.toArray(), bytes.toArray());
+            assertArrayEquals(linearChars.toArray(), chars.toArray());
+            assertArrayEquals(linearFloats.toArray(), floats.toArray(), 0.0f);
+        }
+    }
+
+    @Test
+    public
+    void packedBooleanArray() {
+        Random random = new Random(42);
+        BooleanArray packed = new BooleanArray(true, 0, true);
+        BooleanArray unpacked = new BooleanArray(true, 0);
+
+        for (int i = 0; i < 5000; i++) {
+            int operation = random.nextInt(10);
+            boolean value = random.nextBoolean();
+
+            if (operation < 5 || unpacked.size == 0) {
+                packed.add(value);
+                unpacked.add(value);
+            }
+            else if (operation == 5) {
+                int index = random.nextInt(unpacked.size + 1);
+                packed.insert(index, value);
+                unpacked.insert(index, value);
+            }
+            else if (operation == 6) {
+                int index = random.nextInt(unpacked.size);
+                assertEquals(unpacked.removeIndex(index), packed.removeIndex(index));
+            }
+            else if (operation == 7) {
+                int start = random.nextInt(unpacked.size);
+                int end = start + random.nextInt(Math.min(100, unpacked.size - start));
+                packed.removeRange(start, end);
+                unpacked.removeRange(start, end);
+            }
+            else if (operation == 8) {
+                boolean[] values = new boolean[random.nextInt(150)];
+                for (int j = 0; j < values.length; j++) {
+                    values[j] = random.nextBoolean();
+                }
+                packed.addAll(BooleanArray.packedWith(values));
+                unpacked.addAll(values);
+            }
+            else {
+                int index = random.nextInt(unpacked.size);
+                packed.set(index, value);
+                unpacked.set(index, value);
+            }
+
+            assertEquals(unpacked.size, packed.size);
+            assertEquals(unpacked.count(true), packed.count(true));
+        }
+
+        assertArrayEquals(unpacked.toArray(), packed.toArray());
+        assertTrue(unpacked.equals(packed));
+        assertEquals(unpacked.hashCode(), packed.hashCode());
+        assertEquals(unpacked.toString(), packed.toString());
+        assertEquals(unpacked.toString(), new BooleanArray(packed).toString());
+
+        // 1/8 of the memory
+        assertTrue(packed.bits.length * 8 <= unpacked.items.length / 8 + 8);
+
+        BooleanArray remove = BooleanArray.with(true, true, false);
+        packed.removeAll(remove);
+        unpacked.removeAll(remove);
+        assertArrayEquals(unpacked.toArray(), packed.toArray());
+
+        packed.reverse();
+        unpacked.reverse();
+        assertArrayEquals(unpacked.toArray(), packed.toArray());
+
+        packed.shrink();
+        assertEquals((packed.size + 63) / 64, packed.bits.length);
+        assertFalse(packed.isEmpty());
+    }
+
+    private static
+    IntArray random(final Random random, final int size, final int bound) {
+        IntArray array = new IntArray(size);
+        for (int i = 0; i < size; i++) {
+            array.add(random.nextInt(bound));
+        }
+        return array;
+    }
+
+    private static
+    TreeSet<Integer> set(final IntArray array) {
+        TreeSet<Integer> set = new TreeSet<Integer>();
+        for (int i = 0; i < array.size; i++) {
+            set.add(array.get(i));
+        }
+        return set;
+    }
+
+    private static
+    int[] toArray(final TreeSet<Integer> set) {
+        int[] array = new int[set.size()];
+        int i = 0;
+        for (Integer value : set) {
+            array[i++] = value;
+        }
+        return array;
+    }
+}
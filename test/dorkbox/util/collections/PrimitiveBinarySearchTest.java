@@ -0,0 +1,136 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares LongBinarySearch and IntBinarySearch against a linear scan of the sorted values
+ */
+public
+class PrimitiveBinarySearchTest {
+    private static
+    int expected(final long[] sorted, final long value, final Bias bias) {
+        int ceiling = -1;
+        int floor = -1;
+        for (int i = 0; i < sorted.length; i++) {
+            if (ceiling == -1 && sorted[i] >= value) {
+                ceiling = i;
+            }
+            if (sorted[i] <= value) {
+                floor = i;
+            }
+        }
+
+        switch (bias) {
+            case FORWARD:
+                return ceiling;
+            case BACKWARD:
+                return floor;
+            case NONE:
+                return ceiling != -1 && sorted[ceiling] == value ? ceiling : -1;
+            default:
+                if (ceiling == -1 || floor == -1 || sorted[ceiling] == value) {
+                    return ceiling == -1 ? floor : ceiling;
+                }
+                // ties go to the next element
+                return value - sorted[floor] < sorted[ceiling] - value ? floor : ceiling;
+        }
+    }
+
+    @Test
+    public
+    void searchLongs() {
+        Random random = new Random(42);
+
+        for (int size = 0; size < 70; size++) {
+            for (int bound : new int[] {3, 1000}) {
+                long[] sorted = new long[size];
+                for (int i = 0; i < size; i++) {
+                    sorted[i] = random.nextInt(bound) * 2L;
+                }
+                Arrays.sort(sorted);
+                LongBinarySearch search = new LongBinarySearch(sorted);
+
+                long[] values = new long[bound * 2 + 4];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = i - 2;
+                }
+
+                int[] results = new int[values.length];
+                for (Bias bias : Bias.values()) {
+                    int[] expected = new int[values.length];
+                    for (int i = 0; i < values.length; i++) {
+                        expected[i] = expected(sorted, values[i], bias);
+                        assertEquals(expected[i], search.search(values[i], bias));
+                    }
+
+                    search.searchAll(values, bias, results);
+                    assertArrayEquals(expected, results);
+                }
+            }
+        }
+    }
+
+    @Test
+    public
+    void searchInts() {
+        Random random = new Random(42);
+
+        int[] sorted = new int[5000];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = random.nextInt();
+        }
+        sorted[0] = Integer.MIN_VALUE;
+        sorted[1] = Integer.MAX_VALUE;
+        Arrays.sort(sorted);
+
+        long[] asLongs = new long[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            asLongs[i] = sorted[i];
+        }
+
+        IntBinarySearch search = new IntBinarySearch(sorted);
+        int[] values = new int[2000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i % 2 == 0 ? random.nextInt() : sorted[random.nextInt(sorted.length)];
+        }
+        values[0] = Integer.MIN_VALUE;
+        values[1] = Integer.MAX_VALUE;
+
+        int[] results = new int[values.length];
+        for (Bias bias : Bias.values()) {
+            search.searchAll(values, bias, results);
+            for (int i = 0; i < values.length; i++) {
+                int expected = expected(asLongs, values[i], bias);
+                assertEquals(expected, search.search(values[i], bias));
+                assertEquals(expected, results[i]);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public
+    void unsorted() {
+        new LongBinarySearch(new long[] {1, 3, 2});
+    }
+}
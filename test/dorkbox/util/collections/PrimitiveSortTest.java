@@ -0,0 +1,192 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+/**
+ * Compares the primitive sorting and selection against Arrays.sort
+ */
+public
+class PrimitiveSortTest {
+    private static final int[] SIZES = new int[] {0, 1, 7, 511, 512, 5000, 200000};
+
+    @Test
+    public
+    void sortInts() {
+        Random random = new Random(42);
+        PrimitiveSort sort = new PrimitiveSort();
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        for (int size : SIZES) {
+            for (int bound : new int[] {0, 10, Integer.MAX_VALUE}) {
+                int[] items = new int[size];
+                for (int i = 0; i < size; i++) {
+                    items[i] = bound == Integer.MAX_VALUE ? random.nextInt() : random.nextInt(bound + 1) - bound / 2;
+                }
+
+                int[] expected = items.clone();
+                Arrays.sort(expected);
+
+                int[] sorted = items.clone();
+                sort.sort(sorted);
+                assertArrayEquals(expected, sorted);
+
+                sorted = items.clone();
+                sort.parallelSort(sorted, 0, sorted.length, pool);
+                assertArrayEquals(expected, sorted);
+
+                // the argsort is stable, and permuting by it sorts the keys
+                int[] order = sort.sortIndex(items, 0, size);
+                for (int i = 1; i < size; i++) {
+                    assertTrue(items[order[i - 1]] < items[order[i]] ||
+                               (items[order[i - 1]] == items[order[i]] && order[i - 1] < order[i]));
+                }
+
+                int[] permuted = items.clone();
+                PrimitiveSort.permute(permuted, 0, order);
+                assertArrayEquals(expected, permuted);
+            }
+        }
+
+        // a range in the middle of the array
+        int[] items = new int[10000];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = random.nextInt();
+        }
+        int[] expected = items.clone();
+        Arrays.sort(expected, 1000, 9000);
+        sort.sort(items, 1000, 9000);
+        assertArrayEquals(expected, items);
+
+        pool.shutdown();
+    }
+
+    @Test
+    public
+    void sortLongsAndFloats() {
+        Random random = new Random(42);
+        PrimitiveSort sort = new PrimitiveSort();
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        for (int size : SIZES) {
+            long[] longs = new long[size];
+            float[] floats = new float[size];
+            for (int i = 0; i < size; i++) {
+                longs[i] = random.nextLong() >> random.nextInt(64);
+                floats[i] = (float) random.nextGaussian() * 1000.0f;
+            }
+            if (size > 6) {
+                floats[0] = Float.NaN;
+                floats[1] = -0.0f;
+                floats[2] = 0.0f;
+                floats[3] = Float.NEGATIVE_INFINITY;
+                floats[4] = Float.POSITIVE_INFINITY;
+                floats[5] = -Float.MIN_VALUE;
+            }
+
+            long[] expectedLongs = longs.clone();
+            Arrays.sort(expectedLongs);
+            float[] expectedFloats = floats.clone();
+            Arrays.sort(expectedFloats);
+
+            long[] sortedLongs = longs.clone();
+            sort.sort(sortedLongs);
+            assertArrayEquals(expectedLongs, sortedLongs);
+
+            sortedLongs = longs.clone();
+            sort.parallelSort(sortedLongs, 0, size, pool);
+            assertArrayEquals(expectedLongs, sortedLongs);
+
+            float[] sortedFloats = floats.clone();
+            sort.sort(sortedFloats);
+            assertArrayEquals(expectedFloats, sortedFloats, 0.0f);
+            for (int i = 0; i < size; i++) {
+                // assertArrayEquals does not tell -0.0 and 0.0 apart
+                assertEquals(Float.floatToIntBits(expectedFloats[i]), Float.floatToIntBits(sortedFloats[i]));
+            }
+
+            sortedFloats = floats.clone();
+            sort.parallelSort(sortedFloats, 0, size, pool);
+            assertArrayEquals(expectedFloats, sortedFloats, 0.0f);
+
+            int[] order = sort.sortIndex(longs, 0, size);
+            PrimitiveSort.permute(longs, 0, order);
+            assertArrayEquals(expectedLongs, longs);
+
+            order = sort.sortIndex(floats, 0, size);
+            PrimitiveSort.permute(floats, 0, order);
+            assertArrayEquals(expectedFloats, floats, 0.0f);
+        }
+
+        pool.shutdown();
+    }
+
+    @Test
+    public
+    void select() {
+        Random random = new Random(42);
+
+        for (int size : new int[] {1, 2, 3, 10, 1000, 50000}) {
+            int[] ints = new int[size];
+            long[] longs = new long[size];
+            float[] floats = new float[size];
+            for (int i = 0; i < size; i++) {
+                ints[i] = random.nextInt(size);
+                longs[i] = random.nextLong();
+                floats[i] = random.nextFloat();
+            }
+
+            int[] sortedInts = ints.clone();
+            Arrays.sort(sortedInts);
+            long[] sortedLongs = longs.clone();
+            Arrays.sort(sortedLongs);
+            float[] sortedFloats = floats.clone();
+            Arrays.sort(sortedFloats);
+
+            for (int k : new int[] {1, size / 3 + 1, size / 2 + 1, size}) {
+                assertEquals(sortedInts[k - 1], PrimitiveSelect.select(ints.clone(), k, size));
+                assertEquals(sortedLongs[k - 1], PrimitiveSelect.select(longs.clone(), k, size));
+                assertEquals(sortedFloats[k - 1], PrimitiveSelect.select(floats.clone(), k, size), 0.0f);
+            }
+
+            int k = Math.min(size, 25);
+            int[] topInts = PrimitiveSelect.topK(ints, size, k);
+            long[] topLongs = PrimitiveSelect.topK(longs, size, k);
+            float[] topFloats = PrimitiveSelect.topK(floats, size, k);
+            for (int i = 0; i < k; i++) {
+                assertEquals(sortedInts[size - 1 - i], topInts[i]);
+                assertEquals(sortedLongs[size - 1 - i], topLongs[i]);
+                assertEquals(sortedFloats[size - 1 - i], topFloats[i], 0.0f);
+            }
+        }
+
+        // already sorted input, which is the worst case for a naive pivot
+        int[] sorted = new int[100000];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = i;
+        }
+        assertEquals(77777, PrimitiveSelect.select(IntArray.with(sorted), 77778));
+    }
+}
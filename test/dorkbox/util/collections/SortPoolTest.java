@@ -0,0 +1,146 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * Compares the (pooled and parallel) sorting against Arrays.sort, which is also stable
+ */
+public
+class SortPoolTest {
+    private static final
+    class Item implements Comparable<Item> {
+        final int key;
+        final int order;
+
+        Item(final int key, final int order) {
+            this.key = key;
+            this.order = order;
+        }
+
+        @Override
+        public
+        int compareTo(final Item other) {
+            return key < other.key ? -1 : (key == other.key ? 0 : 1);
+        }
+    }
+
+    private static final Comparator<Item> BY_KEY_DESCENDING = new Comparator<Item>() {
+        @Override
+        public
+        int compare(final Item o1, final Item o2) {
+            return o2.key < o1.key ? -1 : (o1.key == o2.key ? 0 : 1);
+        }
+    };
+
+    private static
+    Item[] items(final Random random, final int size, final int keys) {
+        Item[] items = new Item[size];
+        for (int i = 0; i < size; i++) {
+            items[i] = new Item(random.nextInt(keys), i);
+        }
+        return items;
+    }
+
+    @Test
+    public
+    void parallelSortIsStable() {
+        Random random = new Random(42);
+        SortPool sortPool = new SortPool(4, 1024);
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        for (int size : new int[] {0, 10, 20000, 100000, 300001}) {
+            for (int keys : new int[] {1, 100, Integer.MAX_VALUE}) {
+                Item[] items = items(random, size, keys);
+
+                Item[] expected = items.clone();
+                Arrays.sort(expected);
+                Item[] sorted = items.clone();
+                sortPool.parallelSort(sorted, null, 0, size, pool);
+                assertArrayEquals(expected, sorted);
+
+                expected = items.clone();
+                Arrays.sort(expected, BY_KEY_DESCENDING);
+                sorted = items.clone();
+                sortPool.parallelSort(sorted, BY_KEY_DESCENDING, 0, size, pool);
+                assertArrayEquals(expected, sorted);
+
+                // already sorted input
+                sortPool.parallelSort(sorted, BY_KEY_DESCENDING, 0, size, pool);
+                assertArrayEquals(expected, sorted);
+            }
+        }
+
+        // a range in the middle of the array
+        Item[] items = items(random, 100000, 1000);
+        Item[] expected = items.clone();
+        Arrays.sort(expected, 5000, 95000);
+        sortPool.parallelSort(items, null, 5000, 95000, pool);
+        assertArrayEquals(expected, items);
+
+        pool.shutdown();
+    }
+
+    @Test
+    public
+    void concurrentSorting() throws Exception {
+        final SortPool sortPool = new SortPool(2, 1024);
+        final int threads = 4;
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicBoolean failed = new AtomicBoolean();
+
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            new Thread() {
+                @Override
+                public
+                void run() {
+                    try {
+                        Random random = new Random(seed);
+                        for (int i = 0; i < 2000; i++) {
+                            // some arrays need a merge buffer larger than the pool keeps
+                            Item[] items = items(random, random.nextInt(i % 100 == 0 ? 5000 : 200), 50);
+                            Item[] expected = items.clone();
+                            Arrays.sort(expected, BY_KEY_DESCENDING);
+
+                            Array<Item> array = new Array<Item>(items);
+                            sortPool.sort(array, BY_KEY_DESCENDING);
+                            if (!Arrays.equals(expected, array.toArray(Item.class))) {
+                                failed.set(true);
+                            }
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+
+        done.await();
+        assertTrue(!failed.get());
+    }
+}
@@ -15,13 +15,23 @@
  */
 package dorkbox.util.crypto;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.security.SecureRandom;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.bouncycastle.crypto.engines.AESFastEngine;
 import org.bouncycastle.crypto.modes.CBCBlockCipher;
@@ -339,4 +349,130 @@ public class AesTest {
             fail("bytes not equal");
         }
     }
+
+    @Test
+    public void AesSegmentedChannel() throws IOException {
+        SecureRandom rand = new SecureRandom(entropySeed.getBytes());
+
+        byte[] key = new byte[32];
+        rand.nextBytes(key);  // 256bit key
+
+        // exercise empty, partial, exact and multiple segments
+        int segmentSize = 1024;
+        int[] sizes = new int[] {0, 1, segmentSize - 1, segmentSize, segmentSize + 1, segmentSize * 5, segmentSize * 5 + 17};
+
+        for (int size : sizes) {
+            byte[] originalBytes = new byte[size];
+            rand.nextBytes(originalBytes);
+
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            boolean success = CryptoAESStream.encrypt(key,
+                                                      Channels.newChannel(new ByteArrayInputStream(originalBytes)),
+                                                      Channels.newChannel(outputStream),
+                                                      segmentSize,
+                                                      logger);
+            if (!success) {
+                fail("crypto was not successful");
+            }
+
+            byte[] encryptBytes = outputStream.toByteArray();
+            assertEquals(CryptoAESStream.encryptedSize(size, segmentSize), encryptBytes.length);
+
+            outputStream = new ByteArrayOutputStream();
+            success = CryptoAESStream.decrypt(key, Channels.newChannel(new ByteArrayInputStream(encryptBytes)), Channels.newChannel(outputStream), logger);
+            if (!success) {
+                fail("crypto was not successful");
+            }
+
+            if (!Arrays.equals(originalBytes, outputStream.toByteArray())) {
+                fail("bytes not equal");
+            }
+
+            if (size > 0) {
+                // truncating a segment (or the tag) must fail authentication
+                byte[] truncated = Arrays.copyOf(encryptBytes, encryptBytes.length - 1);
+                success = CryptoAESStream.decrypt(key, Channels.newChannel(new ByteArrayInputStream(truncated)),
+                                                  Channels.newChannel(new ByteArrayOutputStream()), null);
+                if (success) {
+                    fail("truncated data should not decrypt");
+                }
+            }
+        }
+    }
+
+    @Test
+    public void AesSegmentedFile() throws Exception {
+        SecureRandom rand = new SecureRandom(entropySeed.getBytes());
+
+        byte[] key = new byte[32];
+        rand.nextBytes(key);  // 256bit key
+
+        int segmentSize = 4096;
+        byte[] originalBytes = new byte[segmentSize * 37 + 123];
+        rand.nextBytes(originalBytes);
+
+        File source = File.createTempFile("aes", ".plain");
+        File encrypted = File.createTempFile("aes", ".encrypted");
+        File decrypted = File.createTempFile("aes", ".decrypted");
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try {
+            Files.write(source.toPath(), originalBytes);
+
+            FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+            FileChannel out = FileChannel.open(encrypted.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (!CryptoAESStream.encryptFile(key, in, out, segmentSize, executor, logger)) {
+                fail("crypto was not successful");
+            }
+
+            // corrupt a segment in the middle, then resume. Only that segment should be fixed.
+            byte[] original = new byte[16];
+            out.read(ByteBuffer.wrap(original), CryptoAESStream.HEADER_SIZE + 10 * (segmentSize + 16));
+            out.write(ByteBuffer.wrap(new byte[16]), CryptoAESStream.HEADER_SIZE + 10 * (segmentSize + 16));
+
+            if (!CryptoAESStream.resumeEncryptFile(key, in, out, executor, logger)) {
+                fail("crypto was not successful");
+            }
+
+            byte[] fixed = new byte[16];
+            out.read(ByteBuffer.wrap(fixed), CryptoAESStream.HEADER_SIZE + 10 * (segmentSize + 16));
+            assertArrayEquals(original, fixed);
+
+            in.close();
+            out.close();
+
+
+            // the output is larger than the plaintext, and must be truncated after decrypting
+            Files.write(decrypted.toPath(), new byte[originalBytes.length + 12345]);
+
+            in = FileChannel.open(encrypted.toPath(), StandardOpenOption.READ);
+            out = FileChannel.open(decrypted.toPath(), StandardOpenOption.WRITE);
+            if (!CryptoAESStream.decryptFile(key, in, out, executor, logger)) {
+                fail("crypto was not successful");
+            }
+            in.close();
+            out.close();
+
+            if (!Arrays.equals(originalBytes, Files.readAllBytes(decrypted.toPath()))) {
+                fail("bytes not equal");
+            }
+
+            // the sequential channel decrypt must be able to read the parallel output
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            in = FileChannel.open(encrypted.toPath(), StandardOpenOption.READ);
+            if (!CryptoAESStream.decrypt(key, in, Channels.newChannel(outputStream), logger)) {
+                fail("crypto was not successful");
+            }
+            in.close();
+
+            if (!Arrays.equals(originalBytes, outputStream.toByteArray())) {
+                fail("bytes not equal");
+            }
+        } finally {
+            executor.shutdown();
+            source.delete();
+            encrypted.delete();
+            decrypted.delete();
+        }
+    }
 }
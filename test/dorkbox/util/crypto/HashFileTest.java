@@ -0,0 +1,179 @@
+/*
+ * Copyright 2021 dorkbox, llc
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package dorkbox.util.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.junit.Test;
+
+public
+class HashFileTest {
+
+    private static
+    File createFile(final byte[] bytes) throws IOException {
+        File file = File.createTempFile("hash", ".test");
+        file.deleteOnExit();
+        Files.write(file.toPath(), bytes);
+        return file;
+    }
+
+    @Test
+    public
+    void singleStream() throws IOException {
+        byte[] bytes = new byte[300000];
+        new Random(42).nextBytes(bytes);
+        File file = createFile(bytes);
+
+        try {
+            // must be the same as hashing the bytes directly
+            byte[] expected = Crypto.hashStream(new SHA256Digest(), new ByteArrayInputStream(bytes));
+            assertArrayEquals(expected, Crypto.hashFileSHA256(file));
+
+            // the "end position" is the number of bytes to hash (from the start position)
+            expected = Crypto.hashStream(new SHA256Digest(), new ByteArrayInputStream(bytes, 1000, 5000));
+            assertArrayEquals(expected, Crypto.hashFile(file, new SHA256Digest(), 1000, 5000, null));
+
+            // larger than the rest of the file, so hashes to the end
+            expected = Crypto.hashStream(new SHA256Digest(), new ByteArrayInputStream(bytes, 1000, bytes.length - 1000));
+            assertArrayEquals(expected, Crypto.hashFile(file, new SHA256Digest(), 1000, bytes.length, null));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public
+    void treeHash() throws IOException {
+        byte[] bytes = new byte[1000000];
+        new Random(42).nextBytes(bytes);
+        File file = createFile(bytes);
+
+        try {
+            int leafSize = 64 * 1024;
+            CryptoTreeHash.MerkleTree tree = CryptoTreeHash.hashFile(file, new SHA256Digest(), leafSize, true, null, null);
+            assertNotNull(tree);
+            assertEquals(16, tree.getLeafCount());
+
+            // the same every time
+            CryptoTreeHash.MerkleTree again = CryptoTreeHash.hashFile(file, new SHA256Digest(), leafSize, false, null, null);
+            assertArrayEquals(tree.getRoot(), again.getRoot());
+            assertFalse(again.hasLeaves());
+
+            // depends on the leaf size, and is not the single stream hash
+            assertFalse(Arrays.equals(tree.getRoot(), CryptoTreeHash.hashFile(file, new SHA256Digest(), null)));
+            assertFalse(Arrays.equals(tree.getRoot(), Crypto.hashFileSHA256(file)));
+
+            assertTrue(tree.verifyRange(file, 0, bytes.length, null, null));
+
+            // modify a single byte, only the leaf containing it (and the whole file) will fail to verify
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.seek(500000);
+                randomAccessFile.write(bytes[500000] + 1);
+            } finally {
+                randomAccessFile.close();
+            }
+
+            assertTrue(tree.verifyRange(file, 0, 400000, null, null));
+            assertFalse(tree.verifyRange(file, 499000, 2000, null, null));
+            assertFalse(tree.verifyRange(file, 0, bytes.length, null, null));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static
+    File createJar(final byte[] changed) throws IOException {
+        File file = File.createTempFile("hash", ".jar");
+        file.deleteOnExit();
+
+        Random random = new Random(42);
+        JarOutputStream outputStream = new JarOutputStream(Files.newOutputStream(file.toPath()));
+        try {
+            for (int i = 0; i < 20; i++) {
+                byte[] bytes = new byte[random.nextInt(50000)];
+                random.nextBytes(bytes);
+                if (i == 10 && changed != null) {
+                    bytes = changed;
+                }
+
+                ZipEntry entry = new ZipEntry("entry" + i);
+                // the custom header, with (odd entries) or without an action. Newer JVMs validate the extra data, and the header is also
+                // read as the size of the extra data (0x9ECA)
+                byte[] extra = new byte[4 + 0x9ECA];
+                System.arraycopy(new byte[] {(byte) -2, (byte) -54, (byte) -54, (byte) -98, (byte) (i % 2), (byte) (i % 4), 0, 0, 0}, 0,
+                                 extra, 0, 9);
+                entry.setExtra(extra);
+
+                outputStream.putNextEntry(entry);
+                outputStream.write(bytes);
+                outputStream.closeEntry();
+            }
+        } finally {
+            outputStream.close();
+        }
+
+        return file;
+    }
+
+    @Test
+    public
+    void jarHash() throws IOException {
+        File jar = createJar(null);
+        File manifest = CryptoJarHash.getManifestFile(jar);
+        manifest.deleteOnExit();
+
+        try {
+            byte[] hash = CryptoJarHash.hashJarContentsExcludeAction(jar, new SHA256Digest(), 2, null, null);
+            assertNotNull(hash);
+            assertFalse(Arrays.equals(hash, Crypto.hashJarContentsExcludeAction(jar, new SHA256Digest(), 2)));
+
+            // the incremental hash is the same, with and without a manifest
+            assertArrayEquals(hash, CryptoJarHash.hashJarContentsExcludeAction(jar, new SHA256Digest(), 2, manifest, null, null));
+            assertTrue(manifest.isFile());
+            assertArrayEquals(hash, CryptoJarHash.hashJarContentsExcludeAction(jar, new SHA256Digest(), 2, manifest, null, null));
+
+            // a different action excludes different entries
+            assertFalse(Arrays.equals(hash, CryptoJarHash.hashJarContentsExcludeAction(jar, new SHA256Digest(), 1, manifest, null, null)));
+
+            // a changed entry is re-hashed
+            jar.delete();
+            jar = createJar(new byte[] {1, 2, 3});
+
+            byte[] changed = CryptoJarHash.hashJarContentsExcludeAction(jar, new SHA256Digest(), 2, null, null);
+            assertFalse(Arrays.equals(hash, changed));
+            assertArrayEquals(changed, CryptoJarHash.hashJarContentsExcludeAction(jar, new SHA256Digest(), 2, manifest, null, null));
+        } finally {
+            jar.delete();
+            manifest.delete();
+        }
+    }
+}
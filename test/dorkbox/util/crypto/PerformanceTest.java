@@ -15,8 +15,17 @@
  */
 package dorkbox.util.crypto;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.security.SecureRandom;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.bouncycastle.crypto.CipherParameters;
 import org.bouncycastle.crypto.engines.AESFastEngine;
@@ -40,6 +49,85 @@ class PerformanceTest {
             new PerformanceTest(true);
         }
         new PerformanceTest(false);
+
+        streamBenchmark();
+    }
+
+    /**
+     * Compares the (single pass) GCM stream against the segmented channel/file versions
+     */
+    static
+    void streamBenchmark() throws Exception {
+        final int size = 64 * 1024 * 1024;
+        final int rounds = 5;
+
+        final byte[] bytes = new byte[size];
+        final byte[] aesKey = new byte[32];
+        final byte[] aesIV = new byte[16];
+
+        final Random random = new SecureRandom(entropySeed.getBytes());
+        random.nextBytes(bytes);
+        random.nextBytes(aesKey);
+        random.nextBytes(aesIV);
+
+        File source = File.createTempFile("aes", ".plain");
+        File encrypted = File.createTempFile("aes", ".encrypted");
+        Files.write(source.toPath(), bytes);
+
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        GCMBlockCipher aesEngine = new GCMBlockCipher(new AESFastEngine());
+
+        try {
+            System.out.println("Benchmarking AES-256 GCM stream encryption (" + (size / 1024 / 1024) + " MB)");
+
+            // first round is warmup
+            for (int i = 0; i <= rounds; i++) {
+                // GCM will not permit re-using the same nonce for encryption
+                random.nextBytes(aesIV);
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream(size + 1024);
+
+                long start = System.nanoTime();
+                CryptoAES.encryptStream(aesEngine, aesKey, aesIV, new ByteArrayInputStream(bytes), out, logger);
+                long stream = System.nanoTime() - start;
+
+                out = new ByteArrayOutputStream(size + 1024 * 1024);
+
+                start = System.nanoTime();
+                CryptoAESStream.encrypt(aesKey, Channels.newChannel(new ByteArrayInputStream(bytes)), Channels.newChannel(out), logger);
+                long channel = System.nanoTime() - start;
+
+                FileChannel in = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+                FileChannel fileOut = FileChannel.open(encrypted.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+                start = System.nanoTime();
+                CryptoAESStream.encryptFile(aesKey, in, fileOut, CryptoAESStream.DEFAULT_SEGMENT_SIZE, null, logger);
+                long file = System.nanoTime() - start;
+
+                start = System.nanoTime();
+                CryptoAESStream.encryptFile(aesKey, in, fileOut, CryptoAESStream.DEFAULT_SEGMENT_SIZE, executor, logger);
+                long parallel = System.nanoTime() - start;
+
+                in.close();
+                fileOut.close();
+
+                if (i > 0) {
+                    System.out.println("CryptoAES.encryptStream:          " + throughput(size, stream) + " MB/s");
+                    System.out.println("CryptoAESStream.encrypt:          " + throughput(size, channel) + " MB/s");
+                    System.out.println("CryptoAESStream.encryptFile:      " + throughput(size, file) + " MB/s");
+                    System.out.println("CryptoAESStream.encryptFile (mt): " + throughput(size, parallel) + " MB/s");
+                }
+            }
+        } finally {
+            executor.shutdown();
+            source.delete();
+            encrypted.delete();
+        }
+    }
+
+    private static
+    long throughput(long bytes, long nanos) {
+        return bytes * 1000L * 1000L * 1000L / 1024 / 1024 / Math.max(1L, nanos);
     }
 
     PerformanceTest(boolean isWarmup) {
@@ -71,7 +159,9 @@ class PerformanceTest {
         long encryptDoFinalTime = 0L;
 
         while (System.currentTimeMillis() - javaEncryptStartTime < 10000) {
+            // GCM will not permit re-using the same nonce for encryption
             random.nextBytes(aesIV);
+            aesIVAndKey = new ParametersWithIV(new KeyParameter(aesKey), aesIV);
 
             long n1 = System.nanoTime();
 